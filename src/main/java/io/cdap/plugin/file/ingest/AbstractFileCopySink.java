@@ -24,6 +24,7 @@ import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
 import io.cdap.cdap.etl.api.batch.BatchSinkContext;
 import io.cdap.plugin.common.ReferenceBatchSink;
+import io.cdap.plugin.file.ingest.s3.S3CredentialSets;
 import io.cdap.plugin.file.ingest.s3.S3FileMetadata;
 import org.apache.hadoop.io.NullWritable;
 import org.slf4j.Logger;
@@ -110,6 +111,59 @@ public abstract class AbstractFileCopySink
       } else {
         FileCopyOutputFormat.setBufferSize(conf, String.valueOf(FileCopyRecordWriter.DEFAULT_BUFFER_SIZE));
       }
+      if (config.copyHistoryDirectory != null && !config.copyHistoryDirectory.isEmpty()) {
+        FileCopyOutputFormat.setCopyHistoryDirectory(conf, config.copyHistoryDirectory);
+      }
+      if (config.bulkDirectoryCreation != null) {
+        FileCopyOutputFormat.setBulkDirectoryCreation(conf, config.bulkDirectoryCreation.toString());
+      }
+      if (config.copyParallelism != null) {
+        FileCopyOutputFormat.setCopyParallelism(conf, config.copyParallelism.toString());
+      }
+      if (config.inFlightBudget != null) {
+        // inFlightBudget is in megabytes
+        FileCopyOutputFormat.setInFlightBytes(conf, String.valueOf((long) config.inFlightBudget << 20));
+      }
+      if (config.pipelinedCopy != null) {
+        FileCopyOutputFormat.setPipelinedCopy(conf, config.pipelinedCopy.toString());
+      }
+      if (config.fastLocalCopy != null) {
+        FileCopyOutputFormat.setFastLocalCopy(conf, config.fastLocalCopy.toString());
+      }
+      if (config.rangedReadParallelism != null) {
+        FileCopyOutputFormat.setRangedReadParallelism(conf, config.rangedReadParallelism.toString());
+      }
+      if (config.rangedReadSize != null) {
+        // rangedReadSize is in megabytes
+        FileCopyOutputFormat.setRangedReadSize(conf, String.valueOf(config.rangedReadSize << 20));
+      }
+      if (config.bufferPoolSize != null) {
+        // bufferPoolSize is in megabytes
+        FileCopyOutputFormat.setBufferPoolSize(conf, String.valueOf((long) config.bufferPoolSize << 20));
+      }
+      if (config.directBufferRead != null) {
+        FileCopyOutputFormat.setDirectBufferRead(conf, config.directBufferRead.toString());
+      }
+      if (config.skipUnchangedFiles != null) {
+        FileCopyOutputFormat.setSkipUnchangedFiles(conf, config.skipUnchangedFiles.toString());
+      }
+      if (config.verifyChecksums != null) {
+        FileCopyOutputFormat.setVerifyChecksums(conf, config.verifyChecksums.toString());
+      }
+      if (config.resumableCopy != null) {
+        FileCopyOutputFormat.setResumableCopy(conf, config.resumableCopy.toString());
+      }
+      if (config.checkpointInterval != null) {
+        // checkpointInterval is in megabytes
+        FileCopyOutputFormat.setCheckpointInterval(conf, String.valueOf((long) config.checkpointInterval << 20));
+      }
+      if (config.stagedCommit != null) {
+        FileCopyOutputFormat.setStagedCommit(conf, config.stagedCommit.toString());
+      }
+      if (config.sourceAccessKeyId != null && config.sourceSecretKeyId != null) {
+        // resolves the credential set ids of records from S3 sources that share these credentials
+        S3CredentialSets.register(conf, config.sourceAccessKeyId, config.sourceSecretKeyId);
+      }
     }
 
     @Override
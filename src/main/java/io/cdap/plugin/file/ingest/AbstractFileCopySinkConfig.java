@@ -29,6 +29,17 @@ import javax.annotation.Nullable;
  */
 public abstract class AbstractFileCopySinkConfig extends ReferencePluginConfig {
   public static final String BUFFER_SIZE = "bufferSize";
+  public static final String COPY_PARALLELISM = "copyParallelism";
+  public static final String IN_FLIGHT_BUDGET = "inFlightBudget";
+  public static final String RANGED_READ_PARALLELISM = "rangedReadParallelism";
+  public static final String RANGED_READ_SIZE = "rangedReadSize";
+  public static final int MAX_RANGED_READ_SIZE = 1024;
+  public static final String BUFFER_POOL_SIZE = "bufferPoolSize";
+  public static final String RESUMABLE_COPY = "resumableCopy";
+  public static final String CHECKPOINT_INTERVAL = "checkpointInterval";
+  public static final String STAGED_COMMIT = "stagedCommit";
+  public static final String SOURCE_ACCESS_KEY_ID = "sourceAccessKeyId";
+  public static final String SOURCE_SECRET_KEY_ID = "sourceSecretKeyId";
 
   @Macro
   @Description("The destination path. Will be created if it doesn't exist.")
@@ -46,6 +57,123 @@ public abstract class AbstractFileCopySinkConfig extends ReferencePluginConfig {
     " 1 MB")
   public Integer bufferSize;
 
+  @Macro
+  @Nullable
+  @Description("Directory that the durations of the copies are saved to, so that the metadata source can balance " +
+    "splits by predicted copy duration instead of bytes. Must be reachable from all workers, for example a " +
+    "directory on HDFS.")
+  public String copyHistoryDirectory;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to create the directories in bulk when the copy job commits, instead of in every " +
+    "task. Only the deepest directories are created, and the permissions and owners of the source are applied to " +
+    "every directory the job created once, including the parents of copied files. Directories that existed " +
+    "before the job are only changed if overwriting is enabled. Defaults to false.")
+  public Boolean bulkDirectoryCreation;
+
+  @Macro
+  @Nullable
+  @Description("The number of files that each task copies concurrently. Files of at least 8 MB are copied in a " +
+    "separate lane with a quarter as many threads, so that small files never wait behind large ones. Defaults to 1, " +
+    "which copies one file at a time.")
+  public Integer copyParallelism;
+
+  @Macro
+  @Nullable
+  @Description("When copying concurrently, the maximum size (in MB) of the files that each task has queued or is " +
+    "copying, in each of the small and the large file lane. Defaults to 256 MB.")
+  public Integer inFlightBudget;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to read files that are larger than the buffer on a separate thread, which fills a " +
+    "small ring of buffers while the task writes the filled ones, so that source and destination latencies overlap. " +
+    "Uses four buffers per copied file. Defaults to false.")
+  public Boolean pipelinedCopy;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to copy between local files with zero copy transfers on the raw files, when both " +
+    "the source and the destination scheme are file. No checksum files are written for the copied files. " +
+    "Defaults to false.")
+  public Boolean fastLocalCopy;
+
+  @Macro
+  @Nullable
+  @Description("The number of byte ranges of a file that are read at the same time, each with its own positioned " +
+    "read, such as a ranged GET on S3. The ranges are written to the destination in order. Only used for files and " +
+    "chunks larger than the ranged read size. Defaults to 1, which reads files sequentially.")
+  public Integer rangedReadParallelism;
+
+  @Macro
+  @Nullable
+  @Description("The size (in MB) of the byte ranges that are read at the same time, at most 1024. It is reduced so " +
+    "that the ranges a copy reads ahead, twice the ranged read parallelism, fit into its share of the in-flight " +
+    "budget. Defaults to 8 MB.")
+  public Integer rangedReadSize;
+
+  @Macro
+  @Nullable
+  @Description("The maximum size (in MB) of the copy buffers of each executor, both those in use and the idle ones " +
+    "that are kept for reuse. Buffers are sized for the files they copy, from 4 KB up to the buffer size, and copies " +
+    "fall back to 4 KB buffers once the size is used up. Set to 0 to disable reuse and the limit. Defaults to 64 MB.")
+  public Integer bufferPoolSize;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to read files into direct buffers when the source stream supports it, such as on " +
+    "HDFS, and the destination stream can write them without a byte array. This saves copying the data into the " +
+    "heap. Defaults to false.")
+  public Boolean directBufferRead;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to skip files that already exist unchanged in the destination, when overwriting is " +
+    "enabled. A file is unchanged if it has the same size, was written after the source was last modified, and has " +
+    "the same S3 ETag or filesystem checksum, where both sides have comparable ones. Defaults to false.")
+  public Boolean skipUnchangedFiles;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to verify copied files with a checksum of the bytes as they stream through the " +
+    "task. A file fails if its length or its MD5 doesn't match the source or destination S3 ETag, where those are " +
+    "comparable. The CRC32C of a verified file is recorded in an extended attribute where the destination supports " +
+    "it. Defaults to false.")
+  public Boolean verifyChecksums;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to copy files larger than the checkpoint interval so that a retried task continues " +
+    "a failed copy where it stopped, instead of starting over. Files are written to a hidden in-progress file and " +
+    "renamed once complete, or uploaded in parts to S3. Defaults to false.")
+  public Boolean resumableCopy;
+
+  @Macro
+  @Nullable
+  @Description("The number of megabytes between the checkpoints of a resumable copy. Defaults to 256 MB.")
+  public Integer checkpointInterval;
+
+  @Macro
+  @Nullable
+  @Description("Whether or not to write the files of each task attempt to a staging directory under the " +
+    "destination, and move them to their destination only when the attempt commits. This makes retried and " +
+    "speculative attempts safe, since the files of failed or killed attempts are discarded. Can't be combined with " +
+    "resumable copies, since a new attempt can't continue the copy of another. Defaults to false.")
+  public Boolean stagedCommit;
+
+  @Macro
+  @Nullable
+  @Description("The access key ID of S3 sources that share their credentials, whose records only carry the id of " +
+    "the credential set.")
+  public String sourceAccessKeyId;
+
+  @Macro
+  @Nullable
+  @Description("The secret key ID of S3 sources that share their credentials. Use a secure macro to keep it out of " +
+    "the pipeline configuration.")
+  public String sourceSecretKeyId;
+
   public AbstractFileCopySinkConfig(String name, String basePath, Boolean enableOverwrite,
                                     Boolean preserveFileOwner, @Nullable Integer bufferSize) {
     super(name);
@@ -65,6 +193,44 @@ public abstract class AbstractFileCopySinkConfig extends ReferencePluginConfig {
           .withConfigProperty(BUFFER_SIZE);
       }
     }
+    if (!this.containsMacro(COPY_PARALLELISM) && copyParallelism != null && copyParallelism <= 0) {
+      failureCollector.addFailure("Copy parallelism must be a positive integer.", null)
+        .withConfigProperty(COPY_PARALLELISM);
+    }
+    if (!this.containsMacro(IN_FLIGHT_BUDGET) && inFlightBudget != null && inFlightBudget <= 0) {
+      failureCollector.addFailure("In-flight budget must be a positive integer.", null)
+        .withConfigProperty(IN_FLIGHT_BUDGET);
+    }
+    if (!this.containsMacro(RANGED_READ_PARALLELISM) && rangedReadParallelism != null && rangedReadParallelism <= 0) {
+      failureCollector.addFailure("Ranged read parallelism must be a positive integer.", null)
+        .withConfigProperty(RANGED_READ_PARALLELISM);
+    }
+    // the size is passed on in bytes as an int, and each range is read into a byte array
+    if (!this.containsMacro(RANGED_READ_SIZE) && rangedReadSize != null &&
+      (rangedReadSize <= 0 || rangedReadSize > MAX_RANGED_READ_SIZE)) {
+      failureCollector.addFailure(String.format("Ranged read size must be between 1 and %d.", MAX_RANGED_READ_SIZE),
+                                  null)
+        .withConfigProperty(RANGED_READ_SIZE);
+    }
+    if (!this.containsMacro(BUFFER_POOL_SIZE) && bufferPoolSize != null && bufferPoolSize < 0) {
+      failureCollector.addFailure("Buffer pool size must not be negative.", null)
+        .withConfigProperty(BUFFER_POOL_SIZE);
+    }
+    if (!this.containsMacro(CHECKPOINT_INTERVAL) && checkpointInterval != null && checkpointInterval <= 0) {
+      failureCollector.addFailure("Checkpoint interval must be a positive integer.", null)
+        .withConfigProperty(CHECKPOINT_INTERVAL);
+    }
+    // every attempt stages its files in its own directory, where a retry can't find the checkpoints of another
+    if (!this.containsMacro(RESUMABLE_COPY) && !this.containsMacro(STAGED_COMMIT) &&
+      Boolean.TRUE.equals(resumableCopy) && Boolean.TRUE.equals(stagedCommit)) {
+      failureCollector.addFailure("Resumable copy and staged commit can't both be enabled.", null)
+        .withConfigProperty(STAGED_COMMIT);
+    }
+    if (!this.containsMacro(SOURCE_ACCESS_KEY_ID) && !this.containsMacro(SOURCE_SECRET_KEY_ID) &&
+      (sourceAccessKeyId == null) != (sourceSecretKeyId == null)) {
+      failureCollector.addFailure("Source access key ID and secret key ID must be set together.", null)
+        .withConfigProperty(sourceAccessKeyId == null ? SOURCE_ACCESS_KEY_ID : SOURCE_SECRET_KEY_ID);
+    }
   }
 
   /**
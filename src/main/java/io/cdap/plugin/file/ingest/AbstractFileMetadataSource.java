@@ -27,7 +27,18 @@ import io.cdap.cdap.etl.api.batch.BatchSourceContext;
 import io.cdap.plugin.common.ReferenceBatchSource;
 import io.cdap.plugin.common.ReferencePluginConfig;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.Nullable;
 
 /**
  * Abstract class for FileCopySource plugin. Extracts metadata of desired files
@@ -37,7 +48,13 @@ import org.apache.hadoop.io.NullWritable;
 public abstract class AbstractFileMetadataSource<K extends FileMetadata>
   extends ReferenceBatchSource<NullWritable, K, StructuredRecord> {
 
+  private static final Logger LOG = LoggerFactory.getLogger(AbstractFileMetadataSource.class);
+  private static final int DEFAULT_WATERMARK_OVERLAP = 60;
   private final AbstractFileMetadataSourceConfig config;
+  // the manifest directory of the current run, if splits are planned with a manifest
+  private Path manifestRunDirectory;
+  // identifies the pending watermarks of the current run, if ingesting incrementally
+  private String incrementalRunId;
 
   protected AbstractFileMetadataSource(AbstractFileMetadataSourceConfig config) {
     super(config);
@@ -68,6 +85,30 @@ public abstract class AbstractFileMetadataSource<K extends FileMetadata>
     config.validate();
   }
 
+  /**
+   * Removes the listing manifest of the run, and commits its watermarks if it succeeded.
+   */
+  @Override
+  public void onRunFinish(boolean succeeded, BatchSourceContext context) {
+    super.onRunFinish(succeeded, context);
+    if (manifestRunDirectory != null) {
+      try {
+        manifestRunDirectory.getFileSystem(new Configuration()).delete(manifestRunDirectory, true);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete listing manifest directory {}.", manifestRunDirectory, e);
+      }
+    }
+    if (incrementalRunId != null) {
+      try {
+        MetadataInputFormat.finishIncrementalRun(new Configuration(), config.stateDirectory, incrementalRunId,
+                                                 succeeded);
+      } catch (IOException e) {
+        // the next run lists the files of this run again, which is safe
+        LOG.warn("Failed to commit the watermarks of the run in {}.", config.stateDirectory, e);
+      }
+    }
+  }
+
   /**
    * Convert file metadata to StructuredRecord and emit.
    */
@@ -89,6 +130,119 @@ public abstract class AbstractFileMetadataSource<K extends FileMetadata>
     @Description("Whether or not to copy recursively")
     public Boolean recursiveCopy;
 
+    @Macro
+    @Nullable
+    @Description("The number of directories that are listed concurrently when scanning the source paths. " +
+      "Defaults to 1.")
+    public Integer listingParallelism;
+
+    @Macro
+    @Nullable
+    @Description("Files larger than this many megabytes are split into chunks of this size, which are copied by " +
+      "different tasks and stitched together when the copy job commits. Only HDFS, S3 and local destinations " +
+      "support chunks. Must be at least 5.")
+    public Integer chunkSize;
+
+    @Macro
+    @Nullable
+    @Description("Directory used to plan splits with an on-disk listing manifest instead of in memory, which keeps " +
+      "the memory usage of planning flat for any number of files. Must be reachable from all workers, for example " +
+      "a directory on HDFS. Each run uses its own sub directory, which is deleted at the end of the run.")
+    public String manifestDirectory;
+
+    @Macro
+    @Nullable
+    @Description("Directory for state that is kept across runs, such as listing snapshots. Must be reachable from " +
+      "the pipeline driver, for example a directory on HDFS.")
+    public String stateDirectory;
+
+    @Macro
+    @Nullable
+    @Description("If set, the listing of the source paths is saved as a snapshot in the state directory and reused " +
+      "by runs that start within this many minutes. Interrupted listings resume from the last checkpoint.")
+    public Integer listingCacheTTL;
+
+    @Macro
+    @Nullable
+    @Description("If set, splits are balanced by copy durations predicted from the copy history in this directory, " +
+      "instead of by bytes. Use the same directory as the copy history directory of the sink.")
+    public String copyHistoryDirectory;
+
+    @Macro
+    @Nullable
+    @Description("Whether or not to only emit files that were modified since the last successful run. The largest " +
+      "modification time seen under each source path is kept in the state directory after every successful run. " +
+      "Defaults to false.")
+    public Boolean incremental;
+
+    @Macro
+    @Nullable
+    @Description("When ingesting incrementally, files modified up to this many seconds before the last watermark " +
+      "are emitted again, to allow for clock skew between writers and the filesystem. Defaults to 60.")
+    public Integer watermarkOverlap;
+
+    @Macro
+    @Nullable
+    @Description("When ingesting incrementally, whether or not to carry the contents of directories whose " +
+      "modification time didn't change forward from the previous run, instead of listing them again. Only effective " +
+      "on filesystems that update the modification time of a directory when its entries change, such as HDFS. " +
+      "Files appended to in place are not detected. Defaults to false.")
+    public Boolean skipUnchangedDirectories;
+
+    @Macro
+    @Nullable
+    @Description("Glob that the relative path of a file must match for the file to be emitted, for example *.csv.")
+    public String includeGlob;
+
+    @Macro
+    @Nullable
+    @Description("Glob for relative paths of files and directories that are not emitted. The contents of excluded " +
+      "directories are not listed at all.")
+    public String excludeGlob;
+
+    @Macro
+    @Nullable
+    @Description("Regular expression that the relative path of a file must match for the file to be emitted.")
+    public String includeRegex;
+
+    @Macro
+    @Nullable
+    @Description("Regular expression for relative paths of files and directories that are not emitted. The " +
+      "contents of excluded directories are not listed at all.")
+    public String excludeRegex;
+
+    @Macro
+    @Nullable
+    @Description("Files smaller than this many bytes are not emitted.")
+    public Long minFileSize;
+
+    @Macro
+    @Nullable
+    @Description("Files larger than this many bytes are not emitted.")
+    public Long maxFileSize;
+
+    @Macro
+    @Nullable
+    @Description("Only files modified at or after this time, in milliseconds since the epoch, are emitted.")
+    public Long modifiedAfter;
+
+    @Macro
+    @Nullable
+    @Description("Only files modified before this time, in milliseconds since the epoch, are emitted.")
+    public Long modifiedBefore;
+
+    @Macro
+    @Nullable
+    @Description("Whether or not to skip files that are still being written, as shown by the _COPYING_, .tmp and " +
+      ".inprogress suffixes. Defaults to false.")
+    public Boolean ignoreInProgressFiles;
+
+    @Macro
+    @Nullable
+    @Description("Files modified less than this many seconds before the listing are not emitted, as they may still " +
+      "be written to.")
+    public Integer minFileAge;
+
     public AbstractFileMetadataSourceConfig(String name, String sourcePaths,
                                             Integer maxSplitSize) {
       super(name);
@@ -102,6 +256,78 @@ public abstract class AbstractFileMetadataSource<K extends FileMetadata>
           throw new IllegalArgumentException("Max split size must be a positive integer.");
         }
       }
+      if (!this.containsMacro("listingParallelism")) {
+        if (listingParallelism != null && listingParallelism <= 0) {
+          throw new IllegalArgumentException("Listing parallelism must be a positive integer.");
+        }
+      }
+      if (!this.containsMacro("chunkSize")) {
+        // S3 destinations stitch chunks with a multipart upload, whose parts but the last must be at least 5 MB
+        if (chunkSize != null && chunkSize < 5) {
+          throw new IllegalArgumentException("Chunk size must be at least 5 megabytes.");
+        }
+      }
+      if (!this.containsMacro("listingCacheTTL") && listingCacheTTL != null) {
+        if (listingCacheTTL <= 0) {
+          throw new IllegalArgumentException("Listing cache TTL must be a positive integer.");
+        }
+        if (!this.containsMacro("stateDirectory") && (stateDirectory == null || stateDirectory.isEmpty())) {
+          throw new IllegalArgumentException("A state directory is required for the listing cache.");
+        }
+      }
+      if (!this.containsMacro("watermarkOverlap")) {
+        if (watermarkOverlap != null && watermarkOverlap < 0) {
+          throw new IllegalArgumentException("Watermark overlap must not be negative.");
+        }
+      }
+      validatePattern("includeGlob", includeGlob, true);
+      validatePattern("excludeGlob", excludeGlob, true);
+      validatePattern("includeRegex", includeRegex, false);
+      validatePattern("excludeRegex", excludeRegex, false);
+      if (!this.containsMacro("minFileSize") && !this.containsMacro("maxFileSize")) {
+        if ((minFileSize != null && minFileSize < 0) || (maxFileSize != null && maxFileSize < 0)) {
+          throw new IllegalArgumentException("File size bounds must not be negative.");
+        }
+        if (minFileSize != null && maxFileSize != null && minFileSize > maxFileSize) {
+          throw new IllegalArgumentException("Min file size must not be larger than max file size.");
+        }
+      }
+      if (!this.containsMacro("modifiedAfter") && !this.containsMacro("modifiedBefore")) {
+        if (modifiedAfter != null && modifiedBefore != null && modifiedAfter >= modifiedBefore) {
+          throw new IllegalArgumentException("Modified after must be earlier than modified before.");
+        }
+      }
+      if (!this.containsMacro("minFileAge")) {
+        if (minFileAge != null && minFileAge < 0) {
+          throw new IllegalArgumentException("Min file age must not be negative.");
+        }
+      }
+      if (!this.containsMacro("incremental") && Boolean.TRUE.equals(incremental)) {
+        if (!this.containsMacro("stateDirectory") && (stateDirectory == null || stateDirectory.isEmpty())) {
+          throw new IllegalArgumentException("A state directory is required for incremental ingest.");
+        }
+      }
+      if (!this.containsMacro("skipUnchangedDirectories") && !this.containsMacro("incremental")) {
+        if (Boolean.TRUE.equals(skipUnchangedDirectories) && !Boolean.TRUE.equals(incremental)) {
+          throw new IllegalArgumentException("Unchanged directories can only be skipped when ingesting incrementally.");
+        }
+      }
+    }
+
+    private void validatePattern(String property, @Nullable String pattern, boolean glob) {
+      if (this.containsMacro(property) || pattern == null || pattern.isEmpty()) {
+        return;
+      }
+      try {
+        if (glob) {
+          GlobPattern.compile(pattern);
+        } else {
+          Pattern.compile(pattern);
+        }
+      } catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException(String.format("Invalid %s for %s: %s", glob ? "glob" : "regular expression",
+                                                         property, e.getMessage()), e);
+      }
     }
   }
 
@@ -114,6 +340,64 @@ public abstract class AbstractFileMetadataSource<K extends FileMetadata>
     MetadataInputFormat.setSourcePaths(conf, config.sourcePaths);
     MetadataInputFormat.setMaxSplitSize(conf, config.maxSplitSize);
     MetadataInputFormat.setRecursiveCopy(conf, config.recursiveCopy.toString());
+    if (config.listingParallelism != null) {
+      MetadataInputFormat.setListingParallelism(conf, config.listingParallelism);
+    }
+    if (config.chunkSize != null) {
+      // chunkSize is in megabytes
+      MetadataInputFormat.setChunkSize(conf, (long) config.chunkSize << 20);
+    }
+    if (config.manifestDirectory != null && !config.manifestDirectory.isEmpty()) {
+      manifestRunDirectory = new Path(config.manifestDirectory, UUID.randomUUID().toString());
+      MetadataInputFormat.setManifestDirectory(conf, manifestRunDirectory.toString());
+    }
+    if (config.stateDirectory != null && !config.stateDirectory.isEmpty()) {
+      MetadataInputFormat.setStateDirectory(conf, config.stateDirectory);
+    }
+    if (config.listingCacheTTL != null) {
+      MetadataInputFormat.setListingCacheTTL(conf, TimeUnit.MINUTES.toMillis(config.listingCacheTTL));
+    }
+    if (config.copyHistoryDirectory != null && !config.copyHistoryDirectory.isEmpty()) {
+      MetadataInputFormat.setCopyHistoryDirectory(conf, config.copyHistoryDirectory);
+    }
+    if (config.includeGlob != null && !config.includeGlob.isEmpty()) {
+      MetadataInputFormat.setIncludeGlob(conf, config.includeGlob);
+    }
+    if (config.excludeGlob != null && !config.excludeGlob.isEmpty()) {
+      MetadataInputFormat.setExcludeGlob(conf, config.excludeGlob);
+    }
+    if (config.includeRegex != null && !config.includeRegex.isEmpty()) {
+      MetadataInputFormat.setIncludeRegex(conf, config.includeRegex);
+    }
+    if (config.excludeRegex != null && !config.excludeRegex.isEmpty()) {
+      MetadataInputFormat.setExcludeRegex(conf, config.excludeRegex);
+    }
+    if (config.minFileSize != null) {
+      MetadataInputFormat.setMinFileSize(conf, config.minFileSize);
+    }
+    if (config.maxFileSize != null) {
+      MetadataInputFormat.setMaxFileSize(conf, config.maxFileSize);
+    }
+    if (config.modifiedAfter != null) {
+      MetadataInputFormat.setModifiedAfter(conf, config.modifiedAfter);
+    }
+    if (config.modifiedBefore != null) {
+      MetadataInputFormat.setModifiedBefore(conf, config.modifiedBefore);
+    }
+    if (config.ignoreInProgressFiles != null) {
+      MetadataInputFormat.setIgnoreInProgressFiles(conf, config.ignoreInProgressFiles);
+    }
+    if (config.minFileAge != null) {
+      MetadataInputFormat.setMinFileAge(conf, TimeUnit.SECONDS.toMillis(config.minFileAge));
+    }
+    if (Boolean.TRUE.equals(config.incremental)) {
+      incrementalRunId = UUID.randomUUID().toString();
+      int overlap = config.watermarkOverlap == null ? DEFAULT_WATERMARK_OVERLAP : config.watermarkOverlap;
+      MetadataInputFormat.setIncremental(conf, incrementalRunId, TimeUnit.SECONDS.toMillis(overlap));
+      if (config.skipUnchangedDirectories != null) {
+        MetadataInputFormat.setSkipUnchangedDirectories(conf, config.skipUnchangedDirectories);
+      }
+    }
   }
 
     /*
@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import javax.annotation.Nullable;
+
+/**
+ * A pool of copy buffers that is shared by all copies in the same JVM, so that copying many small files does not
+ * allocate a new buffer for every file.
+ *
+ * Buffers are sized for the data they copy: the smallest power of two that holds it, between 4 KB and the configured
+ * buffer size. Heap and direct buffers are pooled separately, but both count against the capacity of the pool, which
+ * bounds the buffers that are in use together with the idle ones. Once the capacity is used up, idle buffers are
+ * dropped to make room, and then copies fall back to the smallest buffer size. A capacity of 0 disables both pooling
+ * and the bound. Safe for use by concurrent copies.
+ */
+final class BufferPool {
+  static final int MIN_BUFFER_SIZE = 4 << 10;
+  private static BufferPool instance;
+
+  private final Map<Integer, Queue<byte[]>> heapBuffers;
+  private final Map<Integer, Queue<ByteBuffer>> directBuffers;
+  private long capacity;
+  // the size of the buffers that are in the pool, and of those that were acquired and not released yet
+  private long pooledBytes;
+  private long inUseBytes;
+
+  BufferPool(long capacity) {
+    this.heapBuffers = new HashMap<>();
+    this.directBuffers = new HashMap<>();
+    this.capacity = capacity;
+  }
+
+  /**
+   * Returns the pool of this JVM. Its capacity is the largest one requested so far, so that copies that run in the
+   * same JVM with different settings don't reset each other's limit.
+   */
+  static synchronized BufferPool getInstance(long capacity) {
+    if (instance == null) {
+      instance = new BufferPool(capacity);
+    }
+    instance.raiseCapacity(capacity);
+    return instance;
+  }
+
+  private synchronized void raiseCapacity(long capacity) {
+    this.capacity = Math.max(this.capacity, capacity);
+  }
+
+  /**
+   * Returns the size of the buffer to copy data of the given length with.
+   */
+  static int getBufferSize(long length, int maxBufferSize) {
+    if (length >= maxBufferSize) {
+      return maxBufferSize;
+    }
+    int size = MIN_BUFFER_SIZE;
+    while (size < length) {
+      size <<= 1;
+    }
+    return Math.min(size, maxBufferSize);
+  }
+
+  /**
+   * Returns a heap buffer for copying data of the given length, which should be released once the copy is done. The
+   * buffer has the smallest size if the capacity of the pool is used up.
+   */
+  byte[] acquire(long length, int maxBufferSize) {
+    byte[] buffer = tryAcquire(length, maxBufferSize);
+    if (buffer != null) {
+      return buffer;
+    }
+    reserveFallback();
+    return new byte[MIN_BUFFER_SIZE];
+  }
+
+  /**
+   * Returns a heap buffer for holding data of the given length, which should be released once the copy is done, or
+   * {@code null} if the capacity of the pool is used up.
+   */
+  @Nullable
+  byte[] tryAcquire(long length, int maxBufferSize) {
+    int size = getBufferSize(length, maxBufferSize);
+    synchronized (this) {
+      byte[] buffer = poll(heapBuffers, size);
+      if (buffer != null || !reserve(size)) {
+        return buffer;
+      }
+    }
+    return new byte[size];
+  }
+
+  void release(byte[] buffer) {
+    offer(heapBuffers, buffer.length, buffer);
+  }
+
+  /**
+   * Returns a direct buffer for copying data of the given length, which should be released once the copy is done.
+   * The buffer is cleared, and has the smallest size if the capacity of the pool is used up.
+   */
+  ByteBuffer acquireDirect(long length, int maxBufferSize) {
+    int size = getBufferSize(length, maxBufferSize);
+    synchronized (this) {
+      ByteBuffer buffer = poll(directBuffers, size);
+      if (buffer != null) {
+        buffer.clear();
+        return buffer;
+      }
+      if (!reserve(size)) {
+        reserveFallback();
+        size = MIN_BUFFER_SIZE;
+      }
+    }
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  void releaseDirect(ByteBuffer buffer) {
+    offer(directBuffers, buffer.capacity(), buffer);
+  }
+
+  /**
+   * Returns the size of the buffers that are in the pool.
+   */
+  synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  /**
+   * Returns the size of the buffers that were acquired and not released yet.
+   */
+  synchronized long getInUseBytes() {
+    return inUseBytes;
+  }
+
+  private <T> T poll(Map<Integer, Queue<T>> buffers, int size) {
+    Queue<T> queue = buffers.get(size);
+    T buffer = queue == null ? null : queue.poll();
+    if (buffer != null) {
+      pooledBytes -= size;
+      inUseBytes += size;
+    }
+    return buffer;
+  }
+
+  /**
+   * Counts a new buffer of the given size as in use, dropping idle buffers if that is needed to stay within the
+   * capacity.
+   *
+   * @return whether the buffer fits into the capacity.
+   */
+  private boolean reserve(int size) {
+    if (capacity > 0 && inUseBytes + size > capacity) {
+      return false;
+    }
+    if (capacity > 0) {
+      drop(heapBuffers, size);
+      drop(directBuffers, size);
+    }
+    inUseBytes += size;
+    return true;
+  }
+
+  private synchronized void reserveFallback() {
+    inUseBytes += MIN_BUFFER_SIZE;
+  }
+
+  /**
+   * Drops idle buffers until a new buffer of the given size fits into the capacity.
+   */
+  private <T> void drop(Map<Integer, Queue<T>> buffers, int size) {
+    Iterator<Map.Entry<Integer, Queue<T>>> iterator = buffers.entrySet().iterator();
+    while (pooledBytes + inUseBytes + size > capacity && iterator.hasNext()) {
+      Map.Entry<Integer, Queue<T>> entry = iterator.next();
+      while (pooledBytes + inUseBytes + size > capacity && entry.getValue().poll() != null) {
+        pooledBytes -= entry.getKey();
+      }
+    }
+  }
+
+  private synchronized <T> void offer(Map<Integer, Queue<T>> buffers, int size, T buffer) {
+    inUseBytes = Math.max(0, inUseBytes - size);
+    if (pooledBytes + inUseBytes + size > capacity) {
+      // the pool is full, the buffer is left to the garbage collector
+      return;
+    }
+    pooledBytes += size;
+    buffers.computeIfAbsent(size, key -> new ArrayDeque<>()).add(buffer);
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Creates the copied directories in bulk when the job commits, instead of in every task.
+ *
+ * Tasks only record the directories they receive, in a file per task below the base path. The job commit merges
+ * them and creates only the deepest of them, since creating a directory creates its parents as well, and without
+ * checking which ones exist first. Permissions and owners are then applied to the recorded directories that the job
+ * created, since by the time the job commits, the tasks have already created the parents of the files they copied
+ * with default permissions. To tell them apart from directories that existed before the job, tasks also record the
+ * parents of copied files that they didn't find in the destination. Directories that existed before the job are only
+ * changed if overwriting is enabled.
+ */
+public final class BulkDirectories {
+  private static final Logger LOG = LoggerFactory.getLogger(BulkDirectories.class);
+  private static final String MARKER_DIRECTORY = "_directories";
+  private static final int PARALLELISM = 16;
+  // a directory received by a task, and a parent of a copied file that didn't exist in the destination
+  private static final byte DIRECTORY_RECORD = 0;
+  private static final byte CREATED_RECORD = 1;
+
+  private BulkDirectories() {
+  }
+
+  /**
+   * Records the directories received by a task.
+   */
+  public static final class Writer implements Closeable {
+    private final FileSystem fileSystem;
+    private final Path basePath;
+    // the parents of copied files that were recorded or found in the destination
+    private final Set<String> checkedParents = new HashSet<>();
+    private FSDataOutputStream output;
+
+    public Writer(FileSystem fileSystem, Path basePath) {
+      this.fileSystem = fileSystem;
+      this.basePath = basePath;
+    }
+
+    public synchronized void add(FileMetadata fileMetadata) throws IOException {
+      boolean existed = fileSystem.exists(new Path(basePath, fileMetadata.getRelativePath()));
+      FSDataOutputStream output = getOutput();
+      output.writeByte(DIRECTORY_RECORD);
+      output.writeUTF(fileMetadata.getRelativePath());
+      output.writeBoolean(existed);
+      output.writeShort(fileMetadata.getPermission());
+      output.writeUTF(fileMetadata.getOwner());
+      output.writeUTF(fileMetadata.getGroup());
+    }
+
+    /**
+     * Records the parents of a file that don't exist in the destination, before the file is copied.
+     */
+    public synchronized void addParents(FileMetadata fileMetadata) throws IOException {
+      String relativePath = fileMetadata.getRelativePath();
+      int index;
+      while ((index = relativePath.lastIndexOf(Path.SEPARATOR_CHAR)) > 0) {
+        relativePath = relativePath.substring(0, index);
+        // the parents of a directory that exists exist as well
+        if (!checkedParents.add(relativePath) || fileSystem.exists(new Path(basePath, relativePath))) {
+          return;
+        }
+        FSDataOutputStream output = getOutput();
+        output.writeByte(CREATED_RECORD);
+        output.writeUTF(relativePath);
+      }
+    }
+
+    private FSDataOutputStream getOutput() throws IOException {
+      if (output == null) {
+        output = fileSystem.create(new Path(new Path(basePath, MARKER_DIRECTORY), UUID.randomUUID().toString()),
+                                   false);
+      }
+      return output;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (output != null) {
+        output.close();
+      }
+    }
+  }
+
+  /**
+   * Creates the directories recorded by all tasks. Called once all tasks of the job succeeded.
+   *
+   * @param fileSystem The destination filesystem.
+   * @param basePath The base path of the destination.
+   * @param preserveOwner Whether or not the owner of the source directories is kept.
+   * @param overwrite Whether or not the permissions and owners of directories that existed before the job are
+   *                  replaced.
+   */
+  public static void createAll(FileSystem fileSystem, Path basePath, boolean preserveOwner,
+                               boolean overwrite) throws IOException {
+    Path markerDirectory = new Path(basePath, MARKER_DIRECTORY);
+    if (!fileSystem.exists(markerDirectory)) {
+      return;
+    }
+    NavigableMap<String, Directory> directories = new TreeMap<>();
+    Set<String> created = new HashSet<>();
+    for (FileStatus marker : fileSystem.listStatus(markerDirectory)) {
+      try (FSDataInputStream input = fileSystem.open(marker.getPath())) {
+        readDirectories(input, basePath, directories, created, marker.getPath());
+      }
+    }
+
+    // only the deepest directories are created, which creates the directories above them
+    List<Directory> leaves = new ArrayList<>();
+    NavigableSet<String> relativePaths = directories.navigableKeySet();
+    for (String relativePath : relativePaths) {
+      String child = relativePaths.ceiling(relativePath + Path.SEPARATOR);
+      if (child == null || !child.startsWith(relativePath + Path.SEPARATOR)) {
+        leaves.add(directories.get(relativePath));
+      }
+    }
+    ParallelOperations.forEach(leaves, PARALLELISM, "creating directories",
+                               d -> fileSystem.mkdirs(d.path, d.permission));
+    // mkdirs applies the umask, and leaves directories that already existed unchanged
+    List<Directory> changed = new ArrayList<>();
+    for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+      if (overwrite || !entry.getValue().existed || created.contains(entry.getKey())) {
+        changed.add(entry.getValue());
+      }
+    }
+    ParallelOperations.forEach(changed, PARALLELISM, "applying directory permissions", d -> {
+      fileSystem.setPermission(d.path, d.permission);
+      return true;
+    });
+    if (preserveOwner) {
+      ParallelOperations.forEach(changed, PARALLELISM, "applying directory owners", d -> {
+        fileSystem.setOwner(d.path, d.owner, d.group);
+        return true;
+      });
+    }
+
+    fileSystem.delete(markerDirectory, true);
+    LOG.info("Applied {} directories by creating {} leaf directories, and set the permissions of {}.",
+             directories.size(), leaves.size(), changed.size());
+  }
+
+  /**
+   * Reads the directories recorded in a marker file. A marker that was cut off, such as by a task attempt that was
+   * killed while writing it, ends with a partial record, which is dropped.
+   */
+  private static void readDirectories(FSDataInputStream input, Path basePath, Map<String, Directory> directories,
+                                      Set<String> created, Path marker) throws IOException {
+    while (true) {
+      byte type;
+      try {
+        type = input.readByte();
+      } catch (EOFException e) {
+        return;
+      }
+      try {
+        String relativePath = input.readUTF();
+        if (type == CREATED_RECORD) {
+          created.add(relativePath);
+          continue;
+        }
+        Directory directory = new Directory(new Path(basePath, relativePath), input.readBoolean(),
+                                            new FsPermission(input.readShort()), input.readUTF(), input.readUTF());
+        // a directory that any task didn't find didn't exist before the job
+        directories.merge(relativePath, directory, (a, b) -> a.existed ? b : a);
+      } catch (EOFException e) {
+        LOG.warn("Ignoring the truncated last record of {}.", marker);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes the directories recorded by the tasks. Called if the job failed.
+   */
+  public static void abortAll(FileSystem fileSystem, Path basePath) throws IOException {
+    fileSystem.delete(new Path(basePath, MARKER_DIRECTORY), true);
+  }
+
+  private static final class Directory {
+    private final Path path;
+    private final boolean existed;
+    private final FsPermission permission;
+    private final String owner;
+    private final String group;
+
+    private Directory(Path path, boolean existed, FsPermission permission, String owner, String group) {
+      this.path = path;
+      this.existed = existed;
+      this.permission = permission;
+      this.owner = owner;
+      this.group = group;
+    }
+  }
+}
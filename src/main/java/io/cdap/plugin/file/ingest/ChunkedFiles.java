@@ -0,0 +1,342 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import io.cdap.plugin.file.ingest.s3.S3Clients;
+import io.cdap.plugin.file.ingest.s3.S3MultipartCopier;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps track of files that are copied in byte range chunks, and stitches the chunks together once all of them were
+ * copied.
+ *
+ * On HDFS and S3, every chunk is copied into a hidden part file next to the destination file, since HDFS can only
+ * concatenate files within the same directory. The parts are concatenated by HDFS, or with a multipart upload whose
+ * parts are copied from them on S3, so stitching never moves the data through the client. Local destinations have
+ * neither, so every chunk is written in place into a hidden file that is preallocated to the size of the whole file,
+ * and that is renamed to the destination file. Other destinations can't stitch chunks without copying them again, so
+ * chunks are refused for them. The task that copies the first chunk also leaves a marker below the base path, so that
+ * the job commit finds the chunked files without scanning the destination.
+ *
+ * Stitching can be repeated after a failed job commit: a file whose first part is gone was already started, and is
+ * finished from the parts that remain.
+ */
+public final class ChunkedFiles {
+  private static final Logger LOG = LoggerFactory.getLogger(ChunkedFiles.class);
+  private static final String MARKER_DIRECTORY = "_chunks";
+  // the number of files that are stitched at the same time
+  private static final int PARALLELISM = 16;
+
+  private ChunkedFiles() {
+  }
+
+  /**
+   * Fails if chunks can't be stitched together in the given filesystem.
+   */
+  public static void checkSupported(FileSystem fileSystem) throws IOException {
+    if (!(fileSystem instanceof DistributedFileSystem) && !(fileSystem instanceof LocalFileSystem)
+      && !isS3(fileSystem)) {
+      throw new IOException(String.format("Files cannot be copied in chunks to %s, which supports neither " +
+                                            "concatenation nor multipart uploads. Set the chunk size of the source " +
+                                            "to 0 to copy whole files instead.", fileSystem.getUri()));
+    }
+  }
+
+  /**
+   * Whether or not the chunks are written in place into the file returned by {@link #openInPlace}, instead of into
+   * part files.
+   */
+  public static boolean isInPlace(FileSystem fileSystem) {
+    return fileSystem instanceof LocalFileSystem;
+  }
+
+  /**
+   * Returns the path that a chunk of the given destination file is copied to.
+   */
+  public static Path getPartPath(Path destPath, int chunkIndex) {
+    return new Path(destPath.getParent(), String.format(".%s.chunk-%05d", destPath.getName(), chunkIndex));
+  }
+
+  /**
+   * Returns the path of the file that the chunks of the given destination file are written into in place.
+   */
+  public static Path getInPlacePath(Path destPath) {
+    return new Path(destPath.getParent(), String.format(".%s.chunks", destPath.getName()));
+  }
+
+  /**
+   * Opens the file that the chunks of a local destination file are written into, for positioned writes. The file is
+   * extended to the given size if it is smaller, which never overwrites the chunks that other tasks already wrote.
+   */
+  public static FileChannel openInPlace(LocalFileSystem fileSystem, Path destPath, long fileSize) throws IOException {
+    fileSystem.mkdirs(destPath.getParent());
+    RandomAccessFile file = new RandomAccessFile(fileSystem.pathToFile(getInPlacePath(destPath)), "rw");
+    try {
+      if (file.length() < fileSize) {
+        file.setLength(fileSize);
+      }
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+    return file.getChannel();
+  }
+
+  /**
+   * Records that a file is copied in chunks, so that its chunks are stitched together when the job commits.
+   *
+   * @param fileSystem The destination filesystem.
+   * @param basePath The base path of the destination.
+   * @param fileMetadata A chunk of the file.
+   * @param preserveOwner Whether or not the owner of the source file is kept.
+   */
+  public static void register(FileSystem fileSystem, Path basePath, FileMetadata fileMetadata,
+                              boolean preserveOwner) throws IOException {
+    Path marker = new Path(new Path(basePath, MARKER_DIRECTORY),
+                           Hashing.sha1().hashString(fileMetadata.getRelativePath(), Charsets.UTF_8).toString());
+    try (FSDataOutputStream output = fileSystem.create(marker, true)) {
+      output.writeUTF(fileMetadata.getRelativePath());
+      output.writeInt(fileMetadata.getChunkCount());
+      output.writeLong(fileMetadata.getFileSize());
+      output.writeBoolean(preserveOwner);
+      output.writeUTF(fileMetadata.getOwner());
+      output.writeUTF(fileMetadata.getGroup());
+    }
+  }
+
+  /**
+   * Stitches the chunks of every registered file together, several files at the same time. Called once all tasks of
+   * the job succeeded.
+   *
+   * @param fileSystem The destination filesystem.
+   * @param basePath The base path of the destination.
+   * @param conf The configuration of the job, which holds the credentials for S3 destinations.
+   */
+  public static void stitchAll(FileSystem fileSystem, Path basePath, Configuration conf) throws IOException {
+    Path markerDirectory = new Path(basePath, MARKER_DIRECTORY);
+    if (!fileSystem.exists(markerDirectory)) {
+      return;
+    }
+    List<FileStatus> markers = Arrays.asList(fileSystem.listStatus(markerDirectory));
+    AmazonS3 s3 = isS3(fileSystem) ? S3Clients.create(conf, fileSystem.getUri()) : null;
+    try {
+      // the S3 copy threads are shared by the files that are stitched at the same time
+      int partParallelism = Math.max(1, conf.getInt(S3Clients.S3A_MAX_THREADS, S3Clients.DEFAULT_MAX_THREADS) /
+        Math.max(1, Math.min(PARALLELISM, markers.size())));
+      ParallelOperations.forEach(markers, PARALLELISM, "stitching chunks", marker -> {
+        try (FSDataInputStream input = fileSystem.open(marker.getPath())) {
+          Path destPath = new Path(basePath, input.readUTF());
+          int chunkCount = input.readInt();
+          long fileSize = input.readLong();
+          boolean preserveOwner = input.readBoolean();
+          String owner = input.readUTF();
+          String group = input.readUTF();
+
+          stitch(fileSystem, s3, partParallelism, destPath, chunkCount, fileSize);
+          if (preserveOwner) {
+            fileSystem.setOwner(destPath, owner, group);
+          }
+        }
+        fileSystem.delete(marker.getPath(), false);
+        return true;
+      });
+    } finally {
+      if (s3 != null) {
+        s3.shutdown();
+      }
+    }
+    fileSystem.delete(markerDirectory, true);
+    LOG.info("Stitched together the chunks of {} files.", markers.size());
+  }
+
+  /**
+   * Removes the chunks of every registered file. Called if the job failed.
+   */
+  public static void abortAll(FileSystem fileSystem, Path basePath) throws IOException {
+    Path markerDirectory = new Path(basePath, MARKER_DIRECTORY);
+    if (!fileSystem.exists(markerDirectory)) {
+      return;
+    }
+    for (FileStatus marker : fileSystem.listStatus(markerDirectory)) {
+      try (FSDataInputStream input = fileSystem.open(marker.getPath())) {
+        Path destPath = new Path(basePath, input.readUTF());
+        int chunkCount = input.readInt();
+        if (isInPlace(fileSystem)) {
+          fileSystem.delete(getInPlacePath(destPath), false);
+          continue;
+        }
+        for (int i = 0; i < chunkCount; i++) {
+          fileSystem.delete(getPartPath(destPath, i), false);
+        }
+      }
+    }
+    fileSystem.delete(markerDirectory, true);
+  }
+
+  private static void stitch(FileSystem fileSystem, @Nullable AmazonS3 s3, int partParallelism, Path destPath,
+                             int chunkCount, long fileSize) throws IOException {
+    if (isInPlace(fileSystem)) {
+      stitchInPlace((LocalFileSystem) fileSystem, destPath, fileSize);
+      return;
+    }
+    List<Path> parts = new ArrayList<>(chunkCount);
+    List<Long> sizes = new ArrayList<>(chunkCount);
+    long partsSize = 0;
+    for (int i = 0; i < chunkCount; i++) {
+      Path part = getPartPath(destPath, i);
+      try {
+        long size = fileSystem.getFileStatus(part).getLen();
+        partsSize += size;
+        parts.add(part);
+        sizes.add(size);
+      } catch (FileNotFoundException e) {
+        // the parts are consumed in order, so only a prefix of them can be missing
+        if (!parts.isEmpty()) {
+          throw new IOException(String.format("Chunk %d of %s is missing.", i, destPath), e);
+        }
+      }
+    }
+    if (parts.size() < chunkCount) {
+      // an earlier commit already replaced the destination file with the first part
+      long destSize = fileSystem.exists(destPath) ? fileSystem.getFileStatus(destPath).getLen() : -1;
+      resume(fileSystem, destPath, destSize, parts, partsSize, fileSize, s3 != null);
+      return;
+    }
+    if (partsSize != fileSize) {
+      throw new IOException(String.format("The chunks of %s add up to %d bytes instead of %d.",
+                                          destPath, partsSize, fileSize));
+    }
+
+    if (s3 != null) {
+      // deletes the parts in order once the destination object is complete
+      S3MultipartCopier.concat(s3, fileSystem.makeQualified(destPath), qualify(fileSystem, parts), sizes,
+                               partParallelism);
+      return;
+    }
+
+    // the first chunk becomes the destination file, and HDFS moves the blocks of the others without copying any data
+    fileSystem.delete(destPath, false);
+    if (!fileSystem.rename(parts.get(0), destPath)) {
+      throw new IOException("Failed to rename " + parts.get(0) + " to " + destPath);
+    }
+    concat(fileSystem, destPath, parts.subList(1, parts.size()));
+  }
+
+  /**
+   * Finishes a file whose first part was already consumed by an earlier commit. On S3 the destination object is
+   * complete, and only some of the parts may be left to delete. On HDFS the remaining parts are concatenated to the
+   * destination file, unless they already were.
+   */
+  private static void resume(FileSystem fileSystem, Path destPath, long destSize, List<Path> parts, long partsSize,
+                             long fileSize, boolean s3) throws IOException {
+    if (s3 && destSize == fileSize) {
+      for (Path part : parts) {
+        fileSystem.delete(part, false);
+      }
+    } else if (!s3 && destSize >= 0 && destSize + partsSize == fileSize) {
+      concat(fileSystem, destPath, parts);
+    } else {
+      throw new IOException(String.format("Cannot finish stitching the chunks of %s, which has %d bytes, and %d " +
+                                            "bytes of chunks left, instead of %d bytes.", destPath, destSize,
+                                          partsSize, fileSize));
+    }
+    LOG.debug("Finished stitching the chunks of {}, which an earlier commit started.", destPath);
+  }
+
+  private static void concat(FileSystem fileSystem, Path destPath, List<Path> parts) throws IOException {
+    if (!parts.isEmpty()) {
+      fileSystem.concat(destPath, parts.toArray(new Path[parts.size()]));
+    }
+  }
+
+  /**
+   * Renames the file that the chunks were written into to the destination file. Since that file is preallocated, its
+   * size can't tell whether all chunks were written, but the job only commits once all tasks succeeded.
+   */
+  private static void stitchInPlace(LocalFileSystem fileSystem, Path destPath, long fileSize) throws IOException {
+    Path inPlacePath = getInPlacePath(destPath);
+    File inPlaceFile = fileSystem.pathToFile(inPlacePath);
+    if (!inPlaceFile.exists()) {
+      if (fileSystem.exists(destPath) && fileSystem.getFileStatus(destPath).getLen() == fileSize) {
+        // renamed by an earlier commit
+        return;
+      }
+      throw new IOException(String.format("The chunks of %s are missing.", destPath));
+    }
+    try (FileChannel channel = FileChannel.open(inPlaceFile.toPath(), StandardOpenOption.WRITE)) {
+      // a file that an earlier, failed job left behind for a larger version of the file
+      if (channel.size() > fileSize) {
+        channel.truncate(fileSize);
+      }
+    }
+    fileSystem.delete(destPath, false);
+    if (!fileSystem.rename(inPlacePath, destPath)) {
+      throw new IOException("Failed to rename " + inPlacePath + " to " + destPath);
+    }
+  }
+
+  /**
+   * Returns the filesystem to append to the given file with. Checksummed filesystems, such as the local one, don't
+   * support appends, so their raw filesystem is returned instead, and the checksum file that would no longer match
+   * the file is deleted.
+   */
+  static FileSystem prepareAppend(FileSystem fileSystem, Path path) throws IOException {
+    if (!(fileSystem instanceof ChecksumFileSystem)) {
+      return fileSystem;
+    }
+    ChecksumFileSystem checksumFileSystem = (ChecksumFileSystem) fileSystem;
+    checksumFileSystem.getRawFileSystem().delete(checksumFileSystem.getChecksumFile(path), false);
+    return checksumFileSystem.getRawFileSystem();
+  }
+
+  private static boolean isS3(FileSystem fileSystem) {
+    String scheme = fileSystem.getUri().getScheme();
+    return "s3a".equals(scheme) || "s3n".equals(scheme);
+  }
+
+  private static List<Path> qualify(FileSystem fileSystem, List<Path> paths) {
+    Path[] qualified = new Path[paths.size()];
+    for (int i = 0; i < qualified.length; i++) {
+      qualified[i] = fileSystem.makeQualified(paths.get(i));
+    }
+    return Arrays.asList(qualified);
+  }
+}
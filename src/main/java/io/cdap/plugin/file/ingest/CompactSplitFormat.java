@@ -0,0 +1,287 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compact encoding of the files of a {@link MetadataInputSplit}.
+ *
+ * Owners, groups, host URIs and the extra fields of subclasses, such as credentials, are written once per split in a
+ * dictionary and referenced by id. Every full path is front coded against the previous one, and file names and
+ * relative paths are derived from the full path where possible. Numbers are written as variable length integers, and
+ * the encoded files are deflated if that makes them smaller. Files are decoded one at a time when read.
+ */
+final class CompactSplitFormat {
+  private static final int VERSION = 1;
+  // below this size, deflating rarely pays off
+  private static final int COMPRESSION_THRESHOLD = 1024;
+
+  private static final int FLAG_DIRECTORY = 1;
+  private static final int FLAG_CHUNK = 2;
+  private static final int FLAG_IRREGULAR_FILE_NAME = 4;
+  private static final int FLAG_IRREGULAR_RELATIVE_PATH = 8;
+
+  private CompactSplitFormat() {
+  }
+
+  /**
+   * Writes the files of a split.
+   */
+  static void write(DataOutput output, List<FileMetadata> files) throws IOException {
+    Map<String, Integer> strings = new HashMap<>();
+    Map<ByteBuffer, Integer> extraFields = new HashMap<>();
+    ByteArrayOutputStream encodedFiles = new ByteArrayOutputStream();
+    DataOutputStream filesOutput = new DataOutputStream(encodedFiles);
+    String previousPath = "";
+    for (FileMetadata file : files) {
+      String fullPath = file.getFullPath();
+      String fileName = file.getFileName();
+      String relativePath = file.getRelativePath();
+      boolean regularFileName = fullPath.endsWith(Path.SEPARATOR + fileName) || fullPath.equals(fileName);
+      boolean regularRelativePath = fullPath.endsWith(relativePath);
+      int flags = (file.isDir() ? FLAG_DIRECTORY : 0) | (file.isChunk() ? FLAG_CHUNK : 0) |
+        (regularFileName ? 0 : FLAG_IRREGULAR_FILE_NAME) | (regularRelativePath ? 0 : FLAG_IRREGULAR_RELATIVE_PATH);
+      filesOutput.writeByte(flags);
+
+      int sharedLength = getSharedPrefixLength(previousPath, fullPath);
+      WritableUtils.writeVInt(filesOutput, sharedLength);
+      filesOutput.writeUTF(fullPath.substring(sharedLength));
+      previousPath = fullPath;
+      if (!regularFileName) {
+        filesOutput.writeUTF(fileName);
+      }
+      if (regularRelativePath) {
+        WritableUtils.writeVInt(filesOutput, relativePath.length());
+      } else {
+        filesOutput.writeUTF(relativePath);
+      }
+
+      WritableUtils.writeVLong(filesOutput, file.getFileSize());
+      WritableUtils.writeVLong(filesOutput, file.getModificationTime());
+      WritableUtils.writeVInt(filesOutput, file.getPermission());
+      WritableUtils.writeVInt(filesOutput, getId(strings, file.getOwner()));
+      WritableUtils.writeVInt(filesOutput, getId(strings, file.getGroup()));
+      WritableUtils.writeVInt(filesOutput, getId(strings, file.getHostURI()));
+      WritableUtils.writeVInt(filesOutput, getId(extraFields,
+                                                 ByteBuffer.wrap(FileMetadataStore.getExtraFields(file))));
+      if (file.isChunk()) {
+        WritableUtils.writeVInt(filesOutput, file.getChunkIndex());
+        WritableUtils.writeVInt(filesOutput, file.getChunkCount());
+        WritableUtils.writeVLong(filesOutput, file.getChunkSize());
+      }
+    }
+    filesOutput.close();
+
+    output.writeByte(VERSION);
+    WritableUtils.writeVInt(output, strings.size());
+    for (String value : getValues(strings)) {
+      output.writeUTF(value);
+    }
+    WritableUtils.writeVInt(output, extraFields.size());
+    for (ByteBuffer value : getValues(extraFields)) {
+      WritableUtils.writeVInt(output, value.remaining());
+      output.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+    }
+
+    byte[] encoded = encodedFiles.toByteArray();
+    byte[] deflated = encoded.length < COMPRESSION_THRESHOLD ? null : deflate(encoded);
+    boolean compressed = deflated != null && deflated.length < encoded.length;
+    output.writeBoolean(compressed);
+    if (compressed) {
+      WritableUtils.writeVInt(output, encoded.length);
+    }
+    byte[] body = compressed ? deflated : encoded;
+    WritableUtils.writeVInt(output, body.length);
+    output.write(body);
+  }
+
+  /**
+   * Reads the files of a split, which are decoded by the returned decoder.
+   */
+  static Decoder read(DataInput input) throws IOException {
+    int version = input.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported split format version " + version);
+    }
+    String[] strings = new String[WritableUtils.readVInt(input)];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = input.readUTF();
+    }
+    byte[][] extraFields = new byte[WritableUtils.readVInt(input)][];
+    for (int i = 0; i < extraFields.length; i++) {
+      extraFields[i] = new byte[WritableUtils.readVInt(input)];
+      input.readFully(extraFields[i]);
+    }
+    boolean compressed = input.readBoolean();
+    int encodedLength = compressed ? WritableUtils.readVInt(input) : -1;
+    byte[] body = new byte[WritableUtils.readVInt(input)];
+    input.readFully(body);
+    return new Decoder(strings, extraFields, compressed ? inflate(body, encodedLength) : body);
+  }
+
+  /**
+   * Decodes the files of a split one at a time. Every call to {@link #decode(MetadataInputSplit)} starts from the
+   * first file.
+   */
+  static final class Decoder {
+    private final String[] strings;
+    private final byte[][] extraFields;
+    private final byte[] encoded;
+
+    private Decoder(String[] strings, byte[][] extraFields, byte[] encoded) {
+      this.strings = strings;
+      this.extraFields = extraFields;
+      this.encoded = encoded;
+    }
+
+    /**
+     * Returns the files, using the split to add the extra fields to the FileMetadata of every file.
+     */
+    FileIterator decode(MetadataInputSplit split) {
+      return new FileIterator(split);
+    }
+
+    /**
+     * Iterates over the decoded files.
+     */
+    final class FileIterator implements RemoteIterator<FileMetadata> {
+      private final MetadataInputSplit split;
+      private final DataInputStream input;
+      private String previousPath;
+
+      private FileIterator(MetadataInputSplit split) {
+        this.split = split;
+        this.input = new DataInputStream(new ByteArrayInputStream(encoded));
+        this.previousPath = "";
+      }
+
+      @Override
+      public boolean hasNext() throws IOException {
+        return input.available() > 0;
+      }
+
+      @Override
+      public FileMetadata next() throws IOException {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        int flags = input.readByte();
+        String fullPath = previousPath.substring(0, WritableUtils.readVInt(input)) + input.readUTF();
+        previousPath = fullPath;
+        String fileName = (flags & FLAG_IRREGULAR_FILE_NAME) != 0 ? input.readUTF() :
+          fullPath.substring(fullPath.lastIndexOf(Path.SEPARATOR) + 1);
+        String relativePath = (flags & FLAG_IRREGULAR_RELATIVE_PATH) != 0 ? input.readUTF() :
+          fullPath.substring(fullPath.length() - WritableUtils.readVInt(input));
+        long fileSize = WritableUtils.readVLong(input);
+        long modificationTime = WritableUtils.readVLong(input);
+        int permission = WritableUtils.readVInt(input);
+        String owner = strings[WritableUtils.readVInt(input)];
+        String group = strings[WritableUtils.readVInt(input)];
+        String hostURI = strings[WritableUtils.readVInt(input)];
+        byte[] extra = extraFields[WritableUtils.readVInt(input)];
+
+        FileMetadata file = new FileMetadata(fileName, fullPath, fileSize, modificationTime, group, owner,
+                                             (flags & FLAG_DIRECTORY) != 0, relativePath, permission, hostURI);
+        if ((flags & FLAG_CHUNK) != 0) {
+          int chunkIndex = WritableUtils.readVInt(input);
+          int chunkCount = WritableUtils.readVInt(input);
+          file.setChunk(chunkIndex, chunkCount, WritableUtils.readVLong(input));
+        }
+        return split.createFileMetadata(file, new DataInputStream(new ByteArrayInputStream(extra)));
+      }
+    }
+  }
+
+  private static int getSharedPrefixLength(String previous, String current) {
+    int length = Math.min(previous.length(), current.length());
+    int i = 0;
+    while (i < length && previous.charAt(i) == current.charAt(i)) {
+      i++;
+    }
+    return i;
+  }
+
+  private static <T> int getId(Map<T, Integer> ids, T value) {
+    return ids.computeIfAbsent(value, v -> ids.size());
+  }
+
+  private static <T> List<T> getValues(Map<T, Integer> ids) {
+    List<T> values = new ArrayList<>(ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      values.add(null);
+    }
+    ids.forEach((value, id) -> values.set(id, value));
+    return values;
+  }
+
+  private static byte[] deflate(byte[] bytes) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        output.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] bytes, int length) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes);
+      byte[] inflated = new byte[length];
+      int offset = 0;
+      while (offset < length) {
+        int inflatedBytes = inflater.inflate(inflated, offset, length - offset);
+        if (inflatedBytes == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new IOException("Truncated split.");
+        }
+        offset += inflatedBytes;
+      }
+      return inflated;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt split.", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the copies of a record writer on a pool of worker threads, so that the task thread can hand over the next file
+ * while earlier ones are still waiting on round trips to the filesystems.
+ *
+ * Small and large files are copied in separate lanes, so small files never wait behind large ones. Each lane caps the
+ * bytes of the files that it has queued or is copying with its own budget, which blocks the task thread once it is
+ * used up. A large file only holds its buffers while it is copied, not its whole length, so it is charged at most the
+ * share of the budget that lets every large file worker have one copy running and one queued. The first failure is
+ * thrown by the next call to {@link #submit(long, Copy)} or by {@link #close()}.
+ */
+final class ConcurrentCopier {
+  // files at least this large are copied in the large file lane
+  static final long LARGE_FILE_SIZE = 8 << 20;
+  // every file counts at least this much against the budget, which bounds the number of queued small files
+  private static final long MIN_FILE_COST = 4 << 10;
+
+  private final Lane smallFiles;
+  private final Lane largeFiles;
+  private int pending;
+  private Throwable failure;
+
+  /**
+   * A copy of a single file.
+   */
+  interface Copy {
+    void run() throws IOException;
+  }
+
+  /**
+   * @param parallelism the number of small files that are copied concurrently. A quarter as many large files are
+   *                    copied concurrently, but at least one.
+   * @param budget the maximum number of bytes of queued and running copies in each lane
+   */
+  ConcurrentCopier(int parallelism, long budget) {
+    int largeParallelism = Math.max(1, parallelism / 4);
+    this.smallFiles = new Lane(Executors.newFixedThreadPool(parallelism, createThreadFactory("small")), budget,
+                               budget);
+    this.largeFiles = new Lane(Executors.newFixedThreadPool(largeParallelism, createThreadFactory("large")), budget,
+                               Math.max(1, budget / (2 * largeParallelism)));
+  }
+
+  /**
+   * Returns the most bytes that a large file is charged, which its copy should keep its buffers within.
+   */
+  long getMaxLargeFileCost() {
+    return largeFiles.maxCost;
+  }
+
+  /**
+   * Queues the copy of a file with the given number of bytes. Blocks while the budget is used up.
+   */
+  void submit(long bytes, Copy copy) throws IOException, InterruptedException {
+    Lane lane = bytes < LARGE_FILE_SIZE ? smallFiles : largeFiles;
+    long cost = Math.min(lane.maxCost, Math.max(bytes, MIN_FILE_COST));
+    synchronized (this) {
+      while (failure == null && lane.inFlight + cost > lane.budget) {
+        wait();
+      }
+      throwFailure();
+      lane.inFlight += cost;
+      pending++;
+    }
+    lane.executor.execute(() -> {
+      Throwable error = null;
+      try {
+        copy.run();
+      } catch (Throwable t) {
+        error = t;
+      }
+      synchronized (this) {
+        lane.inFlight -= cost;
+        pending--;
+        if (failure == null) {
+          failure = error;
+        }
+        notifyAll();
+      }
+    });
+  }
+
+  /**
+   * Waits for all queued copies to finish and stops the workers.
+   *
+   * @throws IOException if any of the copies failed
+   */
+  void close() throws IOException, InterruptedException {
+    try {
+      synchronized (this) {
+        while (failure == null && pending > 0) {
+          wait();
+        }
+        throwFailure();
+      }
+    } finally {
+      smallFiles.executor.shutdownNow();
+      largeFiles.executor.shutdownNow();
+      // copies that are still running after a failure are interrupted, and must not outlive the task
+      smallFiles.executor.awaitTermination(1, TimeUnit.MINUTES);
+      largeFiles.executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  private void throwFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Failed to copy a file.", failure);
+    }
+  }
+
+  private static ThreadFactory createThreadFactory(String lane) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, String.format("file-copy-%s-%d", lane, count.incrementAndGet()));
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * The workers of a lane and the bytes it has in flight, which are guarded by the copier.
+   */
+  private static final class Lane {
+    private final ExecutorService executor;
+    private final long budget;
+    // the most that a single file is charged
+    private final long maxCost;
+    private long inFlight;
+
+    private Lane(ExecutorService executor, long budget, long maxCost) {
+      this.executor = executor;
+      this.budget = budget;
+      this.maxCost = maxCost;
+    }
+  }
+}
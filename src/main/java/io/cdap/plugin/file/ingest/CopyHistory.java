@@ -0,0 +1,280 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.Nullable;
+
+/**
+ * Observed copy durations, aggregated per route (source scheme and destination scheme) and file size bucket, where
+ * bucket {@code b} holds the files of {@code 2^(b-1)} up to {@code 2^b - 1} bytes.
+ *
+ * Every copy task saves the durations it observed as a new file in the history directory. Loading the history merges
+ * all files and compacts them into a single one. The number of samples kept per bucket is bounded, so that recent
+ * runs keep moving the averages.
+ */
+public class CopyHistory {
+  private static final Logger LOG = LoggerFactory.getLogger(CopyHistory.class);
+  private static final String SUFFIX = ".history";
+  private static final int VERSION = 1;
+  private static final int BUCKETS = 65;
+  private static final long MAX_SAMPLES = 10000;
+
+  // route -> stats per size bucket
+  private final Map<String, Stats[]> routes;
+
+  public CopyHistory() {
+    this.routes = new HashMap<>();
+  }
+
+  /**
+   * Records the copy of a file.
+   *
+   * @param sourceScheme The scheme of the source filesystem.
+   * @param destinationScheme The scheme of the destination filesystem.
+   * @param bytes The number of bytes copied.
+   * @param nanos How long the copy took, including opening and closing the files.
+   */
+  public synchronized void record(String sourceScheme, String destinationScheme, long bytes, long nanos) {
+    Stats[] buckets = routes.computeIfAbsent(getRoute(sourceScheme, destinationScheme), r -> new Stats[BUCKETS]);
+    int bucket = getBucket(bytes);
+    if (buckets[bucket] == null) {
+      buckets[bucket] = new Stats();
+    }
+    buckets[bucket].add(1, bytes, nanos);
+  }
+
+  /**
+   * Saves the recorded copies as a new file in the history directory. Does nothing if nothing was recorded.
+   */
+  public synchronized void save(FileSystem fileSystem, Path directory) throws IOException {
+    if (routes.isEmpty()) {
+      return;
+    }
+    // written under a hidden name first, so that loading never sees a partial file
+    String name = UUID.randomUUID().toString();
+    Path tmpPath = new Path(directory, "." + name);
+    try (FSDataOutputStream output = fileSystem.create(tmpPath, true)) {
+      write(output);
+    }
+    Path path = new Path(directory, name + SUFFIX);
+    if (!fileSystem.rename(tmpPath, path)) {
+      throw new IOException("Failed to rename " + tmpPath + " to " + path);
+    }
+  }
+
+  /**
+   * Loads and compacts the history in the given directory.
+   *
+   * @return the history, which is empty if the directory does not exist.
+   */
+  public static CopyHistory load(FileSystem fileSystem, Path directory) throws IOException {
+    CopyHistory history = new CopyHistory();
+    if (!fileSystem.exists(directory)) {
+      return history;
+    }
+    List<Path> loaded = new ArrayList<>();
+    for (FileStatus fileStatus : fileSystem.listStatus(directory)) {
+      if (!fileStatus.getPath().getName().endsWith(SUFFIX) || fileStatus.getPath().getName().startsWith(".")) {
+        continue;
+      }
+      try (FSDataInputStream input = fileSystem.open(fileStatus.getPath())) {
+        history.readFields(input);
+        loaded.add(fileStatus.getPath());
+      } catch (IOException e) {
+        LOG.warn("Ignoring unreadable copy history file {}.", fileStatus.getPath(), e);
+      }
+    }
+    history.cap();
+
+    if (loaded.size() > 1) {
+      history.save(fileSystem, directory);
+      for (Path path : loaded) {
+        fileSystem.delete(path, false);
+      }
+    }
+    return history;
+  }
+
+  /**
+   * Returns an estimator of copy durations for files read from the given source scheme.
+   *
+   * @param sourceScheme The scheme of the source filesystem.
+   * @param destinationScheme The scheme of the destination filesystem, or null to combine all destinations.
+   * @return the estimator, or null if no copies of the route were recorded.
+   */
+  @Nullable
+  public synchronized Estimator getEstimator(String sourceScheme, @Nullable String destinationScheme) {
+    Stats[] combined = new Stats[BUCKETS];
+    boolean found = false;
+    for (Map.Entry<String, Stats[]> entry : routes.entrySet()) {
+      String route = entry.getKey();
+      boolean matches = destinationScheme == null ? route.startsWith(getRoute(sourceScheme, ""))
+        : route.equals(getRoute(sourceScheme, destinationScheme));
+      if (!matches) {
+        continue;
+      }
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        Stats stats = entry.getValue()[bucket];
+        if (stats != null) {
+          if (combined[bucket] == null) {
+            combined[bucket] = new Stats();
+          }
+          combined[bucket].add(stats.files, stats.bytes, stats.nanos);
+          found = true;
+        }
+      }
+    }
+    return found ? new Estimator(combined) : null;
+  }
+
+  private void write(DataOutput output) throws IOException {
+    output.writeInt(VERSION);
+    output.writeInt(routes.size());
+    for (Map.Entry<String, Stats[]> entry : routes.entrySet()) {
+      output.writeUTF(entry.getKey());
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        Stats stats = entry.getValue()[bucket];
+        if (stats != null) {
+          output.writeByte(bucket);
+          WritableUtils.writeVLong(output, stats.files);
+          WritableUtils.writeVLong(output, stats.bytes);
+          WritableUtils.writeVLong(output, stats.nanos);
+        }
+      }
+      output.writeByte(-1);
+    }
+  }
+
+  private void readFields(DataInput input) throws IOException {
+    int version = input.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported copy history version " + version);
+    }
+    // read the whole file before merging, so that a corrupt file is skipped entirely
+    Map<String, Stats[]> read = new HashMap<>();
+    for (int routeCount = input.readInt(); routeCount > 0; routeCount--) {
+      Stats[] buckets = read.computeIfAbsent(input.readUTF(), r -> new Stats[BUCKETS]);
+      for (int bucket = input.readByte(); bucket >= 0; bucket = input.readByte()) {
+        if (bucket >= BUCKETS) {
+          throw new IOException("Invalid size bucket " + bucket);
+        }
+        buckets[bucket] = new Stats();
+        buckets[bucket].add(WritableUtils.readVLong(input), WritableUtils.readVLong(input),
+                            WritableUtils.readVLong(input));
+      }
+    }
+    for (Map.Entry<String, Stats[]> entry : read.entrySet()) {
+      Stats[] buckets = routes.computeIfAbsent(entry.getKey(), r -> new Stats[BUCKETS]);
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        Stats stats = entry.getValue()[bucket];
+        if (stats == null) {
+          continue;
+        }
+        if (buckets[bucket] == null) {
+          buckets[bucket] = new Stats();
+        }
+        buckets[bucket].add(stats.files, stats.bytes, stats.nanos);
+      }
+    }
+  }
+
+  /**
+   * Scales down buckets with too many samples, keeping their averages.
+   */
+  private void cap() {
+    for (Stats[] buckets : routes.values()) {
+      for (Stats stats : buckets) {
+        if (stats != null && stats.files > MAX_SAMPLES) {
+          double scale = (double) MAX_SAMPLES / stats.files;
+          stats.files = MAX_SAMPLES;
+          stats.bytes = (long) (stats.bytes * scale);
+          stats.nanos = (long) (stats.nanos * scale);
+        }
+      }
+    }
+  }
+
+  private static String getRoute(String sourceScheme, String destinationScheme) {
+    return sourceScheme + "->" + destinationScheme;
+  }
+
+  private static int getBucket(long bytes) {
+    return 64 - Long.numberOfLeadingZeros(Math.max(bytes, 0));
+  }
+
+  /**
+   * Predicts copy durations from the recorded copies of a route.
+   */
+  public static final class Estimator {
+    private final Stats[] buckets;
+
+    private Estimator(Stats[] buckets) {
+      this.buckets = buckets;
+    }
+
+    /**
+     * Predicts how long copying a file of the given size takes, from the average duration and size of the recorded
+     * copies in its size bucket. If there are none, the closest bucket with recorded copies is used.
+     *
+     * @return the predicted duration in nanoseconds, at least 1.
+     */
+    public long predict(long bytes) {
+      int bucket = getBucket(bytes);
+      for (int distance = 0; distance < BUCKETS; distance++) {
+        for (int candidate : new int[] { bucket - distance, bucket + distance }) {
+          if (candidate >= 0 && candidate < BUCKETS && buckets[candidate] != null) {
+            Stats stats = buckets[candidate];
+            double averageBytes = (double) stats.bytes / stats.files;
+            double averageNanos = (double) stats.nanos / stats.files;
+            return Math.max(1, (long) (averageNanos * (bytes + 1) / (averageBytes + 1)));
+          }
+        }
+      }
+      // not reached, an estimator always has a bucket
+      return Math.max(1, bytes);
+    }
+  }
+
+  private static final class Stats {
+    private long files;
+    private long bytes;
+    private long nanos;
+
+    private void add(long files, long bytes, long nanos) {
+      this.files += files;
+      this.bytes += bytes;
+      this.nanos += nanos;
+    }
+  }
+}
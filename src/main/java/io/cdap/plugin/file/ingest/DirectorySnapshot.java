@@ -0,0 +1,266 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.WritableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the listing of every directory of the previous run together with the modification time the directory had
+ * when it was listed. On filesystems like HDFS, the modification time of a directory changes whenever an entry is
+ * added to, removed from or renamed in it, so a directory whose modification time didn't change still has the same
+ * children, and its listing can be carried forward instead of listing it again.
+ *
+ * Checking a directory costs a single getFileStatus call, and nothing at all for directories whose modification time
+ * is known from a fresh listing of their parent. The statuses of directories are always current, while files keep
+ * the status they had when their directory was listed. Note that appending to a file in place doesn't change the
+ * modification time of its directory, so the carried forward status of such a file is stale. Directories without a
+ * modification time, such as the pseudo directories of object stores, are always listed.
+ *
+ * Every run writes a new generation of the snapshot, which replaces the previous one once it is committed.
+ */
+public class DirectorySnapshot implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(DirectorySnapshot.class);
+
+  private static final String COMPLETE_MARKER = "_COMPLETE";
+  private static final String SNAPSHOT_FILE_NAME = "snapshot";
+  private static final int MAGIC = 0x44535331;
+
+  private final FileSystem fileSystem;
+  private final FileSystem sourceFileSystem;
+  private final URI sourceURI;
+  private final Path previousGeneration;
+  // the modification time and encoded children of every directory of the previous generation
+  private final Map<String, byte[]> previous;
+  private final Path generation;
+  // the modification times of directories that were returned by a fresh listing, but not listed themselves yet
+  private final Map<String, Long> knownModificationTimes;
+  private final AtomicLong reusedDirectories = new AtomicLong();
+  private final AtomicLong listedDirectories = new AtomicLong();
+  private DataOutputStream output;
+
+  private DirectorySnapshot(FileSystem fileSystem, FileSystem sourceFileSystem, Path previousGeneration,
+                            Map<String, byte[]> previous, Path generation) {
+    this.fileSystem = fileSystem;
+    this.sourceFileSystem = sourceFileSystem;
+    this.sourceURI = sourceFileSystem.getUri();
+    this.previousGeneration = previousGeneration;
+    this.previous = previous;
+    this.generation = generation;
+    this.knownModificationTimes = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Opens the latest committed generation of the snapshot in the given directory, and starts a new one. Generations
+   * left behind by interrupted runs are removed.
+   *
+   * @param fileSystem The filesystem that holds the snapshot.
+   * @param directory The directory of the snapshot, which must be unique to the listed filesystem and source paths.
+   * @param sourceFileSystem The listed filesystem.
+   */
+  public static DirectorySnapshot open(FileSystem fileSystem, Path directory,
+                                       FileSystem sourceFileSystem) throws IOException {
+    // generation names start with their creation time, so the last committed one is the latest
+    Path previousGeneration = null;
+    List<Path> generations = new ArrayList<>();
+    if (fileSystem.exists(directory)) {
+      for (FileStatus status : fileSystem.listStatus(directory)) {
+        generations.add(status.getPath());
+      }
+    }
+    Collections.sort(generations);
+    for (Path path : generations) {
+      if (fileSystem.exists(new Path(path, COMPLETE_MARKER))) {
+        if (previousGeneration != null) {
+          fileSystem.delete(previousGeneration, true);
+        }
+        previousGeneration = path;
+      } else {
+        fileSystem.delete(path, true);
+      }
+    }
+
+    Map<String, byte[]> previous = new HashMap<>();
+    if (previousGeneration != null) {
+      read(fileSystem, new Path(previousGeneration, SNAPSHOT_FILE_NAME), previous);
+      LOG.info("Directory snapshot: loaded {} directories from {}.", previous.size(), previousGeneration);
+    } else {
+      LOG.info("Directory snapshot: no snapshot found in {}, all directories will be listed.", directory);
+    }
+    Path generation = new Path(directory, String.format("%020d-%s", System.currentTimeMillis(), UUID.randomUUID()));
+    return new DirectorySnapshot(fileSystem, sourceFileSystem, previousGeneration, previous, generation);
+  }
+
+  public long getReusedDirectories() {
+    return reusedDirectories.get();
+  }
+
+  public long getListedDirectories() {
+    return listedDirectories.get();
+  }
+
+  /**
+   * Returns a lister that carries forward the children of directories that did not change since the previous
+   * generation, and lists all other directories. Every directory is recorded in the new generation.
+   */
+  public DirectoryWalker.Lister wrap(DirectoryWalker.Lister lister) {
+    return path -> {
+      String key = ListingCache.getKey(path);
+      // the modification time must be taken before listing, so that concurrent changes are seen by the next run
+      Long knownModificationTime = knownModificationTimes.remove(key);
+      long modificationTime = knownModificationTime != null ?
+        knownModificationTime : sourceFileSystem.getFileStatus(path).getModificationTime();
+
+      byte[] record = previous.get(key);
+      if (record != null && modificationTime > 0) {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        if (WritableUtils.readVLong(input) == modificationTime) {
+          reusedDirectories.incrementAndGet();
+          write(key, record);
+          return ListingCache.toRemoteIterator(refreshDirectories(ListingCache.decode(sourceURI, key, input)));
+        }
+      }
+
+      listedDirectories.incrementAndGet();
+      List<FileStatus> children = new ArrayList<>();
+      RemoteIterator<? extends FileStatus> iter = lister.list(path);
+      while (iter.hasNext()) {
+        FileStatus child = iter.next();
+        children.add(child);
+        if (child.isDirectory()) {
+          knownModificationTimes.put(ListingCache.getKey(child.getPath()), child.getModificationTime());
+        }
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream recordOutput = new DataOutputStream(bytes)) {
+        WritableUtils.writeVLong(recordOutput, modificationTime);
+        recordOutput.write(ListingCache.encode(key, children));
+      }
+      write(key, bytes.toByteArray());
+      return ListingCache.toRemoteIterator(children.iterator());
+    };
+  }
+
+  /**
+   * Replaces the carried forward statuses of directories with their current ones, which are needed to check them
+   * anyway. Files keep their carried forward statuses.
+   */
+  private Iterator<FileStatus> refreshDirectories(List<FileStatus> children) throws IOException {
+    List<FileStatus> refreshed = new ArrayList<>(children.size());
+    for (FileStatus child : children) {
+      if (!child.isDirectory()) {
+        refreshed.add(child);
+        continue;
+      }
+      try {
+        FileStatus status = sourceFileSystem.getFileStatus(child.getPath());
+        knownModificationTimes.put(ListingCache.getKey(child.getPath()), status.getModificationTime());
+        refreshed.add(status);
+      } catch (FileNotFoundException e) {
+        // deleted after its parent was checked, the next run sees the change
+      }
+    }
+    return refreshed.iterator();
+  }
+
+  /**
+   * Makes the new generation the one that is used by the next run, once all source paths have been listed.
+   */
+  public synchronized void commit() throws IOException {
+    openOutput().close();
+    output = null;
+    fileSystem.create(new Path(generation, COMPLETE_MARKER), true).close();
+    if (previousGeneration != null) {
+      fileSystem.delete(previousGeneration, true);
+    }
+    LOG.info("Directory snapshot: {} unchanged directories carried forward, {} listed from the filesystem.",
+             reusedDirectories.get(), listedDirectories.get());
+  }
+
+  /**
+   * Closes the new generation. If it wasn't committed, it is removed.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (output != null) {
+      output.close();
+      output = null;
+      fileSystem.delete(generation, true);
+    }
+  }
+
+  private synchronized void write(String key, byte[] record) throws IOException {
+    DataOutputStream output = openOutput();
+    output.writeUTF(key);
+    WritableUtils.writeVInt(output, record.length);
+    output.write(record);
+  }
+
+  private synchronized DataOutputStream openOutput() throws IOException {
+    if (output == null) {
+      output = new DataOutputStream(new BufferedOutputStream(
+        fileSystem.create(new Path(generation, SNAPSHOT_FILE_NAME), false)));
+      output.writeInt(MAGIC);
+    }
+    return output;
+  }
+
+  private static void read(FileSystem fileSystem, Path path, Map<String, byte[]> records) throws IOException {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(fileSystem.open(path)))) {
+      if (input.readInt() != MAGIC) {
+        throw new IOException("Directory snapshot " + path + " is corrupted.");
+      }
+      while (true) {
+        String key;
+        try {
+          key = input.readUTF();
+        } catch (EOFException e) {
+          return;
+        }
+        byte[] record = new byte[WritableUtils.readVInt(input)];
+        input.readFully(record);
+        records.put(key, record);
+      }
+    }
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import com.google.common.base.Throwables;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * Walks the directory trees under a set of user specified source paths and hands every entry it finds to a
+ * {@link Visitor}. Unlike FileSystem.listFiles(Path, Boolean), empty directories are reported as well.
+ *
+ * The walk never recurses on the call stack, so arbitrarily deep trees can be listed. With a parallelism greater
+ * than one, sibling directories are listed concurrently on a work-stealing pool; otherwise the walk runs on the
+ * calling thread.
+ *
+ * When listing recursively, source paths that lie inside another source path are not listed a second time. Their
+ * entries are taken from the enclosing walk and reported once for every source path that covers them, so the
+ * visitor sees exactly what a separate listing of each source path would have produced.
+ */
+public class DirectoryWalker {
+  private static final Logger LOG = LoggerFactory.getLogger(DirectoryWalker.class);
+
+  /**
+   * Lists the direct children of a path. If the path is a file, the file itself is returned.
+   */
+  public interface Lister {
+    RemoteIterator<? extends FileStatus> list(Path path) throws IOException;
+  }
+
+  /**
+   * Lists everything below a path in a single pass, for filesystems where listing a whole subtree at once is much
+   * cheaper than listing it one directory at a time. If the path is a file, the file itself is returned. Every
+   * directory must be returned before its contents, and the contents of a directory must be returned contiguously.
+   */
+  public interface TreeLister {
+    RemoteIterator<? extends FileStatus> listTree(Path path) throws IOException;
+  }
+
+  /**
+   * Receives the entries found by the walk. Must be thread safe if the walk runs with a parallelism above one.
+   */
+  public interface Visitor {
+    /**
+     * Called once for every entry and every source path that covers it.
+     *
+     * @param prefix The user specified source path the entry was found under.
+     * @param fileStatus The entry.
+     * @return Whether or not to list the children of the entry. Ignored for files.
+     * @throws IOException
+     */
+    boolean visit(String prefix, FileStatus fileStatus) throws IOException;
+  }
+
+  private final Lister lister;
+  private final TreeLister treeLister;
+  private final int parallelism;
+
+  public DirectoryWalker(Lister lister, int parallelism) {
+    this(lister, null, parallelism);
+  }
+
+  /**
+   * @param lister Lists single directories.
+   * @param treeLister If not null, used instead of the lister for recursive walks.
+   * @param parallelism The number of directories, or trees if a tree lister is given, that are listed concurrently.
+   */
+  public DirectoryWalker(Lister lister, @Nullable TreeLister treeLister, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Listing parallelism must be a positive integer.");
+    }
+    this.lister = lister;
+    this.treeLister = treeLister;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Walks all source paths. Paths that don't exist are logged and skipped.
+   *
+   * @param sourcePaths The user specified source paths.
+   * @param recursive Whether or not to descend into sub directories of the source paths.
+   * @param visitor Receives every entry.
+   * @throws IOException if listing any directory fails.
+   */
+  public void walk(Collection<String> sourcePaths, boolean recursive, Visitor visitor) throws IOException {
+    List<Root> roots = groupSourcePaths(sourcePaths, recursive);
+    Visitor effectiveVisitor = recursive ? visitor : (prefix, fileStatus) -> {
+      visitor.visit(prefix, fileStatus);
+      return false;
+    };
+    if (recursive && treeLister != null) {
+      walkTrees(roots, effectiveVisitor);
+    } else if (parallelism == 1) {
+      walkSerially(roots, effectiveVisitor);
+    } else {
+      walkInParallel(roots, effectiveVisitor);
+    }
+  }
+
+  private void walkSerially(List<Root> roots, Visitor visitor) throws IOException {
+    Deque<Path> pending = new ArrayDeque<>();
+    for (Root root : roots) {
+      pending.push(root.path);
+      while (!pending.isEmpty()) {
+        for (Path directory : listDirectory(root, pending.pop(), visitor)) {
+          pending.push(directory);
+        }
+      }
+    }
+  }
+
+  private void walkInParallel(List<Root> roots, Visitor visitor) throws IOException {
+    AtomicReference<IOException> failure = new AtomicReference<>();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new CountedCompleter<Void>() {
+        @Override
+        public void compute() {
+          for (Root root : roots) {
+            addToPendingCount(1);
+            new ListingTask(this, root, root.path, visitor, failure).fork();
+          }
+          tryComplete();
+        }
+      });
+    } finally {
+      pool.shutdownNow();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  private void walkTrees(List<Root> roots, Visitor visitor) throws IOException {
+    if (parallelism == 1 || roots.size() == 1) {
+      for (Root root : roots) {
+        listTree(root, visitor);
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, roots.size()));
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (Root root : roots) {
+        futures.add(executor.submit(() -> {
+          listTree(root, visitor);
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while listing source paths.");
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Hands every entry below a root to the visitor, skipping the contents of directories the visitor doesn't want
+   * to descend into.
+   */
+  private void listTree(Root root, Visitor visitor) throws IOException {
+    String skippedDirectory = null;
+    try {
+      RemoteIterator<? extends FileStatus> iter = treeLister.listTree(root.path);
+      while (iter.hasNext()) {
+        FileStatus fileStatus = iter.next();
+        String entryPath = fileStatus.getPath().toUri().getPath();
+        // the contents of a directory are contiguous, so only the last skipped directory has to be remembered
+        if (skippedDirectory != null && entryPath.startsWith(skippedDirectory)) {
+          continue;
+        }
+        boolean descend = false;
+        for (String prefix : root.getCoveringPrefixes(fileStatus)) {
+          descend |= visitor.visit(prefix, fileStatus);
+        }
+        if (fileStatus.isDirectory() && !descend) {
+          skippedDirectory = entryPath + Path.SEPARATOR;
+        }
+      }
+    } catch (FileNotFoundException e) {
+      // log a warning and skip if the path doesn't exist
+      LOG.warn(e.getMessage());
+    }
+  }
+
+  /**
+   * Lists a single directory, hands its children to the visitor and returns the sub directories that should be
+   * listed next.
+   */
+  private List<Path> listDirectory(Root root, Path path, Visitor visitor) throws IOException {
+    List<Path> directories = new ArrayList<>();
+    try {
+      RemoteIterator<? extends FileStatus> iter = lister.list(path);
+      while (iter.hasNext()) {
+        FileStatus fileStatus = iter.next();
+        boolean descend = false;
+        for (String prefix : root.getCoveringPrefixes(fileStatus)) {
+          descend |= visitor.visit(prefix, fileStatus);
+        }
+        if (fileStatus.isDirectory() && descend) {
+          directories.add(fileStatus.getPath());
+        }
+      }
+    } catch (FileNotFoundException e) {
+      // log a warning and skip if the path doesn't exist
+      LOG.warn(e.getMessage());
+    }
+    return directories;
+  }
+
+  /**
+   * Removes duplicate source paths and, when listing recursively, folds source paths that lie inside another source
+   * path into the walk of the enclosing path.
+   */
+  static List<Root> groupSourcePaths(Collection<String> sourcePaths, boolean recursive) {
+    Set<String> prefixes = new LinkedHashSet<>();
+    for (String sourcePath : sourcePaths) {
+      String prefix = sourcePath.trim();
+      if (prefix.isEmpty()) {
+        continue;
+      }
+      if (!prefixes.add(prefix)) {
+        LOG.info("Source path {} is specified more than once, it will only be listed once.", prefix);
+      }
+    }
+
+    List<Root> roots = new ArrayList<>();
+    for (String prefix : prefixes) {
+      Root enclosing = null;
+      if (recursive) {
+        for (Root root : roots) {
+          if (isSameOrAncestor(root.getPathString(), getPathString(prefix))) {
+            enclosing = root;
+            break;
+          }
+        }
+      }
+
+      if (enclosing != null) {
+        enclosing.addNested(prefix);
+        continue;
+      }
+
+      Root root = new Root(prefix);
+      if (recursive) {
+        // an earlier root may lie inside the new one, in which case it is folded into the new root
+        for (int i = roots.size() - 1; i >= 0; i--) {
+          Root other = roots.get(i);
+          if (isSameOrAncestor(root.getPathString(), other.getPathString())) {
+            root.addNested(other.prefix);
+            for (String nestedPrefix : other.nested) {
+              root.addNested(nestedPrefix);
+            }
+            roots.remove(i);
+          }
+        }
+      }
+      roots.add(root);
+    }
+
+    for (Root root : roots) {
+      if (!root.nested.isEmpty()) {
+        LOG.info("Source paths {} lie inside {} and will be served from its listing.", root.nested, root.prefix);
+      }
+    }
+    return roots;
+  }
+
+  private static String getPathString(String prefix) {
+    return new Path(prefix).toUri().getPath();
+  }
+
+  private static boolean isSameOrAncestor(String ancestor, String path) {
+    return path.equals(ancestor) || isStrictAncestor(ancestor, path);
+  }
+
+  private static boolean isStrictAncestor(String ancestor, String path) {
+    String directory = ancestor.endsWith(Path.SEPARATOR) ? ancestor : ancestor + Path.SEPARATOR;
+    return path.length() > directory.length() && path.startsWith(directory);
+  }
+
+  /**
+   * A path that is actually listed, together with the source paths that lie inside it.
+   */
+  static final class Root {
+    private final String prefix;
+    private final Path path;
+    private final String pathString;
+    private final List<String> nested;
+    private final List<String> nestedPathStrings;
+
+    Root(String prefix) {
+      this.prefix = prefix;
+      this.path = new Path(prefix);
+      this.pathString = path.toUri().getPath();
+      this.nested = new ArrayList<>();
+      this.nestedPathStrings = new ArrayList<>();
+    }
+
+    String getPrefix() {
+      return prefix;
+    }
+
+    String getPathString() {
+      return pathString;
+    }
+
+    List<String> getNested() {
+      return nested;
+    }
+
+    void addNested(String nestedPrefix) {
+      nested.add(nestedPrefix);
+      nestedPathStrings.add(DirectoryWalker.getPathString(nestedPrefix));
+    }
+
+    /**
+     * Returns the source paths whose own listing would have contained the given entry: the root itself, and every
+     * nested source path that is either a parent of the entry or the entry itself if it is a file.
+     */
+    List<String> getCoveringPrefixes(FileStatus fileStatus) {
+      if (nested.isEmpty()) {
+        return Collections.singletonList(prefix);
+      }
+      String entryPath = fileStatus.getPath().toUri().getPath();
+      List<String> prefixes = new ArrayList<>(1 + nested.size());
+      prefixes.add(prefix);
+      for (int i = 0; i < nested.size(); i++) {
+        String nestedPath = nestedPathStrings.get(i);
+        if (isStrictAncestor(nestedPath, entryPath) || (fileStatus.isFile() && entryPath.equals(nestedPath))) {
+          prefixes.add(nested.get(i));
+        }
+      }
+      return prefixes;
+    }
+  }
+
+  /**
+   * Lists one directory and forks a task for each of its sub directories. Tasks never wait on their children, so
+   * the depth of the tree doesn't affect the depth of the call stack.
+   */
+  private final class ListingTask extends CountedCompleter<Void> {
+    private final Root root;
+    private final Path path;
+    private final Visitor visitor;
+    private final AtomicReference<IOException> failure;
+
+    ListingTask(CountedCompleter<?> parent, Root root, Path path, Visitor visitor,
+                AtomicReference<IOException> failure) {
+      super(parent);
+      this.root = root;
+      this.path = path;
+      this.visitor = visitor;
+      this.failure = failure;
+    }
+
+    @Override
+    public void compute() {
+      // stop handing out work once any listing has failed
+      if (failure.get() == null) {
+        try {
+          for (Path directory : listDirectory(root, path, visitor)) {
+            addToPendingCount(1);
+            new ListingTask(this, root, directory, visitor, failure).fork();
+          }
+        } catch (IOException e) {
+          failure.compareAndSet(null, e);
+        } catch (RuntimeException e) {
+          failure.compareAndSet(null, new IOException("Failed to list " + path, e));
+        }
+      }
+      tryComplete();
+    }
+  }
+}
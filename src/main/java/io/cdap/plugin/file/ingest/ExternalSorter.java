@@ -0,0 +1,267 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.RemoteIterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts serialized records by a long key using a bounded amount of memory. Records are buffered until the memory
+ * limit is reached, then sorted and spilled to a run file on local disk. Reading merges all runs. Records with equal
+ * keys are returned in the order they were added.
+ *
+ * Adding records is thread safe. Records can only be read once, after all records have been added.
+ */
+final class ExternalSorter implements Closeable {
+  // rough per record overhead of the in-memory buffer, in addition to the serialized bytes
+  private static final int RECORD_OVERHEAD = 48;
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+  private final File spillDirectory;
+  private final long memoryLimit;
+  private final List<Record> buffer;
+  private final List<File> runs;
+  private MergingIterator merging;
+  private long bufferedBytes;
+  private long size;
+
+  /**
+   * @param spillDirectory The local directory that run files are written to.
+   * @param memoryLimit The approximate number of bytes to buffer in memory before spilling to disk.
+   */
+  ExternalSorter(File spillDirectory, long memoryLimit) {
+    this.spillDirectory = spillDirectory;
+    this.memoryLimit = memoryLimit;
+    this.buffer = new ArrayList<>();
+    this.runs = new ArrayList<>();
+  }
+
+  synchronized void add(long key, byte[] value) throws IOException {
+    buffer.add(new Record(key, value));
+    bufferedBytes += value.length + RECORD_OVERHEAD;
+    size++;
+    if (bufferedBytes >= memoryLimit) {
+      spill();
+    }
+  }
+
+  /**
+   * @return the number of records added.
+   */
+  synchronized long size() {
+    return size;
+  }
+
+  /**
+   * @return the number of run files spilled to disk so far.
+   */
+  synchronized int getRunCount() {
+    return runs.size();
+  }
+
+  /**
+   * Returns all records sorted by key.
+   */
+  synchronized RemoteIterator<Record> sorted() throws IOException {
+    if (runs.isEmpty()) {
+      Collections.sort(buffer, Record.BY_KEY);
+      List<Record> records = new ArrayList<>(buffer);
+      buffer.clear();
+      return new RemoteIterator<Record>() {
+        private int index;
+
+        @Override
+        public boolean hasNext() {
+          return index < records.size();
+        }
+
+        @Override
+        public Record next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          // release the record so that memory is freed while iterating
+          return records.set(index++, null);
+        }
+      };
+    }
+    if (!buffer.isEmpty()) {
+      spill();
+    }
+    merging = new MergingIterator(runs);
+    return merging;
+  }
+
+  /**
+   * Deletes all run files.
+   */
+  @Override
+  public synchronized void close() {
+    if (merging != null) {
+      merging.close();
+    }
+    for (File run : runs) {
+      if (!run.delete() && run.exists()) {
+        run.deleteOnExit();
+      }
+    }
+    runs.clear();
+    buffer.clear();
+  }
+
+  private void spill() throws IOException {
+    // sort is stable, and runs are merged in creation order, so records with equal keys keep their order
+    Collections.sort(buffer, Record.BY_KEY);
+    File run = File.createTempFile("run-", ".bin", spillDirectory);
+    runs.add(run);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+                                                                              IO_BUFFER_SIZE))) {
+      for (Record record : buffer) {
+        out.writeLong(record.key);
+        out.writeInt(record.value.length);
+        out.write(record.value);
+      }
+    }
+    buffer.clear();
+    bufferedBytes = 0;
+  }
+
+  /**
+   * A sort key together with the serialized record.
+   */
+  static final class Record {
+    private static final Comparator<Record> BY_KEY = (r1, r2) -> Long.compare(r1.key, r2.key);
+
+    private final long key;
+    private final byte[] value;
+
+    Record(long key, byte[] value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    long getKey() {
+      return key;
+    }
+
+    byte[] getValue() {
+      return value;
+    }
+  }
+
+  /**
+   * Merges sorted run files, preferring earlier runs for equal keys.
+   */
+  private static final class MergingIterator implements RemoteIterator<Record> {
+    private final PriorityQueue<RunReader> readers;
+
+    MergingIterator(List<File> runs) throws IOException {
+      this.readers = new PriorityQueue<>(Math.max(1, runs.size()), (r1, r2) -> {
+        int cmp = Long.compare(r1.current.key, r2.current.key);
+        return cmp != 0 ? cmp : Integer.compare(r1.index, r2.index);
+      });
+      try {
+        for (int i = 0; i < runs.size(); i++) {
+          RunReader reader = new RunReader(runs.get(i), i);
+          if (reader.advance()) {
+            readers.add(reader);
+          }
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    void close() {
+      for (RunReader reader : readers) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // the run file is deleted right after, nothing else to clean up
+        }
+      }
+      readers.clear();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !readers.isEmpty();
+    }
+
+    @Override
+    public Record next() throws IOException {
+      RunReader reader = readers.poll();
+      if (reader == null) {
+        throw new NoSuchElementException();
+      }
+      Record record = reader.current;
+      if (reader.advance()) {
+        readers.add(reader);
+      }
+      return record;
+    }
+  }
+
+  /**
+   * Reads the records of one run file. The file is closed once it is exhausted.
+   */
+  private static final class RunReader {
+    private final DataInputStream input;
+    private final int index;
+    private Record current;
+
+    RunReader(File run, int index) throws IOException {
+      this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+      this.index = index;
+    }
+
+    boolean advance() throws IOException {
+      long key;
+      try {
+        key = input.readLong();
+      } catch (EOFException e) {
+        close();
+        return false;
+      }
+      byte[] value = new byte[input.readInt()];
+      input.readFully(value);
+      current = new Record(key, value);
+      return true;
+    }
+
+    void close() throws IOException {
+      input.close();
+    }
+  }
+}
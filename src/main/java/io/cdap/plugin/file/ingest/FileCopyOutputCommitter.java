@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * OutputCommitter for file copying jobs. Files are written to their destination by the tasks directly, unless the
+ * commit is staged. Then every task attempt writes its files to its own directory under the destination, and they are
+ * moved to their destination when the attempt commits, so that failed, killed or speculative attempts leave nothing
+ * behind. Staged directories whose destination doesn't exist yet are moved with a single rename. When the job
+ * commits, directories are created if they are created in bulk, and files that were copied in chunks are stitched
+ * together.
+ */
+public class FileCopyOutputCommitter extends OutputCommitter {
+  private static final Logger LOG = LoggerFactory.getLogger(FileCopyOutputCommitter.class);
+  private static final String STAGING_DIRECTORY = "_staging";
+
+  /**
+   * Returns the directory that the given task attempt writes its files to if the commit is staged.
+   */
+  public static Path getTaskAttemptPath(Configuration conf, TaskAttemptID taskAttemptID) {
+    return new Path(new Path(conf.get(FileCopyOutputFormat.BASE_PATH), STAGING_DIRECTORY), taskAttemptID.toString());
+  }
+
+  @Override
+  public void setupJob(JobContext jobContext) throws IOException {
+    // no op
+  }
+
+  @Override
+  public void commitJob(JobContext jobContext) throws IOException {
+    Configuration conf = jobContext.getConfiguration();
+    try (FileSystem fileSystem = FileCopyOutputFormat.getFileSystem(conf)) {
+      Path basePath = new Path(conf.get(FileCopyOutputFormat.BASE_PATH));
+      BulkDirectories.createAll(fileSystem, basePath, conf.getBoolean(FileCopyOutputFormat.PRESERVE_OWNER, false),
+                                conf.getBoolean(FileCopyOutputFormat.ENABLE_OVERWRITE, false));
+      ChunkedFiles.stitchAll(fileSystem, basePath, conf);
+      // removes what is left of attempts that were never committed or aborted, such as killed speculative attempts
+      fileSystem.delete(new Path(basePath, STAGING_DIRECTORY), true);
+    }
+  }
+
+  @Override
+  public void abortJob(JobContext jobContext, JobStatus.State state) throws IOException {
+    Configuration conf = jobContext.getConfiguration();
+    try (FileSystem fileSystem = FileCopyOutputFormat.getFileSystem(conf)) {
+      Path basePath = new Path(conf.get(FileCopyOutputFormat.BASE_PATH));
+      BulkDirectories.abortAll(fileSystem, basePath);
+      ChunkedFiles.abortAll(fileSystem, basePath);
+      fileSystem.delete(new Path(basePath, STAGING_DIRECTORY), true);
+    }
+  }
+
+  @Override
+  public void setupTask(TaskAttemptContext taskAttemptContext) throws IOException {
+    // no op
+  }
+
+  @Override
+  public boolean needsTaskCommit(TaskAttemptContext taskAttemptContext) throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    if (!conf.getBoolean(FileCopyOutputFormat.STAGED_COMMIT, false)) {
+      return false;
+    }
+    try (FileSystem fileSystem = FileCopyOutputFormat.getFileSystem(conf)) {
+      return fileSystem.exists(getTaskAttemptPath(conf, taskAttemptContext.getTaskAttemptID()));
+    }
+  }
+
+  @Override
+  public void commitTask(TaskAttemptContext taskAttemptContext) throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    if (!conf.getBoolean(FileCopyOutputFormat.STAGED_COMMIT, false)) {
+      return;
+    }
+    Path taskAttemptPath = getTaskAttemptPath(conf, taskAttemptContext.getTaskAttemptID());
+    try (FileSystem fileSystem = FileCopyOutputFormat.getFileSystem(conf)) {
+      if (!fileSystem.exists(taskAttemptPath)) {
+        return;
+      }
+      int moved = promote(fileSystem, taskAttemptPath, new Path(conf.get(FileCopyOutputFormat.BASE_PATH)),
+                          conf.getBoolean(FileCopyOutputFormat.ENABLE_OVERWRITE, false));
+      fileSystem.delete(taskAttemptPath, true);
+      LOG.info("Moved {} files and directories of {} to their destination.", moved,
+               taskAttemptContext.getTaskAttemptID());
+    }
+  }
+
+  @Override
+  public void abortTask(TaskAttemptContext taskAttemptContext) throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    if (!conf.getBoolean(FileCopyOutputFormat.STAGED_COMMIT, false)) {
+      return;
+    }
+    try (FileSystem fileSystem = FileCopyOutputFormat.getFileSystem(conf)) {
+      fileSystem.delete(getTaskAttemptPath(conf, taskAttemptContext.getTaskAttemptID()), true);
+    }
+  }
+
+  /**
+   * Moves the files under the staging directory to the same relative paths under the destination directory. A staged
+   * directory that doesn't exist in the destination is moved as a whole. Files that exist in the destination are
+   * replaced if overwriting is enabled, and are kept otherwise, in which case the staged file is deleted along with
+   * the staging directory.
+   *
+   * @return the number of files and directories moved.
+   */
+  private static int promote(FileSystem fileSystem, Path stagingPath, Path destPath,
+                             boolean overwrite) throws IOException {
+    fileSystem.mkdirs(destPath);
+    int moved = 0;
+    for (FileStatus fileStatus : fileSystem.listStatus(stagingPath)) {
+      Path path = new Path(destPath, fileStatus.getPath().getName());
+      if (rename(fileSystem, fileStatus.getPath(), path, overwrite && !fileStatus.isDirectory())) {
+        moved++;
+      } else if (fileStatus.isDirectory()) {
+        moved += promote(fileSystem, fileStatus.getPath(), path, overwrite);
+      }
+    }
+    return moved;
+  }
+
+  /**
+   * Renames a file or directory, replacing an existing file if overwrite is true.
+   *
+   * @return whether the source was renamed, which it isn't if the destination exists and isn't replaced.
+   */
+  private static boolean rename(FileSystem fileSystem, Path src, Path dst, boolean overwrite) throws IOException {
+    if (fileSystem instanceof DistributedFileSystem) {
+      try {
+        // a single rename that replaces the destination atomically
+        ((DistributedFileSystem) fileSystem).rename(src, dst,
+                                                    overwrite ? Options.Rename.OVERWRITE : Options.Rename.NONE);
+        return true;
+      } catch (FileAlreadyExistsException e) {
+        return false;
+      }
+    }
+    if (fileSystem.exists(dst)) {
+      if (!overwrite) {
+        return false;
+      }
+      fileSystem.delete(dst, false);
+    }
+    if (!fileSystem.rename(src, dst)) {
+      throw new IOException(String.format("Failed to move %s to %s.", src, dst));
+    }
+    return true;
+  }
+}
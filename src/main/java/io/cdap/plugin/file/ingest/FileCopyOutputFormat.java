@@ -17,6 +17,7 @@
 package io.cdap.plugin.file.ingest;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.OutputFormat;
@@ -26,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.Map;
 
 /**
@@ -38,6 +40,24 @@ public class FileCopyOutputFormat extends OutputFormat {
   public static final String BUFFER_SIZE = "buffer.size";
   public static final String FS_HOST_URI = "filesystem.host.uri";
   public static final String FS_SCHEME = "filesystem.scheme";
+  public static final String COPY_HISTORY_DIRECTORY = "copy.history.directory";
+  public static final String BULK_DIRECTORY_CREATION = "bulk.directory.creation";
+  public static final String COPY_PARALLELISM = "copy.parallelism";
+  public static final String IN_FLIGHT_BYTES = "copy.in.flight.bytes";
+  public static final String PIPELINED_COPY = "copy.pipelined";
+  public static final String FAST_LOCAL_COPY = "copy.local.fast";
+  public static final String RANGED_READ_PARALLELISM = "copy.ranged.read.parallelism";
+  public static final String RANGED_READ_SIZE = "copy.ranged.read.size";
+  public static final String BUFFER_POOL_SIZE = "copy.buffer.pool.size";
+  public static final String DIRECT_BUFFER_READ = "copy.buffer.direct";
+  public static final String SKIP_UNCHANGED_FILES = "copy.skip.unchanged";
+  public static final String VERIFY_CHECKSUMS = "copy.verify.checksums";
+  public static final String RESUMABLE_COPY = "copy.resumable";
+  public static final String CHECKPOINT_INTERVAL = "copy.checkpoint.interval";
+  public static final String STAGED_COMMIT = "copy.staged.commit";
+  public static final String SERVER_SIDE_COPY = "copy.server.side";
+  public static final String UPLOAD_PARALLELISM = "copy.upload.parallelism";
+  public static final String UPLOAD_PART_SIZE = "copy.upload.part.size";
 
   private static final Logger LOG = LoggerFactory.getLogger(FileCopyOutputFormat.class);
 
@@ -65,6 +85,94 @@ public class FileCopyOutputFormat extends OutputFormat {
     conf.put(FS_SCHEME, value);
   }
 
+  public static void setCopyHistoryDirectory(Map<String, String> conf, String value) {
+    conf.put(COPY_HISTORY_DIRECTORY, value);
+  }
+
+  public static void setBulkDirectoryCreation(Map<String, String> conf, String value) {
+    conf.put(BULK_DIRECTORY_CREATION, value);
+  }
+
+  public static void setCopyParallelism(Map<String, String> conf, String value) {
+    conf.put(COPY_PARALLELISM, value);
+  }
+
+  public static void setInFlightBytes(Map<String, String> conf, String value) {
+    conf.put(IN_FLIGHT_BYTES, value);
+  }
+
+  public static void setPipelinedCopy(Map<String, String> conf, String value) {
+    conf.put(PIPELINED_COPY, value);
+  }
+
+  public static void setFastLocalCopy(Map<String, String> conf, String value) {
+    conf.put(FAST_LOCAL_COPY, value);
+  }
+
+  public static void setRangedReadParallelism(Map<String, String> conf, String value) {
+    conf.put(RANGED_READ_PARALLELISM, value);
+  }
+
+  public static void setRangedReadSize(Map<String, String> conf, String value) {
+    conf.put(RANGED_READ_SIZE, value);
+  }
+
+  public static void setBufferPoolSize(Map<String, String> conf, String value) {
+    conf.put(BUFFER_POOL_SIZE, value);
+  }
+
+  public static void setDirectBufferRead(Map<String, String> conf, String value) {
+    conf.put(DIRECT_BUFFER_READ, value);
+  }
+
+  public static void setSkipUnchangedFiles(Map<String, String> conf, String value) {
+    conf.put(SKIP_UNCHANGED_FILES, value);
+  }
+
+  public static void setVerifyChecksums(Map<String, String> conf, String value) {
+    conf.put(VERIFY_CHECKSUMS, value);
+  }
+
+  public static void setResumableCopy(Map<String, String> conf, String value) {
+    conf.put(RESUMABLE_COPY, value);
+  }
+
+  public static void setCheckpointInterval(Map<String, String> conf, String value) {
+    conf.put(CHECKPOINT_INTERVAL, value);
+  }
+
+  public static void setStagedCommit(Map<String, String> conf, String value) {
+    conf.put(STAGED_COMMIT, value);
+  }
+
+  public static void setServerSideCopy(Map<String, String> conf, String value) {
+    conf.put(SERVER_SIDE_COPY, value);
+  }
+
+  public static void setUploadParallelism(Map<String, String> conf, String value) {
+    conf.put(UPLOAD_PARALLELISM, value);
+  }
+
+  public static void setUploadPartSize(Map<String, String> conf, String value) {
+    conf.put(UPLOAD_PART_SIZE, value);
+  }
+
+  /**
+   * Returns a new, uncached instance of the destination filesystem. Disables caching for the destination scheme in
+   * the given configuration.
+   */
+  static FileSystem getFileSystem(Configuration conf) throws IOException {
+    // always disable caching when obtaining destination filesystem
+    conf.set(String.format("fs.%s.impl.disable.cache", conf.get(FS_SCHEME)), String.valueOf(true));
+
+    // connect to destination filesystem with uri if it is provided
+    String uriString = conf.get(FS_HOST_URI, null);
+    if (uriString != null) {
+      return FileSystem.get(URI.create(uriString), conf);
+    }
+    return FileSystem.get(conf);
+  }
+
   @Override
   public void checkOutputSpecs(JobContext jobContext) throws IOException, InterruptedException {
     // check if base path is set
@@ -75,38 +183,13 @@ public class FileCopyOutputFormat extends OutputFormat {
 
   @Override
   public OutputCommitter getOutputCommitter(TaskAttemptContext taskAttemptContext) {
-    // TODO: implement an OutputCommitter for file copying jobs, or investigate whether we can use FileOutputCommitter
-    return new OutputCommitter() {
-      @Override
-      public void setupJob(JobContext jobContext) throws IOException {
-        // no op
-      }
-
-      @Override
-      public void setupTask(TaskAttemptContext taskAttemptContext) throws IOException {
-        // no op
-      }
-
-      @Override
-      public boolean needsTaskCommit(TaskAttemptContext taskAttemptContext) throws IOException {
-        return false;
-      }
-
-      @Override
-      public void commitTask(TaskAttemptContext taskAttemptContext) throws IOException {
-        // no op
-      }
-
-      @Override
-      public void abortTask(TaskAttemptContext taskAttemptContext) throws IOException {
-        // no op
-      }
-    };
+    return new FileCopyOutputCommitter();
   }
 
   @Override
   public RecordWriter getRecordWriter(TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
     Configuration conf = taskAttemptContext.getConfiguration();
-    return new FileCopyRecordWriter(conf);
+    return new FileCopyRecordWriter(conf, conf.getBoolean(STAGED_COMMIT, false) ?
+      FileCopyOutputCommitter.getTaskAttemptPath(conf, taskAttemptContext.getTaskAttemptID()) : null);
   }
 }
@@ -16,12 +16,21 @@
 
 package io.cdap.plugin.file.ingest;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.primitives.Ints;
+import io.cdap.plugin.file.ingest.s3.S3Clients;
+import io.cdap.plugin.file.ingest.s3.S3CredentialSets;
 import io.cdap.plugin.file.ingest.s3.S3FileMetadata;
 import io.cdap.plugin.file.ingest.s3.S3MetadataInputFormat;
+import io.cdap.plugin.file.ingest.s3.S3MultipartUploader;
+import io.cdap.plugin.file.ingest.s3.S3ServerSideCopier;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.io.NullWritable;
@@ -30,11 +39,16 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * The record writer that takes file metadata and streams data from source database
@@ -43,16 +57,52 @@ import java.util.Map;
 public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadata> {
   private final FileSystem destFileSystem;
   private final String basePath;
+  // the directory of the task attempt that files are written to, only set if the job commits them in stages
+  private final Path stagingPath;
   private final boolean enableOverwrite;
   private final boolean preserveOwner;
   private final int bufferSize;
+  private final boolean pipelinedCopy;
+  private final boolean fastLocalCopy;
+  private final int rangedReadParallelism;
+  private final int rangedReadSize;
+  private final boolean directBufferRead;
+  private final BufferPool bufferPool;
+  private final Configuration conf;
+  // durations of the copies, only kept if a copy history directory is set
+  private final CopyHistory copyHistory;
+  // directories are only recorded if they are created in bulk when the job commits
+  private final BulkDirectories.Writer bulkDirectories;
+  // only set if files are copied concurrently
+  private final ConcurrentCopier copier;
+  // only set if objects are copied on the server side when both source and destination are S3
+  private final S3ServerSideCopier serverSideCopier;
+  // the number of concurrent part uploads of a multipart upload, or 0 if files are not uploaded in parts
+  private final int uploadParallelism;
+  private final long uploadPartSize;
+  private final boolean skipUnchangedFiles;
+  private final boolean verifyChecksums;
+  private final boolean resumableCopy;
+  private final long checkpointInterval;
+  // clients for reading the ETags of S3 sources, by their credentials
+  private final Map<String, AmazonS3> sourceS3Clients;
+  // the client for the destination, if it is on S3
+  private AmazonS3 s3Client;
 
   // buffer size defaults to 1 MB
   public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+  // the bytes of concurrent copies default to 256 MB
+  public static final long DEFAULT_IN_FLIGHT_BYTES = 256 << 20;
+  public static final long DEFAULT_UPLOAD_PART_SIZE = 16 << 20;
+  public static final int DEFAULT_RANGED_READ_SIZE = 8 << 20;
+  public static final long DEFAULT_BUFFER_POOL_SIZE = 64 << 20;
+  public static final long DEFAULT_CHECKPOINT_INTERVAL = 256 << 20;
+  // the extended attribute that holds the CRC32C of verified copies
+  public static final String CRC32C_XATTR = "user.file.copy.crc32c";
   private static final Logger LOG = LoggerFactory.getLogger(FileCopyRecordWriter.class);
 
-  // a Key-Value map from host uri to Filesystem object
-  private Map<String, FileSystem> sourceFilesystemMap;
+  // a Key-Value map from host uri to Filesystem object, guarded by itself
+  private final Map<String, FileSystem> sourceFilesystemMap;
 
   /**
    * Construct a RecordWriter given user configurations.
@@ -61,23 +111,55 @@ public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadat
    * @throws IOException
    */
   public FileCopyRecordWriter(Configuration conf) throws IOException {
-    // always disable caching when obtaining destination filesystem
-    conf.set(String.format("fs.%s.impl.disable.cache", conf.get(FileCopyOutputFormat.FS_SCHEME)), String.valueOf(true));
+    this(conf, null);
+  }
 
-    // connect to destination filesystem with uri if it is provided
-    String uriString = conf.get(FileCopyOutputFormat.FS_HOST_URI, null);
-    if (uriString != null) {
-      destFileSystem = FileSystem.get(URI.create(uriString), conf);
-    } else {
-      destFileSystem = FileSystem.get(conf);
-    }
+  /**
+   * Construct a RecordWriter that writes files to the given staging directory instead of their destination, from
+   * where they are moved when the task attempt commits, see {@link FileCopyOutputCommitter}.
+   *
+   * @param conf The configuration that contains required information to intialize the recordWriter.
+   * @param stagingPath The directory of the task attempt, or null to write files to their destination directly.
+   * @throws IOException
+   */
+  public FileCopyRecordWriter(Configuration conf, @Nullable Path stagingPath) throws IOException {
+    this.stagingPath = stagingPath;
+    destFileSystem = FileCopyOutputFormat.getFileSystem(conf);
 
     // initialize other properties for writing to destination filesystem
     basePath = conf.get(FileCopyOutputFormat.BASE_PATH);
     enableOverwrite = conf.getBoolean(FileCopyOutputFormat.ENABLE_OVERWRITE, false);
     preserveOwner = conf.getBoolean(FileCopyOutputFormat.PRESERVE_OWNER, false);
     bufferSize = conf.getInt(FileCopyOutputFormat.BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
+    pipelinedCopy = conf.getBoolean(FileCopyOutputFormat.PIPELINED_COPY, false);
+    fastLocalCopy = conf.getBoolean(FileCopyOutputFormat.FAST_LOCAL_COPY, false);
+    rangedReadParallelism = conf.getInt(FileCopyOutputFormat.RANGED_READ_PARALLELISM, 1);
+    directBufferRead = conf.getBoolean(FileCopyOutputFormat.DIRECT_BUFFER_READ, false);
+    bufferPool = BufferPool.getInstance(conf.getLong(FileCopyOutputFormat.BUFFER_POOL_SIZE, DEFAULT_BUFFER_POOL_SIZE));
     sourceFilesystemMap = new HashMap<>();
+    this.conf = conf;
+    copyHistory = conf.get(FileCopyOutputFormat.COPY_HISTORY_DIRECTORY) == null ? null : new CopyHistory();
+    bulkDirectories = conf.getBoolean(FileCopyOutputFormat.BULK_DIRECTORY_CREATION, false) ?
+      new BulkDirectories.Writer(destFileSystem, new Path(basePath)) : null;
+    String scheme = conf.get(FileCopyOutputFormat.FS_SCHEME);
+    serverSideCopier = conf.getBoolean(FileCopyOutputFormat.SERVER_SIDE_COPY, false) &&
+      isS3(scheme) ? new S3ServerSideCopier(conf, destFileSystem.getUri()) : null;
+    uploadParallelism = isS3(scheme) ? conf.getInt(FileCopyOutputFormat.UPLOAD_PARALLELISM, 0) : 0;
+    skipUnchangedFiles = enableOverwrite && conf.getBoolean(FileCopyOutputFormat.SKIP_UNCHANGED_FILES, false);
+    sourceS3Clients = new HashMap<>();
+    verifyChecksums = conf.getBoolean(FileCopyOutputFormat.VERIFY_CHECKSUMS, false);
+    resumableCopy = conf.getBoolean(FileCopyOutputFormat.RESUMABLE_COPY, false);
+    checkpointInterval = conf.getLong(FileCopyOutputFormat.CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+    uploadPartSize = conf.getLong(FileCopyOutputFormat.UPLOAD_PART_SIZE, DEFAULT_UPLOAD_PART_SIZE);
+    int parallelism = conf.getInt(FileCopyOutputFormat.COPY_PARALLELISM, 1);
+    long inFlightBytes = conf.getLong(FileCopyOutputFormat.IN_FLIGHT_BYTES, DEFAULT_IN_FLIGHT_BYTES);
+    copier = parallelism > 1 ? new ConcurrentCopier(parallelism, inFlightBytes) : null;
+    // the ranges that a copy reads ahead must fit into the budget of a single copy
+    long copyBudget = copier == null ? inFlightBytes : copier.getMaxLargeFileCost();
+    rangedReadSize = (int) Math.max(BufferPool.MIN_BUFFER_SIZE,
+                                    Math.min(conf.getInt(FileCopyOutputFormat.RANGED_READ_SIZE,
+                                                         DEFAULT_RANGED_READ_SIZE),
+                                             copyBudget / (2L * rangedReadParallelism)));
   }
 
   /**
@@ -91,10 +173,42 @@ public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadat
    */
   @Override
   public void write(NullWritable key, FileMetadata fileMetadata) throws IOException, InterruptedException {
+    // directories are created on the task thread, so that they are handled in order
+    if (copier != null && !fileMetadata.isDir()) {
+      copier.submit(fileMetadata.getChunkLength(), () -> copyAndRecord(fileMetadata));
+      return;
+    }
+    copyAndRecord(fileMetadata);
+  }
+
+  private void copyAndRecord(FileMetadata fileMetadata) throws IOException {
+    long startNanos = System.nanoTime();
+    if (copy(fileMetadata) && copyHistory != null) {
+      synchronized (copyHistory) {
+        copyHistory.record(URI.create(fileMetadata.getHostURI()).getScheme(),
+                           conf.get(FileCopyOutputFormat.FS_SCHEME), fileMetadata.getChunkLength(),
+                           System.nanoTime() - startNanos);
+      }
+    }
+  }
 
+  /**
+   * Copies the file or directory.
+   *
+   * @return whether or not anything was copied.
+   */
+  private boolean copy(FileMetadata fileMetadata) throws IOException {
     if (fileMetadata.getRelativePath().isEmpty()) {
       // nothing to create
-      return;
+      return false;
+    }
+    if (bulkDirectories != null) {
+      if (fileMetadata.isDir()) {
+        bulkDirectories.add(fileMetadata);
+        return false;
+      }
+      // so that the job commit applies permissions to the parents that the copy creates
+      bulkDirectories.addParents(fileMetadata);
     }
 
     // construct file paths for source and destination
@@ -104,15 +218,18 @@ public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadat
 
     // immediately return if we don't want to overwrite and file exists in destination
     if (!enableOverwrite && destFileSystem.exists(destPath)) {
-      return;
+      return false;
     }
 
     // get source database connection
-    String uriString = fileMetadata.getHostURI();
-    if (!sourceFilesystemMap.containsKey(uriString)) {
-      sourceFilesystemMap.put(uriString, getSourceFilesystemConnection(fileMetadata));
+    String connectionKey = getConnectionKey(fileMetadata);
+    FileSystem sourceFilesystem;
+    synchronized (sourceFilesystemMap) {
+      if (!sourceFilesystemMap.containsKey(connectionKey)) {
+        sourceFilesystemMap.put(connectionKey, getSourceFilesystemConnection(fileMetadata));
+      }
+      sourceFilesystem = sourceFilesystemMap.get(connectionKey);
     }
-    FileSystem sourceFilesystem = sourceFilesystemMap.get(uriString);
 
     // do some checks to see if we need to copy the file
     if (fileMetadata.isDir()) {
@@ -123,21 +240,76 @@ public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadat
           destFileSystem.setOwner(destPath, fileMetadata.getOwner(), fileMetadata.getGroup());
         }
       }
-      return;
+      return true;
     } else if (!sourceFilesystem.exists(srcPath)) {
       // file doesn't exist in source, return immediately
       LOG.warn("{} doesn't exist in source filesystem.", fileMetadata.getFullPath());
-      return;
+      return false;
+    }
+    if (skipUnchangedFiles && isUnchanged(sourceFilesystem, srcPath, destPath, fileMetadata)) {
+      LOG.debug("Skipping {}, which is unchanged in the destination.", fileMetadata.getFullPath());
+      return false;
+    }
+    // with a staged commit, files are written to the directory of the task attempt and moved when it commits
+    Path writePath = stagingPath == null ? destPath : new Path(stagingPath, fileMetadata.getRelativePath());
+
+    if (fileMetadata.isChunk()) {
+      copyChunk(sourceFilesystem, srcPath, destPath, writePath, permission, fileMetadata);
+      return true;
+    }
+
+    if (isFastLocalCopy(sourceFilesystem)) {
+      LocalFileCopy.copy((LocalFileSystem) sourceFilesystem, srcPath, 0, -1, (LocalFileSystem) destFileSystem,
+                         writePath);
+      setPermissionAndOwner(writePath, permission, fileMetadata);
+      return true;
+    }
+    if (isServerSideCopy(fileMetadata)) {
+      serverSideCopier.copy(getQualifiedSourcePath(fileMetadata), fileMetadata.getFileSize(), 0,
+                            fileMetadata.getFileSize(), destFileSystem.makeQualified(writePath));
+      setPermissionAndOwner(writePath, permission, fileMetadata);
+      return true;
+    }
+    if (resumableCopy && fileMetadata.getFileSize() > checkpointInterval) {
+      copyResumably(sourceFilesystem, srcPath, writePath, permission, fileMetadata);
+      return true;
+    }
+
+    // computed over the bytes as they stream through, to verify the copy without reading the destination again
+    StreamChecksum checksum = verifyChecksums ?
+      new StreamChecksum(fileMetadata instanceof S3FileMetadata || isS3(destFileSystem.getUri().getScheme())) : null;
+
+    if (uploadParallelism > 0 && fileMetadata.getFileSize() > uploadPartSize) {
+      try (FSDataInputStream inputStream = sourceFilesystem.open(srcPath, bufferSize)) {
+        S3MultipartUploader.upload(getS3Client(), checksum == null ? inputStream : checksum.wrap(inputStream),
+                                   fileMetadata.getFileSize(), destFileSystem.makeQualified(writePath),
+                                   uploadPartSize, uploadParallelism);
+      }
+      verifyCopy(writePath, fileMetadata, checksum);
+      setPermissionAndOwner(writePath, permission, fileMetadata);
+      return true;
+    }
+
+    if (isRangedRead(fileMetadata.getFileSize())) {
+      try (FSDataOutputStream outputStream = FileSystem.create(destFileSystem, writePath, permission)) {
+        RangedCopy.copy(sourceFilesystem, srcPath, bufferSize, 0, fileMetadata.getFileSize(),
+                        checksum == null ? outputStream : checksum.wrap(outputStream), rangedReadSize,
+                        rangedReadParallelism, bufferPool);
+      }
+      verifyCopy(writePath, fileMetadata, checksum);
+      setPermissionAndOwner(writePath, permission, fileMetadata);
+      return true;
     }
 
     // data streaming
     FSDataInputStream inputStream = sourceFilesystem.open(srcPath, bufferSize);
-    FSDataOutputStream outputStream = FileSystem.create(destFileSystem, destPath, permission);
+    FSDataOutputStream outputStream = FileSystem.create(destFileSystem, writePath, permission);
     try {
-      byte[] buf = new byte[bufferSize];
-      int len;
-      while ((len = inputStream.read(buf)) >= 0) {
-        outputStream.write(buf, 0, len);
+      OutputStream output = checksum == null ? outputStream : checksum.wrap(outputStream);
+      if (pipelinedCopy && fileMetadata.getFileSize() > bufferSize) {
+        PipelinedCopy.copy(inputStream, output, bufferSize);
+      } else {
+        PooledCopy.copy(inputStream, output, fileMetadata.getFileSize(), bufferPool, bufferSize, directBufferRead);
       }
     } finally {
       // we have to do this to make sure even if one stream fails to close, it
@@ -148,19 +320,278 @@ public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadat
         outputStream.close();
         // the owner is set only if the output stream is sucessfully closed
         if (preserveOwner) {
-          destFileSystem.setOwner(destPath, fileMetadata.getOwner(), fileMetadata.getGroup());
+          destFileSystem.setOwner(writePath, fileMetadata.getOwner(), fileMetadata.getGroup());
+        }
+      }
+    }
+    verifyCopy(writePath, fileMetadata, checksum);
+    return true;
+  }
+
+  /**
+   * Copies the file so that a later attempt can resume the copy if this one fails, see {@link ResumableCopy}.
+   */
+  private void copyResumably(FileSystem sourceFilesystem, Path srcPath, Path destPath, FsPermission permission,
+                             FileMetadata fileMetadata) throws IOException {
+    try (FSDataInputStream inputStream = sourceFilesystem.open(srcPath, bufferSize)) {
+      if (isS3(destFileSystem.getUri().getScheme())) {
+        ResumableCopy.upload(getS3Client(), inputStream, fileMetadata, destFileSystem,
+                             destFileSystem.makeQualified(destPath), uploadPartSize, Math.max(1, uploadParallelism));
+      } else {
+        byte[] buffer = bufferPool.acquire(fileMetadata.getFileSize(), bufferSize);
+        try {
+          ResumableCopy.copy(inputStream, fileMetadata, destFileSystem, destPath, permission, buffer,
+                             checkpointInterval);
+        } finally {
+          bufferPool.release(buffer);
+        }
+      }
+    }
+    setPermissionAndOwner(destPath, permission, fileMetadata);
+  }
+
+  /**
+   * Verifies the copied file with the checksum of the bytes that were copied, if any, and records the CRC32C of the
+   * file in an extended attribute where the destination supports it. A file that doesn't match the source is deleted.
+   */
+  private void verifyCopy(Path destPath, FileMetadata fileMetadata,
+                          @Nullable StreamChecksum checksum) throws IOException {
+    if (checksum == null) {
+      return;
+    }
+    String mismatch = null;
+    String md5 = checksum.getMd5();
+    if (checksum.getLength() != fileMetadata.getFileSize()) {
+      mismatch = String.format("%d bytes were copied instead of %d", checksum.getLength(), fileMetadata.getFileSize());
+    } else if (fileMetadata instanceof S3FileMetadata) {
+      S3FileMetadata s3FileMetadata = (S3FileMetadata) fileMetadata;
+      String sourceETag = StreamChecksum.getMd5ETag(
+        getObjectMetadata(getSourceS3Client(getAccessKeyId(s3FileMetadata), getSecretKeyId(s3FileMetadata)),
+                          getQualifiedSourcePath(fileMetadata)));
+      if (sourceETag != null && !sourceETag.equals(md5)) {
+        mismatch = String.format("the MD5 %s of the copied bytes doesn't match the source ETag %s", md5, sourceETag);
+      }
+    }
+    if (mismatch == null && isS3(destFileSystem.getUri().getScheme())) {
+      String destETag = StreamChecksum.getMd5ETag(getObjectMetadata(getS3Client(),
+                                                                    destFileSystem.makeQualified(destPath)));
+      if (destETag != null && !destETag.equals(md5)) {
+        mismatch = String.format("the MD5 %s of the copied bytes doesn't match the destination ETag %s", md5, destETag);
+      }
+    }
+    if (mismatch != null) {
+      destFileSystem.delete(destPath, false);
+      throw new IOException(String.format("Failed to verify the copy of %s to %s, %s.", fileMetadata.getFullPath(),
+                                          destPath, mismatch));
+    }
+
+    try {
+      destFileSystem.setXAttr(destPath, CRC32C_XATTR, Ints.toByteArray(checksum.getCrc32c()));
+    } catch (UnsupportedOperationException e) {
+      // the destination has no extended attributes, such as S3
+    } catch (IOException e) {
+      LOG.debug("Failed to record the CRC32C of {}.", destPath, e);
+    }
+  }
+
+  /**
+   * Copies a byte range of the source file into a part file of the destination file, using positioned reads, or in
+   * place into the file that all chunks of a local destination file are written into. The chunks are stitched
+   * together when the job commits.
+   */
+  private void copyChunk(FileSystem sourceFilesystem, Path srcPath, Path destPath, Path writePath,
+                         FsPermission permission, FileMetadata fileMetadata) throws IOException {
+    ChunkedFiles.checkSupported(destFileSystem);
+    long position = fileMetadata.getChunkOffset();
+    long end = position + fileMetadata.getChunkLength();
+    if (ChunkedFiles.isInPlace(destFileSystem)) {
+      // the file is shared by the chunks of all tasks, so it bypasses the staging directory, and is hidden until the
+      // job commits. A chunk that is copied again by a retry rewrites the same bytes.
+      try (FileChannel output = ChunkedFiles.openInPlace((LocalFileSystem) destFileSystem, destPath,
+                                                         fileMetadata.getFileSize())) {
+        output.position(position);
+        if (isFastLocalCopy(sourceFilesystem)) {
+          LocalFileCopy.transfer((LocalFileSystem) sourceFilesystem, srcPath, position, end - position, output);
+        } else {
+          copyChunkRange(sourceFilesystem, srcPath, Channels.newOutputStream(output), position, end,
+                         fileMetadata.getChunkIndex());
+        }
+      }
+      destFileSystem.setPermission(ChunkedFiles.getInPlacePath(destPath), permission);
+    } else {
+      Path partPath = ChunkedFiles.getPartPath(writePath, fileMetadata.getChunkIndex());
+      if (isServerSideCopy(fileMetadata)) {
+        serverSideCopier.copy(getQualifiedSourcePath(fileMetadata), fileMetadata.getFileSize(), position,
+                              end - position, destFileSystem.makeQualified(partPath));
+      } else {
+        try (FSDataOutputStream outputStream = FileSystem.create(destFileSystem, partPath, permission)) {
+          copyChunkRange(sourceFilesystem, srcPath, outputStream, position, end, fileMetadata.getChunkIndex());
+        }
+      }
+    }
+    if (fileMetadata.getChunkIndex() == 0) {
+      ChunkedFiles.register(destFileSystem, new Path(basePath), fileMetadata, preserveOwner);
+    }
+  }
+
+  private void copyChunkRange(FileSystem sourceFilesystem, Path srcPath, OutputStream outputStream, long position,
+                              long end, int chunkIndex) throws IOException {
+    if (isRangedRead(end - position)) {
+      RangedCopy.copy(sourceFilesystem, srcPath, bufferSize, position, end, outputStream, rangedReadSize,
+                      rangedReadParallelism, bufferPool);
+      return;
+    }
+    try (FSDataInputStream inputStream = sourceFilesystem.open(srcPath, bufferSize)) {
+      byte[] buf = bufferPool.acquire(end - position, bufferSize);
+      try {
+        while (position < end) {
+          int len = inputStream.read(position, buf, 0, (int) Math.min(buf.length, end - position));
+          if (len < 0) {
+            throw new EOFException(String.format("%s ended at %d, before the end of chunk %d.",
+                                                 srcPath, position, chunkIndex));
+          }
+          outputStream.write(buf, 0, len);
+          position += len;
         }
+      } finally {
+        bufferPool.release(buf);
       }
     }
   }
 
+  /**
+   * Whether or not a byte range of the given length is read in several ranges at the same time.
+   */
+  private boolean isRangedRead(long length) {
+    return rangedReadParallelism > 1 && length > rangedReadSize;
+  }
+
+  /**
+   * Whether or not the file can be copied with a zero copy transfer between local files.
+   */
+  private boolean isFastLocalCopy(FileSystem sourceFilesystem) {
+    return fastLocalCopy && sourceFilesystem instanceof LocalFileSystem && destFileSystem instanceof LocalFileSystem;
+  }
+
+  /**
+   * Whether or not the file can be copied on the server side, which requires an S3 source that is read with the
+   * credentials of the S3 destination.
+   */
+  private boolean isServerSideCopy(FileMetadata fileMetadata) throws IOException {
+    if (serverSideCopier == null || !(fileMetadata instanceof S3FileMetadata)) {
+      return false;
+    }
+    S3FileMetadata s3FileMetadata = (S3FileMetadata) fileMetadata;
+    return serverSideCopier.canCopy(URI.create(fileMetadata.getHostURI()).getHost(), getAccessKeyId(s3FileMetadata),
+                                    getSecretKeyId(s3FileMetadata));
+  }
+
+  private synchronized AmazonS3 getS3Client() throws IOException {
+    if (s3Client == null) {
+      s3Client = S3Clients.create(conf, destFileSystem.getUri());
+    }
+    return s3Client;
+  }
+
+  /**
+   * Whether or not the file already exists with the same content in the destination. S3 objects are compared by
+   * their ETags if both the source and the destination are on S3.
+   */
+  private boolean isUnchanged(FileSystem sourceFilesystem, Path srcPath, Path destPath,
+                              FileMetadata fileMetadata) throws IOException {
+    UnchangedFiles.ETagLookup sourceETags = null;
+    UnchangedFiles.ETagLookup destETags = null;
+    if (fileMetadata instanceof S3FileMetadata && isS3(destFileSystem.getUri().getScheme())) {
+      S3FileMetadata s3FileMetadata = (S3FileMetadata) fileMetadata;
+      AmazonS3 sourceS3Client = getSourceS3Client(getAccessKeyId(s3FileMetadata), getSecretKeyId(s3FileMetadata));
+      sourceETags = path -> getETag(sourceS3Client, path);
+      destETags = path -> getETag(getS3Client(), path);
+    }
+    return UnchangedFiles.isUnchanged(fileMetadata, sourceFilesystem, sourceFilesystem.makeQualified(srcPath),
+                                      destFileSystem, destFileSystem.makeQualified(destPath), sourceETags, destETags);
+  }
+
+  private static boolean isS3(String scheme) {
+    return "s3a".equals(scheme) || "s3n".equals(scheme);
+  }
+
+  private AmazonS3 getSourceS3Client(String accessKeyId, String secretKeyId) {
+    synchronized (sourceS3Clients) {
+      return sourceS3Clients.computeIfAbsent(accessKeyId + ":" + secretKeyId,
+                                             key -> S3Clients.create(conf, accessKeyId, secretKeyId));
+    }
+  }
+
+  @Nullable
+  private static String getETag(AmazonS3 s3, Path path) throws IOException {
+    return getObjectMetadata(s3, path).getETag();
+  }
+
+  private static ObjectMetadata getObjectMetadata(AmazonS3 s3, Path path) throws IOException {
+    try {
+      return s3.getObjectMetadata(path.toUri().getHost(), path.toUri().getPath().substring(1));
+    } catch (AmazonClientException e) {
+      throw new IOException("Failed to look up the metadata of " + path, e);
+    }
+  }
+
+  private static Path getQualifiedSourcePath(FileMetadata fileMetadata) {
+    URI hostURI = URI.create(fileMetadata.getHostURI());
+    return new Path(hostURI.getScheme(), hostURI.getAuthority(), fileMetadata.getFullPath());
+  }
+
+  private void setPermissionAndOwner(Path destPath, FsPermission permission,
+                                     FileMetadata fileMetadata) throws IOException {
+    destFileSystem.setPermission(destPath, permission);
+    if (preserveOwner) {
+      destFileSystem.setOwner(destPath, fileMetadata.getOwner(), fileMetadata.getGroup());
+    }
+  }
+
   @Override
   public void close(TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
-    // attempts to close the other even if one fails
     try {
-      destFileSystem.close();
+      if (copier != null) {
+        // waits for the queued copies
+        copier.close();
+      }
+    } finally {
+      closeResources();
+    }
+  }
+
+  private void closeResources() throws IOException {
+    if (serverSideCopier != null) {
+      serverSideCopier.close();
+    }
+    synchronized (this) {
+      if (s3Client != null) {
+        s3Client.shutdown();
+      }
+      for (AmazonS3 sourceS3Client : sourceS3Clients.values()) {
+        sourceS3Client.shutdown();
+      }
+    }
+    if (copyHistory != null) {
+      // the history only improves planning, so failing to save it does not fail the task
+      Path historyDirectory = new Path(conf.get(FileCopyOutputFormat.COPY_HISTORY_DIRECTORY));
+      try {
+        copyHistory.save(historyDirectory.getFileSystem(conf), historyDirectory);
+      } catch (IOException e) {
+        LOG.warn("Failed to save the copy history to {}.", historyDirectory, e);
+      }
+    }
+    try {
+      if (bulkDirectories != null) {
+        bulkDirectories.close();
+      }
     } finally {
-      safelyCloseSourceFilesystems(sourceFilesystemMap.values().iterator());
+      // attempts to close the other even if one fails
+      try {
+        destFileSystem.close();
+      } finally {
+        safelyCloseSourceFilesystems(sourceFilesystemMap.values().iterator());
+      }
     }
   }
 
@@ -180,6 +611,31 @@ public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadat
     }
   }
 
+  /**
+   * Returns the key of the source filesystem connection for a file. S3 files are read with their own credentials, so
+   * files of the same bucket can need different connections.
+   */
+  private static String getConnectionKey(FileMetadata metadata) {
+    if (!(metadata instanceof S3FileMetadata)) {
+      return metadata.getHostURI();
+    }
+    S3FileMetadata s3FileMetadata = (S3FileMetadata) metadata;
+    if (s3FileMetadata.getCredentialSetId() != null) {
+      return metadata.getHostURI() + "#" + s3FileMetadata.getCredentialSetId();
+    }
+    return metadata.getHostURI() + "#" + s3FileMetadata.getAccessKeyId() + ":" + s3FileMetadata.getSecretKeyId();
+  }
+
+  private String getAccessKeyId(S3FileMetadata metadata) throws IOException {
+    return metadata.getCredentialSetId() == null ? metadata.getAccessKeyId() :
+      S3CredentialSets.getAccessKeyId(conf, metadata.getCredentialSetId());
+  }
+
+  private String getSecretKeyId(S3FileMetadata metadata) throws IOException {
+    return metadata.getCredentialSetId() == null ? metadata.getSecretKeyId() :
+      S3CredentialSets.getSecretKeyId(conf, metadata.getCredentialSetId());
+  }
+
   /**
    * This method identifies the source filesystem given FileMetadata and returns a FileSystem instance that will be used
    * to read files from the source.
@@ -201,14 +657,14 @@ public class FileCopyRecordWriter extends RecordWriter<NullWritable, FileMetadat
     switch (uri.getScheme()) {
       case "s3a":
         S3FileMetadata s3aFileMetadata = (S3FileMetadata) metadata;
-        S3MetadataInputFormat.setS3aAccessKeyId(conf, s3aFileMetadata.getAccessKeyId());
-        S3MetadataInputFormat.setS3aSecretKeyId(conf, s3aFileMetadata.getSecretKeyId());
+        S3MetadataInputFormat.setS3aAccessKeyId(conf, getAccessKeyId(s3aFileMetadata));
+        S3MetadataInputFormat.setS3aSecretKeyId(conf, getSecretKeyId(s3aFileMetadata));
         S3MetadataInputFormat.setS3aFsClass(conf);
         break;
       case "s3n":
         S3FileMetadata s3nFileMetadata = (S3FileMetadata) metadata;
-        S3MetadataInputFormat.setS3nAccessKeyId(conf, s3nFileMetadata.getAccessKeyId());
-        S3MetadataInputFormat.setS3nSecretKeyId(conf, s3nFileMetadata.getSecretKeyId());
+        S3MetadataInputFormat.setS3nAccessKeyId(conf, getAccessKeyId(s3nFileMetadata));
+        S3MetadataInputFormat.setS3nSecretKeyId(conf, getSecretKeyId(s3nFileMetadata));
         S3MetadataInputFormat.setS3nFsClass(conf);
         break;
       case "file":
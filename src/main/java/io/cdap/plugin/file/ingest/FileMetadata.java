@@ -45,6 +45,9 @@ public class FileMetadata implements Comparable<FileMetadata> {
   public static final String RELATIVE_PATH = "relativePath";
   public static final String PERMISSION = "permission";
   public static final String HOST_URI = "hostURI";
+  public static final String CHUNK_INDEX = "chunkIndex";
+  public static final String CHUNK_COUNT = "chunkCount";
+  public static final String CHUNK_SIZE = "chunkSize";
 
   // The default schema that will be used to convert this object to a StructuredRecord.
   public static final Schema DEFAULT_SCHEMA = Schema.recordOf(
@@ -58,7 +61,10 @@ public class FileMetadata implements Comparable<FileMetadata> {
     Schema.Field.of(IS_DIR, Schema.of(Schema.Type.BOOLEAN)),
     Schema.Field.of(RELATIVE_PATH, Schema.of(Schema.Type.STRING)),
     Schema.Field.of(PERMISSION, Schema.of(Schema.Type.INT)),
-    Schema.Field.of(HOST_URI, Schema.of(Schema.Type.STRING))
+    Schema.Field.of(HOST_URI, Schema.of(Schema.Type.STRING)),
+    Schema.Field.of(CHUNK_INDEX, Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of(CHUNK_COUNT, Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of(CHUNK_SIZE, Schema.nullableOf(Schema.of(Schema.Type.LONG)))
   );
 
 
@@ -104,6 +110,14 @@ public class FileMetadata implements Comparable<FileMetadata> {
    */
   private final String hostURI;
 
+  /*
+   * Large files can be copied in byte range chunks by different tasks. A chunk covers the bytes from
+   * chunkIndex * chunkSize up to the next chunk or the end of the file. A chunk count of 0 means the whole file.
+   */
+  private int chunkIndex;
+  private int chunkCount;
+  private long chunkSize;
+
   /**
    * Constructs a FileMetadata instance given a FileStatus and source path. Override this method to add additional
    * credential fields to the instance.
@@ -138,6 +152,56 @@ public class FileMetadata implements Comparable<FileMetadata> {
     }
   }
 
+  /**
+   * Use this constructor to create a FileMetadata from field values that were decoded elsewhere, such as by
+   * {@link CompactSplitFormat}.
+   */
+  public FileMetadata(String fileName, String fullPath, long fileSize, long modificationTime, String group,
+                      String owner, boolean isDir, String relativePath, int permission, String hostURI) {
+    this.fileName = fileName;
+    this.fullPath = fullPath;
+    this.fileSize = fileSize;
+    this.modificationTime = modificationTime;
+    this.group = group;
+    this.owner = owner;
+    this.isDir = isDir;
+    this.relativePath = relativePath;
+    this.permission = permission;
+    this.hostURI = hostURI;
+  }
+
+  /**
+   * Use this constructor in subclasses to copy the fields of another instance, including its chunk, and add their
+   * own fields.
+   *
+   * @param fileMetadata The instance to copy from.
+   */
+  protected FileMetadata(FileMetadata fileMetadata) {
+    this(fileMetadata.getFileName(), fileMetadata.getFullPath(), fileMetadata.getFileSize(),
+         fileMetadata.getModificationTime(), fileMetadata.getGroup(), fileMetadata.getOwner(), fileMetadata.isDir(),
+         fileMetadata.getRelativePath(), fileMetadata.getPermission(), fileMetadata.getHostURI());
+    if (fileMetadata.isChunk()) {
+      setChunk(fileMetadata.getChunkIndex(), fileMetadata.getChunkCount(), fileMetadata.getChunkSize());
+    }
+  }
+
+  /**
+   * Use this constructor in subclasses that provide every field through the getters, such as the views of
+   * {@link FileMetadataStore}.
+   */
+  protected FileMetadata() {
+    this.fileName = null;
+    this.fullPath = null;
+    this.modificationTime = 0;
+    this.group = null;
+    this.owner = null;
+    this.fileSize = 0;
+    this.isDir = false;
+    this.relativePath = null;
+    this.permission = 0;
+    this.hostURI = null;
+  }
+
   /**
    * Use this constructor to construct a FileMetadata from a StructuredRecord. Override this method if additional
    * credentials are contained in the structured record.
@@ -155,6 +219,11 @@ public class FileMetadata implements Comparable<FileMetadata> {
     this.relativePath = record.get(RELATIVE_PATH);
     this.permission = record.get(PERMISSION);
     this.hostURI = record.get(HOST_URI);
+    // records from upstream stages that predate chunking don't have the chunk fields
+    Integer recordChunkCount = record.get(CHUNK_COUNT);
+    if (recordChunkCount != null && recordChunkCount > 0) {
+      setChunk(record.<Integer>get(CHUNK_INDEX), recordChunkCount, record.<Long>get(CHUNK_SIZE));
+    }
   }
 
   /**
@@ -173,6 +242,11 @@ public class FileMetadata implements Comparable<FileMetadata> {
     this.relativePath = dataInput.readUTF();
     this.permission = dataInput.readInt();
     this.hostURI = dataInput.readUTF();
+    this.chunkCount = dataInput.readInt();
+    if (chunkCount > 0) {
+      this.chunkIndex = dataInput.readInt();
+      this.chunkSize = dataInput.readLong();
+    }
   }
 
   public String getFullPath() {
@@ -215,6 +289,52 @@ public class FileMetadata implements Comparable<FileMetadata> {
     return hostURI;
   }
 
+  /**
+   * Makes this instance stand for a byte range of the file rather than the whole file.
+   *
+   * @param chunkIndex The index of the chunk.
+   * @param chunkCount The number of chunks the file is split into.
+   * @param chunkSize The size of every chunk but the last.
+   */
+  public void setChunk(int chunkIndex, int chunkCount, long chunkSize) {
+    this.chunkIndex = chunkIndex;
+    this.chunkCount = chunkCount;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @return whether or not this instance stands for a byte range of the file rather than the whole file.
+   */
+  public boolean isChunk() {
+    return chunkCount > 0;
+  }
+
+  public int getChunkIndex() {
+    return chunkIndex;
+  }
+
+  public int getChunkCount() {
+    return chunkCount;
+  }
+
+  public long getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return the offset of the first byte to copy.
+   */
+  public long getChunkOffset() {
+    return isChunk() ? chunkIndex * chunkSize : 0;
+  }
+
+  /**
+   * @return the number of bytes to copy, which is the file size unless this is a chunk.
+   */
+  public long getChunkLength() {
+    return isChunk() ? Math.min(chunkSize, getFileSize() - getChunkOffset()) : getFileSize();
+  }
+
   /**
    * Converts to a StructuredRecord
    */
@@ -234,16 +354,22 @@ public class FileMetadata implements Comparable<FileMetadata> {
     outputSchema = Schema.recordOf("metadata", fieldList);
 
     StructuredRecord.Builder outputBuilder = StructuredRecord.builder(outputSchema)
-      .set(FILE_NAME, fileName)
-      .set(FULL_PATH, fullPath)
-      .set(FILE_SIZE, fileSize)
-      .set(MODIFICATION_TIME, modificationTime)
-      .set(GROUP, group)
-      .set(OWNER, owner)
-      .set(IS_DIR, isDir)
-      .set(RELATIVE_PATH, relativePath)
-      .set(PERMISSION, permission)
-      .set(HOST_URI, hostURI);
+      .set(FILE_NAME, getFileName())
+      .set(FULL_PATH, getFullPath())
+      .set(FILE_SIZE, getFileSize())
+      .set(MODIFICATION_TIME, getModificationTime())
+      .set(GROUP, getGroup())
+      .set(OWNER, getOwner())
+      .set(IS_DIR, isDir())
+      .set(RELATIVE_PATH, getRelativePath())
+      .set(PERMISSION, getPermission())
+      .set(HOST_URI, getHostURI());
+    if (isChunk()) {
+      outputBuilder
+        .set(CHUNK_INDEX, getChunkIndex())
+        .set(CHUNK_COUNT, getChunkCount())
+        .set(CHUNK_SIZE, getChunkSize());
+    }
     addCredentialsToRecordBuilder(outputBuilder);
 
     return outputBuilder.build();
@@ -259,7 +385,7 @@ public class FileMetadata implements Comparable<FileMetadata> {
    */
   @Override
   public int compareTo(FileMetadata o) {
-    return Long.compare(fileSize, o.getFileSize());
+    return Long.compare(getFileSize(), o.getFileSize());
   }
 
   public void write(DataOutput dataOutput) throws IOException {
@@ -273,6 +399,23 @@ public class FileMetadata implements Comparable<FileMetadata> {
     dataOutput.writeUTF(getRelativePath());
     dataOutput.writeInt(getPermission());
     dataOutput.writeUTF(getHostURI());
+    dataOutput.writeInt(getChunkCount());
+    if (isChunk()) {
+      dataOutput.writeInt(getChunkIndex());
+      dataOutput.writeLong(getChunkSize());
+    }
+    writeExtraFields(dataOutput);
+  }
+
+  /**
+   * Override this in extended class to serialize additional fields after the common ones. The fields must be read
+   * back by the DataInput constructor of the extended class.
+   *
+   * @param dataOutput The output stream to serialize to.
+   * @throws IOException
+   */
+  protected void writeExtraFields(DataOutput dataOutput) throws IOException {
+    // no op
   }
 
   /**
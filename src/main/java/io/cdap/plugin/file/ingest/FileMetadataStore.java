@@ -0,0 +1,355 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.Path;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Compact, column oriented store for the metadata of many files, used while planning splits.
+ *
+ * Instead of six strings per file, owner, group, host URI and parent directory are kept in dictionaries, the last
+ * path segment is kept as UTF-8 bytes, and the file name and relative path are kept as offsets into the full path.
+ * Numeric fields are kept in primitive arrays. Fields that subclasses of {@link FileMetadata} add are kept in their
+ * serialized form, deduplicated, since they typically hold the same credentials for every file.
+ *
+ * {@link #get(int)} returns a lightweight {@link FileMetadata} view that decodes fields on access. Views serialize
+ * exactly like the instance they were created from, so they can be added to splits directly. Converting a view to
+ * a StructuredRecord only includes the common fields.
+ */
+public class FileMetadataStore {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final Dictionary<String> parentDirectories = new Dictionary<>();
+  private final Dictionary<String> owners = new Dictionary<>();
+  private final Dictionary<String> groups = new Dictionary<>();
+  private final Dictionary<String> hostURIs = new Dictionary<>();
+  private final Dictionary<ByteBuffer> extraFields = new Dictionary<>();
+  private final Dictionary<String> preferredHosts = new Dictionary<>();
+
+  // the last segment of every full path, as UTF-8 bytes
+  private byte[] names = new byte[INITIAL_CAPACITY * 16];
+  private int namesLength;
+  private int[] nameOffsets = new int[INITIAL_CAPACITY + 1];
+
+  private int[] parentDirectoryIds = new int[INITIAL_CAPACITY];
+  private int[] relativePathOffsets = new int[INITIAL_CAPACITY];
+  private int[] ownerIds = new int[INITIAL_CAPACITY];
+  private int[] groupIds = new int[INITIAL_CAPACITY];
+  private int[] hostURIIds = new int[INITIAL_CAPACITY];
+  private int[] extraFieldsIds = new int[INITIAL_CAPACITY];
+  private int[] preferredHostIds = new int[INITIAL_CAPACITY];
+  private long[] fileSizes = new long[INITIAL_CAPACITY];
+  private long[] modificationTimes = new long[INITIAL_CAPACITY];
+  private short[] permissions = new short[INITIAL_CAPACITY];
+  private final BitSet directories = new BitSet();
+
+  // values that can't be derived from the full path, which only happens for metadata that wasn't listed
+  private final Map<Integer, String> irregularFileNames = new HashMap<>();
+  private final Map<Integer, String> irregularRelativePaths = new HashMap<>();
+
+  private int size;
+
+  /**
+   * Adds the metadata of a file to the store.
+   *
+   * @return the index of the file in the store.
+   */
+  public int add(FileMetadata fileMetadata) throws IOException {
+    return add(fileMetadata, null);
+  }
+
+  /**
+   * Adds the metadata of a file to the store.
+   *
+   * @param preferredHost The host that the file is preferably copied on, or null if it has none.
+   * @return the index of the file in the store.
+   */
+  public synchronized int add(FileMetadata fileMetadata, @Nullable String preferredHost) throws IOException {
+    ensureCapacity(size + 1);
+    int index = size;
+
+    String fullPath = fileMetadata.getFullPath();
+    int nameStart = fullPath.lastIndexOf(Path.SEPARATOR) + 1;
+    parentDirectoryIds[index] = parentDirectories.getId(fullPath.substring(0, nameStart));
+    appendName(fullPath.substring(nameStart));
+
+    if (!fullPath.substring(nameStart).equals(fileMetadata.getFileName())) {
+      irregularFileNames.put(index, fileMetadata.getFileName());
+    }
+    String relativePath = fileMetadata.getRelativePath();
+    if (fullPath.endsWith(relativePath)) {
+      relativePathOffsets[index] = fullPath.length() - relativePath.length();
+    } else {
+      irregularRelativePaths.put(index, relativePath);
+    }
+
+    ownerIds[index] = owners.getId(fileMetadata.getOwner());
+    groupIds[index] = groups.getId(fileMetadata.getGroup());
+    hostURIIds[index] = hostURIs.getId(fileMetadata.getHostURI());
+    extraFieldsIds[index] = extraFields.getId(ByteBuffer.wrap(getExtraFields(fileMetadata)));
+    preferredHostIds[index] = preferredHosts.getId(preferredHost);
+    fileSizes[index] = fileMetadata.getFileSize();
+    modificationTimes[index] = fileMetadata.getModificationTime();
+    permissions[index] = (short) fileMetadata.getPermission();
+    directories.set(index, fileMetadata.isDir());
+
+    size++;
+    return index;
+  }
+
+  /**
+   * @return the number of files in the store.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns a view of the file at the given index.
+   */
+  public FileMetadata get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for size " + size());
+    }
+    return new View(index);
+  }
+
+  /**
+   * @return the host that the file at the given index is preferably copied on, or null if it has none.
+   */
+  @Nullable
+  public synchronized String getPreferredHost(int index) {
+    return preferredHosts.get(preferredHostIds[index]);
+  }
+
+  /**
+   * @return the indices of all files, ordered by descending file size. Files of equal size keep the order in which
+   *         they were added.
+   */
+  public synchronized int[] getIndicesBySizeDescending() {
+    return getIndicesDescending(fileSizes, size);
+  }
+
+  /**
+   * @return the indices of the first {@code size} keys, ordered by descending key. Equal keys keep their order.
+   */
+  static int[] getIndicesDescending(long[] keys, int size) {
+    int[] indices = new int[size];
+    for (int i = 0; i < size; i++) {
+      indices[i] = i;
+    }
+    // merge sort on primitives, to avoid boxing every index
+    int[] buffer = new int[size];
+    for (int width = 1; width < size; width *= 2) {
+      for (int start = 0; start < size; start += 2 * width) {
+        int middle = Math.min(start + width, size);
+        int end = Math.min(start + 2 * width, size);
+        int left = start;
+        int right = middle;
+        for (int i = start; i < end; i++) {
+          if (left < middle && (right >= end || keys[indices[left]] >= keys[indices[right]])) {
+            buffer[i] = indices[left++];
+          } else {
+            buffer[i] = indices[right++];
+          }
+        }
+      }
+      int[] swap = indices;
+      indices = buffer;
+      buffer = swap;
+    }
+    return indices;
+  }
+
+  private void appendName(String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (namesLength + bytes.length < 0) {
+      throw new IllegalStateException("Too many files to store the metadata in memory.");
+    }
+    if (namesLength + bytes.length > names.length) {
+      names = Arrays.copyOf(names, Math.max(namesLength + bytes.length, (int) Math.min(Integer.MAX_VALUE - 8,
+                                                                                        2L * names.length)));
+    }
+    System.arraycopy(bytes, 0, names, namesLength, bytes.length);
+    namesLength += bytes.length;
+    nameOffsets[size + 1] = namesLength;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= fileSizes.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, fileSizes.length * 2);
+    nameOffsets = Arrays.copyOf(nameOffsets, newCapacity + 1);
+    parentDirectoryIds = Arrays.copyOf(parentDirectoryIds, newCapacity);
+    relativePathOffsets = Arrays.copyOf(relativePathOffsets, newCapacity);
+    ownerIds = Arrays.copyOf(ownerIds, newCapacity);
+    groupIds = Arrays.copyOf(groupIds, newCapacity);
+    hostURIIds = Arrays.copyOf(hostURIIds, newCapacity);
+    extraFieldsIds = Arrays.copyOf(extraFieldsIds, newCapacity);
+    preferredHostIds = Arrays.copyOf(preferredHostIds, newCapacity);
+    fileSizes = Arrays.copyOf(fileSizes, newCapacity);
+    modificationTimes = Arrays.copyOf(modificationTimes, newCapacity);
+    permissions = Arrays.copyOf(permissions, newCapacity);
+  }
+
+  static byte[] getExtraFields(FileMetadata fileMetadata) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      fileMetadata.writeExtraFields(output);
+    }
+    return bytes.toByteArray();
+  }
+
+  private synchronized String getFullPath(int index) {
+    return parentDirectories.get(parentDirectoryIds[index]) +
+      new String(names, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index], StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Assigns consecutive ids to distinct values.
+   */
+  private static final class Dictionary<T> {
+    private final Map<T, Integer> ids = new HashMap<>();
+    private final List<T> values = new ArrayList<>();
+
+    int getId(T value) {
+      Integer id = ids.get(value);
+      if (id == null) {
+        id = values.size();
+        ids.put(value, id);
+        values.add(value);
+      }
+      return id;
+    }
+
+    T get(int id) {
+      return values.get(id);
+    }
+  }
+
+  /**
+   * A FileMetadata that reads its fields from the store.
+   */
+  private final class View extends FileMetadata {
+    private final int index;
+
+    View(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public String getFullPath() {
+      return FileMetadataStore.this.getFullPath(index);
+    }
+
+    @Override
+    public String getFileName() {
+      synchronized (FileMetadataStore.this) {
+        String fileName = irregularFileNames.get(index);
+        if (fileName != null) {
+          return fileName;
+        }
+        return new String(names, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index],
+                          StandardCharsets.UTF_8);
+      }
+    }
+
+    @Override
+    public long getFileSize() {
+      synchronized (FileMetadataStore.this) {
+        return fileSizes[index];
+      }
+    }
+
+    @Override
+    public long getModificationTime() {
+      synchronized (FileMetadataStore.this) {
+        return modificationTimes[index];
+      }
+    }
+
+    @Override
+    public String getGroup() {
+      synchronized (FileMetadataStore.this) {
+        return groups.get(groupIds[index]);
+      }
+    }
+
+    @Override
+    public String getOwner() {
+      synchronized (FileMetadataStore.this) {
+        return owners.get(ownerIds[index]);
+      }
+    }
+
+    @Override
+    public boolean isDir() {
+      synchronized (FileMetadataStore.this) {
+        return directories.get(index);
+      }
+    }
+
+    @Override
+    public String getRelativePath() {
+      synchronized (FileMetadataStore.this) {
+        String relativePath = irregularRelativePaths.get(index);
+        if (relativePath != null) {
+          return relativePath;
+        }
+        return getFullPath().substring(relativePathOffsets[index]);
+      }
+    }
+
+    @Override
+    public int getPermission() {
+      synchronized (FileMetadataStore.this) {
+        return permissions[index];
+      }
+    }
+
+    @Override
+    public String getHostURI() {
+      synchronized (FileMetadataStore.this) {
+        return hostURIs.get(hostURIIds[index]);
+      }
+    }
+
+    @Override
+    protected void writeExtraFields(DataOutput dataOutput) throws IOException {
+      ByteBuffer extra;
+      synchronized (FileMetadataStore.this) {
+        extra = extraFields.get(extraFieldsIds[index]);
+      }
+      dataOutput.write(extra.array(), extra.arrayOffset(), extra.remaining());
+    }
+  }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.WritableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists the listing of the source paths as a snapshot, so that later runs over a mostly static tree can skip
+ * listing it again.
+ *
+ * A snapshot maps every listed directory to its children, in a compact binary form. While listing, records are
+ * appended to segment files that are closed regularly, so that a listing interrupted by a driver failure resumes
+ * from the directories that were already recorded. Once the listing completes, a marker makes the snapshot
+ * reusable until it is older than the time to live. Directories that are not in the snapshot are always listed
+ * from the filesystem.
+ */
+public class ListingCache implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ListingCache.class);
+
+  private static final String COMPLETE_MARKER = "_COMPLETE";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final int MAGIC = 0x4c435331;
+  private static final long DEFAULT_CHECKPOINT_DIRECTORIES = 10000;
+  private static final long DEFAULT_CHECKPOINT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final int FLAG_DIRECTORY = 1;
+  private static final int FLAG_HAS_PERMISSION = 2;
+
+  private final FileSystem fileSystem;
+  private final Path directory;
+  private final URI sourceURI;
+  private final boolean complete;
+  private final long snapshotTime;
+  private final Map<String, byte[]> snapshot;
+  private final long checkpointDirectories;
+  private final long checkpointMillis;
+  private final AtomicLong replayedDirectories = new AtomicLong();
+  private final AtomicLong listedDirectories = new AtomicLong();
+
+  private DataOutputStream segment;
+  private long segmentDirectories;
+  private long segmentOpenTime;
+
+  private ListingCache(FileSystem fileSystem, Path directory, URI sourceURI, boolean complete, long snapshotTime,
+                       Map<String, byte[]> snapshot, long checkpointDirectories, long checkpointMillis) {
+    this.fileSystem = fileSystem;
+    this.directory = directory;
+    this.sourceURI = sourceURI;
+    this.complete = complete;
+    this.snapshotTime = snapshotTime;
+    this.snapshot = snapshot;
+    this.checkpointDirectories = checkpointDirectories;
+    this.checkpointMillis = checkpointMillis;
+  }
+
+  /**
+   * Opens the snapshot in the given directory. A complete snapshot that is older than the time to live is discarded.
+   * An incomplete snapshot left behind by an interrupted listing is resumed, unless it is older than the time to live.
+   *
+   * @param fileSystem The filesystem that holds the snapshot.
+   * @param directory The directory of the snapshot, which must be unique to the listed filesystem and source paths.
+   * @param sourceURI The URI of the listed filesystem.
+   * @param ttlMillis How long a snapshot can be reused, in milliseconds.
+   */
+  public static ListingCache open(FileSystem fileSystem, Path directory, URI sourceURI,
+                                  long ttlMillis) throws IOException {
+    return open(fileSystem, directory, sourceURI, ttlMillis, System.currentTimeMillis(),
+                DEFAULT_CHECKPOINT_DIRECTORIES, DEFAULT_CHECKPOINT_MILLIS);
+  }
+
+  static ListingCache open(FileSystem fileSystem, Path directory, URI sourceURI, long ttlMillis, long now,
+                           long checkpointDirectories, long checkpointMillis) throws IOException {
+    Path completeMarker = new Path(directory, COMPLETE_MARKER);
+    boolean complete = fileSystem.exists(completeMarker);
+    long snapshotTime = now;
+    if (complete) {
+      try (FSDataInputStream input = fileSystem.open(completeMarker)) {
+        snapshotTime = input.readLong();
+      }
+    }
+
+    Map<String, byte[]> snapshot = new ConcurrentHashMap<>();
+    if (fileSystem.exists(directory)) {
+      for (FileStatus segmentStatus : fileSystem.listStatus(directory)) {
+        if (segmentStatus.getPath().getName().startsWith(SEGMENT_PREFIX)) {
+          long segmentTime = readSegment(fileSystem, segmentStatus.getPath(), snapshot);
+          if (!complete) {
+            snapshotTime = Math.min(snapshotTime, segmentTime);
+          }
+        }
+      }
+    }
+
+    long age = now - snapshotTime;
+    if (age > ttlMillis) {
+      LOG.info("Listing cache miss: the {} snapshot in {} is {} seconds old, older than the time to live of {} " +
+                 "seconds. The source paths will be listed again.", complete ? "complete" : "partial", directory,
+               TimeUnit.MILLISECONDS.toSeconds(age), TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+      fileSystem.delete(directory, true);
+      return new ListingCache(fileSystem, directory, sourceURI, false, now, new ConcurrentHashMap<>(),
+                              checkpointDirectories, checkpointMillis);
+    }
+
+    if (complete) {
+      LOG.info("Listing cache hit: reusing the snapshot of {} directories in {}, which is {} seconds old.",
+               snapshot.size(), directory, TimeUnit.MILLISECONDS.toSeconds(age));
+    } else if (!snapshot.isEmpty()) {
+      LOG.info("Listing cache miss: resuming the interrupted listing in {} from {} recorded directories.",
+               directory, snapshot.size());
+    } else {
+      LOG.info("Listing cache miss: no snapshot found in {}.", directory);
+    }
+    return new ListingCache(fileSystem, directory, sourceURI, complete, snapshotTime, snapshot,
+                            checkpointDirectories, checkpointMillis);
+  }
+
+  /**
+   * @return whether or not the snapshot was complete and fresh when it was opened.
+   */
+  public boolean isHit() {
+    return complete;
+  }
+
+  public long getReplayedDirectories() {
+    return replayedDirectories.get();
+  }
+
+  public long getListedDirectories() {
+    return listedDirectories.get();
+  }
+
+  /**
+   * Returns a lister that serves directories from the snapshot, and lists and records all other directories.
+   */
+  public DirectoryWalker.Lister wrap(DirectoryWalker.Lister lister) {
+    return path -> {
+      byte[] record = snapshot.get(getKey(path));
+      if (record != null) {
+        replayedDirectories.incrementAndGet();
+        return replay(getKey(path), record);
+      }
+
+      List<FileStatus> children = new ArrayList<>();
+      RemoteIterator<? extends FileStatus> iter = lister.list(path);
+      while (iter.hasNext()) {
+        children.add(iter.next());
+      }
+      record(getKey(path), children);
+      return toRemoteIterator(children.iterator());
+    };
+  }
+
+  /**
+   * Returns a tree lister that serves directories from the snapshot, and lists and records the subtrees of all
+   * other directories.
+   */
+  public DirectoryWalker.TreeLister wrap(DirectoryWalker.TreeLister treeLister) {
+    return path -> new TreeIterator(treeLister, path);
+  }
+
+  /**
+   * Marks the snapshot as complete after all source paths have been listed. Does nothing if the snapshot already was.
+   */
+  public void commit() throws IOException {
+    if (complete) {
+      LOG.info("Listing cache: {} directories served from the snapshot, {} listed from the filesystem.",
+               replayedDirectories.get(), listedDirectories.get());
+      return;
+    }
+    closeSegment();
+    try (FSDataOutputStream output = fileSystem.create(new Path(directory, COMPLETE_MARKER), true)) {
+      output.writeLong(snapshotTime);
+    }
+    LOG.info("Listing cache: saved a snapshot of {} directories to {}. {} directories were resumed from a " +
+               "checkpoint.", replayedDirectories.get() + listedDirectories.get(), directory,
+             replayedDirectories.get());
+  }
+
+  /**
+   * Closes the current segment, keeping the directories recorded so far for a later resume.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    closeSegment();
+  }
+
+  private synchronized void record(String key, List<? extends FileStatus> children) throws IOException {
+    listedDirectories.incrementAndGet();
+    if (complete || snapshot.containsKey(key)) {
+      // a complete snapshot is never changed, directories it doesn't contain are just listed
+      return;
+    }
+    byte[] record = encode(key, children);
+    snapshot.put(key, record);
+
+    if (segment == null) {
+      segment = new DataOutputStream(fileSystem.create(new Path(directory, SEGMENT_PREFIX + UUID.randomUUID()),
+                                                       false));
+      segment.writeInt(MAGIC);
+      segment.writeLong(snapshotTime);
+      segmentDirectories = 0;
+      segmentOpenTime = System.currentTimeMillis();
+    }
+    segment.writeUTF(key);
+    WritableUtils.writeVInt(segment, record.length);
+    segment.write(record);
+
+    // close segments regularly, since data only becomes durable on every filesystem once the file is closed
+    segmentDirectories++;
+    if (segmentDirectories >= checkpointDirectories ||
+      System.currentTimeMillis() - segmentOpenTime >= checkpointMillis) {
+      closeSegment();
+    }
+  }
+
+  private synchronized void closeSegment() throws IOException {
+    if (segment != null) {
+      DataOutputStream output = segment;
+      segment = null;
+      output.close();
+    }
+  }
+
+  /**
+   * Reads the records of a segment into the snapshot. A record that was only partially written is ignored.
+   *
+   * @return the time the listing that wrote the segment started.
+   */
+  private static long readSegment(FileSystem fileSystem, Path path, Map<String, byte[]> snapshot) throws IOException {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(fileSystem.open(path)))) {
+      if (input.readInt() != MAGIC) {
+        throw new IOException("Listing cache segment " + path + " is corrupted.");
+      }
+      long segmentTime = input.readLong();
+      while (true) {
+        String key;
+        byte[] record;
+        try {
+          key = input.readUTF();
+          record = new byte[WritableUtils.readVInt(input)];
+          input.readFully(record);
+        } catch (EOFException e) {
+          return segmentTime;
+        }
+        snapshot.put(key, record);
+      }
+    } catch (EOFException e) {
+      // the segment header was not written completely
+      return Long.MAX_VALUE;
+    }
+  }
+
+  static String getKey(Path path) {
+    return path.toUri().getPath();
+  }
+
+  private RemoteIterator<FileStatus> replay(String key, byte[] record) throws IOException {
+    return toRemoteIterator(decode(sourceURI, key, new DataInputStream(new ByteArrayInputStream(record))).iterator());
+  }
+
+  /**
+   * Decodes the children of a directory, as encoded by {@link #encode(String, List)}.
+   *
+   * @param sourceURI The URI of the listed filesystem.
+   * @param key The path of the directory.
+   * @param input The encoded children.
+   */
+  static List<FileStatus> decode(URI sourceURI, String key, DataInput input) throws IOException {
+    int count = WritableUtils.readVInt(input);
+    List<String> strings = new ArrayList<>();
+    List<FileStatus> children = new ArrayList<>(count);
+    String parent = key.endsWith(Path.SEPARATOR) ? key : key + Path.SEPARATOR;
+    for (int i = 0; i < count; i++) {
+      String name = input.readUTF();
+      int flags = input.readByte();
+      long length = WritableUtils.readVLong(input);
+      long modificationTime = WritableUtils.readVLong(input);
+      long accessTime = WritableUtils.readVLong(input);
+      FsPermission permission = (flags & FLAG_HAS_PERMISSION) != 0 ? new FsPermission(input.readShort()) : null;
+      String owner = readString(input, strings);
+      String group = readString(input, strings);
+      long blockSize = WritableUtils.readVLong(input);
+      int replication = WritableUtils.readVInt(input);
+      // a file source path is recorded with itself as its only child
+      Path path = new Path(sourceURI.getScheme(), sourceURI.getAuthority(), name.isEmpty() ? key : parent + name);
+      children.add(new FileStatus(length, (flags & FLAG_DIRECTORY) != 0, replication, blockSize, modificationTime,
+                                  accessTime, permission, owner, group, path));
+    }
+    return children;
+  }
+
+  /**
+   * Encodes the children of a directory.
+   *
+   * @param key The path of the directory.
+   * @param children The children of the directory.
+   */
+  static byte[] encode(String key, List<? extends FileStatus> children) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    Map<String, Integer> strings = new HashMap<>();
+    WritableUtils.writeVInt(output, children.size());
+    for (FileStatus child : children) {
+      // an empty name stands for a file source path that was listed as its own child
+      output.writeUTF(getKey(child.getPath()).equals(key) ? "" : child.getPath().getName());
+      output.writeByte((child.isDirectory() ? FLAG_DIRECTORY : 0) |
+                         (child.getPermission() != null ? FLAG_HAS_PERMISSION : 0));
+      WritableUtils.writeVLong(output, child.getLen());
+      WritableUtils.writeVLong(output, child.getModificationTime());
+      WritableUtils.writeVLong(output, child.getAccessTime());
+      if (child.getPermission() != null) {
+        output.writeShort(child.getPermission().toShort());
+      }
+      writeString(output, child.getOwner(), strings);
+      writeString(output, child.getGroup(), strings);
+      WritableUtils.writeVLong(output, child.getBlockSize());
+      WritableUtils.writeVInt(output, child.getReplication());
+    }
+    output.close();
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutput output, String value, Map<String, Integer> strings) throws IOException {
+    Integer id = strings.get(value);
+    if (id != null) {
+      WritableUtils.writeVInt(output, id);
+      return;
+    }
+    WritableUtils.writeVInt(output, strings.size());
+    strings.put(value, strings.size());
+    output.writeUTF(value);
+  }
+
+  private static String readString(DataInput input, List<String> strings) throws IOException {
+    int id = WritableUtils.readVInt(input);
+    if (id < strings.size()) {
+      return strings.get(id);
+    }
+    String value = input.readUTF();
+    strings.add(value);
+    return value;
+  }
+
+  /**
+   * Lists a tree from the snapshot where possible. Directories that are missing from the snapshot have their whole
+   * subtree listed by the tree lister and recorded.
+   */
+  private final class TreeIterator implements RemoteIterator<FileStatus> {
+    private final DirectoryWalker.TreeLister treeLister;
+    private final Deque<RemoteIterator<FileStatus>> replaying;
+    private FileStatus next;
+
+    TreeIterator(DirectoryWalker.TreeLister treeLister, Path root) throws IOException {
+      this.treeLister = treeLister;
+      this.replaying = new ArrayDeque<>();
+      push(root);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      while (next == null && !replaying.isEmpty()) {
+        RemoteIterator<FileStatus> iterator = replaying.peek();
+        if (!iterator.hasNext()) {
+          replaying.pop();
+          continue;
+        }
+        next = iterator.next();
+        // entries of a live subtree listing already include everything below them
+        if (!(iterator instanceof RecordingIterator) && next.isDirectory()) {
+          push(next.getPath());
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public FileStatus next() throws IOException {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      FileStatus fileStatus = next;
+      next = null;
+      return fileStatus;
+    }
+
+    private void push(Path path) throws IOException {
+      byte[] record = snapshot.get(getKey(path));
+      if (record != null) {
+        replayedDirectories.incrementAndGet();
+        replaying.push(replay(getKey(path), record));
+      } else {
+        replaying.push(new RecordingIterator(treeLister.listTree(path), getKey(path)));
+      }
+    }
+  }
+
+  /**
+   * Records the directories of a live subtree listing. Since the contents of a directory are contiguous, a
+   * directory is complete, and recorded, as soon as an entry outside of it is returned.
+   */
+  private final class RecordingIterator implements RemoteIterator<FileStatus> {
+    private final RemoteIterator<? extends FileStatus> delegate;
+    private final String rootKey;
+    private final Deque<String> openKeys;
+    private final Deque<List<FileStatus>> openChildren;
+
+    RecordingIterator(RemoteIterator<? extends FileStatus> delegate, String rootKey) {
+      this.delegate = delegate;
+      this.rootKey = rootKey;
+      this.openKeys = new ArrayDeque<>(Collections.singleton(rootKey));
+      this.openChildren = new ArrayDeque<>();
+      this.openChildren.push(new ArrayList<>());
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      if (delegate.hasNext()) {
+        return true;
+      }
+      while (!openKeys.isEmpty()) {
+        record(openKeys.pop(), openChildren.pop());
+      }
+      return false;
+    }
+
+    @Override
+    public FileStatus next() throws IOException {
+      FileStatus fileStatus = delegate.next();
+      String key = getKey(fileStatus.getPath());
+      if (key.equals(rootKey)) {
+        // a file source path is listed as itself
+        openChildren.getLast().add(fileStatus);
+        return fileStatus;
+      }
+
+      String parentKey = getKey(fileStatus.getPath().getParent());
+      while (openKeys.size() > 1 && !openKeys.peek().equals(parentKey)) {
+        record(openKeys.pop(), openChildren.pop());
+      }
+      openChildren.peek().add(fileStatus);
+      if (fileStatus.isDirectory()) {
+        openKeys.push(key);
+        openChildren.push(new ArrayList<>());
+      }
+      return fileStatus;
+    }
+  }
+
+  static RemoteIterator<FileStatus> toRemoteIterator(Iterator<FileStatus> iterator) {
+    return new RemoteIterator<FileStatus>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public FileStatus next() {
+        return iterator.next();
+      }
+    };
+  }
+}
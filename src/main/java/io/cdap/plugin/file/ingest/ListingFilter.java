@@ -0,0 +1,212 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
+
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Decides which of the listed files are emitted, so that unwanted files are dropped while listing rather than
+ * downstream.
+ *
+ * Patterns are matched against the relative path of an entry, the same path that ends up in the relativePath field.
+ * Include patterns, size bounds and time bounds only select files: when include patterns are set, directories are
+ * not emitted, and are created as the parents of the copied files instead. Directories that match an exclude pattern
+ * are pruned, so their contents are never listed.
+ */
+public class ListingFilter {
+  // suffixes of files that are still being written by common tools, such as hadoop fs -put and flume
+  private static final String[] IN_PROGRESS_SUFFIXES = { "._COPYING_", ".tmp", ".inprogress" };
+
+  private final Pattern includeGlob;
+  private final Pattern excludeGlob;
+  private final Pattern includeRegex;
+  private final Pattern excludeRegex;
+  private final long minFileSize;
+  private final long maxFileSize;
+  private final long modifiedAfter;
+  private final long modifiedBefore;
+  private final boolean ignoreInProgressFiles;
+  // files modified after this time are considered in progress
+  private final long inProgressTime;
+
+  private ListingFilter(Builder builder) {
+    this.includeGlob = builder.includeGlob == null ? null : GlobPattern.compile(builder.includeGlob);
+    this.excludeGlob = builder.excludeGlob == null ? null : GlobPattern.compile(builder.excludeGlob);
+    this.includeRegex = builder.includeRegex == null ? null : Pattern.compile(builder.includeRegex);
+    this.excludeRegex = builder.excludeRegex == null ? null : Pattern.compile(builder.excludeRegex);
+    this.minFileSize = builder.minFileSize;
+    this.maxFileSize = builder.maxFileSize;
+    this.modifiedAfter = builder.modifiedAfter;
+    this.modifiedBefore = builder.modifiedBefore;
+    this.ignoreInProgressFiles = builder.ignoreInProgressFiles;
+    this.inProgressTime = builder.minFileAge > 0 ? builder.now - builder.minFileAge : Long.MAX_VALUE;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns whether or not an entry found under the given source path should be emitted.
+   */
+  public boolean accept(String sourcePath, FileStatus fileStatus) {
+    String relativePath = getRelativePath(sourcePath, fileStatus);
+    if (matches(excludeGlob, relativePath) || matches(excludeRegex, relativePath)) {
+      return false;
+    }
+    if (fileStatus.isDirectory()) {
+      return includeGlob == null && includeRegex == null;
+    }
+    if ((includeGlob != null && !matches(includeGlob, relativePath)) ||
+      (includeRegex != null && !matches(includeRegex, relativePath))) {
+      return false;
+    }
+
+    long modificationTime = fileStatus.getModificationTime();
+    if (fileStatus.getLen() < minFileSize || fileStatus.getLen() > maxFileSize ||
+      modificationTime < modifiedAfter || modificationTime >= modifiedBefore || modificationTime > inProgressTime) {
+      return false;
+    }
+    return !ignoreInProgressFiles || !isInProgress(fileStatus.getPath().getName());
+  }
+
+  /**
+   * Returns whether or not the children of a directory found under the given source path should be listed.
+   */
+  public boolean descend(String sourcePath, FileStatus directory) {
+    String relativePath = getRelativePath(sourcePath, directory);
+    return !matches(excludeGlob, relativePath) && !matches(excludeRegex, relativePath);
+  }
+
+  private static boolean isInProgress(String fileName) {
+    for (String suffix : IN_PROGRESS_SUFFIXES) {
+      if (fileName.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(@Nullable Pattern pattern, String relativePath) {
+    return pattern != null && pattern.matcher(relativePath).matches();
+  }
+
+  /**
+   * Returns the relative path of the entry, computed like {@link FileMetadata#getRelativePath()}.
+   */
+  private static String getRelativePath(String sourcePath, FileStatus fileStatus) {
+    String fullPath = fileStatus.getPath().toUri().getPath();
+    return fullPath.substring(Math.min(fullPath.length(), sourcePath.lastIndexOf(Path.SEPARATOR) + 1));
+  }
+
+  /**
+   * Builder for {@link ListingFilter}. Every rule is optional.
+   */
+  public static class Builder {
+    private String includeGlob;
+    private String excludeGlob;
+    private String includeRegex;
+    private String excludeRegex;
+    private long minFileSize = 0;
+    private long maxFileSize = Long.MAX_VALUE;
+    private long modifiedAfter = Long.MIN_VALUE;
+    private long modifiedBefore = Long.MAX_VALUE;
+    private boolean ignoreInProgressFiles;
+    private long minFileAge = 0;
+    private long now = System.currentTimeMillis();
+
+    public Builder setIncludeGlob(@Nullable String includeGlob) {
+      this.includeGlob = includeGlob;
+      return this;
+    }
+
+    public Builder setExcludeGlob(@Nullable String excludeGlob) {
+      this.excludeGlob = excludeGlob;
+      return this;
+    }
+
+    public Builder setIncludeRegex(@Nullable String includeRegex) {
+      this.includeRegex = includeRegex;
+      return this;
+    }
+
+    public Builder setExcludeRegex(@Nullable String excludeRegex) {
+      this.excludeRegex = excludeRegex;
+      return this;
+    }
+
+    public Builder setMinFileSize(long minFileSize) {
+      this.minFileSize = minFileSize;
+      return this;
+    }
+
+    public Builder setMaxFileSize(long maxFileSize) {
+      this.maxFileSize = maxFileSize;
+      return this;
+    }
+
+    /**
+     * Only emits files modified at or after the given time, in milliseconds since the epoch.
+     */
+    public Builder setModifiedAfter(long modifiedAfter) {
+      this.modifiedAfter = modifiedAfter;
+      return this;
+    }
+
+    /**
+     * Only emits files modified before the given time, in milliseconds since the epoch.
+     */
+    public Builder setModifiedBefore(long modifiedBefore) {
+      this.modifiedBefore = modifiedBefore;
+      return this;
+    }
+
+    /**
+     * Skips files whose names show that they are still being written, such as the _COPYING_ files of hadoop fs -put.
+     */
+    public Builder setIgnoreInProgressFiles(boolean ignoreInProgressFiles) {
+      this.ignoreInProgressFiles = ignoreInProgressFiles;
+      return this;
+    }
+
+    /**
+     * Skips files modified less than the given number of milliseconds before the listing, as they may still be
+     * written to.
+     */
+    public Builder setMinFileAge(long minFileAge) {
+      this.minFileAge = minFileAge;
+      return this;
+    }
+
+    /**
+     * Sets the time of the listing, which defaults to the creation of the builder.
+     */
+    public Builder setNow(long now) {
+      this.now = now;
+      return this;
+    }
+
+    public ListingFilter build() {
+      return new ListingFilter(this);
+    }
+  }
+}
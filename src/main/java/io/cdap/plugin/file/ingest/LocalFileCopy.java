@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies between local files with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the kernel move the bytes without copying them through the heap. The raw files are accessed directly,
+ * so no checksum sidecar file is written for the destination.
+ */
+final class LocalFileCopy {
+
+  private LocalFileCopy() {
+  }
+
+  /**
+   * Copies a byte range of the source file to the destination file, replacing it if it exists.
+   *
+   * @param length the number of bytes to copy, or -1 to copy up to the end of the source file
+   * @return the number of bytes copied
+   */
+  static long copy(LocalFileSystem sourceFileSystem, Path srcPath, long position, long length,
+                   LocalFileSystem destFileSystem, Path destPath) throws IOException {
+    destFileSystem.mkdirs(destPath.getParent());
+    long copied;
+    try (FileChannel output = FileChannel.open(destFileSystem.pathToFile(destPath).toPath(), StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      copied = transfer(sourceFileSystem, srcPath, position, length, output);
+    }
+    // the checksum of a file that was overwritten would fail later reads through the checksummed filesystem
+    Path checksumPath = destFileSystem.getChecksumFile(destPath);
+    if (destFileSystem.exists(checksumPath)) {
+      destFileSystem.delete(checksumPath, false);
+    }
+    return copied;
+  }
+
+  /**
+   * Copies a byte range of the source file to the current position of the output, which is advanced past the copied
+   * bytes.
+   *
+   * @param length the number of bytes to copy, or -1 to copy up to the end of the source file
+   * @return the number of bytes copied
+   */
+  static long transfer(LocalFileSystem sourceFileSystem, Path srcPath, long position, long length,
+                       FileChannel output) throws IOException {
+    long copied = 0;
+    try (FileChannel input = FileChannel.open(sourceFileSystem.pathToFile(srcPath).toPath(), StandardOpenOption.READ)) {
+      long end = length < 0 ? input.size() : position + length;
+      while (position + copied < end) {
+        long transferred = input.transferTo(position + copied, end - position - copied, output);
+        if (transferred <= 0 && position + copied >= input.size()) {
+          throw new EOFException(String.format("%s ended at %d, before %d bytes were copied.",
+                                               srcPath, position + copied, end - position));
+        }
+        copied += transferred;
+      }
+    }
+    return copied;
+  }
+}
@@ -16,7 +16,12 @@
 
 package io.cdap.plugin.file.ingest;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
@@ -30,13 +35,24 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 
 /**
  * Abstract class that implements the inputFormat for the FileCopySource plugin to
@@ -49,7 +65,34 @@ public class MetadataInputFormat extends InputFormat {
   protected static final String MAX_SPLIT_SIZE = "max.split.size";
   protected static final String FS_URI = "filesystem.uri";
   protected static final String RECURSIVE_COPY = "recursive.copy";
+  protected static final String LISTING_PARALLELISM = "listing.parallelism";
+  protected static final String MANIFEST_DIRECTORY = "manifest.directory";
+  protected static final String MANIFEST_SORT_MEMORY = "manifest.sort.memory.bytes";
+  protected static final String STATE_DIRECTORY = "state.directory";
+  protected static final String LISTING_CACHE_TTL = "listing.cache.ttl.ms";
+  protected static final String INCREMENTAL_RUN_ID = "incremental.run.id";
+  protected static final String WATERMARK_OVERLAP = "incremental.watermark.overlap.ms";
+  protected static final String SKIP_UNCHANGED_DIRECTORIES = "incremental.skip.unchanged.directories";
+  protected static final String INCLUDE_GLOB = "filter.include.glob";
+  protected static final String EXCLUDE_GLOB = "filter.exclude.glob";
+  protected static final String INCLUDE_REGEX = "filter.include.regex";
+  protected static final String EXCLUDE_REGEX = "filter.exclude.regex";
+  protected static final String MIN_FILE_SIZE = "filter.min.file.size";
+  protected static final String MAX_FILE_SIZE = "filter.max.file.size";
+  protected static final String MODIFIED_AFTER = "filter.modified.after";
+  protected static final String MODIFIED_BEFORE = "filter.modified.before";
+  protected static final String IGNORE_IN_PROGRESS_FILES = "filter.ignore.in.progress";
+  protected static final String MIN_FILE_AGE = "filter.min.file.age.ms";
+  protected static final String CHUNK_SIZE = "chunk.size.bytes";
+  protected static final String COPY_HISTORY_DIRECTORY = "copy.history.directory";
+  protected static final String LOCALITY = "locality.enabled";
   protected static final int DEFAULT_MAX_SPLIT_SIZE = 128;
+  protected static final int DEFAULT_LISTING_PARALLELISM = 1;
+  protected static final long DEFAULT_MANIFEST_SORT_MEMORY = 64L * 1024 * 1024;
+  private static final String MANIFEST_FILE_NAME = "manifest";
+  private static final String LISTING_CACHE_DIRECTORY = "listing-cache";
+  private static final String WATERMARK_DIRECTORY = "watermarks";
+  private static final String DIRECTORY_SNAPSHOT_DIRECTORY = "directory-snapshot";
   private static final Logger LOG = LoggerFactory.getLogger(MetadataInputFormat.class);
 
   public static void setSourcePaths(Configuration conf, String value) {
@@ -68,6 +111,131 @@ public class MetadataInputFormat extends InputFormat {
     conf.set(RECURSIVE_COPY, value);
   }
 
+  public static void setListingParallelism(Configuration conf, int value) {
+    conf.setInt(LISTING_PARALLELISM, value);
+  }
+
+  /**
+   * Plans splits with a listing manifest written to the given directory, instead of holding the metadata of all files
+   * in memory. The directory must be reachable from the tasks and should be unique to the run.
+   */
+  public static void setManifestDirectory(Configuration conf, String value) {
+    conf.set(MANIFEST_DIRECTORY, value);
+  }
+
+  public static void setManifestSortMemory(Configuration conf, long value) {
+    conf.setLong(MANIFEST_SORT_MEMORY, value);
+  }
+
+  /**
+   * Sets the directory that holds state kept across runs, such as listing snapshots.
+   */
+  public static void setStateDirectory(Configuration conf, String value) {
+    conf.set(STATE_DIRECTORY, value);
+  }
+
+  /**
+   * Enables the listing cache. Listing snapshots are reused for the given number of milliseconds.
+   */
+  public static void setListingCacheTTL(Configuration conf, long value) {
+    conf.setLong(LISTING_CACHE_TTL, value);
+  }
+
+  /**
+   * Enables incremental ingest. Only files modified after the watermark of the last successful run, minus the
+   * overlap in milliseconds, are emitted. The watermarks of this run are kept pending under the given run id until
+   * they are committed with {@link #finishIncrementalRun(Configuration, String, String, boolean)}.
+   */
+  public static void setIncremental(Configuration conf, String runId, long overlapMillis) {
+    conf.set(INCREMENTAL_RUN_ID, runId);
+    conf.setLong(WATERMARK_OVERLAP, overlapMillis);
+  }
+
+  /**
+   * Carries the children of directories whose modification time didn't change forward from the previous run, instead
+   * of listing them again. Requires a state directory.
+   */
+  public static void setSkipUnchangedDirectories(Configuration conf, boolean value) {
+    conf.setBoolean(SKIP_UNCHANGED_DIRECTORIES, value);
+  }
+
+  /**
+   * Commits the pending watermarks of an incremental run if it succeeded, or discards them otherwise.
+   *
+   * @param conf The configuration used to access the state directory.
+   * @param stateDirectory The state directory of the run.
+   * @param runId The run id passed to {@link #setIncremental(Configuration, String, long)}.
+   * @param succeeded Whether or not the run succeeded.
+   */
+  public static void finishIncrementalRun(Configuration conf, String stateDirectory, String runId,
+                                          boolean succeeded) throws IOException {
+    Path directory = new Path(stateDirectory, WATERMARK_DIRECTORY);
+    Watermarks.finish(directory.getFileSystem(conf), directory, runId, succeeded);
+  }
+
+  public static void setIncludeGlob(Configuration conf, String value) {
+    conf.set(INCLUDE_GLOB, value);
+  }
+
+  public static void setExcludeGlob(Configuration conf, String value) {
+    conf.set(EXCLUDE_GLOB, value);
+  }
+
+  public static void setIncludeRegex(Configuration conf, String value) {
+    conf.set(INCLUDE_REGEX, value);
+  }
+
+  public static void setExcludeRegex(Configuration conf, String value) {
+    conf.set(EXCLUDE_REGEX, value);
+  }
+
+  public static void setMinFileSize(Configuration conf, long value) {
+    conf.setLong(MIN_FILE_SIZE, value);
+  }
+
+  public static void setMaxFileSize(Configuration conf, long value) {
+    conf.setLong(MAX_FILE_SIZE, value);
+  }
+
+  public static void setModifiedAfter(Configuration conf, long value) {
+    conf.setLong(MODIFIED_AFTER, value);
+  }
+
+  public static void setModifiedBefore(Configuration conf, long value) {
+    conf.setLong(MODIFIED_BEFORE, value);
+  }
+
+  public static void setIgnoreInProgressFiles(Configuration conf, boolean value) {
+    conf.setBoolean(IGNORE_IN_PROGRESS_FILES, value);
+  }
+
+  public static void setMinFileAge(Configuration conf, long value) {
+    conf.setLong(MIN_FILE_AGE, value);
+  }
+
+  /**
+   * Splits files larger than the given number of bytes into chunks of that size, which are copied by different
+   * tasks and stitched together when the job commits.
+   */
+  public static void setChunkSize(Configuration conf, long value) {
+    conf.setLong(CHUNK_SIZE, value);
+  }
+
+  /**
+   * Balances splits by copy durations predicted from the copy history in the given directory, instead of by bytes.
+   */
+  public static void setCopyHistoryDirectory(Configuration conf, String value) {
+    conf.set(COPY_HISTORY_DIRECTORY, value);
+  }
+
+  /**
+   * Groups files by the host that holds most of their bytes, and reports that host as the location of the split.
+   * Block locations are only fetched while listing if this is enabled.
+   */
+  public static void setLocality(Configuration conf, boolean value) {
+    conf.setBoolean(LOCALITY, value);
+  }
+
   public MetadataInputFormat() {
     // no op
   }
@@ -108,75 +276,417 @@ public class MetadataInputFormat extends InputFormat {
       fileSystem = FileSystem.get(conf);
     }
 
-    // scan the directories specified by the user
-    List<FileMetadata> fileMetaDataList = new ArrayList<>();
-    for (String prefix : sourcePaths) {
-      recursivelyAddFileStatus(fileMetaDataList, prefix, new Path(prefix), recursive, fileSystem, conf);
+    if (conf.get(MANIFEST_DIRECTORY) != null) {
+      return getManifestSplits(Arrays.asList(sourcePaths), recursive, maxSplitSize, fileSystem, conf);
     }
 
-    // sort fileMetadataList in descending order such that total number of bytes can be more evenly distributed
-    Collections.sort(fileMetaDataList);
-    Collections.reverse(fileMetaDataList);
+    // scan the directories specified by the user, keeping the metadata in a compact store
+    long chunkSize = conf.getLong(CHUNK_SIZE, 0);
+    boolean locality = conf.getBoolean(LOCALITY, false);
+    FileMetadataStore fileMetadataStore = new FileMetadataStore();
+    scan(Arrays.asList(sourcePaths), recursive, fileSystem, conf, (prefix, fileStatus) -> {
+      FileMetadata fileMetadata = getFileMetadata(fileStatus, prefix, conf);
+      // the hosts of chunks are looked up when the chunks are assigned
+      boolean wholeFile = locality && getChunkCount(fileMetadata, chunkSize) == 0;
+      fileMetadataStore.add(fileMetadata, wholeFile ? getPreferredHost(fileSystem, fileStatus) : null);
+      return recursive;
+    });
+
+    // sort files in descending order such that total number of bytes can be more evenly distributed
+    CopyHistory.Estimator estimator = getCopyHistoryEstimator(fileSystem, conf);
+    int[] fileIndices;
+    if (estimator == null) {
+      fileIndices = fileMetadataStore.getIndicesBySizeDescending();
+    } else {
+      // or by predicted copy duration, with chunked files sorted by the duration of a chunk
+      long[] costs = new long[fileMetadataStore.size()];
+      for (int i = 0; i < costs.length; i++) {
+        FileMetadata fileMetadata = fileMetadataStore.get(i);
+        long bytes = getChunkCount(fileMetadata, chunkSize) > 0 ? chunkSize : fileMetadata.getFileSize();
+        costs[i] = estimator.predict(bytes);
+      }
+      fileIndices = FileMetadataStore.getIndicesDescending(costs, costs.length);
+    }
+
+    // chunks of large files are assigned like files, and come first since no file is larger than a chunk
+    long numItems = 0;
+    int maxChunkCount = 0;
+    for (int fileIndex : fileIndices) {
+      int chunkCount = getChunkCount(fileMetadataStore.get(fileIndex), chunkSize);
+      numItems += Math.max(chunkCount, 1);
+      maxChunkCount = Math.max(maxChunkCount, chunkCount);
+    }
 
     // compute number of splits and instantiate the splits
-    // We use a priority queue to keep track of the smallest split (fewest bytes assigned to it)
-    int numSplits = (fileMetaDataList.size() - 1) / maxSplitSize + 1;
-    PriorityQueue<MetadataInputSplit> abstractInputSplits = new PriorityQueue<>(numSplits);
+    int numSplits = getNumSplits(numItems, maxSplitSize, maxChunkCount);
+    MetadataInputSplit[] inputSplits = new MetadataInputSplit[numSplits];
     for (int i = 0; i < numSplits; i++) {
-      abstractInputSplits.add(getInputSplit());
+      inputSplits[i] = getInputSplit();
     }
 
     // assign each split approximately the same number of bytes (2-approx)
-    List<InputSplit> inputSplits = new ArrayList<>();
-    for (FileMetadata fileMetadata : fileMetaDataList) {
-      // remove the smallest split from the priority queue and add a new file to it
-      MetadataInputSplit minInputSplit = abstractInputSplits.poll();
-      minInputSplit.addFileMetadata(fileMetadata);
-
-      // if the inputsplit has number files more than maxSplitSize, we stop adding files to it
-      // otherwise we put it back into the priority queue
-      if (minInputSplit.getLength() < maxSplitSize) {
-        abstractInputSplits.add(minInputSplit);
-      } else {
-        inputSplits.add(minInputSplit);
+    SplitAssigner splitAssigner = new SplitAssigner(numSplits, maxSplitSize);
+    for (int fileIndex : fileIndices) {
+      int chunkCount = getChunkCount(fileMetadataStore.get(fileIndex), chunkSize);
+      for (int chunkIndex = 0; chunkIndex < Math.max(chunkCount, 1); chunkIndex++) {
+        FileMetadata fileMetadata = fileMetadataStore.get(fileIndex);
+        String preferredHost = fileMetadataStore.getPreferredHost(fileIndex);
+        if (chunkCount > 0) {
+          fileMetadata.setChunk(chunkIndex, chunkCount, chunkSize);
+          if (locality) {
+            preferredHost = getPreferredHost(fileSystem.getFileBlockLocations(
+              new Path(fileMetadata.getFullPath()), fileMetadata.getChunkOffset(), fileMetadata.getChunkLength()),
+                                             fileMetadata.getChunkOffset(), fileMetadata.getChunkLength());
+          }
+        }
+
+        // add the file to the split with the fewest bytes assigned to it
+        long cost = getCost(estimator, fileMetadata.getChunkLength());
+        inputSplits[splitAssigner.assign(cost, preferredHost)].addFileMetadata(fileMetadata, cost);
       }
     }
 
-    // add the rest of the splits still on the PriorityQueue into the return list
-    inputSplits.addAll(abstractInputSplits);
+    // the scheduler places splits dedicated to a host on that host if it can
+    for (int i = 0; i < numSplits; i++) {
+      inputSplits[i].setLocations(splitAssigner.getLocations(i));
+    }
+    return Arrays.asList(inputSplits);
+  }
+
+  /**
+   * Plans the splits like {@link #getSplits(JobContext)}, but keeps memory usage flat regardless of the number of
+   * files. The listing is streamed into an external sort by descending file size, files are assigned to splits in
+   * that order, and a second external sort groups them by split into a manifest file. Each split only carries its
+   * byte offset in the manifest, and {@link MetadataRecordReader} streams its files from there.
+   */
+  private List<InputSplit> getManifestSplits(List<String> sourcePaths, boolean recursive, int maxSplitSize,
+                                             FileSystem fileSystem, Configuration conf) throws IOException {
+    Path manifestDirectory = new Path(conf.get(MANIFEST_DIRECTORY));
+    FileSystem manifestFileSystem = manifestDirectory.getFileSystem(conf);
+    Path manifestPath = manifestFileSystem.makeQualified(new Path(manifestDirectory, MANIFEST_FILE_NAME));
+    long sortMemory = conf.getLong(MANIFEST_SORT_MEMORY, DEFAULT_MANIFEST_SORT_MEMORY);
+
+    File spillDirectory = Files.createTempDirectory("metadata-manifest").toFile();
+    try (ExternalSorter bySize = new ExternalSorter(spillDirectory, sortMemory);
+         ExternalSorter bySplit = new ExternalSorter(spillDirectory, sortMemory)) {
+      // scan the directories specified by the user, largest files first
+      long chunkSize = conf.getLong(CHUNK_SIZE, 0);
+      boolean locality = conf.getBoolean(LOCALITY, false);
+      CopyHistory.Estimator estimator = getCopyHistoryEstimator(fileSystem, conf);
+      AtomicInteger maxChunkCount = new AtomicInteger();
+      scan(sourcePaths, recursive, fileSystem, conf, (prefix, fileStatus) -> {
+        FileMetadata fileMetadata = getFileMetadata(fileStatus, prefix, conf);
+        int chunkCount = getChunkCount(fileMetadata, chunkSize);
+        if (chunkCount == 0) {
+          String preferredHost = locality ? getPreferredHost(fileSystem, fileStatus) : null;
+          bySize.add(-getCost(estimator, fileMetadata.getFileSize()), serialize(fileMetadata, locality, preferredHost));
+          return recursive;
+        }
+        maxChunkCount.accumulateAndGet(chunkCount, Math::max);
+        BlockLocation[] blocks = locality ? getBlockLocations(fileSystem, fileStatus) : null;
+        for (int chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+          fileMetadata.setChunk(chunkIndex, chunkCount, chunkSize);
+          String preferredHost = getPreferredHost(blocks, fileMetadata.getChunkOffset(), fileMetadata.getChunkLength());
+          bySize.add(-getCost(estimator, fileMetadata.getChunkLength()),
+                     serialize(fileMetadata, locality, preferredHost));
+        }
+        return recursive;
+      });
+
+      // assign each split approximately the same number of bytes (2-approx), see getSplits
+      int numSplits = getNumSplits(bySize.size(), maxSplitSize, maxChunkCount.get());
+      long[] splitBytes = new long[numSplits];
+      SplitAssigner splitAssigner = new SplitAssigner(numSplits, maxSplitSize);
+      RemoteIterator<ExternalSorter.Record> sizeIterator = bySize.sorted();
+      while (sizeIterator.hasNext()) {
+        ExternalSorter.Record record = sizeIterator.next();
+        byte[] serialized = record.getValue();
+        String preferredHost = null;
+        if (locality) {
+          // strip the preferred host in front of the metadata
+          DataInputStream input = new DataInputStream(new ByteArrayInputStream(serialized));
+          preferredHost = Strings.emptyToNull(input.readUTF());
+          serialized = Arrays.copyOfRange(serialized, serialized.length - input.available(), serialized.length);
+        }
+        int split = splitAssigner.assign(-record.getKey(), preferredHost);
+        splitBytes[split] += estimator == null ? -record.getKey() : getChunkLength(serialized);
+        bySplit.add(split, serialized);
+      }
+      bySize.close();
 
-    return inputSplits;
+      // write the files grouped by split, remembering where each split starts
+      long[] offsets = new long[numSplits];
+      long offset = 0;
+      int currentSplit = -1;
+      try (OutputStream output = new BufferedOutputStream(manifestFileSystem.create(manifestPath, true))) {
+        RemoteIterator<ExternalSorter.Record> splitIterator = bySplit.sorted();
+        while (splitIterator.hasNext()) {
+          ExternalSorter.Record record = splitIterator.next();
+          while (currentSplit < record.getKey()) {
+            offsets[++currentSplit] = offset;
+          }
+          output.write(record.getValue());
+          offset += record.getValue().length;
+        }
+      }
+      LOG.info("Wrote metadata of {} files for {} splits to manifest {}.", bySplit.size(), numSplits, manifestPath);
+
+      List<InputSplit> inputSplits = new ArrayList<>(numSplits);
+      for (int i = 0; i < numSplits; i++) {
+        MetadataInputSplit inputSplit = getInputSplit();
+        inputSplit.setManifestRange(manifestPath.toString(), offsets[i], splitAssigner.getCount(i), splitBytes[i]);
+        inputSplit.setLocations(splitAssigner.getLocations(i));
+        inputSplits.add(inputSplit);
+      }
+      return inputSplits;
+    } finally {
+      if (!spillDirectory.delete()) {
+        LOG.warn("Failed to delete temporary directory {}.", spillDirectory);
+      }
+    }
+  }
+
+  /**
+   * Scans the source paths with {@link #scanSourcePaths(List, boolean, FileSystem, Configuration,
+   * DirectoryWalker.Visitor)}, only passing the entries that should be emitted to the consumer. Directories excluded
+   * by the listing filter are not listed at all.
+   */
+  private void scan(List<String> sourcePaths, boolean recursive, FileSystem fileSystem, Configuration conf,
+                    DirectoryWalker.Visitor consumer) throws IOException {
+    ListingFilter filter = getListingFilter(conf);
+    Watermarks watermarks = loadWatermarks(sourcePaths, fileSystem, conf);
+    AtomicLong skipped = new AtomicLong();
+    scanSourcePaths(sourcePaths, recursive, fileSystem, conf, (prefix, fileStatus) -> {
+      // filtered files must not advance the watermark, as they may still be written to
+      if (filter.accept(prefix, fileStatus) &&
+        (watermarks == null || watermarks.accept(prefix, fileStatus))) {
+        return consumer.visit(prefix, fileStatus);
+      }
+      skipped.incrementAndGet();
+      return recursive && filter.descend(prefix, fileStatus);
+    });
+    if (watermarks != null) {
+      watermarks.savePending();
+    }
+    LOG.info("Skipped {} entries that were filtered out or did not change since the last successful run.",
+             skipped.get());
+  }
+
+  @Nullable
+  private static Watermarks loadWatermarks(List<String> sourcePaths, FileSystem fileSystem,
+                                           Configuration conf) throws IOException {
+    String runId = conf.get(INCREMENTAL_RUN_ID);
+    if (runId == null) {
+      return null;
+    }
+    Path watermarkDirectory = new Path(conf.get(STATE_DIRECTORY), WATERMARK_DIRECTORY);
+    return Watermarks.load(watermarkDirectory.getFileSystem(conf), watermarkDirectory, runId, fileSystem.getUri(),
+                           sourcePaths, conf.getLong(WATERMARK_OVERLAP, 0));
+  }
+
+  private static ListingFilter getListingFilter(Configuration conf) {
+    return ListingFilter.builder()
+      .setIncludeGlob(conf.get(INCLUDE_GLOB))
+      .setExcludeGlob(conf.get(EXCLUDE_GLOB))
+      .setIncludeRegex(conf.get(INCLUDE_REGEX))
+      .setExcludeRegex(conf.get(EXCLUDE_REGEX))
+      .setMinFileSize(conf.getLong(MIN_FILE_SIZE, 0))
+      .setMaxFileSize(conf.getLong(MAX_FILE_SIZE, Long.MAX_VALUE))
+      .setModifiedAfter(conf.getLong(MODIFIED_AFTER, Long.MIN_VALUE))
+      .setModifiedBefore(conf.getLong(MODIFIED_BEFORE, Long.MAX_VALUE))
+      .setIgnoreInProgressFiles(conf.getBoolean(IGNORE_IN_PROGRESS_FILES, false))
+      .setMinFileAge(conf.getLong(MIN_FILE_AGE, 0))
+      .build();
+  }
+
+  /**
+   * Returns the number of chunks a file is copied in, or 0 if it is copied as a whole.
+   */
+  private static int getChunkCount(FileMetadata fileMetadata, long chunkSize) {
+    if (chunkSize <= 0 || fileMetadata.isDir() || fileMetadata.getFileSize() <= chunkSize) {
+      return 0;
+    }
+    return (int) ((fileMetadata.getFileSize() - 1) / chunkSize + 1);
+  }
+
+  /**
+   * Returns the number of splits for the given number of files and chunks. There are always enough splits for the
+   * chunks of the largest file to be copied by different tasks.
+   */
+  private static int getNumSplits(long numItems, int maxSplitSize, int maxChunkCount) {
+    return (int) Math.max((numItems - 1) / maxSplitSize + 1, maxChunkCount);
+  }
+
+  /**
+   * @return the planned cost of copying the given number of bytes, which is the number of bytes itself unless there
+   *         is a copy history.
+   */
+  private static long getCost(@Nullable CopyHistory.Estimator estimator, long bytes) {
+    return estimator == null ? bytes : estimator.predict(bytes);
+  }
+
+  @Nullable
+  private static CopyHistory.Estimator getCopyHistoryEstimator(FileSystem fileSystem,
+                                                               Configuration conf) throws IOException {
+    String directory = conf.get(COPY_HISTORY_DIRECTORY);
+    if (directory == null) {
+      return null;
+    }
+    Path historyDirectory = new Path(directory);
+    CopyHistory history = CopyHistory.load(historyDirectory.getFileSystem(conf), historyDirectory);
+    // the sink is not known while planning, so copies to all destinations are combined
+    CopyHistory.Estimator estimator = history.getEstimator(fileSystem.getUri().getScheme(), null);
+    if (estimator == null) {
+      LOG.info("No copy history in {} yet, balancing splits by bytes.", historyDirectory);
+    } else {
+      LOG.info("Balancing splits by copy durations predicted from the copy history in {}.", historyDirectory);
+    }
+    return estimator;
+  }
+
+  private static long getChunkLength(byte[] serialized) throws IOException {
+    return new FileMetadata(new DataInputStream(new ByteArrayInputStream(serialized))).getChunkLength();
+  }
+
+  /**
+   * Serializes the metadata of a file, with its preferred host in front if the splits are planned with locality.
+   */
+  private static byte[] serialize(FileMetadata fileMetadata, boolean locality,
+                                  @Nullable String preferredHost) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      if (locality) {
+        output.writeUTF(Strings.nullToEmpty(preferredHost));
+      }
+      fileMetadata.write(output);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Nullable
+  private static BlockLocation[] getBlockLocations(FileSystem fileSystem, FileStatus fileStatus) throws IOException {
+    if (fileStatus.isDirectory()) {
+      return null;
+    }
+    // statuses served from a listing snapshot don't carry their block locations
+    if (fileStatus instanceof LocatedFileStatus && ((LocatedFileStatus) fileStatus).getBlockLocations() != null) {
+      return ((LocatedFileStatus) fileStatus).getBlockLocations();
+    }
+    return fileSystem.getFileBlockLocations(fileStatus, 0, fileStatus.getLen());
+  }
+
+  @Nullable
+  private static String getPreferredHost(FileSystem fileSystem, FileStatus fileStatus) throws IOException {
+    return getPreferredHost(getBlockLocations(fileSystem, fileStatus), 0, fileStatus.getLen());
+  }
+
+  /**
+   * Returns the host that holds the most bytes of the given range of a file.
+   *
+   * @param blocks The block locations of the file.
+   * @return the host, or null if the range has no block locations.
+   */
+  @Nullable
+  private static String getPreferredHost(@Nullable BlockLocation[] blocks, long offset,
+                                         long length) throws IOException {
+    if (blocks == null) {
+      return null;
+    }
+    Map<String, Long> hostBytes = new HashMap<>();
+    for (BlockLocation block : blocks) {
+      long overlap = Math.min(offset + length, block.getOffset() + block.getLength()) -
+        Math.max(offset, block.getOffset());
+      if (overlap <= 0) {
+        continue;
+      }
+      for (String host : block.getHosts()) {
+        hostBytes.merge(host, overlap, Long::sum);
+      }
+    }
+    String preferredHost = null;
+    for (Map.Entry<String, Long> entry : hostBytes.entrySet()) {
+      long bytes = preferredHost == null ? -1 : hostBytes.get(preferredHost);
+      if (entry.getValue() > bytes || (entry.getValue() == bytes && entry.getKey().compareTo(preferredHost) < 0)) {
+        preferredHost = entry.getKey();
+      }
+    }
+    return preferredHost;
   }
 
   /**
    * Because the existing Filesystem.listFiles(Path, Boolean) doesn't list empty directories, we
-   * added our own method to recursively traverse the file directories. If the path doesn't exist
-   * in the source filesystem, it logs a warning and skips the path.
+   * walk the file directories ourselves. If a path doesn't exist in the source filesystem, it logs a warning and
+   * skips the path. Directories are listed by up to {@link #LISTING_PARALLELISM} threads at a time.
    *
-   * @param fileMetadataList The list that contains all the files under fileStatus.getPath
-   * @param prefix The user-set path that was used to get this group of files
-   * @param path The path of the file that will be inserted into fileMetadataList.
+   * @param sourcePaths The user-set paths to scan.
    * @param recursive Whether or not to recursively scan the directories.
    * @param filesystem The filesystem that contains the files.
    * @param conf The configuration that contains credential information needed to connect to the filesystem.
+   * @param visitor Receives every file and directory found under the source paths.
    * @throws IOException
    */
-  private void recursivelyAddFileStatus(List<FileMetadata> fileMetadataList,
-                                         String prefix, Path path, Boolean recursive,
-                                         FileSystem filesystem, Configuration conf) throws IOException {
-    try {
-      RemoteIterator<LocatedFileStatus> iter = filesystem.listLocatedStatus(path);
-      while (iter.hasNext()) {
-        LocatedFileStatus fileStatus = iter.next();
-        fileMetadataList.add(getFileMetadata(fileStatus, prefix, conf));
-        if (fileStatus.isDirectory() && recursive) {
-          recursivelyAddFileStatus(fileMetadataList, prefix, fileStatus.getPath(), recursive, filesystem, conf);
-        }
+  protected void scanSourcePaths(List<String> sourcePaths, boolean recursive, FileSystem filesystem,
+                                 Configuration conf, DirectoryWalker.Visitor visitor) throws IOException {
+    walkSourcePaths(sourcePaths, recursive, filesystem, null, conf, visitor);
+  }
+
+  /**
+   * Returns how directories are listed. Block locations are only fetched if splits are planned with locality.
+   */
+  protected DirectoryWalker.Lister getLister(FileSystem filesystem, Configuration conf) {
+    if (conf.getBoolean(LOCALITY, false)) {
+      return filesystem::listLocatedStatus;
+    }
+    return filesystem::listStatusIterator;
+  }
+
+  /**
+   * Walks the source paths with a {@link DirectoryWalker}. If the listing cache is enabled, directories are served
+   * from the snapshot of an earlier run where possible. Otherwise, if unchanged directories are skipped, directories
+   * whose modification time didn't change since the previous run are carried forward from its listing.
+   *
+   * @param treeLister If not null, used to list whole trees when scanning recursively.
+   */
+  protected final void walkSourcePaths(List<String> sourcePaths, boolean recursive, FileSystem filesystem,
+                                       @Nullable DirectoryWalker.TreeLister treeLister, Configuration conf,
+                                       DirectoryWalker.Visitor visitor) throws IOException {
+    int parallelism = conf.getInt(LISTING_PARALLELISM, DEFAULT_LISTING_PARALLELISM);
+    DirectoryWalker.Lister lister = getLister(filesystem, conf);
+    String stateDirectory = conf.get(STATE_DIRECTORY);
+
+    if (stateDirectory != null && conf.get(LISTING_CACHE_TTL) != null) {
+      Path cacheDirectory = new Path(new Path(stateDirectory, LISTING_CACHE_DIRECTORY),
+                                     getListingKey(sourcePaths, recursive, filesystem));
+      try (ListingCache cache = ListingCache.open(cacheDirectory.getFileSystem(conf), cacheDirectory,
+                                                  filesystem.getUri(), conf.getLong(LISTING_CACHE_TTL, 0))) {
+        new DirectoryWalker(cache.wrap(lister), treeLister == null ? null : cache.wrap(treeLister), parallelism)
+          .walk(sourcePaths, recursive, visitor);
+        cache.commit();
+      }
+      return;
+    }
+
+    // subtrees listed in a single pass have no directory listings to carry forward
+    if (stateDirectory != null && treeLister == null && conf.getBoolean(SKIP_UNCHANGED_DIRECTORIES, false)) {
+      Path snapshotDirectory = new Path(new Path(stateDirectory, DIRECTORY_SNAPSHOT_DIRECTORY),
+                                        getListingKey(sourcePaths, recursive, filesystem));
+      try (DirectorySnapshot snapshot = DirectorySnapshot.open(snapshotDirectory.getFileSystem(conf),
+                                                               snapshotDirectory, filesystem)) {
+        new DirectoryWalker(snapshot.wrap(lister), parallelism).walk(sourcePaths, recursive, visitor);
+        snapshot.commit();
       }
-    } catch (FileNotFoundException e) {
-      // log a warning and skip if the path doesn't exist
-      LOG.warn(e.getMessage());
+      return;
     }
+
+    new DirectoryWalker(lister, treeLister, parallelism).walk(sourcePaths, recursive, visitor);
+  }
+
+  /**
+   * Returns a key for state that depends on everything that determines what is listed.
+   */
+  private static String getListingKey(List<String> sourcePaths, boolean recursive, FileSystem filesystem) {
+    return Hashing.sha1().hashString(filesystem.getUri() + "\n" + recursive + "\n" +
+                                       Joiner.on("\n").join(sourcePaths), Charsets.UTF_8).toString();
   }
 
   /**
@@ -16,6 +16,7 @@
 
 package io.cdap.plugin.file.ingest;
 
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.slf4j.Logger;
@@ -25,37 +26,120 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * Abstract class that implements information for InputSplit.
- * Contains a list of fileMetadata that is assigned to the specific split.
+ * Contains a list of fileMetadata that is assigned to the specific split, or, if the splits were planned with a
+ * listing manifest, the location of the split's files in the manifest.
+ * The files are serialized in the {@link CompactSplitFormat}, and decoded one at a time when they are read.
  */
 public class MetadataInputSplit extends InputSplit implements Writable, Comparable {
   private List<FileMetadata> fileMetaDataList;
   private static final Logger LOG = LoggerFactory.getLogger(MetadataInputSplit.class);
   private long totalBytes;
+  // what the planner balances splits by, only kept while planning
+  private long cost;
+  // only kept while planning, the scheduler doesn't pass the locations on to tasks
+  private String[] locations = new String[0];
+
+  // only set if the files are read from a manifest
+  private String manifestPath;
+  private long manifestOffset;
+  private long manifestFileCount;
+
+  // only set if the split was deserialized and its files weren't decoded yet
+  private CompactSplitFormat.Decoder decoder;
+  private long encodedFileCount;
 
   public MetadataInputSplit() {
     this.fileMetaDataList = new ArrayList<>();
     this.totalBytes = 0;
   }
 
-  public List<FileMetadata> getFileMetaDataList() {
+  /**
+   * Makes this split read its files from a listing manifest instead of carrying them.
+   *
+   * @param manifestPath The fully qualified path of the manifest.
+   * @param offset The offset in the manifest of the first file of this split.
+   * @param fileCount The number of consecutive files in the manifest that belong to this split.
+   * @param totalBytes The total number of file bytes in this split.
+   */
+  public void setManifestRange(String manifestPath, long offset, long fileCount, long totalBytes) {
+    this.manifestPath = manifestPath;
+    this.manifestOffset = offset;
+    this.manifestFileCount = fileCount;
+    this.totalBytes = totalBytes;
+  }
+
+  /**
+   * @return the path of the manifest that contains the files of this split, or null if the split carries its files.
+   */
+  @Nullable
+  public String getManifestPath() {
+    return manifestPath;
+  }
+
+  /**
+   * @return the offset in the manifest of the first file of this split.
+   */
+  public long getManifestOffset() {
+    return manifestOffset;
+  }
+
+  /**
+   * @return the files of this split. Decodes all of them if the split was deserialized, prefer {@link #getFiles()}.
+   */
+  public List<FileMetadata> getFileMetaDataList() throws IOException {
+    if (decoder != null) {
+      RemoteIterator<FileMetadata> files = decoder.decode(this);
+      decoder = null;
+      while (files.hasNext()) {
+        fileMetaDataList.add(files.next());
+      }
+    }
     return this.fileMetaDataList;
   }
 
+  /**
+   * @return the files of this split, which are decoded as they are iterated over if the split was deserialized.
+   */
+  public RemoteIterator<FileMetadata> getFiles() {
+    if (decoder != null) {
+      return decoder.decode(this);
+    }
+    Iterator<FileMetadata> files = fileMetaDataList.iterator();
+    return new RemoteIterator<FileMetadata>() {
+      @Override
+      public boolean hasNext() {
+        return files.hasNext();
+      }
+
+      @Override
+      public FileMetadata next() {
+        return files.next();
+      }
+    };
+  }
+
   @Override
   public void write(DataOutput dataOutput) throws IOException {
     try {
       // write number of files
       dataOutput.writeLong(this.getLength());
 
-      for (FileMetadata fileMetaData : fileMetaDataList) {
-        // convert each filestatus (serializable) to byte array
-        fileMetaData.write(dataOutput);
+      dataOutput.writeBoolean(manifestPath != null);
+      if (manifestPath != null) {
+        dataOutput.writeUTF(manifestPath);
+        dataOutput.writeLong(manifestOffset);
+        dataOutput.writeLong(totalBytes);
+        return;
       }
 
+      dataOutput.writeLong(totalBytes);
+      CompactSplitFormat.write(dataOutput, getFileMetaDataList());
     } catch (InterruptedException interruptedException) {
       throw new IOException("Failed to get length for InputSplit");
     }
@@ -67,11 +151,16 @@ public class MetadataInputSplit extends InputSplit implements Writable, Comparab
     // read number of files
     long numObjects = dataInput.readLong();
 
-    fileMetaDataList = new ArrayList<>();
-    for (long i = 0; i < numObjects; i++) {
-      FileMetadata metadata = readFileMetaData(dataInput);
-      addFileMetadata(metadata);
+    if (dataInput.readBoolean()) {
+      setManifestRange(dataInput.readUTF(), dataInput.readLong(), numObjects, dataInput.readLong());
+      return;
     }
+
+    // the files are decoded when they are read
+    fileMetaDataList = new ArrayList<>();
+    totalBytes = dataInput.readLong();
+    decoder = CompactSplitFormat.read(dataInput);
+    encodedFileCount = numObjects;
   }
 
   /**
@@ -81,7 +170,10 @@ public class MetadataInputSplit extends InputSplit implements Writable, Comparab
    */
   @Override
   public long getLength() throws IOException, InterruptedException {
-    return fileMetaDataList.size();
+    if (manifestPath != null) {
+      return manifestFileCount;
+    }
+    return decoder == null ? fileMetaDataList.size() : encodedFileCount;
   }
 
   /**
@@ -93,7 +185,14 @@ public class MetadataInputSplit extends InputSplit implements Writable, Comparab
 
   @Override
   public String[] getLocations() throws IOException, InterruptedException {
-    return new String[0];
+    return locations;
+  }
+
+  /**
+   * Sets the hosts that this split is preferably processed on.
+   */
+  public void setLocations(String[] locations) {
+    this.locations = locations;
   }
 
   /**
@@ -102,16 +201,28 @@ public class MetadataInputSplit extends InputSplit implements Writable, Comparab
    * @param fileMetaData The file to be added.
    */
   public void addFileMetadata(FileMetadata fileMetaData) {
+    addFileMetadata(fileMetaData, fileMetaData.getChunkLength());
+  }
+
+  /**
+   * Adds a new file to the split.
+   *
+   * @param fileMetaData The file to be added.
+   * @param cost The planned cost of copying the file.
+   */
+  public void addFileMetadata(FileMetadata fileMetaData, long cost) {
     fileMetaDataList.add(fileMetaData);
-    totalBytes += fileMetaData.getFileSize();
+    totalBytes += fileMetaData.getChunkLength();
+    this.cost += cost;
   }
 
   /**
-   * Compares the total number of bytes contained in the split
+   * Compares the planned cost of the splits, which is the total number of bytes unless the splits were planned with
+   * a copy history.
    */
   @Override
   public int compareTo(Object o) {
-    return Long.compare(getTotalBytes(), ((MetadataInputSplit) o).getTotalBytes());
+    return Long.compare(cost, ((MetadataInputSplit) o).cost);
   }
 
   /**
@@ -125,6 +236,21 @@ public class MetadataInputSplit extends InputSplit implements Writable, Comparab
   protected FileMetadata readFileMetaData(DataInput dataInput) throws IOException {
     return new FileMetadata(dataInput);
   }
+
+  /**
+   * This function creates the FileMetadata of a file whose common fields were decoded already. Override this function
+   * along with {@link #readFileMetaData(DataInput)} if the metadata class specific to the filesystem writes extra
+   * fields.
+   *
+   * @param fileMetadata The decoded common fields.
+   * @param extraFields The input to read the extra fields from, which were written by
+   *                    {@link FileMetadata#writeExtraFields(DataOutput)}.
+   * @return The FileMetadata of the file.
+   * @throws IOException
+   */
+  protected FileMetadata createFileMetadata(FileMetadata fileMetadata, DataInput extraFields) throws IOException {
+    return fileMetadata;
+  }
 }
 
 
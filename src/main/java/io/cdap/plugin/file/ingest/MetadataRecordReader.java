@@ -16,21 +16,32 @@
 
 package io.cdap.plugin.file.ingest;
 
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 
 /**
  * Returns key that contains file path.
  * Returns value that contains file metadata.
+ * If the split refers to a listing manifest, the file metadata is streamed from the manifest one file at a time.
  */
 public class MetadataRecordReader extends RecordReader<NullWritable, FileMetadata> {
 
   protected MetadataInputSplit split;
   private int currentIndex;
+  // only set if the split reads its files from a manifest
+  private DataInputStream manifestInput;
+  // only set if the split carries its files
+  private RemoteIterator<FileMetadata> files;
+  private FileMetadata currentValue;
 
   public MetadataRecordReader() {
     super();
@@ -40,6 +51,7 @@ public class MetadataRecordReader extends RecordReader<NullWritable, FileMetadat
   public boolean nextKeyValue() throws IOException, InterruptedException {
     if ((currentIndex + 1) < split.getLength()) {
       currentIndex++;
+      currentValue = manifestInput != null ? split.readFileMetaData(manifestInput) : files.next();
       return true;
     } else {
       return false;
@@ -62,15 +74,34 @@ public class MetadataRecordReader extends RecordReader<NullWritable, FileMetadat
     throws IOException, InterruptedException {
     this.split = (MetadataInputSplit) inputSplit;
     this.currentIndex = -1;
+
+    // initialize may be called more than once, release the stream of an earlier call
+    close();
+    manifestInput = null;
+    if (split.getManifestPath() != null) {
+      Path manifestPath = new Path(split.getManifestPath());
+      FSDataInputStream input = manifestPath.getFileSystem(taskAttemptContext.getConfiguration()).open(manifestPath);
+      try {
+        input.seek(split.getManifestOffset());
+      } catch (IOException e) {
+        input.close();
+        throw e;
+      }
+      manifestInput = new DataInputStream(new BufferedInputStream(input));
+    } else {
+      files = split.getFiles();
+    }
   }
 
   @Override
   public FileMetadata getCurrentValue() throws IOException, InterruptedException {
-    return split.getFileMetaDataList().get(currentIndex);
+    return currentValue;
   }
 
   @Override
   public void close() throws IOException {
-
+    if (manifestInput != null) {
+      manifestInput.close();
+    }
   }
 }
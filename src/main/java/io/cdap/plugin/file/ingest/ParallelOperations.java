@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.file.ingest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies filesystem operations to many items at the same time, for job commits that would otherwise wait on one round
+ * trip to the filesystem after the other.
+ */
+final class ParallelOperations {
+
+  private ParallelOperations() {
+  }
+
+  /**
+   * Applies an operation to every item with bounded parallelism.
+   *
+   * @param parallelism the number of items that are processed at the same time
+   * @param description what the operation does, for the error if it is interrupted
+   * @return the results, in the order of the items.
+   */
+  static <T, R> List<R> forEach(Collection<T> items, int parallelism, String description,
+                                Operation<T, R> operation) throws IOException {
+    List<R> results = new ArrayList<>(items.size());
+    if (items.isEmpty()) {
+      return results;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, items.size())));
+    try {
+      List<Future<R>> futures = new ArrayList<>(items.size());
+      for (T item : items) {
+        futures.add(executor.submit(() -> operation.apply(item)));
+      }
+      for (Future<R> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(String.format("Interrupted while %s.", description), e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * An operation on a single item.
+   */
+  interface Operation<T, R> {
+    R apply(T item) throws IOException;
+  }
+}
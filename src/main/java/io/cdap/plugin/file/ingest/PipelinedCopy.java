@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.annotation.Nullable;
+
+/**
+ * Copies a stream with a reader thread that fills a small ring of buffers while the calling thread writes the filled
+ * buffers out, so that the latencies of the source and the destination overlap instead of adding up.
+ *
+ * The reader blocks once all buffers are filled, and a failure on either side stops the other one. The copy only
+ * returns once the reader stopped, so that the caller can close the input.
+ */
+final class PipelinedCopy {
+  static final int BUFFERS = 4;
+  // how long to wait for the reader to stop, which is blocked until its current read of the source returns
+  static final long READER_STOP_TIMEOUT_MS = 30000;
+
+  private PipelinedCopy() {
+  }
+
+  /**
+   * Copies the input to the output. Neither stream is closed.
+   *
+   * @return the number of bytes copied
+   */
+  static long copy(InputStream input, OutputStream output, int bufferSize) throws IOException {
+    return copy(input, output, bufferSize, READER_STOP_TIMEOUT_MS);
+  }
+
+  static long copy(InputStream input, OutputStream output, int bufferSize,
+                   long readerStopTimeoutMillis) throws IOException {
+    BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BUFFERS);
+    for (int i = 0; i < BUFFERS; i++) {
+      free.add(new byte[bufferSize]);
+    }
+    // one more slot than buffers, so that the reader can always add the end or its failure
+    BlockingQueue<Filled> filled = new ArrayBlockingQueue<>(BUFFERS + 1);
+    Thread reader = new Thread(() -> read(input, free, filled), "file-copy-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    long bytes;
+    try {
+      bytes = write(output, free, filled);
+    } catch (IOException | RuntimeException | Error e) {
+      stop(reader, readerStopTimeoutMillis, e);
+      throw e;
+    }
+    stop(reader, readerStopTimeoutMillis, null);
+    return bytes;
+  }
+
+  private static long write(OutputStream output, BlockingQueue<byte[]> free,
+                            BlockingQueue<Filled> filled) throws IOException {
+    long bytes = 0;
+    try {
+      while (true) {
+        Filled buffer = filled.take();
+        if (buffer.failure instanceof IOException) {
+          throw (IOException) buffer.failure;
+        }
+        if (buffer.failure != null) {
+          throw new IOException("Failed to read the source.", buffer.failure);
+        }
+        if (buffer.length < 0) {
+          return bytes;
+        }
+        output.write(buffer.bytes, 0, buffer.length);
+        bytes += buffer.length;
+        free.add(buffer.bytes);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while copying.");
+    }
+  }
+
+  /**
+   * Interrupts the reader and waits for it to exit. A reader that doesn't exit in time is reported as a failure,
+   * which is added to the failure of the copy if there is one.
+   */
+  private static void stop(Thread reader, long timeoutMillis, @Nullable Throwable failure) throws IOException {
+    reader.interrupt();
+    // waits even if the copy was interrupted, and restores the interrupt afterwards
+    boolean interrupted = Thread.interrupted();
+    try {
+      reader.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      interrupted = true;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (!reader.isAlive()) {
+      return;
+    }
+    IOException e = new IOException(String.format("The reader of the copy didn't stop within %d ms.", timeoutMillis));
+    if (failure == null) {
+      throw e;
+    }
+    failure.addSuppressed(e);
+  }
+
+  private static void read(InputStream input, BlockingQueue<byte[]> free, BlockingQueue<Filled> filled) {
+    try {
+      while (true) {
+        byte[] bytes = free.take();
+        int length = 0;
+        int read = 0;
+        // fills the whole buffer, since fewer and larger writes are cheaper for the destination
+        while (length < bytes.length && (read = input.read(bytes, length, bytes.length - length)) >= 0) {
+          length += read;
+        }
+        if (length > 0) {
+          filled.put(new Filled(bytes, length, null));
+        }
+        if (read < 0) {
+          filled.put(new Filled(null, -1, null));
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      // the writer stopped
+    } catch (Throwable t) {
+      filled.offer(new Filled(null, -1, t));
+    }
+  }
+
+  /**
+   * A filled buffer, the end of the input, or the failure of the reader.
+   */
+  private static final class Filled {
+    private final byte[] bytes;
+    private final int length;
+    private final Throwable failure;
+
+    private Filled(byte[] bytes, int length, Throwable failure) {
+      this.bytes = bytes;
+      this.length = length;
+      this.failure = failure;
+    }
+  }
+}
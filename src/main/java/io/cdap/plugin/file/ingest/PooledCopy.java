@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import javax.annotation.Nullable;
+
+/**
+ * Copies a stream with a buffer from a {@link BufferPool} that is sized for the length of the stream.
+ *
+ * Streams that can read into byte buffers, such as those of HDFS, can be read into a direct buffer instead, which
+ * saves the copy from the native read buffer into the heap. That only pays off if the output can write the direct
+ * buffer as it is, so outputs that only accept byte arrays are always copied through a heap buffer.
+ */
+final class PooledCopy {
+
+  private PooledCopy() {
+  }
+
+  /**
+   * Copies the input to the output. Neither stream is closed.
+   *
+   * @param input The stream to read.
+   * @param output The stream to write to.
+   * @param length The expected length of the input, which determines the size of the buffer.
+   * @param pool The pool to take the buffer from.
+   * @param maxBufferSize The largest buffer to use.
+   * @param direct Whether or not to read into a direct buffer, if the input supports it and the output can write it.
+   * @return the number of bytes copied
+   */
+  static long copy(FSDataInputStream input, OutputStream output, long length, BufferPool pool, int maxBufferSize,
+                   boolean direct) throws IOException {
+    WritableByteChannel channel = direct ? getChannel(output) : null;
+    if (channel != null && input.getWrappedStream() instanceof ByteBufferReadable) {
+      ByteBuffer buffer = pool.acquireDirect(length, maxBufferSize);
+      try {
+        return copyDirect(input, channel, buffer);
+      } catch (UnsupportedOperationException e) {
+        // a wrapping stream whose own source can't read into byte buffers, nothing was read yet
+      } finally {
+        pool.releaseDirect(buffer);
+      }
+    }
+
+    byte[] buffer = pool.acquire(length, maxBufferSize);
+    try {
+      long bytes = 0;
+      int len;
+      while ((len = input.read(buffer)) >= 0) {
+        output.write(buffer, 0, len);
+        bytes += len;
+      }
+      return bytes;
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Returns a channel that writes byte buffers to the output without copying them into a byte array first, if the
+   * output has one. The channel is not closed, since that would close the output.
+   */
+  @Nullable
+  private static WritableByteChannel getChannel(OutputStream output) {
+    if (output instanceof WritableByteChannel) {
+      return (WritableByteChannel) output;
+    }
+    if (output instanceof FileOutputStream) {
+      return ((FileOutputStream) output).getChannel();
+    }
+    return null;
+  }
+
+  private static long copyDirect(FSDataInputStream input, WritableByteChannel channel,
+                                 ByteBuffer buffer) throws IOException {
+    long bytes = 0;
+    int len;
+    while ((len = input.read(buffer)) >= 0) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+      bytes += len;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copies a byte range of a file by reading several smaller ranges of it at the same time with positioned reads, and
+ * writing them to the output in order.
+ *
+ * Every reader thread opens its own stream, since positioned reads on a shared stream are serialized by most
+ * filesystems. On S3A every range is fetched with its own ranged GET. At most twice as many ranges as there are readers
+ * are read ahead of the output, which bounds the memory that ranges waiting to be written can take. The ranges are read
+ * into buffers of the buffer pool, and fewer are read ahead while its capacity is used up.
+ */
+final class RangedCopy {
+  private static final Logger LOG = LoggerFactory.getLogger(RangedCopy.class);
+  // how long to wait for the readers to stop before their streams are closed
+  private static final long READER_STOP_TIMEOUT_SECONDS = 60;
+
+  private RangedCopy() {
+  }
+
+  /**
+   * Copies the bytes from the start position up to the end position of the file to the output, which is not closed.
+   *
+   * @param fileSystem The filesystem of the file.
+   * @param path The file to read.
+   * @param bufferSize The buffer size for opening the file.
+   * @param position The position of the first byte to copy.
+   * @param end The position after the last byte to copy.
+   * @param output The stream to write to.
+   * @param rangeSize The size of the ranges that are read at the same time.
+   * @param parallelism The number of ranges that are read at the same time.
+   * @param bufferPool The pool to take the buffers of the ranges from.
+   * @return the number of bytes copied
+   */
+  static long copy(FileSystem fileSystem, Path path, int bufferSize, long position, long end, OutputStream output,
+                   int rangeSize, int parallelism, BufferPool bufferPool) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "file-copy-range-reader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // streams that no reader currently uses
+    Queue<FSDataInputStream> idleStreams = new ConcurrentLinkedQueue<>();
+    List<FSDataInputStream> streams = new ArrayList<>();
+    AtomicBoolean closed = new AtomicBoolean();
+    Deque<Range> pending = new ArrayDeque<>();
+    long next = position;
+    long bytes = 0;
+    try {
+      while (next < end || !pending.isEmpty()) {
+        while (next < end && pending.size() < parallelism * 2) {
+          long rangePosition = next;
+          int length = (int) Math.min(rangeSize, end - next);
+          byte[] buffer = bufferPool.tryAcquire(length, rangeSize);
+          if (buffer == null && !pending.isEmpty()) {
+            // the pool is used up, the pending ranges release their buffers as they are written
+            break;
+          }
+          if (buffer == null) {
+            // the pool is used up by other copies, so the range is copied through a small buffer without read-ahead
+            FSDataInputStream input = takeStream(fileSystem, path, bufferSize, idleStreams, streams, closed);
+            copyRange(input, path, rangePosition, length, output, bufferPool, rangeSize);
+            idleStreams.add(input);
+            bytes += length;
+            next += length;
+            continue;
+          }
+          pending.add(new Range(buffer, executor.submit(() -> {
+            FSDataInputStream input = takeStream(fileSystem, path, bufferSize, idleStreams, streams, closed);
+            input.readFully(rangePosition, buffer, 0, length);
+            idleStreams.add(input);
+            return null;
+          })));
+          next += length;
+        }
+        if (pending.isEmpty()) {
+          continue;
+        }
+        // pooled buffers can be larger than the range
+        int length = (int) Math.min(rangeSize, end - position - bytes);
+        // the range stays pending until it was read, so that its buffer is released only once no reader uses it
+        pending.peek().read.get();
+        Range range = pending.remove();
+        try {
+          output.write(range.buffer, 0, length);
+        } finally {
+          bufferPool.release(range.buffer);
+        }
+        bytes += length;
+      }
+      return bytes;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while copying " + path);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to read " + path, e.getCause());
+    } finally {
+      List<Runnable> notStarted = executor.shutdownNow();
+      awaitTermination(executor, path);
+      // the buffers of the ranges that were never written, unless a reader that didn't stop still uses them
+      for (Range range : pending) {
+        if (range.read.isDone() || notStarted.contains(range.read)) {
+          bufferPool.release(range.buffer);
+        }
+      }
+      synchronized (streams) {
+        closed.set(true);
+        for (FSDataInputStream stream : streams) {
+          try {
+            stream.close();
+          } catch (IOException e) {
+            // nothing was written through it, so the copy is not affected
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a stream of the file that no reader currently uses, opening a new one if there is none.
+   */
+  private static FSDataInputStream takeStream(FileSystem fileSystem, Path path, int bufferSize,
+                                              Queue<FSDataInputStream> idleStreams, List<FSDataInputStream> streams,
+                                              AtomicBoolean closed) throws IOException {
+    FSDataInputStream input = idleStreams.poll();
+    if (input != null) {
+      return input;
+    }
+    input = fileSystem.open(path, bufferSize);
+    synchronized (streams) {
+      if (closed.get()) {
+        // the copy already ended
+        input.close();
+        throw new InterruptedIOException("Stopped reading " + path);
+      }
+      streams.add(input);
+    }
+    return input;
+  }
+
+  /**
+   * Copies a range through a buffer of the pool, which can be smaller than the range.
+   */
+  private static void copyRange(FSDataInputStream input, Path path, long position, int length, OutputStream output,
+                                BufferPool bufferPool, int rangeSize) throws IOException {
+    byte[] buffer = bufferPool.acquire(length, rangeSize);
+    try {
+      long end = position + length;
+      while (position < end) {
+        int len = input.read(position, buffer, 0, (int) Math.min(buffer.length, end - position));
+        if (len < 0) {
+          throw new EOFException(String.format("%s ended at %d, before the end of the range.", path, position));
+        }
+        output.write(buffer, 0, len);
+        position += len;
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+  }
+
+  /**
+   * Waits for the readers to stop, so that their streams are not closed while they read from them. Readers that are
+   * blocked on the source and don't respond to the interrupt are only stopped by closing their streams.
+   */
+  private static void awaitTermination(ExecutorService executor, Path path) {
+    boolean interrupted = Thread.interrupted();
+    try {
+      if (!executor.awaitTermination(READER_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("The readers of {} didn't stop within {} seconds, closing their streams.", path,
+                 READER_STOP_TIMEOUT_SECONDS);
+      }
+    } catch (InterruptedException e) {
+      interrupted = true;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * A range that is read ahead of the output, and the buffer it is read into.
+   */
+  private static final class Range {
+    private final byte[] buffer;
+    private final Future<?> read;
+
+    private Range(byte[] buffer, Future<?> read) {
+      this.buffer = buffer;
+      this.read = read;
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PartETag;
+import io.cdap.plugin.file.ingest.s3.S3MultipartUploader;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.Checksum;
+import javax.annotation.Nullable;
+
+/**
+ * Copies a file so that a later attempt can continue where a failed one stopped, instead of starting over.
+ *
+ * On filesystems that support appends, the file is written to a hidden in-progress file next to the destination,
+ * and a checkpoint with the number of bytes written so far is saved periodically. An attempt that finds a checkpoint
+ * for the same version of the source verifies the in-progress file against it, by its length and the CRC32C of the
+ * bytes before the checkpoint, and appends the rest of the source to it. On HDFS, the lease that the failed attempt
+ * may still hold on the in-progress file is recovered first, so that its length is final. On S3, the file is uploaded
+ * in parts, and the checkpoint holds the id of the upload, so that a later attempt only uploads the parts that are
+ * missing.
+ */
+final class ResumableCopy {
+  private static final Logger LOG = LoggerFactory.getLogger(ResumableCopy.class);
+  static final String IN_PROGRESS_SUFFIX = ".inprogress";
+  static final String CHECKPOINT_SUFFIX = ".checkpoint";
+  // the most bytes before a checkpoint whose CRC32C verifies the in-progress file when the copy is resumed
+  private static final int TAIL_SIZE = 64 << 10;
+  // how long to wait for HDFS to close an in-progress file whose lease was recovered
+  private static final long LEASE_RECOVERY_TIMEOUT_MS = 60000;
+  private static final long LEASE_RECOVERY_POLL_MS = 500;
+
+  private ResumableCopy() {
+  }
+
+  static Path getInProgressPath(Path destPath) {
+    return new Path(destPath.getParent(), "." + destPath.getName() + IN_PROGRESS_SUFFIX);
+  }
+
+  static Path getCheckpointPath(Path destPath) {
+    return new Path(destPath.getParent(), "." + destPath.getName() + CHECKPOINT_SUFFIX);
+  }
+
+  /**
+   * Copies the source file to a filesystem that supports appends. The input stream is not closed.
+   *
+   * @param input The stream of the source file, at its start.
+   * @param source The metadata of the source file.
+   * @param destFileSystem The destination filesystem.
+   * @param destPath The destination file, which is replaced once the copy is complete.
+   * @param permission The permission of the destination file.
+   * @param buffer The buffer to copy with.
+   * @param checkpointInterval The number of bytes between checkpoints.
+   * @return the number of bytes copied by this attempt
+   */
+  static long copy(FSDataInputStream input, FileMetadata source, FileSystem destFileSystem, Path destPath,
+                   FsPermission permission, byte[] buffer, long checkpointInterval) throws IOException {
+    Path inProgressPath = getInProgressPath(destPath);
+    Path checkpointPath = getCheckpointPath(destPath);
+    // checksummed filesystems, such as the local one, can't append
+    FileSystem fileSystem = ChunkedFiles.prepareAppend(destFileSystem, inProgressPath);
+
+    CopyCheckpoint checkpoint = CopyCheckpoint.read(fileSystem, checkpointPath, source);
+    long offset = checkpoint == null ? 0 : getResumeOffset(fileSystem, inProgressPath, checkpoint);
+    FSDataOutputStream output = null;
+    if (offset > 0) {
+      try {
+        output = fileSystem.append(inProgressPath);
+        input.seek(offset);
+        LOG.info("Resuming the copy of {} at byte {}.", source.getFullPath(), offset);
+      } catch (IOException e) {
+        LOG.warn("Failed to resume the copy of {}, starting over.", source.getFullPath(), e);
+        if (output != null) {
+          output.close();
+          output = null;
+        }
+        offset = 0;
+      }
+    }
+    if (output == null) {
+      output = FileSystem.create(fileSystem, inProgressPath, permission);
+    }
+
+    long position = offset;
+    try {
+      long checkpointed = offset;
+      Checksum tail = new PureJavaCrc32C();
+      int len;
+      while ((len = input.read(buffer)) >= 0) {
+        output.write(buffer, 0, len);
+        position += len;
+        if (position - checkpointed >= checkpointInterval && len > 0) {
+          // the checkpoint must never point past the bytes that a later attempt can see
+          sync(output);
+          int tailLength = Math.min(len, TAIL_SIZE);
+          tail.reset();
+          tail.update(buffer, len - tailLength, tailLength);
+          new CopyCheckpoint(source, position, tailLength, (int) tail.getValue(), null, 0)
+            .write(fileSystem, checkpointPath);
+          checkpointed = position;
+        }
+      }
+    } finally {
+      output.close();
+    }
+
+    if (position != source.getFileSize()) {
+      // the source changed, so neither the output nor the checkpoint can be resumed from
+      fileSystem.delete(inProgressPath, false);
+      fileSystem.delete(checkpointPath, false);
+      throw new IOException(String.format("%s has %d bytes instead of the %d bytes it had when it was listed.",
+                                          source.getFullPath(), position, source.getFileSize()));
+    }
+    destFileSystem.delete(destPath, false);
+    if (!destFileSystem.rename(inProgressPath, destPath)) {
+      throw new IOException("Failed to rename " + inProgressPath + " to " + destPath);
+    }
+    fileSystem.delete(checkpointPath, false);
+    return position - offset;
+  }
+
+  /**
+   * Uploads the source file to S3 in parts, continuing an earlier upload of the same version of the source if there
+   * is one. The input stream is not closed.
+   *
+   * @param s3 The client for the destination.
+   * @param input The stream of the source file, at its start.
+   * @param source The metadata of the source file.
+   * @param destFileSystem The destination filesystem, which holds the checkpoint.
+   * @param target The qualified destination path.
+   * @param minPartSize The smallest part size to use.
+   * @param parallelism The number of parts that are uploaded at the same time.
+   * @return the number of bytes uploaded by this attempt
+   */
+  static long upload(AmazonS3 s3, FSDataInputStream input, FileMetadata source, FileSystem destFileSystem,
+                     Path target, long minPartSize, int parallelism) throws IOException {
+    Path checkpointPath = getCheckpointPath(target);
+    long partSize = S3MultipartUploader.getPartSize(source.getFileSize(), minPartSize);
+    CopyCheckpoint checkpoint = CopyCheckpoint.read(destFileSystem, checkpointPath, source);
+    String uploadId = null;
+    List<PartETag> uploadedParts = null;
+    if (checkpoint != null && checkpoint.uploadId != null && checkpoint.partSize == partSize) {
+      uploadedParts = S3MultipartUploader.getUploadedParts(s3, target, checkpoint.uploadId, partSize);
+      uploadId = uploadedParts == null ? null : checkpoint.uploadId;
+    }
+    if (uploadId == null) {
+      uploadId = S3MultipartUploader.initiate(s3, target);
+      uploadedParts = new ArrayList<>();
+      new CopyCheckpoint(source, 0, 0, 0, uploadId, partSize).write(destFileSystem, checkpointPath);
+    } else {
+      LOG.info("Resuming the upload of {} after {} parts.", source.getFullPath(), uploadedParts.size());
+    }
+
+    long offset = uploadedParts.size() * partSize;
+    input.seek(offset);
+    // the uploaded parts are kept if the upload fails, so that the next attempt can resume it
+    long bytes = S3MultipartUploader.uploadParts(s3, input, target, uploadId, partSize, uploadedParts, parallelism,
+                                                 false);
+    destFileSystem.delete(checkpointPath, false);
+    if (offset + bytes != source.getFileSize()) {
+      destFileSystem.delete(target, false);
+      throw new IOException(String.format("%s has %d bytes instead of the %d bytes it had when it was listed.",
+                                          source.getFullPath(), offset + bytes, source.getFileSize()));
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the offset to resume the copy at, or 0 if the in-progress file doesn't match the checkpoint.
+   */
+  private static long getResumeOffset(FileSystem fileSystem, Path inProgressPath,
+                                      CopyCheckpoint checkpoint) throws IOException {
+    FileStatus status;
+    try {
+      if (!recoverLease(fileSystem, inProgressPath)) {
+        LOG.warn("Timed out waiting for the lease on {} to be recovered, starting over.", inProgressPath);
+        return 0;
+      }
+      status = fileSystem.getFileStatus(inProgressPath);
+    } catch (FileNotFoundException e) {
+      return 0;
+    }
+    if (status.getLen() < checkpoint.offset) {
+      return 0;
+    }
+    if (status.getLen() > checkpoint.offset) {
+      // bytes that were written after the last checkpoint
+      try {
+        if (!fileSystem.truncate(inProgressPath, checkpoint.offset) && !waitUntilClosed(fileSystem, inProgressPath)) {
+          // the truncation is still in progress, which appends would fail on
+          return 0;
+        }
+      } catch (UnsupportedOperationException e) {
+        return 0;
+      }
+    }
+
+    byte[] tail = new byte[checkpoint.tailLength];
+    try (FSDataInputStream input = fileSystem.open(inProgressPath)) {
+      input.readFully(checkpoint.offset - tail.length, tail);
+    }
+    Checksum crc = new PureJavaCrc32C();
+    crc.update(tail, 0, tail.length);
+    return (int) crc.getValue() == checkpoint.tailCrc ? checkpoint.offset : 0;
+  }
+
+  /**
+   * Makes the bytes written so far durable, and on HDFS also updates the length of the file at the NameNode, which is
+   * the length a later attempt sees if this one dies without closing the file.
+   */
+  private static void sync(FSDataOutputStream output) throws IOException {
+    if (output instanceof HdfsDataOutputStream) {
+      ((HdfsDataOutputStream) output).hsync(EnumSet.of(HdfsDataOutputStream.SyncFlag.UPDATE_LENGTH));
+    } else {
+      output.hsync();
+    }
+  }
+
+  /**
+   * Recovers the lease on an HDFS file that a failed attempt may have left open, and waits for the file to be closed,
+   * since until then its length can still change and it can't be truncated or appended to.
+   *
+   * @return whether the file was closed before the timeout
+   */
+  private static boolean recoverLease(FileSystem fileSystem, Path path) throws IOException {
+    if (!(fileSystem instanceof DistributedFileSystem)) {
+      return true;
+    }
+    return ((DistributedFileSystem) fileSystem).recoverLease(path) || waitUntilClosed(fileSystem, path);
+  }
+
+  /**
+   * Waits for HDFS to close a file that is being recovered or truncated.
+   *
+   * @return whether the file was closed before the timeout
+   */
+  private static boolean waitUntilClosed(FileSystem fileSystem, Path path) throws IOException {
+    if (!(fileSystem instanceof DistributedFileSystem)) {
+      return false;
+    }
+    DistributedFileSystem distributedFileSystem = (DistributedFileSystem) fileSystem;
+    long deadline = System.currentTimeMillis() + LEASE_RECOVERY_TIMEOUT_MS;
+    while (!distributedFileSystem.isFileClosed(path)) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(LEASE_RECOVERY_POLL_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for " + path + " to be closed");
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The progress of a copy, and the version of the source it belongs to.
+   */
+  private static final class CopyCheckpoint {
+    private final long sourceSize;
+    private final long sourceModificationTime;
+    private final long offset;
+    private final int tailLength;
+    private final int tailCrc;
+    private final String uploadId;
+    private final long partSize;
+
+    private CopyCheckpoint(FileMetadata source, long offset, int tailLength, int tailCrc, @Nullable String uploadId,
+                           long partSize) {
+      this(source.getFileSize(), source.getModificationTime(), offset, tailLength, tailCrc, uploadId, partSize);
+    }
+
+    private CopyCheckpoint(long sourceSize, long sourceModificationTime, long offset, int tailLength, int tailCrc,
+                           @Nullable String uploadId, long partSize) {
+      this.sourceSize = sourceSize;
+      this.sourceModificationTime = sourceModificationTime;
+      this.offset = offset;
+      this.tailLength = tailLength;
+      this.tailCrc = tailCrc;
+      this.uploadId = uploadId;
+      this.partSize = partSize;
+    }
+
+    /**
+     * Returns the checkpoint at the given path, or {@code null} if there is none for the given version of the source.
+     */
+    @Nullable
+    private static CopyCheckpoint read(FileSystem fileSystem, Path path, FileMetadata source) throws IOException {
+      CopyCheckpoint checkpoint;
+      try (FSDataInputStream input = fileSystem.open(path)) {
+        long sourceSize = input.readLong();
+        long sourceModificationTime = input.readLong();
+        long offset = input.readLong();
+        int tailLength = input.readInt();
+        int tailCrc = input.readInt();
+        String uploadId = input.readBoolean() ? input.readUTF() : null;
+        long partSize = input.readLong();
+        checkpoint = new CopyCheckpoint(sourceSize, sourceModificationTime, offset, tailLength, tailCrc, uploadId,
+                                        partSize);
+      } catch (FileNotFoundException e) {
+        return null;
+      } catch (IOException e) {
+        // a checkpoint that was only partially written
+        LOG.warn("Failed to read the checkpoint {}, the copy starts over.", path, e);
+        return null;
+      }
+      return checkpoint.sourceSize == source.getFileSize() &&
+        checkpoint.sourceModificationTime == source.getModificationTime() ? checkpoint : null;
+    }
+
+    private void write(FileSystem fileSystem, Path path) throws IOException {
+      try (FSDataOutputStream output = fileSystem.create(path, true)) {
+        output.writeLong(sourceSize);
+        output.writeLong(sourceModificationTime);
+        output.writeLong(offset);
+        output.writeInt(tailLength);
+        output.writeInt(tailCrc);
+        output.writeBoolean(uploadId != null);
+        if (uploadId != null) {
+          output.writeUTF(uploadId);
+        }
+        output.writeLong(partSize);
+      }
+    }
+  }
+}
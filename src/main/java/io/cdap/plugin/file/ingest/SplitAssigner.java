@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+
+/**
+ * Assigns items to a fixed number of splits, each to the open split with the lowest cost so far. If the items are
+ * assigned in descending order of cost, this is the longest processing time first heuristic (2-approx). A split is
+ * closed once it holds the maximum number of items.
+ *
+ * Items can have a preferred host, in which case splits are dedicated to hosts as they fill up. An item goes to the
+ * cheapest open split of its host, or to a split without a host yet, unless that split already costs more than the
+ * cheapest open split plus the item itself. This costs at most one more item of imbalance than the plain assignment,
+ * while most items end up in a split of their host.
+ */
+final class SplitAssigner {
+  private final int maxSplitSize;
+  private final long[] costs;
+  private final long[] counts;
+  private final String[] hosts;
+  // open splits, ordered by cost
+  private final TreeSet<Integer> open;
+  private final TreeSet<Integer> openWithoutHost;
+  private final Map<String, TreeSet<Integer>> openByHost;
+
+  /**
+   * @param numSplits The number of splits, which must be large enough to hold all items.
+   * @param maxSplitSize The maximum number of items per split.
+   */
+  SplitAssigner(int numSplits, int maxSplitSize) {
+    this.maxSplitSize = maxSplitSize;
+    this.costs = new long[numSplits];
+    this.counts = new long[numSplits];
+    this.hosts = new String[numSplits];
+    this.open = newSplitSet();
+    this.openWithoutHost = newSplitSet();
+    this.openByHost = new HashMap<>();
+    for (int split = 0; split < numSplits; split++) {
+      open.add(split);
+      openWithoutHost.add(split);
+    }
+  }
+
+  /**
+   * Assigns an item to a split.
+   *
+   * @param cost The cost of the item.
+   * @param host The host the item is preferably processed on, or null if it has none.
+   * @return the split.
+   */
+  int assign(long cost, @Nullable String host) {
+    if (open.isEmpty()) {
+      throw new IllegalStateException("All splits are full.");
+    }
+    int split = open.first();
+    if (host != null) {
+      Integer local = cheapest(openByHost.get(host), openWithoutHost);
+      if (local != null && costs[local] <= costs[split] + cost) {
+        split = local;
+      }
+    }
+
+    remove(split);
+    if (hosts[split] == null) {
+      hosts[split] = host;
+    }
+    costs[split] += cost;
+    counts[split]++;
+    if (counts[split] < maxSplitSize) {
+      add(split);
+    }
+    return split;
+  }
+
+  /**
+   * @return the number of items assigned to the split.
+   */
+  long getCount(int split) {
+    return counts[split];
+  }
+
+  /**
+   * @return the total cost of the items assigned to the split.
+   */
+  long getCost(int split) {
+    return costs[split];
+  }
+
+  /**
+   * @return the host that the split is dedicated to, or an empty array if it is not dedicated to any host.
+   */
+  String[] getLocations(int split) {
+    return hosts[split] == null ? new String[0] : new String[] { hosts[split] };
+  }
+
+  private void add(int split) {
+    open.add(split);
+    if (hosts[split] == null) {
+      openWithoutHost.add(split);
+    } else {
+      openByHost.computeIfAbsent(hosts[split], h -> newSplitSet()).add(split);
+    }
+  }
+
+  private void remove(int split) {
+    open.remove(split);
+    if (hosts[split] == null) {
+      openWithoutHost.remove(split);
+    } else {
+      openByHost.get(hosts[split]).remove(split);
+    }
+  }
+
+  @Nullable
+  private Integer cheapest(@Nullable TreeSet<Integer> splits1, TreeSet<Integer> splits2) {
+    Integer split1 = splits1 == null || splits1.isEmpty() ? null : splits1.first();
+    Integer split2 = splits2.isEmpty() ? null : splits2.first();
+    if (split1 == null || split2 == null) {
+      return split1 == null ? split2 : split1;
+    }
+    return costs[split1] <= costs[split2] ? split1 : split2;
+  }
+
+  private TreeSet<Integer> newSplitSet() {
+    return new TreeSet<>(Comparator.<Integer>comparingLong(split -> costs[split]).thenComparingInt(split -> split));
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+import javax.annotation.Nullable;
+
+/**
+ * Computes the CRC32C, and optionally the MD5, of the bytes that stream through a copy, so that the copy can be
+ * verified without reading the destination again. Not safe for use by concurrent threads.
+ */
+final class StreamChecksum {
+  private final Checksum crc32c;
+  private final MessageDigest md5;
+  private long length;
+
+  /**
+   * @param md5 Whether or not to compute the MD5 as well, which is needed to compare with S3 ETags.
+   */
+  StreamChecksum(boolean md5) {
+    this.crc32c = new PureJavaCrc32C();
+    try {
+      this.md5 = md5 ? MessageDigest.getInstance("MD5") : null;
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support MD5
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns a stream that writes to the given stream, and adds the written bytes to the checksum. Closing the
+   * returned stream closes the given one.
+   */
+  OutputStream wrap(OutputStream output) {
+    return new FilterOutputStream(output) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        update(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        update(b, off, len);
+      }
+    };
+  }
+
+  /**
+   * Returns a stream that reads from the given stream, and adds the read bytes to the checksum. Closing the returned
+   * stream closes the given one.
+   */
+  InputStream wrap(InputStream input) {
+    return new FilterInputStream(input) {
+      @Override
+      public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+          update(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+          update(b, off, read);
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        throw new IOException("Skipping bytes would leave them out of the checksum.");
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  private void update(byte[] bytes, int offset, int len) {
+    crc32c.update(bytes, offset, len);
+    if (md5 != null) {
+      md5.update(bytes, offset, len);
+    }
+    length += len;
+  }
+
+  /**
+   * Returns the number of bytes that streamed through.
+   */
+  long getLength() {
+    return length;
+  }
+
+  /**
+   * Returns the CRC32C of the bytes that streamed through.
+   */
+  int getCrc32c() {
+    return (int) crc32c.getValue();
+  }
+
+  /**
+   * Returns the MD5 of the bytes that streamed through as a lower case hex string, as used by S3 ETags, or
+   * {@code null} if it isn't computed. Can only be called once.
+   */
+  @Nullable
+  String getMd5() {
+    if (md5 == null) {
+      return null;
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : md5.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Returns the ETag of an S3 object if it is the MD5 of the object, which isn't the case for objects that were
+   * uploaded in parts, or that are encrypted with SSE-KMS or SSE-C.
+   */
+  @Nullable
+  static String getMd5ETag(ObjectMetadata metadata) {
+    String eTag = metadata.getETag();
+    if (eTag == null || eTag.contains("-") || metadata.getSSECustomerAlgorithm() != null ||
+      SSEAlgorithm.KMS.getAlgorithm().equals(metadata.getSSEAlgorithm())) {
+      return null;
+    }
+    return eTag;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * Decides whether or not a file already exists unchanged in the destination, so that it doesn't need to be copied.
+ *
+ * A destination file with a different size, or one that was last modified before the source file, has changed. If
+ * both sides have single part S3 ETags or filesystem checksums of the same algorithm, they decide. Otherwise a
+ * destination file of the same size that was written after the last change of the source is unchanged.
+ */
+final class UnchangedFiles {
+
+  /**
+   * Looks up the ETag of an S3 object.
+   */
+  interface ETagLookup {
+
+    /**
+     * Returns the ETag of the object at the given path, or {@code null} if it has none.
+     */
+    @Nullable
+    String getETag(Path path) throws IOException;
+  }
+
+  private UnchangedFiles() {
+  }
+
+  /**
+   * Returns whether or not the destination path holds the same content as the source file.
+   *
+   * @param source The metadata of the source file.
+   * @param sourceFileSystem The filesystem of the source file.
+   * @param sourcePath The qualified path of the source file.
+   * @param destFileSystem The destination filesystem.
+   * @param destPath The qualified path of the destination file.
+   * @param sourceETags Looks up the ETag of the source file, or {@code null} if it has none.
+   * @param destETags Looks up the ETag of the destination file, or {@code null} if it has none.
+   */
+  static boolean isUnchanged(FileMetadata source, FileSystem sourceFileSystem, Path sourcePath,
+                             FileSystem destFileSystem, Path destPath, @Nullable ETagLookup sourceETags,
+                             @Nullable ETagLookup destETags) throws IOException {
+    FileStatus destStatus;
+    try {
+      destStatus = destFileSystem.getFileStatus(destPath);
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    if (destStatus.isDirectory() || destStatus.getLen() != source.getFileSize() ||
+      destStatus.getModificationTime() < source.getModificationTime()) {
+      return false;
+    }
+
+    if (sourceETags != null && destETags != null) {
+      String sourceETag = getSinglePartETag(sourceETags, sourcePath);
+      String destETag = sourceETag == null ? null : getSinglePartETag(destETags, destPath);
+      if (destETag != null) {
+        return sourceETag.equals(destETag);
+      }
+    }
+
+    FileChecksum sourceChecksum = sourceFileSystem.getFileChecksum(sourcePath);
+    FileChecksum destChecksum = sourceChecksum == null ? null : destFileSystem.getFileChecksum(destPath);
+    if (destChecksum != null && sourceChecksum.getAlgorithmName().equals(destChecksum.getAlgorithmName())) {
+      return sourceChecksum.equals(destChecksum);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the ETag of the object if it is the MD5 of its content, which is not the case for objects that were
+   * uploaded in parts, since their ETags depend on the part size.
+   */
+  @Nullable
+  private static String getSinglePartETag(ETagLookup eTags, Path path) throws IOException {
+    String eTag = eTags.getETag(path);
+    return eTag == null || eTag.contains("-") ? null : eTag;
+  }
+}
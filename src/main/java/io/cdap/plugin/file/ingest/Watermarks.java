@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modification time high-water marks of the source paths, used to only emit files that changed since the last
+ * successful run.
+ *
+ * While listing, the largest modification time of the files under each source path is tracked. At the end of the
+ * listing it is saved as a pending watermark of the run, which only replaces the current watermark once the run
+ * succeeded.
+ * Files are emitted if they are newer than the current watermark minus an overlap window, which protects against
+ * clock skew between writers and the filesystem.
+ */
+public class Watermarks {
+  private static final Logger LOG = LoggerFactory.getLogger(Watermarks.class);
+  private static final String PENDING_SUFFIX = ".pending";
+
+  private final FileSystem fileSystem;
+  private final Path directory;
+  private final String runId;
+  private final URI sourceURI;
+  private final long overlapMillis;
+  // the watermarks of the last successful run, per source path
+  private final Map<String, Long> committed;
+  // the largest modification time of the files seen in this run, per source path
+  private final Map<String, AtomicLong> pending;
+
+  private Watermarks(FileSystem fileSystem, Path directory, String runId, URI sourceURI, long overlapMillis,
+                     Map<String, Long> committed) {
+    this.fileSystem = fileSystem;
+    this.directory = directory;
+    this.runId = runId;
+    this.sourceURI = sourceURI;
+    this.overlapMillis = overlapMillis;
+    this.committed = committed;
+    this.pending = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Loads the watermarks of the given source paths.
+   *
+   * @param fileSystem The filesystem that holds the watermarks.
+   * @param directory The directory that holds the watermarks.
+   * @param runId Identifies the run, so that its pending watermarks can be committed when it finishes.
+   * @param sourceURI The URI of the listed filesystem.
+   * @param sourcePaths The source paths.
+   * @param overlapMillis The overlap window, in milliseconds.
+   */
+  public static Watermarks load(FileSystem fileSystem, Path directory, String runId, URI sourceURI,
+                                Collection<String> sourcePaths, long overlapMillis) throws IOException {
+    Map<String, Long> committed = new ConcurrentHashMap<>();
+    for (String sourcePath : sourcePaths) {
+      String prefix = sourcePath.trim();
+      Path path = new Path(directory, getKey(sourceURI, prefix));
+      if (prefix.isEmpty() || !fileSystem.exists(path)) {
+        continue;
+      }
+      try (FSDataInputStream input = fileSystem.open(path)) {
+        long watermark = input.readLong();
+        committed.put(prefix, watermark);
+        LOG.info("Only emitting files under {} modified after {}, the watermark of the last successful run minus " +
+                   "an overlap of {} ms.", prefix, watermark - overlapMillis, overlapMillis);
+      }
+    }
+    return new Watermarks(fileSystem, directory, runId, sourceURI, overlapMillis, committed);
+  }
+
+  /**
+   * Tracks the modification time of an entry found under a source path and returns whether or not it should be
+   * emitted. Directories without a modification time, such as pseudo directories of object stores, are always
+   * emitted.
+   *
+   * Only files move the watermark. The modification time of a directory changes whenever an entry is added to it,
+   * including a file that was written elsewhere earlier and renamed into it, which would otherwise be older than the
+   * watermark of the run that saw the directory change.
+   */
+  public boolean accept(String prefix, FileStatus fileStatus) {
+    long modificationTime = fileStatus.getModificationTime();
+    if (fileStatus.isFile()) {
+      pending.computeIfAbsent(prefix, p -> new AtomicLong(Long.MIN_VALUE))
+        .accumulateAndGet(modificationTime, Math::max);
+    }
+
+    Long watermark = committed.get(prefix);
+    if (watermark == null || (fileStatus.isDirectory() && modificationTime == 0)) {
+      return true;
+    }
+    return modificationTime > watermark - overlapMillis;
+  }
+
+  /**
+   * Saves the largest modification time seen under every source path as the pending watermark of the run. Call
+   * this once the listing is complete.
+   */
+  public void savePending() throws IOException {
+    for (Map.Entry<String, AtomicLong> entry : pending.entrySet()) {
+      Long watermark = committed.get(entry.getKey());
+      long newWatermark = watermark == null ? entry.getValue().get() : Math.max(watermark, entry.getValue().get());
+      Path path = new Path(directory, getKey(sourceURI, entry.getKey()) + "." + runId + PENDING_SUFFIX);
+      try (FSDataOutputStream output = fileSystem.create(path, true)) {
+        output.writeLong(newWatermark);
+      }
+    }
+  }
+
+  /**
+   * Replaces the watermarks with the pending watermarks of a run, or discards them if the run failed.
+   *
+   * @param fileSystem The filesystem that holds the watermarks.
+   * @param directory The directory that holds the watermarks.
+   * @param runId The run.
+   * @param succeeded Whether or not the run succeeded.
+   */
+  public static void finish(FileSystem fileSystem, Path directory, String runId,
+                            boolean succeeded) throws IOException {
+    if (!fileSystem.exists(directory)) {
+      return;
+    }
+    String suffix = "." + runId + PENDING_SUFFIX;
+    for (FileStatus fileStatus : fileSystem.listStatus(directory)) {
+      String name = fileStatus.getPath().getName();
+      if (!name.endsWith(suffix)) {
+        continue;
+      }
+      if (!succeeded) {
+        fileSystem.delete(fileStatus.getPath(), false);
+        continue;
+      }
+      Path watermark = new Path(directory, name.substring(0, name.length() - suffix.length()));
+      fileSystem.delete(watermark, false);
+      if (!fileSystem.rename(fileStatus.getPath(), watermark)) {
+        throw new IOException("Failed to commit watermark " + fileStatus.getPath() + " to " + watermark);
+      }
+    }
+  }
+
+  private static String getKey(URI sourceURI, String prefix) {
+    return Hashing.sha1().hashString(sourceURI + "\n" + prefix, Charsets.UTF_8).toString();
+  }
+}
@@ -17,6 +17,7 @@
 package io.cdap.plugin.file.ingest.fs;
 
 import io.cdap.cdap.api.annotation.Description;
+import io.cdap.cdap.api.annotation.Macro;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
 import io.cdap.cdap.api.data.batch.Input;
@@ -40,6 +41,7 @@ import org.apache.hadoop.mapreduce.Job;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * FileCopySource plugin that pulls filemetadata from local filesystem or local HDFS.
@@ -79,6 +81,9 @@ public class FileMetadataSource extends AbstractFileMetadataSource<FileMetadata>
       default:
         throw new IllegalArgumentException("Scheme must be either file or hdfs.");
     }
+    if (Boolean.TRUE.equals(config.locality)) {
+      MetadataInputFormat.setLocality(conf, true);
+    }
 
     context.setInput(Input.of(config.referenceName, new SourceInputFormatProvider(MetadataInputFormat.class, conf)));
   }
@@ -102,6 +107,12 @@ public class FileMetadataSource extends AbstractFileMetadataSource<FileMetadata>
     @Description("Scheme of the source filesystem.")
     public String scheme;
 
+    @Macro
+    @Nullable
+    @Description("Whether or not to group files by the host that holds most of their blocks, so that copy tasks " +
+      "can be scheduled on hosts that read locally. Defaults to false.")
+    public Boolean locality;
+
     public FileMetadataSourceConfig(String name, String sourcePaths, Integer maxSplitSize, String scheme) {
       super(name, sourcePaths, maxSplitSize);
       this.scheme = scheme;
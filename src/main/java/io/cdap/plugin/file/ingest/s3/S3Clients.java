@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Creates Amazon S3 clients for the operations that are not exposed through the Hadoop S3 filesystems. The clients
+ * honor the endpoint and connection settings of the s3a filesystem.
+ */
+public final class S3Clients {
+  public static final String S3A_ENDPOINT = "fs.s3a.endpoint";
+  public static final String S3A_PATH_STYLE_ACCESS = "fs.s3a.path.style.access";
+  public static final String S3A_MAX_CONNECTIONS = "fs.s3a.connection.maximum";
+  public static final String S3A_MAX_ERROR_RETRIES = "fs.s3a.attempts.maximum";
+  public static final String S3A_MAX_THREADS = "fs.s3a.threads.max";
+  public static final String S3A_MULTIPART_SIZE = "fs.s3a.multipart.size";
+
+  public static final int DEFAULT_MAX_THREADS = 10;
+  public static final long DEFAULT_MULTIPART_SIZE = 100 << 20;
+
+  private static final int DEFAULT_MAX_CONNECTIONS = 15;
+  private static final int DEFAULT_MAX_ERROR_RETRIES = 10;
+
+  private S3Clients() {
+  }
+
+  /**
+   * Creates a client with the credentials that the configuration holds for the scheme of the given filesystem.
+   */
+  public static AmazonS3 create(Configuration conf, URI fileSystemURI) throws IOException {
+    switch (fileSystemURI.getScheme()) {
+      case "s3a":
+        return create(conf, conf.get(S3MetadataInputFormat.S3A_ACCESS_KEY_ID),
+                      conf.get(S3MetadataInputFormat.S3A_SECRET_KEY_ID));
+      case "s3n":
+        return create(conf, conf.get(S3MetadataInputFormat.S3N_ACCESS_KEY_ID),
+                      conf.get(S3MetadataInputFormat.S3N_SECRET_KEY_ID));
+      default:
+        throw new IOException("Scheme must be either s3a or s3n.");
+    }
+  }
+
+  public static AmazonS3 create(Configuration conf, String accessKeyId, String secretKeyId) {
+    ClientConfiguration clientConfiguration = new ClientConfiguration();
+    clientConfiguration.setMaxConnections(conf.getInt(S3A_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+    clientConfiguration.setMaxErrorRetry(conf.getInt(S3A_MAX_ERROR_RETRIES, DEFAULT_MAX_ERROR_RETRIES));
+
+    AmazonS3 client = new AmazonS3Client(new BasicAWSCredentials(accessKeyId, secretKeyId), clientConfiguration);
+    String endpoint = conf.getTrimmed(S3A_ENDPOINT);
+    if (endpoint != null && !endpoint.isEmpty()) {
+      client.setEndpoint(endpoint);
+    }
+    if (conf.getBoolean(S3A_PATH_STYLE_ACCESS, false)) {
+      client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+    }
+    return client;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Identifies S3 credentials by a short credential set id, so that file records only need to carry the id. The
+ * credentials themselves never leave the configurations of the plugins that were given them: the sink registers the
+ * credentials it knows in the configuration of its output format, and its record writers look up the ids of the
+ * records there.
+ */
+public final class S3CredentialSets {
+  private static final String PREFIX = "s3.credential.set.";
+  private static final String ACCESS_KEY_ID = ".access.key";
+  private static final String SECRET_KEY_ID = ".secret.key";
+
+  private S3CredentialSets() {
+  }
+
+  /**
+   * Returns the id of a credential set, which is derived from a hash of the credentials.
+   */
+  public static String getId(String accessKeyId, String secretKeyId) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(accessKeyId.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      byte[] hash = digest.digest(secretKeyId.getBytes(StandardCharsets.UTF_8));
+      StringBuilder id = new StringBuilder();
+      for (int i = 0; i < 8; i++) {
+        id.append(String.format("%02x", hash[i]));
+      }
+      return id.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform implements SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Registers a credential set in an output format configuration, keyed by its id.
+   */
+  public static void register(Map<String, String> conf, String accessKeyId, String secretKeyId) {
+    String id = getId(accessKeyId, secretKeyId);
+    conf.put(PREFIX + id + ACCESS_KEY_ID, accessKeyId);
+    conf.put(PREFIX + id + SECRET_KEY_ID, secretKeyId);
+  }
+
+  public static String getAccessKeyId(Configuration conf, String id) throws IOException {
+    return get(conf, id, ACCESS_KEY_ID);
+  }
+
+  public static String getSecretKeyId(Configuration conf, String id) throws IOException {
+    return get(conf, id, SECRET_KEY_ID);
+  }
+
+  private static String get(Configuration conf, String id, String key) throws IOException {
+    String value = conf.get(PREFIX + id + key);
+    if (value == null) {
+      throw new IOException(String.format("S3 credential set '%s' matches neither the source credentials nor the " +
+                                            "credentials of the sink.", id));
+    }
+    return value;
+  }
+}
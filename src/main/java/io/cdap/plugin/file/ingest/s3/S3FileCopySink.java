@@ -73,7 +73,18 @@ public class S3FileCopySink extends AbstractFileCopySink {
         default:
           throw new IllegalArgumentException("Scheme must be either s3a or s3n.");
       }
-
+      // S3 sources may share the credentials of the sink
+      S3CredentialSets.register(conf, s3Config.accessKeyId, s3Config.secretKeyId);
+      if (s3Config.serverSideCopy != null) {
+        FileCopyOutputFormat.setServerSideCopy(conf, s3Config.serverSideCopy.toString());
+      }
+      if (s3Config.uploadParallelism != null) {
+        FileCopyOutputFormat.setUploadParallelism(conf, s3Config.uploadParallelism.toString());
+      }
+      if (s3Config.uploadPartSize != null) {
+        // uploadPartSize is in megabytes
+        FileCopyOutputFormat.setUploadPartSize(conf, String.valueOf((long) s3Config.uploadPartSize << 20));
+      }
     }
   }
 }
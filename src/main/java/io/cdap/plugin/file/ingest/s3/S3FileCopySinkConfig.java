@@ -24,12 +24,15 @@ import io.cdap.plugin.file.ingest.AbstractFileCopySinkConfig;
 
 import java.net.URI;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * Additional configurations for connecting to an S3 filesystem.
  */
 public class S3FileCopySinkConfig extends AbstractFileCopySinkConfig {
   public static final String SCHEME = "scheme";
+  public static final String UPLOAD_PARALLELISM = "uploadParallelism";
+  public static final String UPLOAD_PART_SIZE = "uploadPartSize";
   private static final Set<String> ALLOWED_SCHEME_TYPES = ImmutableSet.of("s3a", "s3n");
 
   // configurations for S3
@@ -45,6 +48,26 @@ public class S3FileCopySinkConfig extends AbstractFileCopySinkConfig {
   @Description("Your AWS Secret Key Id")
   public String secretKeyId;
 
+  @Macro
+  @Nullable
+  @Description("Whether or not to copy objects from S3 sources on the server side, instead of streaming them " +
+    "through the tasks. Only used for sources with the same credentials as this sink, and buckets in the same " +
+    "region. Defaults to false.")
+  public Boolean serverSideCopy;
+
+  @Macro
+  @Nullable
+  @Description("The number of parts of a file that are uploaded at the same time. If set, files larger than the " +
+    "upload part size are uploaded with a multipart upload instead of a single stream. Parts are buffered in " +
+    "memory, so each concurrent copy holds up to one more part than this number.")
+  public Integer uploadParallelism;
+
+  @Macro
+  @Nullable
+  @Description("The smallest size of the parts of a multipart upload in megabytes. Larger parts are used for files " +
+    "that would otherwise need more than 10,000 parts. Defaults to 16.")
+  public Integer uploadPartSize;
+
   public S3FileCopySinkConfig(String name, String basePath, Boolean enableOverwrite,
                               Boolean preserveFileOwner, Integer bufferSize, String filesystemURI,
                               String accessKeyId, String secretKeyId) {
@@ -90,6 +113,14 @@ public class S3FileCopySinkConfig extends AbstractFileCopySinkConfig {
       failureCollector.addFailure("Scheme must be either s3a or s3n.", null)
         .withConfigProperty(SCHEME);
     }
+    if (!containsMacro(UPLOAD_PARALLELISM) && uploadParallelism != null && uploadParallelism <= 0) {
+      failureCollector.addFailure("Upload parallelism must be a positive integer.", null)
+        .withConfigProperty(UPLOAD_PARALLELISM);
+    }
+    if (!containsMacro(UPLOAD_PART_SIZE) && uploadPartSize != null && uploadPartSize < 5) {
+      failureCollector.addFailure("Upload part size must be at least 5 megabytes.", null)
+        .withConfigProperty(UPLOAD_PART_SIZE);
+    }
   }
 
   /**
@@ -26,10 +26,12 @@ import org.slf4j.LoggerFactory;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * Filemetadata specific for S3. Defines credentials that are required for
- * connecting to S3.
+ * connecting to S3. If the source shares its credentials once per run, only the id of the credential set is carried,
+ * and the credentials are looked up with {@link S3CredentialSets}.
  */
 public class S3FileMetadata extends FileMetadata {
 
@@ -40,9 +42,15 @@ public class S3FileMetadata extends FileMetadata {
     Schema.Field.of(ACCESS_KEY_ID, Schema.of(Schema.Type.STRING)),
     Schema.Field.of(SECRET_KEY_ID, Schema.of(Schema.Type.STRING))
   );
+  public static final String CREDENTIAL_SET_ID = "credentialSetID";
+  public static final Schema CREDENTIAL_SET_SCHEMA = Schema.recordOf(
+    "metadata",
+    Schema.Field.of(CREDENTIAL_SET_ID, Schema.of(Schema.Type.STRING))
+  );
 
   private final String accessKeyId;
   private final String secretKeyId;
+  private final String credentialSetId;
 
   private static final Logger LOG = LoggerFactory.getLogger(S3FileMetadata.class);
 
@@ -51,18 +59,47 @@ public class S3FileMetadata extends FileMetadata {
     super(fileStatus, sourcePath);
     this.accessKeyId = accessKeyId;
     this.secretKeyId = secretKeyId;
+    this.credentialSetId = null;
+  }
+
+  public S3FileMetadata(FileStatus fileStatus, String sourcePath, String credentialSetId) throws IOException {
+    super(fileStatus, sourcePath);
+    this.accessKeyId = null;
+    this.secretKeyId = null;
+    this.credentialSetId = credentialSetId;
   }
 
   public S3FileMetadata(StructuredRecord record) {
     super(record);
-    this.accessKeyId = record.get(ACCESS_KEY_ID);
-    this.secretKeyId = record.get(SECRET_KEY_ID);
+    if (record.getSchema().getField(CREDENTIAL_SET_ID) != null) {
+      this.accessKeyId = null;
+      this.secretKeyId = null;
+      this.credentialSetId = record.get(CREDENTIAL_SET_ID);
+    } else {
+      this.accessKeyId = record.get(ACCESS_KEY_ID);
+      this.secretKeyId = record.get(SECRET_KEY_ID);
+      this.credentialSetId = null;
+    }
   }
 
   public S3FileMetadata(DataInput input) throws IOException {
-    super(input);
-    this.accessKeyId = input.readUTF();
-    this.secretKeyId = input.readUTF();
+    this(new FileMetadata(input), input);
+  }
+
+  /**
+   * Adds the credentials that follow in the given input to the fields of a FileMetadata.
+   */
+  public S3FileMetadata(FileMetadata fileMetadata, DataInput input) throws IOException {
+    super(fileMetadata);
+    if (input.readBoolean()) {
+      this.accessKeyId = null;
+      this.secretKeyId = null;
+      this.credentialSetId = input.readUTF();
+    } else {
+      this.accessKeyId = input.readUTF();
+      this.secretKeyId = input.readUTF();
+      this.credentialSetId = null;
+    }
   }
 
   public String getAccessKeyId() {
@@ -73,21 +110,37 @@ public class S3FileMetadata extends FileMetadata {
     return secretKeyId;
   }
 
+  /**
+   * @return the id of the shared credential set, or null if the credentials are carried by this instance.
+   */
+  @Nullable
+  public String getCredentialSetId() {
+    return credentialSetId;
+  }
+
   @Override
   protected Schema getCredentialSchema() {
-    return CREDENTIAL_SCHEMA;
+    return credentialSetId == null ? CREDENTIAL_SCHEMA : CREDENTIAL_SET_SCHEMA;
   }
 
   @Override
   protected void addCredentialsToRecordBuilder(StructuredRecord.Builder builder) {
+    if (credentialSetId != null) {
+      builder.set(CREDENTIAL_SET_ID, credentialSetId);
+      return;
+    }
     builder
       .set(ACCESS_KEY_ID, accessKeyId)
       .set(SECRET_KEY_ID, secretKeyId);
   }
 
   @Override
-  public void write(DataOutput dataOutput) throws IOException {
-    super.write(dataOutput);
+  protected void writeExtraFields(DataOutput dataOutput) throws IOException {
+    dataOutput.writeBoolean(credentialSetId != null);
+    if (credentialSetId != null) {
+      dataOutput.writeUTF(credentialSetId);
+      return;
+    }
     dataOutput.writeUTF(accessKeyId);
     dataOutput.writeUTF(secretKeyId);
   }
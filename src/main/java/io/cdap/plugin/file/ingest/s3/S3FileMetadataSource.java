@@ -41,6 +41,7 @@ import org.slf4j.LoggerFactory;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * FileCopySource plugin that pulls filemetadata from S3 Filesystem.
@@ -61,7 +62,8 @@ public class S3FileMetadataSource extends AbstractFileMetadataSource<S3FileMetad
   public void configurePipeline(PipelineConfigurer pipelineConfigurer) {
     super.configurePipeline(pipelineConfigurer);
     List<Schema.Field> fieldList = new ArrayList<>(FileMetadata.DEFAULT_SCHEMA.getFields());
-    fieldList.addAll(S3FileMetadata.CREDENTIAL_SCHEMA.getFields());
+    fieldList.addAll(config.shareCredentials() ? S3FileMetadata.CREDENTIAL_SET_SCHEMA.getFields() :
+                       S3FileMetadata.CREDENTIAL_SCHEMA.getFields());
     pipelineConfigurer.getStageConfigurer().setOutputSchema(Schema.recordOf("S3Schema", fieldList));
   }
 
@@ -89,6 +91,13 @@ public class S3FileMetadataSource extends AbstractFileMetadataSource<S3FileMetad
       default:
         throw new IllegalArgumentException("Scheme must be either s3a or s3n.");
     }
+    if (config.flatListing != null) {
+      S3MetadataInputFormat.setFlatListing(conf, config.flatListing);
+    }
+    if (config.shareCredentials()) {
+      // the records only carry the id, which the sink resolves with the credentials it is configured with
+      S3MetadataInputFormat.setCredentialSetId(conf, S3CredentialSets.getId(config.accessKeyId, config.secretKeyId));
+    }
 
     context.setInput(Input.of(config.referenceName, new SourceInputFormatProvider(S3MetadataInputFormat.class, conf)));
   }
@@ -116,6 +125,19 @@ public class S3FileMetadataSource extends AbstractFileMetadataSource<S3FileMetad
     @Description("Your AWS Secret Key Id")
     public String secretKeyId;
 
+    @Macro
+    @Nullable
+    @Description("Whether or not to list each source path with a single listing of all keys below it, instead of " +
+      "one listing per directory. This greatly reduces the number of S3 requests when copying recursively. " +
+      "Defaults to false.")
+    public Boolean flatListing;
+
+    @Nullable
+    @Description("Whether or not every record only carries the short id of the credential set instead of the " +
+      "credentials. The file copy sink resolves the id with its source credentials, or with its own credentials if " +
+      "it writes to S3 with the same ones. Defaults to false.")
+    public Boolean shareCredentials;
+
     public S3FileMetadataSourceConfig(String name, String sourcePaths, Integer maxSplitSize,
                                       String filesystemURI, String accessKeyId,
                                       String secretKeyId) {
@@ -125,6 +147,10 @@ public class S3FileMetadataSource extends AbstractFileMetadataSource<S3FileMetad
       this.secretKeyId = secretKeyId;
     }
 
+    public boolean shareCredentials() {
+      return shareCredentials != null && shareCredentials;
+    }
+
     @Override
     public void validate() {
       super.validate();
@@ -16,17 +16,21 @@
 
 package io.cdap.plugin.file.ingest.s3;
 
+import com.amazonaws.services.s3.AmazonS3;
+import io.cdap.plugin.file.ingest.DirectoryWalker;
 import io.cdap.plugin.file.ingest.FileMetadata;
 import io.cdap.plugin.file.ingest.MetadataInputFormat;
 import io.cdap.plugin.file.ingest.MetadataInputSplit;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.s3a.S3AFileSystem;
 import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * MetadataInputFormat for S3 Filesystem. Implements credentials setters
@@ -44,6 +48,9 @@ public class S3MetadataInputFormat extends MetadataInputFormat {
   public static final String S3N_SECRET_KEY_ID = "fs.s3n.awsSecretAccessKey";
   public static final String S3N_FS_CLASS = "fs.s3n.impl";
 
+  public static final String FLAT_LISTING = "s3.listing.flat";
+  public static final String CREDENTIAL_SET_ID = "s3.credential.set.id";
+
   public static final Logger LOG = LoggerFactory.getLogger(S3MetadataInputFormat.class);
 
 
@@ -71,6 +78,42 @@ public class S3MetadataInputFormat extends MetadataInputFormat {
     conf.set(S3N_FS_CLASS, NativeS3FileSystem.class.getName());
   }
 
+  public static void setFlatListing(Configuration conf, boolean value) {
+    conf.setBoolean(FLAT_LISTING, value);
+  }
+
+  public static void setCredentialSetId(Configuration conf, String value) {
+    conf.set(CREDENTIAL_SET_ID, value);
+  }
+
+  /**
+   * When flat listing is enabled, recursive scans list each source path with a single paginated listing of all keys
+   * below it rather than one listing per pseudo directory.
+   */
+  @Override
+  protected void scanSourcePaths(List<String> sourcePaths, boolean recursive, FileSystem filesystem,
+                                 Configuration conf, DirectoryWalker.Visitor visitor) throws IOException {
+    if (!recursive || !conf.getBoolean(FLAT_LISTING, false)) {
+      super.scanSourcePaths(sourcePaths, recursive, filesystem, conf, visitor);
+      return;
+    }
+
+    AmazonS3 s3 = S3Clients.create(conf, filesystem.getUri());
+    try {
+      walkSourcePaths(sourcePaths, true, filesystem, new S3TreeLister(filesystem, s3), conf, visitor);
+    } finally {
+      s3.shutdown();
+    }
+  }
+
+  /**
+   * S3 computes block locations locally, and only its located listing is paginated.
+   */
+  @Override
+  protected DirectoryWalker.Lister getLister(FileSystem filesystem, Configuration conf) {
+    return filesystem::listLocatedStatus;
+  }
+
   @Override
   protected MetadataInputSplit getInputSplit() {
     return new S3MetadataInputSplit();
@@ -79,6 +122,10 @@ public class S3MetadataInputFormat extends MetadataInputFormat {
   @Override
   protected FileMetadata getFileMetadata(FileStatus fileStatus, String sourcePath, Configuration conf)
     throws IOException {
+    String credentialSetId = conf.get(CREDENTIAL_SET_ID);
+    if (credentialSetId != null) {
+      return new S3FileMetadata(fileStatus, sourcePath, credentialSetId);
+    }
     switch (fileStatus.getPath().toUri().getScheme()) {
       case "s3a":
         return new S3FileMetadata(fileStatus, sourcePath, conf.get(S3A_ACCESS_KEY_ID), conf.get(S3A_SECRET_KEY_ID));
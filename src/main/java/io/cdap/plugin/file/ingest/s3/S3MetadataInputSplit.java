@@ -34,4 +34,9 @@ public class S3MetadataInputSplit extends MetadataInputSplit {
   protected FileMetadata readFileMetaData(DataInput dataInput) throws IOException {
     return new S3FileMetadata(dataInput);
   }
+
+  @Override
+  protected FileMetadata createFileMetadata(FileMetadata fileMetadata, DataInput extraFields) throws IOException {
+    return new S3FileMetadata(fileMetadata, extraFields);
+  }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Server side copy operations on S3 objects, which avoid moving any data through the client.
+ */
+public final class S3MultipartCopier {
+  // the limits of S3 for the parts of multipart uploads, and for single copy requests
+  public static final long MIN_PART_SIZE = 5L << 20;
+  public static final long MAX_PART_SIZE = 5L << 30;
+
+  private S3MultipartCopier() {
+  }
+
+  /**
+   * Concatenates objects into a new object with a multipart upload whose parts are copied from the objects. Every
+   * object but the last must be at least 5 MB. Objects larger than 5 GB are copied in several ranges. The objects are
+   * deleted once the new object is complete.
+   *
+   * @param s3 The client to use.
+   * @param target The object to create.
+   * @param parts The objects to concatenate, in order.
+   * @param sizes The sizes of the objects.
+   * @param parallelism The number of parts that are copied at the same time.
+   */
+  public static void concat(AmazonS3 s3, Path target, List<Path> parts, List<Long> sizes,
+                            int parallelism) throws IOException {
+    List<CopyPartRequest> requests = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      Path part = parts.get(i);
+      long size = sizes.get(i);
+      if (size < MIN_PART_SIZE && i < parts.size() - 1) {
+        throw new IOException(String.format("Cannot concatenate the parts of %s, since %s is smaller than the " +
+                                              "5 MB that S3 requires of every part but the last.", target, part));
+      }
+      if (size <= MAX_PART_SIZE) {
+        requests.add(new CopyPartRequest()
+                       .withSourceBucketName(part.toUri().getHost())
+                       .withSourceKey(getKey(part)));
+        continue;
+      }
+      // equal ranges, which are all well above the minimum part size
+      long rangeCount = (size + MAX_PART_SIZE - 1) / MAX_PART_SIZE;
+      long rangeSize = (size + rangeCount - 1) / rangeCount;
+      for (long position = 0; position < size; position += rangeSize) {
+        requests.add(new CopyPartRequest()
+                       .withSourceBucketName(part.toUri().getHost())
+                       .withSourceKey(getKey(part))
+                       .withFirstByte(position)
+                       .withLastByte(Math.min(position + rangeSize, size) - 1));
+      }
+    }
+    copyParts(s3, target, requests, parallelism, "concatenate the parts of");
+
+    for (Path part : parts) {
+      s3.deleteObject(part.toUri().getHost(), getKey(part));
+    }
+  }
+
+  /**
+   * Copies a byte range of an object to a new object. A whole object that is no larger than the part size is copied
+   * with a single copy request, anything else with a multipart upload whose parts are copied from the range.
+   *
+   * @param s3 The client to use, which must be able to read the source and write the target.
+   * @param source The object to copy from.
+   * @param sourceSize The size of the source object.
+   * @param offset The first byte of the range.
+   * @param length The number of bytes in the range.
+   * @param target The object to create.
+   * @param partSize The size of the parts. Raised to the minimum part size of 5 MB if smaller, and to the size that
+   *                 keeps the range within the 10,000 parts that S3 allows.
+   * @param parallelism The number of parts that are copied at the same time.
+   */
+  public static void copy(AmazonS3 s3, Path source, long sourceSize, long offset, long length, Path target,
+                          long partSize, int parallelism) throws IOException {
+    long minPartSize = (length + S3MultipartUploader.MAX_PARTS - 1) / S3MultipartUploader.MAX_PARTS;
+    partSize = Math.min(Math.max(Math.max(partSize, minPartSize), MIN_PART_SIZE), MAX_PART_SIZE);
+    String sourceBucket = source.toUri().getHost();
+    String sourceKey = getKey(source);
+    if (offset == 0 && length == sourceSize && length <= partSize) {
+      try {
+        s3.copyObject(new CopyObjectRequest(sourceBucket, sourceKey, target.toUri().getHost(), getKey(target)));
+      } catch (AmazonClientException e) {
+        throw new IOException(String.format("Failed to copy %s to %s", source, target), e);
+      }
+      return;
+    }
+
+    List<CopyPartRequest> requests = new ArrayList<>();
+    long end = offset + length;
+    for (long position = offset; position < end || requests.isEmpty(); position += partSize) {
+      CopyPartRequest request = new CopyPartRequest()
+        .withSourceBucketName(sourceBucket)
+        .withSourceKey(sourceKey);
+      if (length > 0) {
+        // an empty range is copied as a single part with the whole, empty, object
+        request.withFirstByte(position).withLastByte(Math.min(position + partSize, end) - 1);
+      }
+      requests.add(request);
+    }
+    copyParts(s3, target, requests, parallelism, "copy " + source + " to");
+  }
+
+  /**
+   * Creates the target with a multipart upload of the given part copies, whose destination, upload and part number
+   * are filled in.
+   */
+  private static void copyParts(AmazonS3 s3, Path target, List<CopyPartRequest> requests, int parallelism,
+                                String description) throws IOException {
+    String bucket = target.toUri().getHost();
+    String key = getKey(target);
+    String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, requests.size())));
+    try {
+      List<Future<PartETag>> futures = new ArrayList<>();
+      for (int i = 0; i < requests.size(); i++) {
+        CopyPartRequest request = requests.get(i)
+          .withDestinationBucketName(bucket)
+          .withDestinationKey(key)
+          .withUploadId(uploadId)
+          .withPartNumber(i + 1);
+        futures.add(executor.submit(() -> s3.copyPart(request).getPartETag()));
+      }
+      List<PartETag> partETags = new ArrayList<>();
+      for (Future<PartETag> future : futures) {
+        partETags.add(future.get());
+      }
+      s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+    } catch (InterruptedException e) {
+      s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(String.format("Interrupted while trying to %s %s", description, target));
+    } catch (ExecutionException | AmazonClientException e) {
+      s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      throw new IOException(String.format("Failed to %s %s", description, target), cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static String getKey(Path path) {
+    return path.toUri().getPath().substring(1);
+  }
+}
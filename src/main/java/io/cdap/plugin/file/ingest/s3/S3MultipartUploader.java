@@ -0,0 +1,278 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+/**
+ * Uploads a stream to an S3 object with a multipart upload whose parts are uploaded concurrently.
+ *
+ * The part size grows with the size of the object, so that it never needs more than the 10,000 parts S3 allows.
+ * Parts are read into buffers that are reused once their upload is done, so that at most one buffer per upload thread
+ * plus the one being read are held in memory. A failed part is retried on its own, and the upload is aborted if any
+ * part fails for good, unless the upload should be resumed later from the parts that were uploaded.
+ */
+public final class S3MultipartUploader {
+  public static final int MAX_PARTS = 10000;
+  private static final Logger LOG = LoggerFactory.getLogger(S3MultipartUploader.class);
+  private static final int PART_ATTEMPTS = 3;
+  private static final long RETRY_DELAY_MILLIS = 1000;
+  // the largest part that fits in a byte array, which allows objects of up to 10 TB
+  private static final long MAX_BUFFER_SIZE = 1L << 30;
+
+  private S3MultipartUploader() {
+  }
+
+  /**
+   * Returns the size of the parts for an object of the given size.
+   *
+   * @param size The expected size of the object.
+   * @param minPartSize The smallest part size to use. Raised to the minimum part size of 5 MB if smaller.
+   */
+  public static long getPartSize(long size, long minPartSize) {
+    long partSize = Math.max(minPartSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+    return Math.min(Math.max(partSize, S3MultipartCopier.MIN_PART_SIZE), MAX_BUFFER_SIZE);
+  }
+
+  /**
+   * Uploads the stream to the target. The stream is not closed.
+   *
+   * @param s3 The client to use.
+   * @param input The stream to upload.
+   * @param size The expected size of the stream, which determines the size of the parts.
+   * @param target The object to create.
+   * @param minPartSize The smallest part size to use.
+   * @param parallelism The number of parts that are uploaded at the same time.
+   * @return the number of bytes uploaded
+   */
+  public static long upload(AmazonS3 s3, InputStream input, long size, Path target, long minPartSize,
+                            int parallelism) throws IOException {
+    String uploadId = initiate(s3, target);
+    return uploadParts(s3, input, target, uploadId, getPartSize(size, minPartSize), Collections.emptyList(),
+                       parallelism, true);
+  }
+
+  /**
+   * Starts a multipart upload to the target, and returns its id.
+   */
+  public static String initiate(AmazonS3 s3, Path target) throws IOException {
+    try {
+      return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(getBucket(target), getKey(target)))
+        .getUploadId();
+    } catch (AmazonClientException e) {
+      throw new IOException("Failed to start the upload of " + target, e);
+    }
+  }
+
+  /**
+   * Returns the parts of an unfinished upload that can be kept when the upload is resumed, which are the leading
+   * parts that were uploaded completely. Returns {@code null} if the upload no longer exists.
+   *
+   * @param s3 The client to use.
+   * @param target The object that is uploaded.
+   * @param uploadId The id of the upload.
+   * @param partSize The size of the parts of the upload.
+   */
+  @Nullable
+  public static List<PartETag> getUploadedParts(AmazonS3 s3, Path target, String uploadId, long partSize) {
+    Map<Integer, PartSummary> parts = new HashMap<>();
+    try {
+      ListPartsRequest request = new ListPartsRequest(getBucket(target), getKey(target), uploadId);
+      PartListing listing;
+      do {
+        listing = s3.listParts(request);
+        for (PartSummary part : listing.getParts()) {
+          parts.put(part.getPartNumber(), part);
+        }
+        request.setPartNumberMarker(listing.getNextPartNumberMarker());
+      } while (listing.isTruncated());
+    } catch (AmazonClientException e) {
+      LOG.warn("Failed to list the parts of upload {} of {}, it can't be resumed.", uploadId, target, e);
+      return null;
+    }
+
+    List<PartETag> uploadedParts = new ArrayList<>();
+    PartSummary part;
+    while ((part = parts.get(uploadedParts.size() + 1)) != null && part.getSize() == partSize) {
+      uploadedParts.add(new PartETag(part.getPartNumber(), part.getETag()));
+    }
+    return uploadedParts;
+  }
+
+  /**
+   * Uploads the stream as the remaining parts of an upload and completes it. The stream is not closed.
+   *
+   * @param s3 The client to use.
+   * @param input The stream to upload, which starts after the parts that were already uploaded.
+   * @param target The object that is uploaded.
+   * @param uploadId The id of the upload.
+   * @param partSize The size of the parts, see {@link #getPartSize}.
+   * @param uploadedParts The leading parts that were already uploaded.
+   * @param parallelism The number of parts that are uploaded at the same time.
+   * @param abortOnFailure Whether or not to abort the upload if it fails, instead of keeping the uploaded parts.
+   * @return the number of bytes uploaded
+   */
+  public static long uploadParts(AmazonS3 s3, InputStream input, Path target, String uploadId, long partSize,
+                                 List<PartETag> uploadedParts, int parallelism,
+                                 boolean abortOnFailure) throws IOException {
+    String bucket = getBucket(target);
+    String key = getKey(target);
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(parallelism + 1);
+    AtomicBoolean failed = new AtomicBoolean();
+    try {
+      List<Future<PartETag>> futures = new ArrayList<>();
+      int allocatedBuffers = 0;
+      long bytes = 0;
+      int length;
+      do {
+        byte[] buffer = buffers.poll();
+        if (buffer == null && allocatedBuffers <= parallelism) {
+          buffer = new byte[(int) partSize];
+          allocatedBuffers++;
+        } else if (buffer == null) {
+          // waits for a part upload to finish
+          buffer = buffers.take();
+        }
+        length = read(input, buffer);
+        int partNumber = uploadedParts.size() + futures.size() + 1;
+        if (length == 0 && partNumber > 1) {
+          break;
+        }
+        if (partNumber > MAX_PARTS) {
+          throw new IOException(String.format("%s needs more than %d parts of %d bytes.", target, MAX_PARTS,
+                                              partSize));
+        }
+        byte[] part = buffer;
+        int partLength = length;
+        futures.add(executor.submit(() -> {
+          try {
+            return uploadPart(s3, bucket, key, uploadId, partNumber, part, partLength);
+          } catch (Exception e) {
+            failed.set(true);
+            throw e;
+          } finally {
+            buffers.add(part);
+          }
+        }));
+        bytes += length;
+      } while (length == partSize && !failed.get());
+
+      List<PartETag> partETags = new ArrayList<>(uploadedParts);
+      for (Future<PartETag> future : futures) {
+        partETags.add(future.get());
+      }
+      s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+      return bytes;
+    } catch (InterruptedException e) {
+      if (abortOnFailure) {
+        abort(s3, bucket, key, uploadId);
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while uploading " + target);
+    } catch (ExecutionException | AmazonClientException | IOException e) {
+      if (abortOnFailure) {
+        abort(s3, bucket, key, uploadId);
+      }
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      throw new IOException("Failed to upload " + target, cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static String getBucket(Path target) {
+    return target.toUri().getHost();
+  }
+
+  private static String getKey(Path target) {
+    return target.toUri().getPath().substring(1);
+  }
+
+  private static PartETag uploadPart(AmazonS3 s3, String bucket, String key, String uploadId, int partNumber,
+                                     byte[] bytes, int length) throws IOException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      UploadPartRequest request = new UploadPartRequest()
+        .withBucketName(bucket)
+        .withKey(key)
+        .withUploadId(uploadId)
+        .withPartNumber(partNumber)
+        .withInputStream(new ByteArrayInputStream(bytes, 0, length))
+        .withPartSize(length);
+      try {
+        return s3.uploadPart(request).getPartETag();
+      } catch (AmazonClientException e) {
+        if (attempt >= PART_ATTEMPTS) {
+          throw new IOException(String.format("Failed to upload part %d of %s/%s.", partNumber, bucket, key), e);
+        }
+        LOG.warn("Failed to upload part {} of {}/{}, retrying.", partNumber, bucket, key, e);
+        TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS * attempt);
+      }
+    }
+  }
+
+  private static void abort(AmazonS3 s3, String bucket, String key, String uploadId) {
+    try {
+      s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+    } catch (AmazonClientException e) {
+      LOG.warn("Failed to abort the upload of {}/{}.", bucket, key, e);
+    }
+  }
+
+  /**
+   * Reads until the buffer is full or the stream ended.
+   */
+  private static int read(InputStream input, byte[] buffer) throws IOException {
+    int length = 0;
+    int read;
+    while (length < buffer.length && (read = input.read(buffer, length, buffer.length - length)) >= 0) {
+      length += read;
+    }
+    return length;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Copies objects to an S3 destination on the server side, without moving any data through the task. Only objects
+ * that can be read with the credentials of the destination, and whose bucket is in the same region as the
+ * destination bucket, can be copied. Safe for use by concurrent copies.
+ */
+public final class S3ServerSideCopier implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(S3ServerSideCopier.class);
+
+  private final Configuration conf;
+  private final URI destinationURI;
+  private final String accessKeyId;
+  private final String secretKeyId;
+  // the region of every bucket that was looked up, or an empty string if it could not be looked up
+  private final Map<String, String> regions;
+  private AmazonS3 s3;
+
+  /**
+   * @param conf The configuration of the copy job, which holds the credentials for the destination.
+   * @param destinationURI The URI of the destination filesystem.
+   */
+  public S3ServerSideCopier(Configuration conf, URI destinationURI) throws IOException {
+    this.conf = conf;
+    this.destinationURI = destinationURI;
+    switch (destinationURI.getScheme()) {
+      case "s3a":
+        accessKeyId = conf.get(S3MetadataInputFormat.S3A_ACCESS_KEY_ID);
+        secretKeyId = conf.get(S3MetadataInputFormat.S3A_SECRET_KEY_ID);
+        break;
+      case "s3n":
+        accessKeyId = conf.get(S3MetadataInputFormat.S3N_ACCESS_KEY_ID);
+        secretKeyId = conf.get(S3MetadataInputFormat.S3N_SECRET_KEY_ID);
+        break;
+      default:
+        throw new IOException("Scheme must be either s3a or s3n.");
+    }
+    this.regions = new HashMap<>();
+  }
+
+  /**
+   * Returns whether or not an object of the given bucket, which is read with the given credentials, can be copied on
+   * the server side. Otherwise it must be streamed through the task.
+   */
+  public boolean canCopy(String sourceBucket, String sourceAccessKeyId, String sourceSecretKeyId) {
+    if (accessKeyId == null || !accessKeyId.equals(sourceAccessKeyId) ||
+      !Objects.equals(secretKeyId, sourceSecretKeyId)) {
+      return false;
+    }
+    String region = getRegion(sourceBucket);
+    return !region.isEmpty() && region.equals(getRegion(destinationURI.getHost()));
+  }
+
+  /**
+   * Copies a byte range of an object to a new object, see {@link S3MultipartCopier#copy}.
+   */
+  public void copy(Path source, long sourceSize, long offset, long length, Path target) throws IOException {
+    S3MultipartCopier.copy(getClient(), source, sourceSize, offset, length, target,
+                           conf.getLong(S3Clients.S3A_MULTIPART_SIZE, S3Clients.DEFAULT_MULTIPART_SIZE),
+                           conf.getInt(S3Clients.S3A_MAX_THREADS, S3Clients.DEFAULT_MAX_THREADS));
+  }
+
+  private synchronized String getRegion(String bucket) {
+    String region = regions.get(bucket);
+    if (region == null) {
+      try {
+        region = getClient().getBucketLocation(bucket);
+      } catch (AmazonClientException e) {
+        LOG.warn("Failed to look up the region of bucket {}, its objects are not copied on the server side.",
+                 bucket, e);
+      }
+      region = region == null ? "" : region;
+      regions.put(bucket, region);
+    }
+    return region;
+  }
+
+  private synchronized AmazonS3 getClient() {
+    if (s3 == null) {
+      s3 = S3Clients.create(conf, accessKeyId, secretKeyId);
+    }
+    return s3;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (s3 != null) {
+      s3.shutdown();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.cdap.plugin.file.ingest.DirectoryWalker;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Lists everything below an S3 prefix with a single paginated listing that doesn't use a delimiter, instead of one
+ * listing call per pseudo directory. Directory entries are synthesized from the key names, which includes empty
+ * directory markers written by s3a ("dir/") and s3n ("dir_$folder$").
+ */
+public class S3TreeLister implements DirectoryWalker.TreeLister {
+  private static final String S3N_FOLDER_SUFFIX = "_$folder$";
+
+  private final FileSystem fileSystem;
+  private final AmazonS3 s3;
+
+  public S3TreeLister(FileSystem fileSystem, AmazonS3 s3) {
+    this.fileSystem = fileSystem;
+    this.s3 = s3;
+  }
+
+  @Override
+  public RemoteIterator<FileStatus> listTree(Path path) throws IOException {
+    Path qualifiedPath = fileSystem.makeQualified(path);
+    // throws FileNotFoundException if there is neither an object nor a prefix with this name
+    FileStatus rootStatus = fileSystem.getFileStatus(qualifiedPath);
+    if (rootStatus.isFile()) {
+      return new TreeIterator(rootStatus);
+    }
+    return new TreeIterator(rootStatus, fileSystem.getDefaultBlockSize(qualifiedPath));
+  }
+
+  /**
+   * Turns the sorted keys of a listing into file and directory entries. Since keys are returned in lexicographic
+   * order, the keys below a directory are contiguous and each directory is emitted right before its first entry.
+   */
+  final class TreeIterator implements RemoteIterator<FileStatus> {
+    private final FileStatus rootStatus;
+    private final URI rootUri;
+    private final String prefix;
+    private final long blockSize;
+    private final Deque<FileStatus> pending;
+    // the directories, relative to the root, that contain the last key
+    private final List<String> openDirectories;
+    // the names of the directories emitted below the root and below each open directory, since an s3n marker
+    // ("dir_$folder$") sorts after the keys below its directory and after siblings such as "dir1/"
+    private final List<Set<String>> emittedDirectories;
+    private ObjectListing listing;
+    private boolean exhausted;
+
+    TreeIterator(FileStatus rootStatus, long blockSize) {
+      this.rootStatus = rootStatus;
+      this.rootUri = rootStatus.getPath().toUri();
+      String rootKey = rootUri.getPath().startsWith(Path.SEPARATOR) ?
+        rootUri.getPath().substring(1) : rootUri.getPath();
+      this.prefix = rootKey.isEmpty() || rootKey.endsWith(Path.SEPARATOR) ? rootKey : rootKey + Path.SEPARATOR;
+      this.blockSize = blockSize;
+      this.pending = new ArrayDeque<>();
+      this.openDirectories = new ArrayList<>();
+      this.emittedDirectories = new ArrayList<>();
+      this.emittedDirectories.add(new HashSet<>());
+    }
+
+    private TreeIterator(FileStatus fileStatus) {
+      this(fileStatus, fileStatus.getBlockSize());
+      this.pending.add(fileStatus);
+      this.exhausted = true;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      while (pending.isEmpty() && !exhausted) {
+        fetchNextPage();
+      }
+      return !pending.isEmpty();
+    }
+
+    @Override
+    public FileStatus next() throws IOException {
+      if (!hasNext()) {
+        throw new NoSuchElementException("No more entries below " + rootStatus.getPath());
+      }
+      return pending.poll();
+    }
+
+    private void fetchNextPage() throws IOException {
+      try {
+        if (listing == null) {
+          listing = s3.listObjects(new ListObjectsRequest().withBucketName(rootUri.getHost()).withPrefix(prefix));
+        } else {
+          listing = s3.listNextBatchOfObjects(listing);
+        }
+      } catch (AmazonClientException e) {
+        throw new IOException("Failed to list " + rootStatus.getPath(), e);
+      }
+      for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+        addKey(summary);
+      }
+      exhausted = !listing.isTruncated();
+    }
+
+    void addKey(S3ObjectSummary summary) {
+      String relativeKey = summary.getKey().substring(prefix.length());
+      boolean isMarker = relativeKey.endsWith(Path.SEPARATOR);
+      boolean isS3nMarker = relativeKey.endsWith(S3N_FOLDER_SUFFIX);
+      if (isS3nMarker) {
+        relativeKey = relativeKey.substring(0, relativeKey.length() - S3N_FOLDER_SUFFIX.length());
+        isMarker = true;
+      }
+      if (relativeKey.isEmpty() || relativeKey.equals(Path.SEPARATOR)) {
+        // the marker of the root itself
+        return;
+      }
+
+      String[] parts = relativeKey.split(Path.SEPARATOR);
+      int directoryCount = isMarker ? parts.length : parts.length - 1;
+      int common = 0;
+      while (common < openDirectories.size() && common < directoryCount &&
+        openDirectories.get(common).equals(parts[common])) {
+        common++;
+      }
+      if (isS3nMarker && common == directoryCount - 1 && emittedDirectories.get(common).contains(parts[common])) {
+        // the directory was already emitted for the keys below it
+        return;
+      }
+      openDirectories.subList(common, openDirectories.size()).clear();
+      emittedDirectories.subList(common + 1, emittedDirectories.size()).clear();
+
+      StringBuilder relativePath = new StringBuilder();
+      for (int i = 0; i < common; i++) {
+        relativePath.append(parts[i]).append(Path.SEPARATOR);
+      }
+      for (int i = common; i < directoryCount; i++) {
+        openDirectories.add(parts[i]);
+        emittedDirectories.get(i).add(parts[i]);
+        emittedDirectories.add(new HashSet<>());
+        relativePath.append(parts[i]);
+        pending.add(new FileStatus(0, true, 1, 0, 0, 0, null, rootStatus.getOwner(), rootStatus.getGroup(),
+                                   toPath(relativePath.toString())));
+        relativePath.append(Path.SEPARATOR);
+      }
+
+      if (!isMarker) {
+        pending.add(new FileStatus(summary.getSize(), false, 1, blockSize, summary.getLastModified().getTime(), 0,
+                                   null, rootStatus.getOwner(), rootStatus.getGroup(), toPath(relativeKey)));
+      }
+    }
+
+    private Path toPath(String relativeKey) {
+      return new Path(rootUri.getScheme(), rootUri.getAuthority(), Path.SEPARATOR + prefix + relativeKey);
+    }
+  }
+}
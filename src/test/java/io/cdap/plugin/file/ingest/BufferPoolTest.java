@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+public class BufferPoolTest {
+  private static final int MB = 1 << 20;
+
+  @Test
+  public void testBufferSize() {
+    Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, BufferPool.getBufferSize(0, MB));
+    Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, BufferPool.getBufferSize(100, MB));
+    Assert.assertEquals(8 << 10, BufferPool.getBufferSize(5000, MB));
+    Assert.assertEquals(MB, BufferPool.getBufferSize(MB, MB));
+    Assert.assertEquals(3 * MB, BufferPool.getBufferSize(100L * MB, 3 * MB));
+    Assert.assertEquals(3 * MB, BufferPool.getBufferSize(3 * MB - 1, 3 * MB));
+  }
+
+  @Test
+  public void testBuffersAreReusedWithinCapacity() {
+    BufferPool pool = new BufferPool(20 << 10);
+    byte[] small = pool.acquire(100, MB);
+    byte[] large = pool.acquire(10000, MB);
+    Assert.assertEquals(20 << 10, pool.getInUseBytes());
+    pool.release(small);
+    pool.release(large);
+    Assert.assertEquals((4 << 10) + (16 << 10), pool.getPooledBytes());
+    Assert.assertEquals(0, pool.getInUseBytes());
+
+    Assert.assertSame(large, pool.acquire(9000, MB));
+    Assert.assertSame(small, pool.acquire(1, MB));
+    Assert.assertEquals(0, pool.getPooledBytes());
+    pool.release(small);
+    pool.release(large);
+
+    // idle buffers are dropped to make room for a buffer of another size
+    ByteBuffer direct = pool.acquireDirect(8 << 10, MB);
+    Assert.assertTrue(direct.isDirect());
+    Assert.assertEquals(8 << 10, direct.capacity());
+    Assert.assertTrue(pool.getPooledBytes() + pool.getInUseBytes() <= 20 << 10);
+    pool.releaseDirect(direct);
+  }
+
+  @Test
+  public void testBuffersInUseAreBoundedByCapacity() {
+    BufferPool pool = new BufferPool(20 << 10);
+    byte[] large = pool.acquire(16 << 10, MB);
+    // the capacity is used up, so buffers fall back to the smallest size, or aren't handed out at all
+    Assert.assertNull(pool.tryAcquire(16 << 10, MB));
+    byte[] fallback = pool.acquire(16 << 10, MB);
+    Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, fallback.length);
+    ByteBuffer direct = pool.acquireDirect(MB, MB);
+    Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, direct.capacity());
+
+    pool.release(large);
+    pool.release(fallback);
+    pool.releaseDirect(direct);
+    Assert.assertNotNull(pool.tryAcquire(16 << 10, MB));
+  }
+
+  @Test
+  public void testSharedPoolKeepsTheLargestCapacity() {
+    BufferPool pool = BufferPool.getInstance(4 * MB);
+    // a copy with a smaller setting doesn't lower the limit of the others
+    Assert.assertSame(pool, BufferPool.getInstance(1));
+    byte[] buffer = pool.tryAcquire(2 * MB, 2 * MB);
+    Assert.assertNotNull(buffer);
+    pool.release(buffer);
+  }
+
+  @Test
+  public void testCopy() throws IOException {
+    byte[] content = new byte[100000];
+    new Random(0).nextBytes(content);
+    BufferPool pool = new BufferPool(MB);
+
+    for (boolean direct : new boolean[] { true, false }) {
+      FakeInputStream input = new FakeInputStream(content);
+      ChannelOutputStream output = new ChannelOutputStream();
+      Assert.assertEquals(content.length, PooledCopy.copy(new FSDataInputStream(input), output, content.length, pool,
+                                                          32 << 10, direct));
+      Assert.assertArrayEquals(content, output.toByteArray());
+      Assert.assertEquals(direct, input.byteBufferReads > 0);
+      Assert.assertEquals(direct, output.byteBufferWrites > 0);
+    }
+    // a heap and a direct buffer of 32 KB were returned to the pool
+    Assert.assertEquals(64 << 10, pool.getPooledBytes());
+  }
+
+  @Test
+  public void testOutputWithoutChannelIsCopiedThroughHeap() throws IOException {
+    byte[] content = new byte[100000];
+    new Random(0).nextBytes(content);
+    BufferPool pool = new BufferPool(MB);
+
+    FakeInputStream input = new FakeInputStream(content);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Assert.assertEquals(content.length, PooledCopy.copy(new FSDataInputStream(input), output, content.length, pool,
+                                                        32 << 10, true));
+    Assert.assertArrayEquals(content, output.toByteArray());
+    // the output only accepts byte arrays, so reading into a direct buffer would only add a copy
+    Assert.assertEquals(0, input.byteBufferReads);
+  }
+
+  /**
+   * An output stream that can also write byte buffers, and counts how often it did.
+   */
+  private static class ChannelOutputStream extends ByteArrayOutputStream implements WritableByteChannel {
+    private int byteBufferWrites;
+
+    @Override
+    public int write(ByteBuffer buffer) {
+      byteBufferWrites++;
+      int length = buffer.remaining();
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      write(bytes, 0, length);
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+
+  /**
+   * A stream that can read into byte buffers, and counts how often it did.
+   */
+  private static class FakeInputStream extends ByteArrayInputStream
+    implements Seekable, PositionedReadable, ByteBufferReadable {
+    private int byteBufferReads;
+
+    FakeInputStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer buffer) {
+      byteBufferReads++;
+      int length = Math.min(buffer.remaining(), available());
+      if (length == 0) {
+        return -1;
+      }
+      buffer.put(buf, pos, length);
+      pos += length;
+      return length;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(long pos) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getPos() {
+      return pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) {
+      return false;
+    }
+  }
+}
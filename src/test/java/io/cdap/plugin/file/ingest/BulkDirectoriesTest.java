@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+public class BulkDirectoriesTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testDirectoriesAreCreatedOnCommit() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    for (String directory : Arrays.asList("a/b/c", "a/d", "e")) {
+      Assert.assertTrue(new File(source, directory).mkdirs());
+    }
+    File destination = temporaryFolder.newFolder("destination");
+
+    Configuration conf = createConf(destination);
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    // two tasks, one of which receives a directory that the other one receives too
+    for (String[] directories : new String[][] { { "a", "a/b", "a/b/c" }, { "a/d", "e", "a" } }) {
+      RecordWriter<?, FileMetadata> writer = outputFormat.getRecordWriter(context);
+      for (String directory : directories) {
+        Path path = new Path(new File(source, directory).getAbsolutePath());
+        writer.write(null, new FileMetadata(fileSystem.getFileStatus(path), source.getAbsolutePath() + "/"));
+      }
+      writer.close(context);
+    }
+    // only the records of the tasks exist before the commit
+    Assert.assertArrayEquals(new String[] { "_directories" }, destination.list());
+
+    outputFormat.getOutputCommitter(context).commitJob(new JobContextImpl(conf, new JobID()));
+    for (String directory : Arrays.asList("a/b/c", "a/d", "e")) {
+      Assert.assertTrue(new File(destination, directory).isDirectory());
+    }
+    Assert.assertFalse(new File(destination, "_directories").exists());
+  }
+
+  @Test
+  public void testPermissionsAreAppliedToParentsOfCopiedFiles() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    Assert.assertTrue(new File(source, "a/b").mkdirs());
+    Assert.assertTrue(new File(source, "a/b/file.txt").createNewFile());
+    Files.setPosixFilePermissions(new File(source, "a/b").toPath(), PosixFilePermissions.fromString("rwxr-x---"));
+    Files.setPosixFilePermissions(new File(source, "a").toPath(), PosixFilePermissions.fromString("rwx------"));
+    File destination = temporaryFolder.newFolder("destination");
+
+    Configuration conf = createConf(destination);
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    RecordWriter<?, FileMetadata> writer = outputFormat.getRecordWriter(context);
+    // the file is copied before the job commits, which creates its parents with default permissions
+    for (String relativePath : Arrays.asList("a", "a/b", "a/b/file.txt")) {
+      Path path = new Path(new File(source, relativePath).getAbsolutePath());
+      writer.write(null, new FileMetadata(fileSystem.getFileStatus(path), source.getAbsolutePath() + "/"));
+    }
+    writer.close(context);
+    Assert.assertTrue(new File(destination, "a/b/file.txt").exists());
+
+    outputFormat.getOutputCommitter(context).commitJob(new JobContextImpl(conf, new JobID()));
+    Assert.assertEquals("rwx------", PosixFilePermissions.toString(
+      Files.getPosixFilePermissions(new File(destination, "a").toPath())));
+    Assert.assertEquals("rwxr-x---", PosixFilePermissions.toString(
+      Files.getPosixFilePermissions(new File(destination, "a/b").toPath())));
+  }
+
+  @Test
+  public void testExistingDirectoriesKeepTheirPermissions() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    Assert.assertTrue(new File(source, "a/b").mkdirs());
+    Assert.assertTrue(new File(source, "a/b/file.txt").createNewFile());
+    Files.setPosixFilePermissions(new File(source, "a/b").toPath(), PosixFilePermissions.fromString("rwx------"));
+    Files.setPosixFilePermissions(new File(source, "a").toPath(), PosixFilePermissions.fromString("rwx------"));
+    File destination = temporaryFolder.newFolder("destination");
+    Assert.assertTrue(new File(destination, "a").mkdirs());
+    Files.setPosixFilePermissions(new File(destination, "a").toPath(), PosixFilePermissions.fromString("rwxrwxr-x"));
+
+    Configuration conf = createConf(destination);
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    RecordWriter<?, FileMetadata> writer = outputFormat.getRecordWriter(context);
+    for (String relativePath : Arrays.asList("a", "a/b", "a/b/file.txt")) {
+      Path path = new Path(new File(source, relativePath).getAbsolutePath());
+      writer.write(null, new FileMetadata(fileSystem.getFileStatus(path), source.getAbsolutePath() + "/"));
+    }
+    writer.close(context);
+
+    outputFormat.getOutputCommitter(context).commitJob(new JobContextImpl(conf, new JobID()));
+    // the directory that existed before the job is unchanged, while the one the job created gets the permission
+    Assert.assertEquals("rwxrwxr-x", PosixFilePermissions.toString(
+      Files.getPosixFilePermissions(new File(destination, "a").toPath())));
+    Assert.assertEquals("rwx------", PosixFilePermissions.toString(
+      Files.getPosixFilePermissions(new File(destination, "a/b").toPath())));
+  }
+
+  @Test
+  public void testTruncatedMarkerIsIgnored() throws Exception {
+    File destination = temporaryFolder.newFolder("destination");
+    Configuration conf = createConf(destination);
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    // a complete record, followed by one that a killed task attempt never finished
+    try (FSDataOutputStream output = fileSystem.create(new Path(destination.getAbsolutePath(), "_directories/task"))) {
+      output.writeByte(0);
+      output.writeUTF("complete");
+      output.writeBoolean(false);
+      output.writeShort(0755);
+      output.writeUTF("owner");
+      output.writeUTF("group");
+      output.writeByte(0);
+      output.writeUTF("partial");
+      output.writeBoolean(false);
+      output.writeShort(0755);
+    }
+
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    outputFormat.getOutputCommitter(context).commitJob(new JobContextImpl(conf, new JobID()));
+    Assert.assertTrue(new File(destination, "complete").isDirectory());
+    Assert.assertFalse(new File(destination, "partial").exists());
+    Assert.assertFalse(new File(destination, "_directories").exists());
+  }
+
+  private Configuration createConf(File destination) {
+    Configuration conf = new Configuration();
+    conf.set(FileCopyOutputFormat.BASE_PATH, destination.getAbsolutePath());
+    conf.set(FileCopyOutputFormat.FS_SCHEME, "file");
+    conf.set(FileCopyOutputFormat.FS_HOST_URI, "file:///");
+    conf.setBoolean(FileCopyOutputFormat.BULK_DIRECTORY_CREATION, true);
+    return conf;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class ChunkedFilesTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testChunksAreStitchedOnCommit() throws Exception {
+    byte[] content = createSource("large.bin", 10000);
+    File destination = temporaryFolder.newFolder("destination");
+    Configuration conf = createConf(destination);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    writeChunks(outputFormat, context, "large.bin");
+
+    File target = new File(destination, "large.bin");
+    Assert.assertFalse(target.exists());
+    // local chunks are written in place into a file of the full size
+    Assert.assertEquals(10000, new File(destination, ".large.bin.chunks").length());
+
+    outputFormat.getOutputCommitter(context).commitJob(new JobContextImpl(conf, new JobID()));
+    Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    // only the stitched file is left
+    Assert.assertArrayEquals(new String[] { "large.bin" }, destination.list());
+  }
+
+  @Test
+  public void testFilesAreStitchedTogether() throws Exception {
+    File destination = temporaryFolder.newFolder("destination");
+    Configuration conf = createConf(destination);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    byte[][] contents = new byte[20][];
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = createSource("large" + i + ".bin", 9000 + i);
+      writeChunks(outputFormat, context, "large" + i + ".bin");
+    }
+
+    outputFormat.getOutputCommitter(context).commitJob(new JobContextImpl(conf, new JobID()));
+    for (int i = 0; i < contents.length; i++) {
+      Assert.assertArrayEquals(contents[i], Files.readAllBytes(new File(destination, "large" + i + ".bin").toPath()));
+    }
+    Assert.assertEquals(contents.length, destination.list().length);
+  }
+
+  @Test
+  public void testStitchingResumesAfterFailedCommit() throws Exception {
+    byte[] content = createSource("large.bin", 10000);
+    File destination = temporaryFolder.newFolder("destination");
+    Configuration conf = createConf(destination);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    writeChunks(outputFormat, context, "large.bin");
+    // an earlier commit stitched the file, and failed before it removed the marker
+    File target = new File(destination, "large.bin");
+    Assert.assertTrue(new File(destination, ".large.bin.chunks").renameTo(target));
+
+    outputFormat.getOutputCommitter(context).commitJob(new JobContextImpl(conf, new JobID()));
+    Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    Assert.assertArrayEquals(new String[] { "large.bin" }, destination.list());
+  }
+
+  @Test(expected = IOException.class)
+  public void testChunksAreRefusedWithoutConcat() throws Exception {
+    FileSystem fileSystem = new RawLocalFileSystem();
+    fileSystem.initialize(URI.create("file:///"), new Configuration());
+    ChunkedFiles.checkSupported(fileSystem);
+  }
+
+  private byte[] createSource(String name, int size) throws IOException {
+    File sourceDirectory = new File(temporaryFolder.getRoot(), "source");
+    if (!sourceDirectory.exists()) {
+      Assert.assertTrue(sourceDirectory.mkdir());
+    }
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    Files.write(new File(sourceDirectory, name).toPath(), content);
+    return content;
+  }
+
+  private static Configuration createConf(File destination) {
+    Configuration conf = new Configuration();
+    conf.set(FileCopyOutputFormat.BASE_PATH, destination.getAbsolutePath());
+    conf.set(FileCopyOutputFormat.FS_SCHEME, "file");
+    conf.set(FileCopyOutputFormat.FS_HOST_URI, "file:///");
+    // smaller than a chunk, so that every chunk takes several reads
+    conf.setInt(FileCopyOutputFormat.BUFFER_SIZE, 1000);
+    return conf;
+  }
+
+  /**
+   * Copies the chunks of a source file in reverse order, with a smaller last chunk.
+   */
+  private void writeChunks(FileCopyOutputFormat outputFormat, TaskAttemptContextImpl context,
+                           String name) throws Exception {
+    File source = new File(new File(temporaryFolder.getRoot(), "source"), name);
+    FileStatus fileStatus = FileSystem.getLocal(context.getConfiguration())
+      .getFileStatus(new Path(source.getAbsolutePath()));
+    for (int chunkIndex = 2; chunkIndex >= 0; chunkIndex--) {
+      FileMetadata fileMetadata = new FileMetadata(fileStatus, source.getParent() + "/");
+      fileMetadata.setChunk(chunkIndex, 3, 4096);
+      RecordWriter<?, FileMetadata> writer = outputFormat.getRecordWriter(context);
+      writer.write(null, fileMetadata);
+      writer.close(context);
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentCopierTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testSmallFilesDoNotWaitForLargeFiles() throws Exception {
+    ConcurrentCopier copier = new ConcurrentCopier(4, 1L << 30);
+    CountDownLatch largeFileCopying = new CountDownLatch(1);
+    CountDownLatch smallFilesCopied = new CountDownLatch(10);
+    // occupies the only large file worker until the small files are copied
+    copier.submit(ConcurrentCopier.LARGE_FILE_SIZE, () -> {
+      largeFileCopying.countDown();
+      await(smallFilesCopied);
+    });
+    Assert.assertTrue(largeFileCopying.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 10; i++) {
+      copier.submit(100, smallFilesCopied::countDown);
+    }
+    copier.close();
+    Assert.assertEquals(0, smallFilesCopied.getCount());
+  }
+
+  @Test
+  public void testSmallFilesDoNotWaitForFilesLargerThanTheBudget() throws Exception {
+    long budget = FileCopyRecordWriter.DEFAULT_IN_FLIGHT_BYTES;
+    ConcurrentCopier copier = new ConcurrentCopier(4, budget);
+    CountDownLatch largeFileCopying = new CountDownLatch(1);
+    CountDownLatch smallFilesCopied = new CountDownLatch(1000);
+    // both files are larger than the budget, one occupies the only large file worker and the other one is queued
+    for (int i = 0; i < 2; i++) {
+      copier.submit(2 * budget, () -> {
+        largeFileCopying.countDown();
+        await(smallFilesCopied);
+      });
+    }
+    Assert.assertTrue(largeFileCopying.await(10, TimeUnit.SECONDS));
+    // together the small files use up much more than the budget
+    for (int i = 0; i < 1000; i++) {
+      copier.submit(ConcurrentCopier.LARGE_FILE_SIZE - 1, smallFilesCopied::countDown);
+    }
+    copier.close();
+    Assert.assertEquals(0, smallFilesCopied.getCount());
+  }
+
+  @Test
+  public void testBudgetLimitsInFlightBytes() throws Exception {
+    ConcurrentCopier copier = new ConcurrentCopier(8, 3 << 20);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    for (int i = 0; i < 20; i++) {
+      copier.submit(1 << 20, () -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        sleep();
+        running.decrementAndGet();
+      });
+    }
+    copier.close();
+    Assert.assertTrue(maxRunning.get() <= 3);
+  }
+
+  @Test
+  public void testFailureIsSurfaced() throws Exception {
+    ConcurrentCopier copier = new ConcurrentCopier(2, 1 << 20);
+    copier.submit(10, () -> {
+      throw new IOException("broken");
+    });
+    try {
+      // either a later submit or the close fails
+      for (int i = 0; i < 1000; i++) {
+        copier.submit(10, ConcurrentCopierTest::sleep);
+      }
+      copier.close();
+      Assert.fail("The failed copy was not surfaced.");
+    } catch (IOException e) {
+      Assert.assertEquals("broken", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void testRecordWriterCopiesConcurrently() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    for (int i = 0; i < 50; i++) {
+      File directory = new File(source, "dir" + i % 5);
+      Assert.assertTrue(directory.isDirectory() || directory.mkdirs());
+      Files.write(new File(directory, "file" + i).toPath(), new byte[i * 100]);
+    }
+    File destination = temporaryFolder.newFolder("destination");
+
+    Configuration conf = new Configuration();
+    conf.set(FileCopyOutputFormat.BASE_PATH, destination.getAbsolutePath());
+    conf.set(FileCopyOutputFormat.FS_SCHEME, "file");
+    conf.set(FileCopyOutputFormat.FS_HOST_URI, "file:///");
+    conf.setInt(FileCopyOutputFormat.COPY_PARALLELISM, 8);
+    conf.setLong(FileCopyOutputFormat.IN_FLIGHT_BYTES, 10000);
+
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    RecordWriter<?, FileMetadata> writer = new FileCopyOutputFormat().getRecordWriter(context);
+    for (int i = 0; i < 5; i++) {
+      FileStatus directory = fileSystem.getFileStatus(new Path(source.getAbsolutePath(), "dir" + i));
+      writer.write(null, new FileMetadata(directory, source.getAbsolutePath() + "/"));
+      for (FileStatus file : fileSystem.listStatus(directory.getPath())) {
+        writer.write(null, new FileMetadata(file, source.getAbsolutePath() + "/"));
+      }
+    }
+    writer.close(context);
+
+    for (int i = 0; i < 50; i++) {
+      Assert.assertEquals(i * 100, new File(destination, "dir" + i % 5 + "/file" + i).length());
+    }
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IOException("Timed out.");
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void sleep() throws IOException {
+    try {
+      TimeUnit.MILLISECONDS.sleep(5);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
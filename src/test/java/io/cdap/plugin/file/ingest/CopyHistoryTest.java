@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class CopyHistoryTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testSaveLoadAndPredict() throws Exception {
+    FileSystem fileSystem = FileSystem.getLocal(new Configuration());
+    File directory = temporaryFolder.newFolder("history");
+    Path historyDirectory = new Path(directory.getAbsolutePath());
+
+    // two tasks that copied files of different sizes
+    CopyHistory task1 = new CopyHistory();
+    task1.record("s3a", "hdfs", 1000, 2000);
+    task1.record("s3a", "hdfs", 1000, 4000);
+    task1.save(fileSystem, historyDirectory);
+    CopyHistory task2 = new CopyHistory();
+    task2.record("s3a", "hdfs", 1 << 20, 1 << 20);
+    task2.record("file", "s3a", 1000, 10);
+    task2.save(fileSystem, historyDirectory);
+    // a task without copies saves nothing
+    new CopyHistory().save(fileSystem, historyDirectory);
+    Assert.assertEquals(2, directory.list().length);
+    Files.write(new File(directory, "corrupt.history").toPath(), new byte[] { 1, 2, 3 });
+
+    CopyHistory history = CopyHistory.load(fileSystem, historyDirectory);
+    // the readable files are compacted into one, the corrupt one is left alone
+    Assert.assertEquals(2, directory.list().length);
+    Assert.assertNull(history.getEstimator("hdfs", null));
+    Assert.assertNull(history.getEstimator("s3a", "file"));
+
+    CopyHistory.Estimator estimator = history.getEstimator("s3a", "hdfs");
+    Assert.assertNotNull(estimator);
+    // the average of the bucket, scaled by size
+    Assert.assertEquals(3000, estimator.predict(1000));
+    Assert.assertEquals(1500, estimator.predict(500), 2);
+    Assert.assertEquals(1 << 20, estimator.predict(1 << 20));
+    // sizes without copies are predicted from the closest bucket
+    Assert.assertEquals(1 << 21, estimator.predict(1 << 21), 1);
+    Assert.assertEquals(2 * 3000, CopyHistory.load(fileSystem, historyDirectory).getEstimator("s3a", null)
+      .predict(2000), 3);
+  }
+}
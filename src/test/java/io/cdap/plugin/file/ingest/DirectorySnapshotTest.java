@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class DirectorySnapshotTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testUnchangedDirectoriesAreCarriedForward() throws IOException {
+    FileSystem fileSystem = FileSystem.getLocal(new Configuration());
+    File root = temporaryFolder.newFolder("source");
+    for (int i = 0; i < 3; i++) {
+      File directory = new File(root, "dir" + i + "/sub");
+      Assert.assertTrue(directory.mkdirs());
+      Files.write(new File(directory, "file.txt").toPath(), new byte[i + 1]);
+    }
+    List<String> sourcePaths = Collections.singletonList(root.getAbsolutePath() + "/");
+    Path snapshotDirectory = new Path(temporaryFolder.newFolder("state").getAbsolutePath(), "snapshot");
+
+    try (DirectorySnapshot snapshot = DirectorySnapshot.open(fileSystem, snapshotDirectory, fileSystem)) {
+      Assert.assertEquals(walk(fileSystem, sourcePaths, null), walk(fileSystem, sourcePaths, snapshot));
+      snapshot.commit();
+      // the root and three directories with a sub directory each
+      Assert.assertEquals(7, snapshot.getListedDirectories());
+    }
+
+    // a new file changes the modification time of its directory only
+    File sub = new File(root, "dir1/sub");
+    Files.write(new File(sub, "new.txt").toPath(), new byte[1]);
+    Assert.assertTrue(sub.setLastModified(sub.lastModified() + 10000));
+    try (DirectorySnapshot snapshot = DirectorySnapshot.open(fileSystem, snapshotDirectory, fileSystem)) {
+      Set<String> entries = walk(fileSystem, sourcePaths, snapshot);
+      Assert.assertEquals(walk(fileSystem, sourcePaths, null), entries);
+      Assert.assertTrue(entries.stream().anyMatch(entry -> entry.startsWith(sub.getAbsolutePath() + "/new.txt|")));
+      snapshot.commit();
+      Assert.assertEquals(1, snapshot.getListedDirectories());
+      Assert.assertEquals(6, snapshot.getReusedDirectories());
+    }
+
+    // an uncommitted generation is discarded, and the last committed one is used
+    try (DirectorySnapshot snapshot = DirectorySnapshot.open(fileSystem, snapshotDirectory, fileSystem)) {
+      walk(fileSystem, sourcePaths, snapshot);
+    }
+    try (DirectorySnapshot snapshot = DirectorySnapshot.open(fileSystem, snapshotDirectory, fileSystem)) {
+      walk(fileSystem, sourcePaths, snapshot);
+      Assert.assertEquals(0, snapshot.getListedDirectories());
+      snapshot.commit();
+    }
+    Assert.assertEquals(1, fileSystem.listStatus(snapshotDirectory).length);
+  }
+
+  private Set<String> walk(FileSystem fileSystem, List<String> sourcePaths,
+                           DirectorySnapshot snapshot) throws IOException {
+    DirectoryWalker.Lister lister = fileSystem::listLocatedStatus;
+    if (snapshot != null) {
+      lister = snapshot.wrap(lister);
+    }
+    Set<String> entries = Collections.synchronizedSet(new HashSet<>());
+    new DirectoryWalker(lister, 2).walk(sourcePaths, true, (prefix, status) ->
+      entries.add(status.getPath().toUri().getPath() + "|" + status.getLen() + "|" + status.getModificationTime()));
+    return entries;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+public class DirectoryWalkerTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testParallelWalkMatchesSerialWalk() throws IOException {
+    File root = temporaryFolder.newFolder("root");
+    for (int i = 0; i < 5; i++) {
+      File dir = new File(root, "dir" + i);
+      for (int j = 0; j < 4; j++) {
+        Assert.assertTrue(new File(dir, "sub" + j).mkdirs());
+        Assert.assertTrue(new File(dir, "sub" + j + "/file.txt").createNewFile());
+      }
+    }
+    // empty directories must be reported too
+    Assert.assertTrue(new File(root, "empty").mkdirs());
+
+    List<String> sourcePaths = Collections.singletonList(root.getAbsolutePath() + "/");
+    Set<String> serial = walk(sourcePaths, true, 1);
+    Set<String> parallel = walk(sourcePaths, true, 8);
+
+    // 5 top level directories with 4 sub directories holding one file each, plus the empty directory
+    Assert.assertEquals(5 + 5 * 4 * 2 + 1, serial.size());
+    Assert.assertEquals(serial, parallel);
+    Assert.assertTrue(serial.contains(root.getAbsolutePath() + "/|" + root.getAbsolutePath() + "/empty"));
+
+    // without recursion only the direct children are listed
+    Assert.assertEquals(6, walk(sourcePaths, false, 4).size());
+  }
+
+  @Test
+  public void testDeepTree() throws IOException {
+    File dir = temporaryFolder.newFolder("deep");
+    String sourcePath = dir.getAbsolutePath() + "/";
+    for (int i = 0; i < 500; i++) {
+      dir = new File(dir, "d");
+    }
+    Assert.assertTrue(dir.mkdirs());
+
+    Assert.assertEquals(500, walk(Collections.singletonList(sourcePath), true, 1).size());
+    Assert.assertEquals(500, walk(Collections.singletonList(sourcePath), true, 4).size());
+  }
+
+  @Test
+  public void testOverlappingSourcePaths() throws IOException {
+    File root = temporaryFolder.newFolder("overlap");
+    Assert.assertTrue(new File(root, "a/b").mkdirs());
+    Assert.assertTrue(new File(root, "a/b/file.txt").createNewFile());
+    String rootPath = root.getAbsolutePath();
+
+    Set<String> expected = new HashSet<>();
+    expected.addAll(walk(Collections.singletonList(rootPath + "/"), true, 1));
+    expected.addAll(walk(Collections.singletonList(rootPath + "/a/b"), true, 1));
+    expected.addAll(walk(Collections.singletonList(rootPath + "/a/b/file.txt"), true, 1));
+
+    // nested and duplicated source paths produce the same entries as listing each of them separately
+    List<String> sourcePaths = Arrays.asList(rootPath + "/a/b", rootPath + "/", rootPath + "/a/b/file.txt",
+                                             rootPath + "/");
+    Assert.assertEquals(expected, walk(sourcePaths, true, 1));
+    Assert.assertEquals(expected, walk(sourcePaths, true, 4));
+    Assert.assertEquals(1, DirectoryWalker.groupSourcePaths(sourcePaths, true).size());
+    Assert.assertEquals(3, DirectoryWalker.groupSourcePaths(sourcePaths, false).size());
+  }
+
+  @Test
+  public void testTreeListerMatchesDirectoryListing() throws IOException {
+    File root = temporaryFolder.newFolder("tree");
+    Assert.assertTrue(new File(root, "a/b").mkdirs());
+    Assert.assertTrue(new File(root, "a/b/file.txt").createNewFile());
+    Assert.assertTrue(new File(root, "skip/c").mkdirs());
+    Assert.assertTrue(new File(root, "skip/c/file.txt").createNewFile());
+    Assert.assertTrue(new File(root, "z.txt").createNewFile());
+    List<String> sourcePaths = Arrays.asList(root.getAbsolutePath() + "/", root.getAbsolutePath() + "/a");
+
+    FileSystem fileSystem = FileSystem.getLocal(new Configuration());
+    // lists the whole tree depth first, which keeps the contents of every directory contiguous
+    DirectoryWalker.TreeLister treeLister = path -> {
+      List<FileStatus> entries = new ArrayList<>();
+      Deque<FileStatus> pending = new ArrayDeque<>(Arrays.asList(fileSystem.listStatus(path)));
+      while (!pending.isEmpty()) {
+        FileStatus fileStatus = pending.pop();
+        entries.add(fileStatus);
+        if (fileStatus.isDirectory()) {
+          List<FileStatus> children = Arrays.asList(fileSystem.listStatus(fileStatus.getPath()));
+          Collections.reverse(children);
+          children.forEach(pending::push);
+        }
+      }
+      Iterator<FileStatus> iter = entries.iterator();
+      return new RemoteIterator<FileStatus>() {
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public FileStatus next() {
+          return iter.next();
+        }
+      };
+    };
+
+    for (int parallelism : new int[] { 1, 3 }) {
+      Set<String> expected = Collections.synchronizedSet(new HashSet<>());
+      Set<String> actual = Collections.synchronizedSet(new HashSet<>());
+      new DirectoryWalker(fileSystem::listLocatedStatus, parallelism)
+        .walk(sourcePaths, true, (prefix, status) -> expected.add(prefix + "|" + status.getPath().toUri().getPath()) &&
+          !status.getPath().getName().equals("skip"));
+      new DirectoryWalker(fileSystem::listLocatedStatus, treeLister, parallelism)
+        .walk(sourcePaths, true, (prefix, status) -> actual.add(prefix + "|" + status.getPath().toUri().getPath()) &&
+          !status.getPath().getName().equals("skip"));
+      Assert.assertEquals(expected, actual);
+      // a, a/b, a/b/file.txt, skip and z.txt for the root, plus b and b/file.txt for the nested source path
+      Assert.assertEquals(7, actual.size());
+    }
+  }
+
+  @Test
+  public void testMissingSourcePathIsSkipped() throws IOException {
+    File root = temporaryFolder.newFolder("missing");
+    Assert.assertTrue(walk(Collections.singletonList(root.getAbsolutePath() + "/nothing"), true, 2).isEmpty());
+  }
+
+  private Set<String> walk(List<String> sourcePaths, boolean recursive, int parallelism) throws IOException {
+    FileSystem fileSystem = FileSystem.getLocal(new Configuration());
+    Set<String> entries = Collections.synchronizedSet(new HashSet<>());
+    new DirectoryWalker(fileSystem::listLocatedStatus, parallelism).walk(sourcePaths, recursive, (prefix, status) -> {
+      Assert.assertTrue(entries.add(prefix + "|" + status.getPath().toUri().getPath()));
+      return true;
+    });
+    return entries;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.RemoteIterator;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class ExternalSorterTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testSortIsStableAcrossRuns() throws IOException {
+    File spillDirectory = temporaryFolder.newFolder();
+    Random random = new Random(42);
+    try (ExternalSorter sorter = new ExternalSorter(spillDirectory, 1000)) {
+      for (int i = 0; i < 1000; i++) {
+        sorter.add(random.nextInt(20), ByteBuffer.allocate(4).putInt(i).array());
+      }
+      Assert.assertEquals(1000, sorter.size());
+      Assert.assertTrue(sorter.getRunCount() > 1);
+
+      long lastKey = Long.MIN_VALUE;
+      int lastSequence = -1;
+      int count = 0;
+      RemoteIterator<ExternalSorter.Record> iterator = sorter.sorted();
+      while (iterator.hasNext()) {
+        ExternalSorter.Record record = iterator.next();
+        int sequence = ByteBuffer.wrap(record.getValue()).getInt();
+        Assert.assertTrue(record.getKey() >= lastKey);
+        // records with equal keys keep the order they were added in
+        Assert.assertTrue(record.getKey() > lastKey || sequence > lastSequence);
+        lastKey = record.getKey();
+        lastSequence = sequence;
+        count++;
+      }
+      Assert.assertEquals(1000, count);
+    }
+    Assert.assertEquals(0, spillDirectory.list().length);
+  }
+
+  @Test
+  public void testInMemorySort() throws IOException {
+    try (ExternalSorter sorter = new ExternalSorter(temporaryFolder.newFolder(), Long.MAX_VALUE)) {
+      sorter.add(3, new byte[] { 3 });
+      sorter.add(-1, new byte[] { 1 });
+      sorter.add(2, new byte[] { 2 });
+      Assert.assertEquals(0, sorter.getRunCount());
+
+      RemoteIterator<ExternalSorter.Record> iterator = sorter.sorted();
+      Assert.assertEquals(-1, iterator.next().getKey());
+      Assert.assertEquals(2, iterator.next().getKey());
+      Assert.assertEquals(3, iterator.next().getKey());
+      Assert.assertFalse(iterator.hasNext());
+    }
+  }
+}
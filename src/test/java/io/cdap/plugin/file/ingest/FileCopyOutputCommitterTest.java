@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class FileCopyOutputCommitterTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testOnlyCommittedAttemptIsPromoted() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    Assert.assertTrue(new File(source, "a").mkdirs());
+    Files.write(new File(source, "a/file.txt").toPath(), "new".getBytes(StandardCharsets.UTF_8));
+    Files.write(new File(source, "other.txt").toPath(), "other".getBytes(StandardCharsets.UTF_8));
+    File destination = temporaryFolder.newFolder("destination");
+    Assert.assertTrue(new File(destination, "a").mkdirs());
+    Files.write(new File(destination, "a/file.txt").toPath(), "old".getBytes(StandardCharsets.UTF_8));
+
+    Configuration conf = createConf(destination);
+    conf.setBoolean(FileCopyOutputFormat.ENABLE_OVERWRITE, true);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    JobID jobID = new JobID("test", 1);
+    TaskID taskID = new TaskID(jobID, TaskType.MAP, 0);
+    // a speculative attempt that is killed, and the attempt that wins
+    TaskAttemptContext killed = new TaskAttemptContextImpl(conf, new TaskAttemptID(taskID, 0));
+    TaskAttemptContext winner = new TaskAttemptContextImpl(conf, new TaskAttemptID(taskID, 1));
+    for (TaskAttemptContext context : new TaskAttemptContext[] { killed, winner }) {
+      write(outputFormat, context, source, "a/file.txt", "other.txt");
+    }
+
+    // nothing is visible in the destination before an attempt commits
+    Assert.assertEquals("old", read(new File(destination, "a/file.txt")));
+    Assert.assertFalse(new File(destination, "other.txt").exists());
+
+    OutputCommitter committer = outputFormat.getOutputCommitter(winner);
+    Assert.assertTrue(committer.needsTaskCommit(winner));
+    committer.commitTask(winner);
+    Assert.assertEquals("new", read(new File(destination, "a/file.txt")));
+    Assert.assertEquals("other", read(new File(destination, "other.txt")));
+    Assert.assertFalse(committer.needsTaskCommit(winner));
+
+    committer.abortTask(killed);
+    Assert.assertFalse(committer.needsTaskCommit(killed));
+    committer.commitJob(new JobContextImpl(conf, jobID));
+    Assert.assertFalse(new File(destination, "_staging").exists());
+    Assert.assertEquals("new", read(new File(destination, "a/file.txt")));
+  }
+
+  @Test
+  public void testExistingFilesAreKeptWithoutOverwrite() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    Files.write(new File(source, "file.txt").toPath(), "new".getBytes(StandardCharsets.UTF_8));
+    File destination = temporaryFolder.newFolder("destination");
+
+    Configuration conf = createConf(destination);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    write(outputFormat, context, source, "file.txt");
+    // another task wrote the file in the meantime
+    Files.write(new File(destination, "file.txt").toPath(), "old".getBytes(StandardCharsets.UTF_8));
+
+    OutputCommitter committer = outputFormat.getOutputCommitter(context);
+    committer.commitTask(context);
+    Assert.assertEquals("old", read(new File(destination, "file.txt")));
+    Assert.assertFalse(committer.needsTaskCommit(context));
+  }
+
+  @Test
+  public void testNewDirectoriesArePromotedWhole() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    Assert.assertTrue(new File(source, "a/b").mkdirs());
+    Files.write(new File(source, "a/b/file.txt").toPath(), "new".getBytes(StandardCharsets.UTF_8));
+    Files.write(new File(source, "a/other.txt").toPath(), "other".getBytes(StandardCharsets.UTF_8));
+    File destination = temporaryFolder.newFolder("destination");
+
+    Configuration conf = createConf(destination);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    write(outputFormat, context, source, "a/b/file.txt", "a/other.txt");
+
+    outputFormat.getOutputCommitter(context).commitTask(context);
+    Assert.assertEquals("new", read(new File(destination, "a/b/file.txt")));
+    Assert.assertEquals("other", read(new File(destination, "a/other.txt")));
+    Assert.assertFalse(new File(FileCopyOutputCommitter.getTaskAttemptPath(conf, context.getTaskAttemptID())
+                                  .toUri().getPath()).exists());
+  }
+
+  @Test
+  public void testAbortedJobLeavesNoStagedFiles() throws Exception {
+    File source = temporaryFolder.newFolder("source");
+    Files.write(new File(source, "file.txt").toPath(), "new".getBytes(StandardCharsets.UTF_8));
+    File destination = temporaryFolder.newFolder("destination");
+
+    Configuration conf = createConf(destination);
+    FileCopyOutputFormat outputFormat = new FileCopyOutputFormat();
+    TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    write(outputFormat, context, source, "file.txt");
+
+    outputFormat.getOutputCommitter(context).abortJob(new JobContextImpl(conf, new JobID()), null);
+    Assert.assertArrayEquals(new String[0], destination.list());
+  }
+
+  private Configuration createConf(File destination) {
+    Configuration conf = new Configuration();
+    conf.set(FileCopyOutputFormat.BASE_PATH, destination.getAbsolutePath());
+    conf.set(FileCopyOutputFormat.FS_SCHEME, "file");
+    conf.set(FileCopyOutputFormat.FS_HOST_URI, "file:///");
+    conf.setBoolean(FileCopyOutputFormat.STAGED_COMMIT, true);
+    return conf;
+  }
+
+  private void write(FileCopyOutputFormat outputFormat, TaskAttemptContext context, File source,
+                     String... relativePaths) throws IOException, InterruptedException {
+    FileSystem fileSystem = FileSystem.getLocal(context.getConfiguration());
+    RecordWriter<?, FileMetadata> writer = outputFormat.getRecordWriter(context);
+    for (String relativePath : relativePaths) {
+      Path path = new Path(new File(source, relativePath).getAbsolutePath());
+      writer.write(null, new FileMetadata(fileSystem.getFileStatus(path), source.getAbsolutePath() + "/"));
+    }
+    writer.close(context);
+  }
+
+  private String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import io.cdap.plugin.file.ingest.s3.S3FileMetadata;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class FileMetadataStoreTest {
+
+  @Test
+  public void testViewMatchesOriginal() throws IOException {
+    FileMetadataStore store = new FileMetadataStore();
+    FileMetadata[] originals = new FileMetadata[] {
+      new FileMetadata(createStatus("hdfs://host/foo/bar/a.txt", 10, false), "/foo/bar"),
+      new FileMetadata(createStatus("hdfs://host/foo/bar/baz", 0, true), "/foo/"),
+      new FileMetadata(createStatus("hdfs://host/foo/bar/baz/\u00e9t\u00e9.txt", 30, false), "/foo/bar/baz"),
+      new FileMetadata(createStatus("file:/", 0, true), "/")
+    };
+    for (FileMetadata original : originals) {
+      store.add(original);
+    }
+
+    Assert.assertEquals(originals.length, store.size());
+    for (int i = 0; i < originals.length; i++) {
+      FileMetadata view = store.get(i);
+      Assert.assertEquals(originals[i].toRecord(), view.toRecord());
+      Assert.assertArrayEquals(serialize(originals[i]), serialize(view));
+    }
+  }
+
+  @Test
+  public void testS3ViewSerialization() throws IOException {
+    FileMetadataStore store = new FileMetadataStore();
+    S3FileMetadata original = new S3FileMetadata(createStatus("s3a://bucket/foo/bar/a.txt", 10, false), "/foo",
+                                                 "akey", "skey");
+    FileMetadata view = store.get(store.add(original));
+
+    // the view serializes the credentials too, so it can be read back as S3 metadata
+    S3FileMetadata recovered = new S3FileMetadata(new DataInputStream(new ByteArrayInputStream(serialize(view))));
+    Assert.assertEquals(original.toRecord(), recovered.toRecord());
+    Assert.assertEquals("akey", recovered.getAccessKeyId());
+    Assert.assertEquals("skey", recovered.getSecretKeyId());
+  }
+
+  @Test
+  public void testIndicesBySizeDescending() throws IOException {
+    FileMetadataStore store = new FileMetadataStore();
+    long[] sizes = new long[] { 5, 1, 9, 5, 0, 7, 5, 2000 };
+    for (int i = 0; i < sizes.length; i++) {
+      store.add(new FileMetadata(createStatus("hdfs://host/dir/file" + i, sizes[i], false), "/dir"));
+    }
+
+    // files of equal size keep their order
+    Assert.assertTrue(Arrays.equals(new int[] { 7, 2, 5, 0, 3, 6, 1, 4 }, store.getIndicesBySizeDescending()));
+  }
+
+  private static FileStatus createStatus(String path, long length, boolean isDir) {
+    return new FileStatus(length, isDir, 1, 0, 12345L, 0, new FsPermission((short) 0644), "owner", "group",
+                          new Path(path));
+  }
+
+  private static byte[] serialize(FileMetadata fileMetadata) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      fileMetadata.write(output);
+    }
+    return bytes.toByteArray();
+  }
+}
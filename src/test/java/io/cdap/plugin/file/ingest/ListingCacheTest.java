@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ListingCacheTest {
+  private static final long TTL = 60000L;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private FileSystem fileSystem;
+  private List<String> sourcePaths;
+  private Path cacheDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    fileSystem = FileSystem.getLocal(new Configuration());
+    File root = temporaryFolder.newFolder("source");
+    for (int i = 0; i < 3; i++) {
+      File directory = new File(root, "dir" + i + "/sub");
+      Assert.assertTrue(directory.mkdirs());
+      Files.write(new File(directory, "file.txt").toPath(), new byte[i + 1]);
+    }
+    Assert.assertTrue(new File(root, "empty").mkdirs());
+    sourcePaths = Collections.singletonList(root.getAbsolutePath() + "/");
+    cacheDirectory = new Path(temporaryFolder.newFolder("cache").getAbsolutePath(), "snapshot");
+  }
+
+  @Test
+  public void testSnapshotIsReused() throws IOException {
+    Set<String> expected = walk(null, Integer.MAX_VALUE);
+
+    try (ListingCache cache = open(TTL, 0L)) {
+      Assert.assertFalse(cache.isHit());
+      Assert.assertEquals(expected, walk(cache, Integer.MAX_VALUE));
+      cache.commit();
+      // the root, three directories with a sub directory each and the empty directory
+      Assert.assertEquals(8, cache.getListedDirectories());
+    }
+
+    // the files are gone, but the snapshot is still fresh
+    Assert.assertTrue(new File(sourcePaths.get(0), "dir0/sub/file.txt").delete());
+    try (ListingCache cache = open(TTL, TTL)) {
+      Assert.assertTrue(cache.isHit());
+      Assert.assertEquals(expected, walk(cache, Integer.MAX_VALUE));
+      Assert.assertEquals(8, cache.getReplayedDirectories());
+      Assert.assertEquals(0, cache.getListedDirectories());
+    }
+
+    // once the snapshot is stale, the source paths are listed again
+    try (ListingCache cache = open(TTL, TTL + 1)) {
+      Assert.assertFalse(cache.isHit());
+      Set<String> actual = walk(cache, Integer.MAX_VALUE);
+      Assert.assertEquals(expected.size() - 1, actual.size());
+      Assert.assertEquals(0, cache.getReplayedDirectories());
+    }
+  }
+
+  @Test
+  public void testInterruptedListingResumes() throws IOException {
+    Set<String> expected = walk(null, Integer.MAX_VALUE);
+
+    try (ListingCache cache = open(TTL, 0L)) {
+      walk(cache, 6);
+      Assert.fail("The walk should have been interrupted.");
+    } catch (IOException e) {
+      // expected
+    }
+
+    try (ListingCache cache = open(TTL, 1L)) {
+      Assert.assertFalse(cache.isHit());
+      Assert.assertEquals(expected, walk(cache, Integer.MAX_VALUE));
+      Assert.assertTrue(cache.getReplayedDirectories() > 0);
+      Assert.assertEquals(8, cache.getReplayedDirectories() + cache.getListedDirectories());
+      cache.commit();
+    }
+
+    try (ListingCache cache = open(TTL, 2L)) {
+      Assert.assertTrue(cache.isHit());
+      Assert.assertEquals(expected, walk(cache, Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testFileSourcePath() throws IOException {
+    sourcePaths = Collections.singletonList(sourcePaths.get(0) + "dir1/sub/file.txt");
+    Set<String> expected = walk(null, Integer.MAX_VALUE);
+    Assert.assertEquals(1, expected.size());
+
+    try (ListingCache cache = open(TTL, 0L)) {
+      walk(cache, Integer.MAX_VALUE);
+      cache.commit();
+    }
+    try (ListingCache cache = open(TTL, 1L)) {
+      Assert.assertTrue(cache.isHit());
+      Assert.assertEquals(expected, walk(cache, Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testTreeListing() throws IOException {
+    Set<String> expected = walk(null, Integer.MAX_VALUE);
+
+    try (ListingCache cache = open(TTL, 0L)) {
+      Assert.assertEquals(expected, walkTree(cache));
+      cache.commit();
+      Assert.assertEquals(8, cache.getListedDirectories());
+    }
+
+    // a snapshot recorded from tree listings serves directory listings and tree listings alike
+    try (ListingCache cache = open(TTL, 1L)) {
+      Assert.assertTrue(cache.isHit());
+      Assert.assertEquals(expected, walk(cache, Integer.MAX_VALUE));
+      Assert.assertEquals(expected, walkTree(cache));
+      Assert.assertEquals(0, cache.getListedDirectories());
+    }
+  }
+
+  private Set<String> walkTree(ListingCache cache) throws IOException {
+    // lists the whole tree depth first, which keeps the contents of every directory contiguous
+    DirectoryWalker.TreeLister treeLister = path -> {
+      List<FileStatus> entries = new ArrayList<>();
+      Deque<FileStatus> pending = new ArrayDeque<>(Arrays.asList(fileSystem.listStatus(path)));
+      while (!pending.isEmpty()) {
+        FileStatus fileStatus = pending.pop();
+        entries.add(fileStatus);
+        if (fileStatus.isDirectory()) {
+          for (FileStatus child : fileSystem.listStatus(fileStatus.getPath())) {
+            pending.push(child);
+          }
+        }
+      }
+      Iterator<FileStatus> iter = entries.iterator();
+      return new RemoteIterator<FileStatus>() {
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public FileStatus next() {
+          return iter.next();
+        }
+      };
+    };
+    Set<String> entries = new HashSet<>();
+    new DirectoryWalker(fileSystem::listLocatedStatus, cache.wrap(treeLister), 1)
+      .walk(sourcePaths, true, (prefix, status) -> entries.add(describe(status)));
+    return entries;
+  }
+
+  private ListingCache open(long ttl, long now) throws IOException {
+    // checkpoint after every directory, so that an interrupted walk leaves records behind
+    return ListingCache.open(fileSystem, cacheDirectory, fileSystem.getUri(), ttl, now, 1, Long.MAX_VALUE);
+  }
+
+  /**
+   * Walks the source paths, failing after the given number of entries.
+   */
+  private Set<String> walk(ListingCache cache, int maxEntries) throws IOException {
+    DirectoryWalker.Lister lister = fileSystem::listLocatedStatus;
+    Set<String> entries = new HashSet<>();
+    AtomicInteger count = new AtomicInteger();
+    new DirectoryWalker(cache == null ? lister : cache.wrap(lister), 1).walk(sourcePaths, true, (prefix, status) -> {
+      if (count.incrementAndGet() > maxEntries) {
+        throw new IOException("Interrupted");
+      }
+      entries.add(describe(status));
+      return true;
+    });
+    return entries;
+  }
+
+  private static String describe(FileStatus status) {
+    return status.getPath().toUri().getPath() + " " + status.isDirectory() + " " + status.getLen() + " " +
+      status.getModificationTime() + " " + status.getOwner() + " " + status.getGroup() + " " +
+      status.getPermission().toShort();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ListingFilterTest {
+  private static final String SOURCE_PATH = "/data/";
+
+  @Test
+  public void testPatterns() {
+    ListingFilter filter = ListingFilter.builder()
+      .setIncludeGlob("*.{csv,json}")
+      .setExcludeRegex("(.*/)?tmp")
+      .build();
+
+    Assert.assertTrue(filter.accept(SOURCE_PATH, file("/data/a.csv", 10, 0)));
+    Assert.assertTrue(filter.accept(SOURCE_PATH, file("/data/x/b.json", 10, 0)));
+    Assert.assertFalse(filter.accept(SOURCE_PATH, file("/data/c.txt", 10, 0)));
+    // directories are only emitted without include patterns, and excluded ones are not descended into
+    Assert.assertFalse(filter.accept(SOURCE_PATH, directory("/data/x")));
+    Assert.assertTrue(filter.descend(SOURCE_PATH, directory("/data/x")));
+    Assert.assertFalse(filter.descend(SOURCE_PATH, directory("/data/x/tmp")));
+    Assert.assertFalse(filter.descend(SOURCE_PATH, directory("/data/tmp")));
+
+    // patterns match the relative path, which includes the last component of source paths without a trailing slash
+    ListingFilter excludeFilter = ListingFilter.builder().setExcludeGlob("data/*").build();
+    Assert.assertTrue(excludeFilter.accept(SOURCE_PATH, directory("/data/x")));
+    Assert.assertFalse(excludeFilter.accept("/data", directory("/data/x")));
+    Assert.assertTrue(ListingFilter.builder().build().accept(SOURCE_PATH, directory("/data/x")));
+  }
+
+  @Test
+  public void testSizeAndTime() {
+    ListingFilter filter = ListingFilter.builder()
+      .setMinFileSize(10)
+      .setMaxFileSize(100)
+      .setModifiedAfter(1000)
+      .setModifiedBefore(5000)
+      .setMinFileAge(2000)
+      .setNow(6000)
+      .build();
+
+    Assert.assertTrue(filter.accept(SOURCE_PATH, file("/data/a", 10, 1000)));
+    Assert.assertTrue(filter.accept(SOURCE_PATH, file("/data/a", 100, 4000)));
+    Assert.assertFalse(filter.accept(SOURCE_PATH, file("/data/a", 9, 2000)));
+    Assert.assertFalse(filter.accept(SOURCE_PATH, file("/data/a", 101, 2000)));
+    Assert.assertFalse(filter.accept(SOURCE_PATH, file("/data/a", 50, 999)));
+    // modified within the min file age
+    Assert.assertFalse(filter.accept(SOURCE_PATH, file("/data/a", 50, 4001)));
+    // bounds only apply to files
+    Assert.assertTrue(filter.accept(SOURCE_PATH, directory("/data/x")));
+  }
+
+  @Test
+  public void testInProgressFiles() {
+    ListingFilter filter = ListingFilter.builder().setIgnoreInProgressFiles(true).build();
+    Assert.assertFalse(filter.accept(SOURCE_PATH, file("/data/a.csv._COPYING_", 10, 0)));
+    Assert.assertFalse(filter.accept(SOURCE_PATH, file("/data/a.csv.tmp", 10, 0)));
+    Assert.assertTrue(filter.accept(SOURCE_PATH, file("/data/a.csv", 10, 0)));
+    Assert.assertTrue(ListingFilter.builder().build().accept(SOURCE_PATH, file("/data/a.csv.tmp", 10, 0)));
+  }
+
+  private static FileStatus file(String path, long length, long modificationTime) {
+    return new FileStatus(length, false, 1, 1, modificationTime, new Path("file://" + path));
+  }
+
+  private static FileStatus directory(String path) {
+    return new FileStatus(0, true, 1, 1, 0, new Path("file://" + path));
+  }
+}
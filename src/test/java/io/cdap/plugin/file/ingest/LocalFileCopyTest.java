@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LocalFileCopyTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testRecordWriterCopiesLocalFiles() throws Exception {
+    File source = new File(temporaryFolder.newFolder("source"), "file.bin");
+    byte[] content = new byte[100000];
+    new Random(0).nextBytes(content);
+    Files.write(source.toPath(), content);
+    File destination = temporaryFolder.newFolder("destination");
+    // a stale checksum of the file that is overwritten
+    Files.write(new File(destination, "file.bin").toPath(), new byte[10]);
+    Files.write(new File(destination, ".file.bin.crc").toPath(), new byte[10]);
+
+    Configuration conf = new Configuration();
+    conf.set(FileCopyOutputFormat.BASE_PATH, destination.getAbsolutePath());
+    conf.set(FileCopyOutputFormat.FS_SCHEME, "file");
+    conf.set(FileCopyOutputFormat.FS_HOST_URI, "file:///");
+    conf.setBoolean(FileCopyOutputFormat.ENABLE_OVERWRITE, true);
+    conf.setBoolean(FileCopyOutputFormat.FAST_LOCAL_COPY, true);
+
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    FileStatus fileStatus = fileSystem.getFileStatus(new Path(source.getAbsolutePath()));
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    RecordWriter<?, FileMetadata> writer = new FileCopyOutputFormat().getRecordWriter(context);
+    writer.write(null, new FileMetadata(fileStatus, source.getParent() + "/"));
+    writer.close(context);
+
+    Assert.assertArrayEquals(content, Files.readAllBytes(new File(destination, "file.bin").toPath()));
+    Assert.assertArrayEquals(new String[] { "file.bin" }, destination.list());
+  }
+
+  @Test
+  public void testCopyRange() throws Exception {
+    File source = temporaryFolder.newFile("source.bin");
+    byte[] content = new byte[10000];
+    new Random(1).nextBytes(content);
+    Files.write(source.toPath(), content);
+    File destination = new File(temporaryFolder.getRoot(), "nested/destination.bin");
+
+    LocalFileSystem fileSystem = FileSystem.getLocal(new Configuration());
+    Path srcPath = new Path(source.getAbsolutePath());
+    Assert.assertEquals(3000, LocalFileCopy.copy(fileSystem, srcPath, 4000, 3000, fileSystem,
+                                                 new Path(destination.getAbsolutePath())));
+    Assert.assertArrayEquals(Arrays.copyOfRange(content, 4000, 7000), Files.readAllBytes(destination.toPath()));
+
+    try {
+      LocalFileCopy.copy(fileSystem, srcPath, 9000, 3000, fileSystem, new Path(destination.getAbsolutePath()));
+      Assert.fail("Copying past the end of the source did not fail.");
+    } catch (EOFException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class MetadataInputFormatTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testManifestSplitsMatchInMemorySplits() throws Exception {
+    File sourceDirectory = temporaryFolder.newFolder("source");
+    // distinct power of two sizes, so that the assignment of files to splits is deterministic
+    for (int i = 0; i < 10; i++) {
+      Files.write(new File(sourceDirectory, "file" + i).toPath(), new byte[1 << i]);
+    }
+
+    Configuration conf = new Configuration();
+    MetadataInputFormat.setSourcePaths(conf, sourceDirectory.getAbsolutePath() + "/");
+    MetadataInputFormat.setURI(conf, "file:///");
+    MetadataInputFormat.setMaxSplitSize(conf, 3);
+    MetadataInputFormat.setRecursiveCopy(conf, "true");
+    Map<Set<String>, Long> expected = readSplits(conf);
+
+    File manifestDirectory = new File(temporaryFolder.getRoot(), "manifest");
+    MetadataInputFormat.setManifestDirectory(conf, manifestDirectory.getAbsolutePath());
+    // small enough to make both sorts spill
+    MetadataInputFormat.setManifestSortMemory(conf, 256);
+    Map<Set<String>, Long> actual = readSplits(conf);
+
+    Assert.assertEquals(4, expected.size());
+    Assert.assertEquals(expected, actual);
+    Assert.assertTrue(new File(manifestDirectory, "manifest").isFile());
+  }
+
+  @Test
+  public void testEmptyManifest() throws Exception {
+    Configuration conf = new Configuration();
+    MetadataInputFormat.setSourcePaths(conf, temporaryFolder.newFolder("empty").getAbsolutePath() + "/");
+    MetadataInputFormat.setURI(conf, "file:///");
+    MetadataInputFormat.setMaxSplitSize(conf, 3);
+    MetadataInputFormat.setManifestDirectory(conf, new File(temporaryFolder.getRoot(), "manifest").getAbsolutePath());
+
+    Map<Set<String>, Long> splits = readSplits(conf);
+    Assert.assertEquals(1, splits.size());
+    Assert.assertEquals(new HashSet<String>(), splits.keySet().iterator().next());
+  }
+
+  @Test
+  public void testIncrementalRuns() throws Exception {
+    File sourceDirectory = temporaryFolder.newFolder("incremental");
+    File a = new File(sourceDirectory, "a");
+    File b = new File(sourceDirectory, "b");
+    Assert.assertTrue(a.createNewFile() && a.setLastModified(1000000L));
+    Assert.assertTrue(b.createNewFile() && b.setLastModified(2000000L));
+
+    Configuration conf = new Configuration();
+    String stateDirectory = temporaryFolder.newFolder("state").getAbsolutePath();
+    MetadataInputFormat.setSourcePaths(conf, sourceDirectory.getAbsolutePath() + "/");
+    MetadataInputFormat.setURI(conf, "file:///");
+    MetadataInputFormat.setMaxSplitSize(conf, 3);
+    MetadataInputFormat.setStateDirectory(conf, stateDirectory);
+
+    // the watermarks of failed runs are discarded
+    MetadataInputFormat.setIncremental(conf, "run1", 0);
+    Assert.assertEquals(2, readFiles(conf).size());
+    MetadataInputFormat.finishIncrementalRun(conf, stateDirectory, "run1", false);
+    MetadataInputFormat.setIncremental(conf, "run2", 0);
+    Assert.assertEquals(2, readFiles(conf).size());
+    MetadataInputFormat.finishIncrementalRun(conf, stateDirectory, "run2", true);
+
+    // only new files are emitted once a run succeeded
+    File c = new File(sourceDirectory, "c");
+    Assert.assertTrue(c.createNewFile() && c.setLastModified(3000000L));
+    MetadataInputFormat.setIncremental(conf, "run3", 0);
+    Assert.assertEquals(Collections.singleton(c.getAbsolutePath()), readFiles(conf));
+
+    // the overlap emits files modified shortly before the watermark again
+    MetadataInputFormat.setIncremental(conf, "run4", 500000L);
+    Assert.assertEquals(new HashSet<>(Arrays.asList(b.getAbsolutePath(), c.getAbsolutePath())), readFiles(conf));
+  }
+
+  @Test
+  public void testCopyHistoryBalancesByDuration() throws Exception {
+    File sourceDirectory = temporaryFolder.newFolder("history");
+    Files.write(new File(sourceDirectory, "large").toPath(), new byte[4096]);
+    for (int i = 0; i < 4; i++) {
+      Files.write(new File(sourceDirectory, "small" + i).toPath(), new byte[1]);
+    }
+
+    Configuration conf = new Configuration();
+    MetadataInputFormat.setSourcePaths(conf, sourceDirectory.getAbsolutePath() + "/");
+    MetadataInputFormat.setURI(conf, "file:///");
+    MetadataInputFormat.setMaxSplitSize(conf, 3);
+    // balanced by bytes, three of the small files end up in the same split
+    Assert.assertTrue(readSplits(conf).keySet().stream().anyMatch(files -> countSmallFiles(files) == 3));
+
+    // small files that take much longer to copy than large ones are spread across the splits
+    File historyDirectory = temporaryFolder.newFolder("copy-history");
+    CopyHistory history = new CopyHistory();
+    history.record("file", "hdfs", 1, TimeUnit.SECONDS.toNanos(1));
+    history.record("file", "hdfs", 4096, TimeUnit.MILLISECONDS.toNanos(1));
+    history.save(FileSystem.getLocal(conf), new Path(historyDirectory.getAbsolutePath()));
+    MetadataInputFormat.setCopyHistoryDirectory(conf, historyDirectory.getAbsolutePath());
+    for (Set<String> files : readSplits(conf).keySet()) {
+      Assert.assertEquals(2, countSmallFiles(files));
+    }
+    MetadataInputFormat.setManifestDirectory(conf, new File(temporaryFolder.getRoot(), "manifest").getAbsolutePath());
+    for (Set<String> files : readSplits(conf).keySet()) {
+      Assert.assertEquals(2, countSmallFiles(files));
+    }
+  }
+
+  private long countSmallFiles(Set<String> files) {
+    return files.stream().filter(file -> file.contains("small")).count();
+  }
+
+  private Set<String> readFiles(Configuration conf) throws IOException, InterruptedException {
+    Set<String> files = new HashSet<>();
+    readSplits(conf).keySet().forEach(files::addAll);
+    return files;
+  }
+
+  /**
+   * Plans the splits and reads them back, returning the files of each split mapped to the split's total bytes.
+   */
+  private Map<Set<String>, Long> readSplits(Configuration conf) throws IOException, InterruptedException {
+    MetadataInputFormat inputFormat = new MetadataInputFormat();
+    Map<Set<String>, Long> splits = new HashMap<>();
+    for (InputSplit inputSplit : inputFormat.getSplits(new JobContextImpl(conf, new JobID()))) {
+      MetadataInputSplit split = (MetadataInputSplit) inputSplit;
+      TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+      Set<String> files = new HashSet<>();
+      long totalBytes = 0;
+      try (RecordReader<?, ?> reader = inputFormat.createRecordReader(split, context)) {
+        while (reader.nextKeyValue()) {
+          FileMetadata fileMetadata = (FileMetadata) reader.getCurrentValue();
+          files.add(fileMetadata.getFullPath());
+          totalBytes += fileMetadata.getFileSize();
+        }
+      }
+      Assert.assertEquals(split.getTotalBytes(), totalBytes);
+      Assert.assertEquals(split.getLength(), files.size());
+      splits.put(files, totalBytes);
+    }
+    return splits;
+  }
+}
@@ -16,10 +16,13 @@
 
 package io.cdap.plugin.file.ingest;
 
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.plugin.file.ingest.s3.S3FileMetadata;
 import io.cdap.plugin.file.ingest.s3.S3MetadataInputSplit;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.junit.Assert;
 import org.junit.Test;
@@ -29,6 +32,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MetadataInputSplitTest {
   @Test
@@ -88,6 +93,96 @@ public class MetadataInputSplitTest {
                         metadataInputSplit.getFileMetaDataList().get(1).toRecord());
   }
 
+  @Test
+  public void testCompactEncoding() throws Exception {
+    S3MetadataInputSplit split = new S3MetadataInputSplit();
+    List<FileMetadata> legacy = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      FileStatus status = new FileStatus(i * 1000L, i % 10 == 0, 0, 0, 12345678 + i, 0,
+                                         new FsPermission((short) 0644), "owner" + i % 3, "group",
+                                         new Path("s3a://bucket/foo/bar/dir" + i / 50 + "/file" + i + ".txt"));
+      S3FileMetadata file = new S3FileMetadata(status, "/foo", "akey" + i % 2, "skey");
+      if (i % 7 == 0) {
+        file.setChunk(i % 3, 3, 512);
+      }
+      split.addFileMetadata(file);
+      legacy.add(file);
+    }
+    // a file name and relative path that can't be derived from the full path
+    StructuredRecord record = legacy.get(1).toRecord();
+    StructuredRecord.Builder builder = StructuredRecord.builder(record.getSchema());
+    for (Schema.Field field : record.getSchema().getFields()) {
+      builder.set(field.getName(), record.get(field.getName()));
+    }
+    S3FileMetadata irregular = new S3FileMetadata(builder.set("fileName", "renamed.txt")
+                                                    .set("relativePath", "elsewhere/renamed.txt").build());
+    split.addFileMetadata(irregular);
+    legacy.add(irregular);
+
+    byte[] serialized = serialize(split);
+    S3MetadataInputSplit recovered = new S3MetadataInputSplit();
+    recovered.readFields(new DataInputStream(new ByteArrayInputStream(serialized)));
+    Assert.assertEquals(split.getLength(), recovered.getLength());
+    Assert.assertEquals(split.getTotalBytes(), recovered.getTotalBytes());
+
+    // files are decoded lazily and in order
+    RemoteIterator<FileMetadata> files = recovered.getFiles();
+    for (FileMetadata expected : legacy) {
+      Assert.assertTrue(files.hasNext());
+      FileMetadata actual = files.next();
+      Assert.assertTrue(actual instanceof S3FileMetadata);
+      Assert.assertEquals(expected.toRecord(), actual.toRecord());
+    }
+    Assert.assertFalse(files.hasNext());
+    Assert.assertEquals(legacy.size(), recovered.getFileMetaDataList().size());
+    Assert.assertEquals(irregular.toRecord(), recovered.getFileMetaDataList().get(legacy.size() - 1).toRecord());
+
+    // a deserialized split serializes to the same bytes
+    Assert.assertArrayEquals(serialized, serialize(recovered));
+
+    // much smaller than writing every file on its own
+    ByteArrayOutputStream legacyBytes = new ByteArrayOutputStream();
+    DataOutputStream legacyOutput = new DataOutputStream(legacyBytes);
+    for (FileMetadata file : legacy) {
+      file.write(legacyOutput);
+    }
+    Assert.assertTrue(serialized.length * 4 < legacyBytes.size());
+  }
+
+  @Test
+  public void testCompactEncodingWithoutExtraFields() throws Exception {
+    MetadataInputSplit split = new MetadataInputSplit();
+    List<FileMetadata> expected = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      FileStatus status = new FileStatus(i * 1000L, false, 0, 0, 12345678 + i, 0, new FsPermission((short) 0640),
+                                         "owner", "group", new Path("hdfs://namenode/foo/file" + i + ".txt"));
+      FileMetadata file = new FileMetadata(status, "/foo");
+      if (i % 2 == 0) {
+        file.setChunk(i % 4, 4, 256);
+      }
+      split.addFileMetadata(file);
+      expected.add(file);
+    }
+
+    MetadataInputSplit recovered = new MetadataInputSplit();
+    recovered.readFields(new DataInputStream(new ByteArrayInputStream(serialize(split))));
+    RemoteIterator<FileMetadata> files = recovered.getFiles();
+    for (FileMetadata file : expected) {
+      FileMetadata actual = files.next();
+      Assert.assertEquals(FileMetadata.class, actual.getClass());
+      Assert.assertEquals(file.toRecord(), actual.toRecord());
+    }
+    Assert.assertFalse(files.hasNext());
+  }
+
+  private static byte[] serialize(MetadataInputSplit split) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      split.write(output);
+    }
+    return bytes.toByteArray();
+  }
+
   @Test
   public void testCompare() throws IOException {
     MetadataInputSplit metadataInputSplita = new MetadataInputSplit();
@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PipelinedCopyTest {
+  @Test
+  public void testCopy() throws IOException {
+    byte[] content = new byte[100000];
+    new Random(0).nextBytes(content);
+    // short reads, so that buffers are filled with several reads
+    InputStream input = new FilterInputStream(new ByteArrayInputStream(content)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 77));
+      }
+    };
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Assert.assertEquals(content.length, PipelinedCopy.copy(input, output, 1000));
+    Assert.assertArrayEquals(content, output.toByteArray());
+
+    // empty and single buffer inputs
+    output.reset();
+    Assert.assertEquals(0, PipelinedCopy.copy(new ByteArrayInputStream(new byte[0]), output, 1000));
+    Assert.assertEquals(1000, PipelinedCopy.copy(new ByteArrayInputStream(new byte[1000]), output, 1000));
+    Assert.assertEquals(1000, output.size());
+  }
+
+  @Test
+  public void testReadFailure() {
+    InputStream input = new InputStream() {
+      private int count;
+
+      @Override
+      public int read() throws IOException {
+        if (++count > 5000) {
+          throw new IOException("source failed");
+        }
+        return 0;
+      }
+    };
+    try {
+      PipelinedCopy.copy(input, new ByteArrayOutputStream(), 100);
+      Assert.fail("The read failure was not thrown.");
+    } catch (IOException e) {
+      Assert.assertEquals("source failed", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testWriteFailure() {
+    // an endless source, so the copy only ends because the destination fails
+    InputStream input = new InputStream() {
+      @Override
+      public int read() {
+        return 0;
+      }
+    };
+    OutputStream output = new OutputStream() {
+      private int count;
+
+      @Override
+      public void write(int b) throws IOException {
+        if (++count > 5000) {
+          throw new IOException("destination failed");
+        }
+      }
+    };
+    try {
+      PipelinedCopy.copy(input, output, 100);
+      Assert.fail("The write failure was not thrown.");
+    } catch (IOException e) {
+      Assert.assertEquals("destination failed", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testReaderStopsBeforeCopyReturns() {
+    AtomicBoolean reading = new AtomicBoolean();
+    // a slow source that doesn't respond to interrupts
+    InputStream input = new InputStream() {
+      @Override
+      public int read() {
+        return 0;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        reading.set(true);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        while (System.nanoTime() < end) {
+          Thread.yield();
+        }
+        reading.set(false);
+        return len;
+      }
+    };
+    OutputStream output = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("destination failed");
+      }
+    };
+    try {
+      PipelinedCopy.copy(input, output, 100);
+      Assert.fail("The write failure was not thrown.");
+    } catch (IOException e) {
+      Assert.assertEquals("destination failed", e.getMessage());
+    }
+    Assert.assertFalse(reading.get());
+  }
+
+  @Test
+  public void testReaderThatDoesNotStopIsReported() {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    // a source that fills one buffer, and then blocks regardless of interrupts
+    InputStream input = new InputStream() {
+      private int count;
+
+      @Override
+      public int read() {
+        while (++count > 100) {
+          blocked.countDown();
+          try {
+            release.await();
+            return -1;
+          } catch (InterruptedException e) {
+            // ignored
+          }
+        }
+        return 0;
+      }
+    };
+    OutputStream output = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        throw new IOException("destination failed");
+      }
+    };
+    try {
+      PipelinedCopy.copy(input, output, 100, 100);
+      Assert.fail("The write failure was not thrown.");
+    } catch (IOException e) {
+      Assert.assertEquals("destination failed", e.getMessage());
+      Assert.assertEquals(1, e.getSuppressed().length);
+    } finally {
+      release.countDown();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class RangedCopyTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testRangesAreWrittenInOrder() throws Exception {
+    File source = temporaryFolder.newFile("source.bin");
+    byte[] content = new byte[100000];
+    new Random(0).nextBytes(content);
+    Files.write(source.toPath(), content);
+    FileSystem fileSystem = FileSystem.getLocal(new Configuration());
+    Path path = new Path(source.getAbsolutePath());
+
+    BufferPool bufferPool = new BufferPool(1 << 20);
+    for (int parallelism : new int[] { 1, 3, 8 }) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      Assert.assertEquals(content.length, RangedCopy.copy(fileSystem, path, 4096, 0, content.length, output, 999,
+                                                          parallelism, bufferPool));
+      Assert.assertArrayEquals(content, output.toByteArray());
+    }
+    // the buffers of the ranges are returned to the pool
+    Assert.assertTrue(bufferPool.getPooledBytes() > 0);
+    Assert.assertEquals(0, bufferPool.getInUseBytes());
+
+    // a pool that is used up, so that the ranges are copied one by one through small buffers
+    BufferPool fullPool = new BufferPool(1);
+    ByteArrayOutputStream copied = new ByteArrayOutputStream();
+    Assert.assertEquals(content.length, RangedCopy.copy(fileSystem, path, 4096, 0, content.length, copied, 9999, 4,
+                                                        fullPool));
+    Assert.assertArrayEquals(content, copied.toByteArray());
+    Assert.assertEquals(0, fullPool.getInUseBytes());
+
+    // a byte range that does not start at the beginning, as read for chunks
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Assert.assertEquals(30000, RangedCopy.copy(fileSystem, path, 4096, 12345, 42345, output, 1000, 4, bufferPool));
+    Assert.assertArrayEquals(Arrays.copyOfRange(content, 12345, 42345), output.toByteArray());
+  }
+
+  @Test
+  public void testReadingPastTheEndFails() throws Exception {
+    File source = temporaryFolder.newFile("short.bin");
+    Files.write(source.toPath(), new byte[5000]);
+    FileSystem fileSystem = FileSystem.getLocal(new Configuration());
+
+    try {
+      RangedCopy.copy(fileSystem, new Path(source.getAbsolutePath()), 4096, 0, 8000, new ByteArrayOutputStream(),
+                      1000, 4, new BufferPool(1 << 20));
+      Assert.fail("Copying past the end of the source did not fail.");
+    } catch (EOFException e) {
+      // expected
+    }
+  }
+}
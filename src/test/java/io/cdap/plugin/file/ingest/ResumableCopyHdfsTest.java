@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class ResumableCopyHdfsTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private MiniDFSCluster cluster;
+  private byte[] content;
+  private FileMetadata source;
+  private Path destination;
+
+  @Before
+  public void setUp() throws IOException {
+    Configuration conf = new Configuration();
+    conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, temporaryFolder.newFolder("hdfs").getAbsolutePath());
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+
+    content = new byte[100000];
+    new Random(0).nextBytes(content);
+    File sourceFile = new File(temporaryFolder.newFolder("source"), "file.bin");
+    Files.write(sourceFile.toPath(), content);
+    FileSystem localFileSystem = FileSystem.getLocal(new Configuration());
+    source = new FileMetadata(localFileSystem.getFileStatus(new Path(sourceFile.getAbsolutePath())),
+                              sourceFile.getParent() + "/");
+    destination = new Path("/destination/file.bin");
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  @Test
+  public void testCopyOfAbandonedWriterIsResumed() throws IOException {
+    // a writer that dies without closing the in-progress file, so that it keeps its lease on it
+    DistributedFileSystem writerFileSystem =
+      (DistributedFileSystem) FileSystem.newInstance(cluster.getURI(), cluster.getConfiguration(0));
+    try (FSDataInputStream input = new FSDataInputStream(new ResumableCopyTest.FailingInputStream(content, 55555) {
+      @Override
+      protected void fail() {
+        writerFileSystem.getClient().abort();
+        super.fail();
+      }
+    })) {
+      ResumableCopy.copy(input, source, writerFileSystem, destination, FsPermission.getDefault(), new byte[1000],
+                         10000);
+      Assert.fail("The copy should have failed.");
+    } catch (IllegalStateException | IOException e) {
+      // expected, closing the aborted output can fail as well
+    }
+
+    // the lease is recovered, and the copy continues after the last checkpoint at 50000 bytes
+    DistributedFileSystem fileSystem = cluster.getFileSystem();
+    Assert.assertEquals(content.length - 50000, copy(fileSystem));
+    Assert.assertArrayEquals(content, read(fileSystem, destination));
+    Assert.assertEquals(1, fileSystem.listStatus(destination.getParent()).length);
+  }
+
+  private long copy(FileSystem fileSystem) throws IOException {
+    try (FSDataInputStream input = new FSDataInputStream(new ResumableCopyTest.FailingInputStream(content, -1))) {
+      return ResumableCopy.copy(input, source, fileSystem, destination, FsPermission.getDefault(), new byte[1000],
+                                10000);
+    }
+  }
+
+  private static byte[] read(FileSystem fileSystem, Path path) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream input = fileSystem.open(path)) {
+      byte[] buffer = new byte[4096];
+      int len;
+      while ((len = input.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, len);
+      }
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class ResumableCopyTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private byte[] content;
+  private FileMetadata source;
+  private FileSystem fileSystem;
+  private File destination;
+
+  @Before
+  public void setUp() throws IOException {
+    content = new byte[100000];
+    new Random(0).nextBytes(content);
+    File sourceFile = new File(temporaryFolder.newFolder("source"), "file.bin");
+    Files.write(sourceFile.toPath(), content);
+    fileSystem = FileSystem.getLocal(new Configuration());
+    source = new FileMetadata(fileSystem.getFileStatus(new Path(sourceFile.getAbsolutePath())),
+                              sourceFile.getParent() + "/");
+    destination = new File(temporaryFolder.newFolder("destination"), "file.bin");
+  }
+
+  @Test
+  public void testCopy() throws IOException {
+    Assert.assertEquals(content.length, copy(-1));
+    Assert.assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    Assert.assertArrayEquals(new String[] { "file.bin" }, destination.getParentFile().list());
+  }
+
+  @Test
+  public void testFailedCopyIsResumed() throws IOException {
+    try {
+      copy(55555);
+      Assert.fail("The copy should have failed.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    Assert.assertFalse(destination.exists());
+
+    // continues after the last checkpoint at 50000 bytes, and drops the bytes that were written after it
+    Assert.assertEquals(content.length - 50000, copy(-1));
+    Assert.assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    Assert.assertArrayEquals(new String[] { "file.bin" }, destination.getParentFile().list());
+  }
+
+  @Test
+  public void testCorruptOutputIsNotResumed() throws IOException {
+    try {
+      copy(55555);
+      Assert.fail("The copy should have failed.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    File inProgress = new File(destination.getParent(), "." + destination.getName() + ResumableCopy.IN_PROGRESS_SUFFIX);
+    try (RandomAccessFile file = new RandomAccessFile(inProgress, "rw")) {
+      file.seek(49999);
+      file.write(content[49999] + 1);
+    }
+
+    Assert.assertEquals(content.length, copy(-1));
+    Assert.assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+  }
+
+  /**
+   * Copies the content with checkpoints every 10000 bytes, failing after the given number of bytes if it isn't -1.
+   */
+  private long copy(int failAfter) throws IOException {
+    try (FSDataInputStream input = new FSDataInputStream(new FailingInputStream(content, failAfter))) {
+      return ResumableCopy.copy(input, source, fileSystem, new Path(destination.getAbsolutePath()),
+                                FsPermission.getDefault(), new byte[1000], 10000);
+    }
+  }
+
+  /**
+   * A seekable stream of a byte array that fails once a number of bytes were read.
+   */
+  static class FailingInputStream extends ByteArrayInputStream implements Seekable, PositionedReadable {
+    private final int failAfter;
+
+    FailingInputStream(byte[] bytes, int failAfter) {
+      super(bytes);
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      if (failAfter >= 0 && pos + len > failAfter) {
+        fail();
+      }
+      return super.read(b, off, len);
+    }
+
+    protected void fail() {
+      throw new IllegalStateException("Failed to read.");
+    }
+
+    @Override
+    public synchronized void seek(long position) {
+      pos = (int) position;
+    }
+
+    @Override
+    public long getPos() {
+      return pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) {
+      return false;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SplitAssignerTest {
+
+  @Test
+  public void testAssignsToCheapestSplit() {
+    SplitAssigner splitAssigner = new SplitAssigner(2, 3);
+    for (long cost : new long[] { 8, 4, 2, 1, 1 }) {
+      splitAssigner.assign(cost, null);
+    }
+    // the second split is full after 4, 2 and 1, so the last item goes to the first split
+    Assert.assertEquals(9, splitAssigner.getCost(0));
+    Assert.assertEquals(7, splitAssigner.getCost(1));
+    Assert.assertEquals(2, splitAssigner.getCount(0));
+    Assert.assertEquals(3, splitAssigner.getCount(1));
+    Assert.assertArrayEquals(new String[0], splitAssigner.getLocations(0));
+  }
+
+  @Test
+  public void testGroupsByHost() {
+    SplitAssigner splitAssigner = new SplitAssigner(2, 2);
+    int split = splitAssigner.assign(1, "a");
+    Assert.assertEquals(1 - split, splitAssigner.assign(1, "b"));
+    Assert.assertEquals(split, splitAssigner.assign(1, "a"));
+    Assert.assertEquals(1 - split, splitAssigner.assign(1, "b"));
+    Assert.assertArrayEquals(new String[] { "a" }, splitAssigner.getLocations(split));
+    Assert.assertArrayEquals(new String[] { "b" }, splitAssigner.getLocations(1 - split));
+  }
+
+  @Test
+  public void testBalanceWinsOverLocality() {
+    SplitAssigner splitAssigner = new SplitAssigner(2, 4);
+    for (int i = 0; i < 4; i++) {
+      splitAssigner.assign(10, "a");
+    }
+    // a split of the host may only exceed the cheapest split by the cost of the item
+    Assert.assertEquals(20, splitAssigner.getCost(0));
+    Assert.assertEquals(20, splitAssigner.getCost(1));
+    Assert.assertArrayEquals(new String[] { "a" }, splitAssigner.getLocations(1));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFullSplits() {
+    SplitAssigner splitAssigner = new SplitAssigner(1, 1);
+    splitAssigner.assign(1, null);
+    splitAssigner.assign(1, null);
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+public class StreamChecksumTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testChecksums() throws IOException {
+    byte[] bytes = "123456789".getBytes(StandardCharsets.UTF_8);
+    StreamChecksum outputChecksum = new StreamChecksum(true);
+    try (OutputStream output = outputChecksum.wrap(new ByteArrayOutputStream())) {
+      output.write(bytes, 0, 4);
+      output.write(bytes[4]);
+      output.write(bytes, 5, 4);
+    }
+    Assert.assertEquals(9, outputChecksum.getLength());
+    Assert.assertEquals(0xE3069283, outputChecksum.getCrc32c());
+    Assert.assertEquals("25f9e794323b453885f5181f1b624d0b", outputChecksum.getMd5());
+
+    StreamChecksum inputChecksum = new StreamChecksum(false);
+    try (InputStream input = inputChecksum.wrap(new ByteArrayInputStream(bytes))) {
+      Assert.assertEquals('1', input.read());
+      Assert.assertEquals(8, input.read(new byte[20]));
+      Assert.assertEquals(-1, input.read(new byte[20]));
+    }
+    Assert.assertEquals(9, inputChecksum.getLength());
+    Assert.assertEquals(0xE3069283, inputChecksum.getCrc32c());
+    Assert.assertNull(inputChecksum.getMd5());
+  }
+
+  @Test
+  public void testOnlyPlainSinglePartETagsAreMd5s() {
+    String md5 = "25f9e794323b453885f5181f1b624d0b";
+    Assert.assertEquals(md5, StreamChecksum.getMd5ETag(createMetadata(md5, null, null)));
+    Assert.assertEquals(md5, StreamChecksum.getMd5ETag(createMetadata(md5, SSEAlgorithm.AES256.getAlgorithm(), null)));
+    Assert.assertNull(StreamChecksum.getMd5ETag(createMetadata(md5 + "-2", null, null)));
+    // the single part ETags of objects encrypted with KMS or customer keys look like MD5s, but aren't
+    Assert.assertNull(StreamChecksum.getMd5ETag(createMetadata("0a96e5dd2ae6a4cd6e1e3d5bea1c3b97",
+                                                               SSEAlgorithm.KMS.getAlgorithm(), null)));
+    Assert.assertNull(StreamChecksum.getMd5ETag(createMetadata("0a96e5dd2ae6a4cd6e1e3d5bea1c3b97", null, "AES256")));
+    Assert.assertNull(StreamChecksum.getMd5ETag(createMetadata(null, null, null)));
+  }
+
+  @Test
+  public void testRecordWriterVerifiesCopies() throws Exception {
+    File sourceDirectory = temporaryFolder.newFolder("source");
+    File source = new File(sourceDirectory, "file.txt");
+    Files.write(source.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+    File destination = temporaryFolder.newFolder("destination");
+
+    Configuration conf = new Configuration();
+    conf.set(FileCopyOutputFormat.BASE_PATH, destination.getAbsolutePath());
+    conf.set(FileCopyOutputFormat.FS_SCHEME, "file");
+    conf.set(FileCopyOutputFormat.FS_HOST_URI, "file:///");
+    conf.setBoolean(FileCopyOutputFormat.ENABLE_OVERWRITE, true);
+    conf.setBoolean(FileCopyOutputFormat.VERIFY_CHECKSUMS, true);
+
+    FileSystem fileSystem = FileSystem.getLocal(conf);
+    FileStatus fileStatus = fileSystem.getFileStatus(new Path(source.getAbsolutePath()));
+    FileMetadata metadata = new FileMetadata(fileStatus, sourceDirectory.getAbsolutePath() + "/");
+    TaskAttemptContextImpl context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+    RecordWriter<?, FileMetadata> writer = new FileCopyOutputFormat().getRecordWriter(context);
+    writer.write(null, metadata);
+    Assert.assertArrayEquals(Files.readAllBytes(source.toPath()),
+                             Files.readAllBytes(new File(destination, "file.txt").toPath()));
+
+    // the source grew after it was listed
+    Files.write(source.toPath(), " and more".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    try {
+      writer.write(null, metadata);
+      Assert.fail("The copy of a file that changed was not rejected.");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage().contains("16 bytes were copied instead of 7"));
+    }
+    writer.close(context);
+    Assert.assertFalse(new File(destination, "file.txt").exists());
+  }
+
+  private static ObjectMetadata createMetadata(String eTag, String sseAlgorithm, String sseCustomerAlgorithm) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setHeader(Headers.ETAG, eTag);
+    metadata.setSSEAlgorithm(sseAlgorithm);
+    metadata.setHeader(Headers.SERVER_SIDE_ENCRYPTION_CUSTOMER_ALGORITHM, sseCustomerAlgorithm);
+    return metadata;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+public class UnchangedFilesTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private FileSystem fileSystem;
+  private File source;
+  private File destination;
+
+  @Before
+  public void setUp() throws IOException {
+    fileSystem = FileSystem.getLocal(new Configuration());
+    source = temporaryFolder.newFile("source.txt");
+    destination = temporaryFolder.newFile("destination.txt");
+    Files.write(source.toPath(), "content".getBytes());
+    Files.write(destination.toPath(), "CONTENT".getBytes());
+    Assert.assertTrue(source.setLastModified(1000000000000L));
+    Assert.assertTrue(destination.setLastModified(1000000060000L));
+  }
+
+  @Test
+  public void testSizeAndModificationTime() throws IOException {
+    // same size and written after the source, without checksums to compare
+    Assert.assertTrue(isUnchanged(null, null));
+
+    Assert.assertTrue(destination.setLastModified(999999940000L));
+    Assert.assertFalse(isUnchanged(null, null));
+
+    Assert.assertTrue(destination.setLastModified(1000000060000L));
+    Files.write(destination.toPath(), "longer content".getBytes());
+    Assert.assertTrue(destination.setLastModified(1000000060000L));
+    Assert.assertFalse(isUnchanged(null, null));
+
+    Assert.assertTrue(destination.delete());
+    Assert.assertFalse(isUnchanged(null, null));
+  }
+
+  @Test
+  public void testETags() throws IOException {
+    Map<String, String> sourceETags = new HashMap<>();
+    Map<String, String> destETags = new HashMap<>();
+    UnchangedFiles.ETagLookup sourceLookup = path -> sourceETags.get(path.getName());
+    UnchangedFiles.ETagLookup destLookup = path -> destETags.get(path.getName());
+
+    sourceETags.put("source.txt", "9a0364b9e99bb480dd25e1f0284c8555");
+    destETags.put("destination.txt", "9a0364b9e99bb480dd25e1f0284c8555");
+    Assert.assertTrue(isUnchanged(sourceLookup, destLookup));
+
+    destETags.put("destination.txt", "f75b8179e4bbe7e2b4a074dcef62de95");
+    Assert.assertFalse(isUnchanged(sourceLookup, destLookup));
+
+    // the ETag of an object that was uploaded in parts isn't comparable, so size and modification time decide
+    destETags.put("destination.txt", "f75b8179e4bbe7e2b4a074dcef62de95-3");
+    Assert.assertTrue(isUnchanged(sourceLookup, destLookup));
+  }
+
+  private boolean isUnchanged(UnchangedFiles.ETagLookup sourceETags,
+                              UnchangedFiles.ETagLookup destETags) throws IOException {
+    Path sourcePath = new Path(source.getAbsolutePath());
+    FileMetadata metadata = new FileMetadata(fileSystem.getFileStatus(sourcePath), source.getParent() + "/");
+    return UnchangedFiles.isUnchanged(metadata, fileSystem, sourcePath, fileSystem,
+                                      new Path(destination.getAbsolutePath()), sourceETags, destETags);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.file.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+
+public class WatermarksTest {
+  private static final URI SOURCE_URI = URI.create("hdfs://namenode/");
+  private static final String PREFIX = "/source";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testDirectoryDoesNotMoveTheWatermark() throws IOException {
+    FileSystem fileSystem = FileSystem.getLocal(new Configuration());
+    Path directory = new Path(temporaryFolder.newFolder("watermarks").getAbsolutePath());
+
+    Watermarks first = Watermarks.load(fileSystem, directory, "run1", SOURCE_URI,
+                                       Collections.singletonList(PREFIX), 0);
+    Assert.assertTrue(first.accept(PREFIX, new FileStatus(0, false, 1, 1, 1000, new Path("/source/old.txt"))));
+    // a file written at 1500 elsewhere is renamed into the directory later, which changes it at 2000
+    Assert.assertTrue(first.accept(PREFIX, new FileStatus(0, true, 1, 1, 2000, new Path("/source/dir"))));
+    first.savePending();
+    Watermarks.finish(fileSystem, directory, "run1", true);
+
+    Watermarks second = Watermarks.load(fileSystem, directory, "run2", SOURCE_URI,
+                                        Collections.singletonList(PREFIX), 0);
+    Assert.assertFalse(second.accept(PREFIX, new FileStatus(0, false, 1, 1, 1000, new Path("/source/old.txt"))));
+    Assert.assertTrue(second.accept(PREFIX, new FileStatus(0, false, 1, 1, 1500, new Path("/source/dir/new.txt"))));
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class S3CredentialSetsTest {
+
+  @Test
+  public void testRegisteredCredentialsAreResolved() throws IOException {
+    Map<String, String> outputConf = new HashMap<>();
+    S3CredentialSets.register(outputConf, "access", "secret");
+    Configuration conf = new Configuration();
+    outputConf.forEach(conf::set);
+
+    String id = S3CredentialSets.getId("access", "secret");
+    Assert.assertEquals("access", S3CredentialSets.getAccessKeyId(conf, id));
+    Assert.assertEquals("secret", S3CredentialSets.getSecretKeyId(conf, id));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownCredentialSetFails() throws IOException {
+    Map<String, String> outputConf = new HashMap<>();
+    S3CredentialSets.register(outputConf, "access", "secret");
+    Configuration conf = new Configuration();
+    outputConf.forEach(conf::set);
+
+    S3CredentialSets.getSecretKeyId(conf, S3CredentialSets.getId("access", "other"));
+  }
+}
@@ -74,4 +74,36 @@ public class S3FileCopySinkConfigTest {
     config.validate(failureCollector);
     ValidationAssertions.assertPropertyValidationFailed(failureCollector, S3FileCopySinkConfig.SCHEME);
   }
+
+  @Test
+  public void testValidateSourceCredentialsSetTogether() {
+    S3FileCopySinkConfig config = S3FileCopySinkConfig.builder(VALID_CONFIG).build();
+    config.sourceAccessKeyId = "access";
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector);
+    ValidationAssertions.assertPropertyValidationFailed(failureCollector,
+                                                        S3FileCopySinkConfig.SOURCE_SECRET_KEY_ID);
+  }
+
+  @Test
+  public void testValidateRangedReadSizeTooLarge() {
+    S3FileCopySinkConfig config = S3FileCopySinkConfig.builder(VALID_CONFIG).build();
+    config.rangedReadSize = 2048;
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector);
+    ValidationAssertions.assertPropertyValidationFailed(failureCollector, S3FileCopySinkConfig.RANGED_READ_SIZE);
+  }
+
+  @Test
+  public void testValidateResumableCopyWithStagedCommit() {
+    S3FileCopySinkConfig config = S3FileCopySinkConfig.builder(VALID_CONFIG).build();
+    config.resumableCopy = true;
+    config.stagedCommit = true;
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector);
+    ValidationAssertions.assertPropertyValidationFailed(failureCollector, S3FileCopySinkConfig.STAGED_COMMIT);
+  }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class S3FileMetadataTest {
+  @Test
+  public void testCredentialSetId() throws IOException {
+    String credentialSetId = S3CredentialSets.getId("akey", "skey");
+    Assert.assertEquals(16, credentialSetId.length());
+    Assert.assertEquals(credentialSetId, S3CredentialSets.getId("akey", "skey"));
+    Assert.assertNotEquals(credentialSetId, S3CredentialSets.getId("akey", "other"));
+
+    FileStatus fileStatus = new FileStatus(10, false, 0, 0, 0, new Path("s3a://bucket/foo/bar.txt"));
+    S3FileMetadata metadata = new S3FileMetadata(fileStatus, "/foo", credentialSetId);
+
+    // only the id is in the record
+    StructuredRecord record = metadata.toRecord();
+    Assert.assertNull(record.getSchema().getField(S3FileMetadata.ACCESS_KEY_ID));
+    Assert.assertEquals(credentialSetId, record.get(S3FileMetadata.CREDENTIAL_SET_ID));
+    S3FileMetadata fromRecord = new S3FileMetadata(record);
+    Assert.assertEquals(credentialSetId, fromRecord.getCredentialSetId());
+    Assert.assertNull(fromRecord.getAccessKeyId());
+
+    // and in the serialized form
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    metadata.write(new DataOutputStream(bytes));
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    Assert.assertEquals(record, new S3FileMetadata(input).toRecord());
+
+    // records with credentials are unchanged
+    S3FileMetadata withCredentials = new S3FileMetadata(fileStatus, "/foo", "akey", "skey");
+    Assert.assertNull(new S3FileMetadata(withCredentials.toRecord()).getCredentialSetId());
+    Assert.assertEquals("skey", new S3FileMetadata(withCredentials.toRecord()).getSecretKeyId());
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnpublishedCredentialSet() throws IOException {
+    S3CredentialSets.getAccessKeyId(new Configuration(), S3CredentialSets.getId("akey", "skey"));
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class S3MultipartCopierTest {
+  private static final long MB = 1 << 20;
+
+  @Test
+  public void testSmallObjectIsCopiedWithSingleRequest() throws IOException {
+    FakeS3Client s3 = new FakeS3Client();
+    S3MultipartCopier.copy(s3, new Path("s3a://source/a/b.txt"), 3 * MB, 0, 3 * MB, new Path("s3a://target/c.txt"),
+                           10 * MB, 4);
+    Assert.assertEquals(Collections.singletonList("source/a/b.txt -> target/c.txt"), s3.copies);
+    Assert.assertTrue(s3.parts.isEmpty());
+  }
+
+  @Test
+  public void testLargeObjectIsCopiedInParts() throws IOException {
+    FakeS3Client s3 = new FakeS3Client();
+    S3MultipartCopier.copy(s3, new Path("s3a://source/big"), 25 * MB, 0, 25 * MB, new Path("s3a://target/big"),
+                           10 * MB, 2);
+    Assert.assertTrue(s3.copies.isEmpty());
+    Assert.assertEquals(3, s3.completedParts);
+    Assert.assertEquals(3, s3.parts.size());
+    for (CopyPartRequest part : s3.parts) {
+      Assert.assertEquals("source", part.getSourceBucketName());
+      Assert.assertEquals("big", part.getDestinationKey());
+      Assert.assertEquals("upload", part.getUploadId());
+      long firstByte = (part.getPartNumber() - 1) * 10 * MB;
+      Assert.assertEquals(firstByte, (long) part.getFirstByte());
+      Assert.assertEquals(Math.min(firstByte + 10 * MB, 25 * MB) - 1, (long) part.getLastByte());
+    }
+  }
+
+  @Test
+  public void testRangeIsCopiedInParts() throws IOException {
+    FakeS3Client s3 = new FakeS3Client();
+    // the part size is raised to the minimum of 5 MB
+    S3MultipartCopier.copy(s3, new Path("s3a://source/big"), 25 * MB, 4 * MB, 6 * MB,
+                           new Path("s3a://target/.big.chunk-00001"), MB, 2);
+    Assert.assertEquals(2, s3.parts.size());
+    Assert.assertEquals(4 * MB, (long) s3.parts.get(0).getFirstByte());
+    Assert.assertEquals(9 * MB - 1, (long) s3.parts.get(0).getLastByte());
+    Assert.assertEquals(9 * MB, (long) s3.parts.get(1).getFirstByte());
+    Assert.assertEquals(10 * MB - 1, (long) s3.parts.get(1).getLastByte());
+  }
+
+  @Test
+  public void testHugeObjectIsCopiedInAtMostMaxParts() throws IOException {
+    FakeS3Client s3 = new FakeS3Client();
+    long size = (2L << 40) + 1;
+    S3MultipartCopier.copy(s3, new Path("s3a://source/huge"), size, 0, size, new Path("s3a://target/huge"),
+                           100 * MB, 4);
+    Assert.assertEquals(S3MultipartUploader.MAX_PARTS, s3.completedParts);
+    CopyPartRequest last = s3.parts.get(s3.parts.size() - 1);
+    Assert.assertEquals(size - 1, (long) last.getLastByte());
+  }
+
+  @Test
+  public void testConcatCopiesLargePartsInRanges() throws IOException {
+    FakeS3Client s3 = new FakeS3Client();
+    long large = 12L << 30;
+    S3MultipartCopier.concat(s3, new Path("s3a://target/big"),
+                             Arrays.asList(new Path("s3a://target/.big.chunk-00000"),
+                                           new Path("s3a://target/.big.chunk-00001")),
+                             Arrays.asList(large, 3 * MB), 2);
+    // the first part is copied in three ranges of 4 GB, the second as a whole
+    Assert.assertEquals(4, s3.completedParts);
+    for (int i = 0; i < 3; i++) {
+      CopyPartRequest part = s3.parts.get(i);
+      Assert.assertEquals(".big.chunk-00000", part.getSourceKey());
+      Assert.assertEquals(i * (4L << 30), (long) part.getFirstByte());
+      Assert.assertEquals((i + 1) * (4L << 30) - 1, (long) part.getLastByte());
+    }
+    Assert.assertEquals(".big.chunk-00001", s3.parts.get(3).getSourceKey());
+    Assert.assertNull(s3.parts.get(3).getFirstByte());
+    Assert.assertEquals(Arrays.asList(".big.chunk-00000", ".big.chunk-00001"), s3.deletes);
+  }
+
+  @Test
+  public void testConcatRejectsSmallParts() {
+    FakeS3Client s3 = new FakeS3Client();
+    try {
+      S3MultipartCopier.concat(s3, new Path("s3a://target/big"),
+                               Arrays.asList(new Path("s3a://target/.big.chunk-00000"),
+                                             new Path("s3a://target/.big.chunk-00001")),
+                               Arrays.asList(MB, MB), 2);
+      Assert.fail("Expected the concatenation to fail");
+    } catch (IOException e) {
+      Assert.assertTrue(s3.parts.isEmpty());
+      Assert.assertTrue(s3.deletes.isEmpty());
+    }
+  }
+
+  /**
+   * Records the copy requests.
+   */
+  private static class FakeS3Client extends AmazonS3Client {
+    private final List<String> copies = new ArrayList<>();
+    private final List<String> deletes = new ArrayList<>();
+    private final List<CopyPartRequest> parts = Collections.synchronizedList(new ArrayList<>());
+    private int completedParts;
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest request) {
+      copies.add(String.format("%s/%s -> %s/%s", request.getSourceBucketName(), request.getSourceKey(),
+                               request.getDestinationBucketName(), request.getDestinationKey()));
+      return new CopyObjectResult();
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+      deletes.add(key);
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+      InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+      result.setUploadId("upload");
+      return result;
+    }
+
+    @Override
+    public CopyPartResult copyPart(CopyPartRequest request) {
+      parts.add(request);
+      CopyPartResult result = new CopyPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("etag" + request.getPartNumber());
+      return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+      completedParts = request.getPartETags().size();
+      parts.sort((a, b) -> Integer.compare(a.getPartNumber(), b.getPartNumber()));
+      return new CompleteMultipartUploadResult();
+    }
+  }
+}
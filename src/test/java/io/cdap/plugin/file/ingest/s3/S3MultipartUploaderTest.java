@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class S3MultipartUploaderTest {
+  private static final long MB = 1 << 20;
+
+  @Test
+  public void testPartSize() {
+    Assert.assertEquals(S3MultipartCopier.MIN_PART_SIZE, S3MultipartUploader.getPartSize(MB, MB));
+    Assert.assertEquals(16 * MB, S3MultipartUploader.getPartSize(100 * MB, 16 * MB));
+    // a terabyte does not fit into 10,000 parts of 16 MB
+    long size = 1L << 40;
+    long partSize = S3MultipartUploader.getPartSize(size, 16 * MB);
+    Assert.assertTrue(partSize > 16 * MB);
+    Assert.assertTrue((size + partSize - 1) / partSize <= S3MultipartUploader.MAX_PARTS);
+  }
+
+  @Test
+  public void testPartsAreUploadedAndRetried() throws IOException {
+    byte[] bytes = new byte[(int) (17 * MB)];
+    new Random(0).nextBytes(bytes);
+    // the second part fails once
+    FakeS3Client s3 = new FakeS3Client(2, 1);
+    long uploaded = S3MultipartUploader.upload(s3, new ByteArrayInputStream(bytes), bytes.length,
+                                               new Path("s3a://bucket/a/b.bin"), 5 * MB, 3);
+
+    Assert.assertEquals(bytes.length, uploaded);
+    Assert.assertEquals("a/b.bin", s3.key);
+    Assert.assertEquals(4, s3.parts.size());
+    Assert.assertEquals(4, s3.completedParts);
+    Assert.assertFalse(s3.aborted);
+    Assert.assertEquals(1, s3.failedAttempts);
+    ByteArrayOutputStream object = new ByteArrayOutputStream();
+    for (byte[] part : s3.parts.values()) {
+      object.write(part);
+    }
+    Assert.assertArrayEquals(bytes, object.toByteArray());
+  }
+
+  @Test
+  public void testFailedPartAbortsUpload() {
+    byte[] bytes = new byte[(int) (12 * MB)];
+    FakeS3Client s3 = new FakeS3Client(1, Integer.MAX_VALUE);
+    try {
+      S3MultipartUploader.upload(s3, new ByteArrayInputStream(bytes), bytes.length, new Path("s3a://bucket/c"),
+                                 5 * MB, 2);
+      Assert.fail("The upload should have failed.");
+    } catch (IOException e) {
+      // expected
+    }
+    Assert.assertTrue(s3.aborted);
+    Assert.assertEquals(0, s3.completedParts);
+  }
+
+  @Test
+  public void testUploadIsResumedAfterLeadingParts() throws IOException {
+    FakeS3Client s3 = new FakeS3Client(0, 0);
+    // part 3 is missing, so part 4 is uploaded again
+    for (int partNumber : new int[] { 2, 1, 4 }) {
+      PartSummary part = new PartSummary();
+      part.setPartNumber(partNumber);
+      part.setSize(5 * MB);
+      part.setETag("etag" + partNumber);
+      s3.listedParts.add(part);
+    }
+    List<PartETag> uploadedParts = S3MultipartUploader.getUploadedParts(s3, new Path("s3a://bucket/d"), "upload",
+                                                                        5 * MB);
+    Assert.assertEquals(2, uploadedParts.size());
+    Assert.assertEquals(2, uploadedParts.get(1).getPartNumber());
+    // a part of a different size can't be kept
+    Assert.assertTrue(S3MultipartUploader.getUploadedParts(s3, new Path("s3a://bucket/d"), "upload", 6 * MB)
+                        .isEmpty());
+
+    byte[] rest = new byte[(int) (7 * MB)];
+    Assert.assertEquals(rest.length, S3MultipartUploader.uploadParts(s3, new ByteArrayInputStream(rest),
+                                                                     new Path("s3a://bucket/d"), "upload", 5 * MB,
+                                                                     uploadedParts, 2, false));
+    Assert.assertEquals(Arrays.asList(3, 4), new ArrayList<>(s3.parts.keySet()));
+    Assert.assertEquals(4, s3.completedParts);
+  }
+
+  /**
+   * Keeps the uploaded parts in memory, and fails the uploads of one part a number of times.
+   */
+  private static class FakeS3Client extends AmazonS3Client {
+    private final Map<Integer, byte[]> parts = new TreeMap<>();
+    private final List<PartSummary> listedParts = new ArrayList<>();
+    private final int failingPart;
+    private final int failures;
+    private int failedAttempts;
+    private String key;
+    private int completedParts;
+    private boolean aborted;
+
+    FakeS3Client(int failingPart, int failures) {
+      this.failingPart = failingPart;
+      this.failures = failures;
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+      key = request.getKey();
+      InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+      result.setUploadId("upload");
+      return result;
+    }
+
+    @Override
+    public synchronized UploadPartResult uploadPart(UploadPartRequest request) {
+      if (request.getPartNumber() == failingPart && failedAttempts < failures) {
+        failedAttempts++;
+        throw new AmazonClientException("Failed part " + failingPart);
+      }
+      byte[] part = new byte[(int) request.getPartSize()];
+      try (InputStream input = request.getInputStream()) {
+        Assert.assertEquals(part.length, input.read(part));
+      } catch (IOException e) {
+        throw new AmazonClientException(e.getMessage(), e);
+      }
+      parts.put(request.getPartNumber(), part);
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("etag" + request.getPartNumber());
+      return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+      completedParts = request.getPartETags().size();
+      for (PartETag partETag : request.getPartETags()) {
+        Assert.assertEquals("etag" + partETag.getPartNumber(), partETag.getETag());
+      }
+      return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public PartListing listParts(ListPartsRequest request) {
+      // lists one part at a time
+      int index = request.getPartNumberMarker() == null ? 0 : request.getPartNumberMarker();
+      PartListing listing = new PartListing();
+      listing.setParts(Collections.singletonList(listedParts.get(index)));
+      listing.setTruncated(index + 1 < listedParts.size());
+      listing.setNextPartNumberMarker(index + 1);
+      return listing;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+      aborted = true;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.file.ingest.s3;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class S3TreeListerTest {
+
+  @Test
+  public void testSynthesizeDirectories() throws IOException {
+    FakeS3Client s3 = new FakeS3Client(
+      Arrays.asList("data/", "data/a-1.txt", "data/a/b/file1"),
+      Arrays.asList("data/a/b/file2", "data/a/empty/", "data/c_$folder$", "data/z.txt"));
+    FileStatus rootStatus = new FileStatus(0, true, 1, 0, 0, 0, null, "owner", "group",
+                                           new Path("s3a://bucket/data"));
+
+    List<String> entries = new ArrayList<>();
+    RemoteIterator<FileStatus> iter = new S3TreeLister(null, s3).new TreeIterator(rootStatus, 1024);
+    while (iter.hasNext()) {
+      FileStatus fileStatus = iter.next();
+      Assert.assertEquals("owner", fileStatus.getOwner());
+      entries.add((fileStatus.isDirectory() ? "d " : "f ") + fileStatus.getPath());
+    }
+
+    Assert.assertEquals("data/", s3.request.getPrefix());
+    Assert.assertEquals("bucket", s3.request.getBucketName());
+    Assert.assertNull(s3.request.getDelimiter());
+    Assert.assertEquals(Arrays.asList("f s3a://bucket/data/a-1.txt",
+                                      "d s3a://bucket/data/a",
+                                      "d s3a://bucket/data/a/b",
+                                      "f s3a://bucket/data/a/b/file1",
+                                      "f s3a://bucket/data/a/b/file2",
+                                      "d s3a://bucket/data/a/empty",
+                                      "d s3a://bucket/data/c",
+                                      "f s3a://bucket/data/z.txt"), entries);
+  }
+
+  @Test
+  public void testS3nMarkerAfterSiblings() throws IOException {
+    // the marker of a/b sorts after the keys below a/b and after its sibling a/b1
+    FakeS3Client s3 = new FakeS3Client(Arrays.asList("a/b/x", "a/b1/y"), Arrays.asList("a/b_$folder$", "a/c_$folder$"));
+    FileStatus rootStatus = new FileStatus(0, true, 1, 0, 0, 0, null, "owner", "group",
+                                           new Path("s3a://bucket/"));
+
+    List<String> entries = new ArrayList<>();
+    RemoteIterator<FileStatus> iter = new S3TreeLister(null, s3).new TreeIterator(rootStatus, 1024);
+    while (iter.hasNext()) {
+      entries.add(iter.next().getPath().toString());
+    }
+
+    Assert.assertEquals(Arrays.asList("s3a://bucket/a",
+                                      "s3a://bucket/a/b",
+                                      "s3a://bucket/a/b/x",
+                                      "s3a://bucket/a/b1",
+                                      "s3a://bucket/a/b1/y",
+                                      "s3a://bucket/a/c"), entries);
+  }
+
+  @Test
+  public void testBucketRoot() throws IOException {
+    FakeS3Client s3 = new FakeS3Client(Arrays.asList("a/file", "b"));
+    FileStatus rootStatus = new FileStatus(0, true, 1, 0, 0, 0, null, "owner", "group",
+                                           new Path("s3a://bucket/"));
+
+    List<String> entries = new ArrayList<>();
+    RemoteIterator<FileStatus> iter = new S3TreeLister(null, s3).new TreeIterator(rootStatus, 1024);
+    while (iter.hasNext()) {
+      entries.add(iter.next().getPath().toString());
+    }
+
+    Assert.assertEquals("", s3.request.getPrefix());
+    Assert.assertEquals(Arrays.asList("s3a://bucket/a", "s3a://bucket/a/file", "s3a://bucket/b"), entries);
+  }
+
+  /**
+   * Returns the given keys, one list per page.
+   */
+  private static class FakeS3Client extends AmazonS3Client {
+    private final List<List<String>> pages;
+    private ListObjectsRequest request;
+    private int page;
+
+    @SafeVarargs
+    FakeS3Client(List<String>... pages) {
+      this.pages = Arrays.asList(pages);
+    }
+
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+      this.request = request;
+      return nextPage();
+    }
+
+    @Override
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+      return nextPage();
+    }
+
+    private ObjectListing nextPage() {
+      ObjectListing listing = new ObjectListing();
+      for (String key : pages.get(page)) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(key.length());
+        summary.setLastModified(new Date(1000L));
+        listing.getObjectSummaries().add(summary);
+      }
+      page++;
+      listing.setTruncated(page < pages.size());
+      return listing;
+    }
+  }
+}